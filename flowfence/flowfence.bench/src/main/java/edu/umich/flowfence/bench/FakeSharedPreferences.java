@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory SharedPreferences. Commits apply in the same order as the framework's, clear
+ * first and then the edits, but nothing is ever written to disk.
+ */
+public final class FakeSharedPreferences implements SharedPreferences {
+    private final HashMap<String, Object> mValues = new HashMap<>();
+    private final ArrayList<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T get(String key, T defValue) {
+        Object value = mValues.get(key);
+        return (value != null) ? (T)value : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return get(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private final class FakeEditor implements Editor {
+        // A null value means remove.
+        private final HashMap<String, Object> mEdits = new HashMap<>();
+        private boolean mClear = false;
+
+        private synchronized Editor put(String key, Object value) {
+            mEdits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, (values != null) ? new HashSet<>(values) : null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> changed = new ArrayList<>();
+            List<OnSharedPreferenceChangeListener> listeners;
+            synchronized (FakeSharedPreferences.this) {
+                synchronized (this) {
+                    if (mClear) {
+                        mValues.clear();
+                        mClear = false;
+                    }
+                    for (Map.Entry<String, Object> edit : mEdits.entrySet()) {
+                        if (edit.getValue() == null) {
+                            mValues.remove(edit.getKey());
+                        } else {
+                            mValues.put(edit.getKey(), edit.getValue());
+                        }
+                        changed.add(edit.getKey());
+                    }
+                    mEdits.clear();
+                }
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                for (String key : changed) {
+                    listener.onSharedPreferenceChanged(FakeSharedPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
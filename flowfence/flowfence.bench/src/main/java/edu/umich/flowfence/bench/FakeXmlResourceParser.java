@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import android.content.res.XmlResourceParser;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Parses plain-text XML where the framework would hand over a compiled resource.
+ * Attributes are only available as strings; there are no resource references to resolve.
+ */
+public final class FakeXmlResourceParser extends KXmlParser implements XmlResourceParser {
+    public FakeXmlResourceParser(String xml) throws XmlPullParserException {
+        setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        setInput(new StringReader(xml));
+    }
+
+    @Override
+    public void close() {
+        try {
+            super.close();
+        } catch (IOException e) {
+            // Nothing to do for a string.
+        }
+    }
+
+    private int find(String namespace, String name) {
+        for (int i = 0; i < getAttributeCount(); i++) {
+            if (name.equals(getAttributeName(i)) &&
+                    (namespace == null || namespace.equals(getAttributeNamespace(i)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getAttributeNameResource(int index) {
+        return 0;
+    }
+
+    @Override
+    public int getAttributeListValue(String namespace, String attribute, String[] options,
+                                     int defaultValue) {
+        int index = find(namespace, attribute);
+        return (index < 0) ? defaultValue : getAttributeListValue(index, options, defaultValue);
+    }
+
+    @Override
+    public boolean getAttributeBooleanValue(String namespace, String attribute,
+                                            boolean defaultValue) {
+        int index = find(namespace, attribute);
+        return (index < 0) ? defaultValue : getAttributeBooleanValue(index, defaultValue);
+    }
+
+    @Override
+    public int getAttributeResourceValue(String namespace, String attribute, int defaultValue) {
+        return defaultValue;
+    }
+
+    @Override
+    public int getAttributeIntValue(String namespace, String attribute, int defaultValue) {
+        int index = find(namespace, attribute);
+        return (index < 0) ? defaultValue : getAttributeIntValue(index, defaultValue);
+    }
+
+    @Override
+    public int getAttributeUnsignedIntValue(String namespace, String attribute,
+                                            int defaultValue) {
+        int index = find(namespace, attribute);
+        return (index < 0) ? defaultValue : getAttributeUnsignedIntValue(index, defaultValue);
+    }
+
+    @Override
+    public float getAttributeFloatValue(String namespace, String attribute, float defaultValue) {
+        int index = find(namespace, attribute);
+        return (index < 0) ? defaultValue : getAttributeFloatValue(index, defaultValue);
+    }
+
+    @Override
+    public int getAttributeListValue(int index, String[] options, int defaultValue) {
+        String value = getAttributeValue(index);
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].equals(value)) {
+                return i;
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public boolean getAttributeBooleanValue(int index, boolean defaultValue) {
+        String value = getAttributeValue(index);
+        return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    @Override
+    public int getAttributeResourceValue(int index, int defaultValue) {
+        return defaultValue;
+    }
+
+    @Override
+    public int getAttributeIntValue(int index, int defaultValue) {
+        String value = getAttributeValue(index);
+        return (value != null) ? Integer.decode(value) : defaultValue;
+    }
+
+    @Override
+    public int getAttributeUnsignedIntValue(int index, int defaultValue) {
+        String value = getAttributeValue(index);
+        return (value != null) ? (int)Long.decode(value).longValue() : defaultValue;
+    }
+
+    @Override
+    public float getAttributeFloatValue(int index, float defaultValue) {
+        String value = getAttributeValue(index);
+        return (value != null) ? Float.parseFloat(value) : defaultValue;
+    }
+
+    @Override
+    public String getIdAttribute() {
+        return getAttributeValue(null, "id");
+    }
+
+    @Override
+    public String getClassAttribute() {
+        return getAttributeValue(null, "class");
+    }
+
+    @Override
+    public int getIdAttributeResourceValue(int defaultValue) {
+        return defaultValue;
+    }
+
+    @Override
+    public int getStyleAttribute() {
+        return 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import sun.misc.Unsafe;
+
+/**
+ * What the fixture factories build objects with: allocating them without running a
+ * constructor, and reaching into their fields by name. A field that gets renamed makes setup
+ * fail loudly rather than measure the wrong thing.
+ */
+public final class Fixtures {
+    private static final Unsafe g_mUnsafe;
+
+    static {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            g_mUnsafe = (Unsafe)theUnsafe.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Fixtures() { }
+
+    /**
+     * @return A new instance of clazz, with every field zero or null.
+     */
+    public static <T> T allocate(Class<T> clazz) {
+        try {
+            return clazz.cast(g_mUnsafe.allocateInstance(clazz));
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Field findField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("No field "+name+" in "+clazz.getName(), e);
+        }
+    }
+
+    /**
+     * Sets a field declared by the target's own class.
+     */
+    public static void set(Object target, String name, Object value) {
+        set(target.getClass(), target, name, value);
+    }
+
+    /**
+     * Sets a field declared by clazz, which may be a superclass of the target's, or a static
+     * one if target is null.
+     */
+    public static void set(Class<?> clazz, Object target, String name, Object value) {
+        try {
+            findField(clazz, name).set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Object get(Class<?> clazz, Object target, String name) {
+        try {
+            return findField(clazz, name).get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return An implementation of iface that only supports identity; anything else throws.
+     */
+    public static <T> T stub(Class<T> iface) {
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.ArrayList;
+
+/**
+ * A Handler that never runs anything on its own. Posted runnables wait until {@link #runDue}
+ * is called with a time at or past when they were due, so a simulation can drive timers in its
+ * own time, along with {@link android.os.SystemClock#setSimulatedTime}.
+ *
+ * removeCallbacks() is final in Handler, so it can't be intercepted, and a removed runnable
+ * still runs when it comes due. Only hand this to code whose runnables are safe to run early or
+ * twice, like a sweep that checks what's due itself.
+ */
+public final class ManualHandler extends Handler {
+    private static final class Posted {
+        public final Runnable mCallback;
+        public final long mWhen;
+
+        public Posted(Runnable callback, long when) {
+            mCallback = callback;
+            mWhen = when;
+        }
+    }
+
+    // In the order they were posted.
+    private final ArrayList<Posted> mPosted = new ArrayList<>();
+
+    /**
+     * @param looper Never looped; it only has to have a queue for Handler to hold on to.
+     */
+    public ManualHandler(Looper looper) {
+        super(looper);
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        if (msg.getCallback() == null) {
+            throw new UnsupportedOperationException("Only runnables can be posted");
+        }
+        synchronized (mPosted) {
+            mPosted.add(new Posted(msg.getCallback(), uptimeMillis));
+        }
+        return true;
+    }
+
+    private Posted pollDue(long uptimeMillis) {
+        synchronized (mPosted) {
+            int soonest = -1;
+            for (int i = 0; i < mPosted.size(); i++) {
+                long when = mPosted.get(i).mWhen;
+                if (when <= uptimeMillis && (soonest < 0 || when < mPosted.get(soonest).mWhen)) {
+                    soonest = i;
+                }
+            }
+            return (soonest >= 0) ? mPosted.remove(soonest) : null;
+        }
+    }
+
+    /**
+     * Runs everything due by uptimeMillis, soonest first, including anything those post that's
+     * also due by then.
+     * @return How many runnables ran.
+     */
+    public int runDue(long uptimeMillis) {
+        int ran = 0;
+        Posted posted;
+        while ((posted = pollDue(uptimeMillis)) != null) {
+            posted.mCallback.run();
+            ran++;
+        }
+        return ran;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.service.NamespaceSharedPrefs;
+
+/**
+ * Commits to a key-value store laid out the way KVSSharedPrefs lays one out: a value and a
+ * taint per key, with the distinct taint sets stored once each. Every commit has to
+ * reconcile the taint set reference counts, which is the cost being measured; it should
+ * depend on the number of keys changed, not on the number of entries in the store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NamespaceSharedPrefsBenchmark {
+    private static final String DATA = "data";
+    private static final String TAINT = "taint";
+    private static final String TAINT_SET = "taint-set";
+
+    @Param({"16", "256", "4096"})
+    public int entries;
+
+    @Param({"1", "8"})
+    public int distinctTaints;
+
+    private NamespaceSharedPrefs mPrefs;
+    private TaintSet[] mTaints;
+    private int mNextKey = 0;
+    private int mPass = 0;
+
+    private static String keyFor(int i) {
+        return "key" + i;
+    }
+
+    @Setup
+    public void setUp() {
+        // A fresh backing store per trial; NamespaceSharedPrefs caches instances by store.
+        mPrefs = NamespaceSharedPrefs.get(new FakeSharedPreferences(), TAINT_SET, TAINT);
+
+        mTaints = new TaintSet[distinctTaints];
+        for (int i = 0; i < distinctTaints; i++) {
+            mTaints[i] = TaintSet.singleton("edu.umich.flowfence.bench/Source" + i);
+        }
+
+        NamespaceSharedPrefs.Editor editor = mPrefs.edit();
+        for (int i = 0; i < entries; i++) {
+            editor.putString(DATA, keyFor(i), "value" + i);
+            editor.putTaint(TAINT, keyFor(i), mTaints[i % distinctTaints]);
+        }
+        editor.commit();
+    }
+
+    @Benchmark
+    public boolean commitOne() {
+        int key = mNextKey;
+        if (++mNextKey == entries) {
+            mNextKey = 0;
+            mPass++;
+        }
+        // Each pass moves every key to the next taint over, so the reference counts change.
+        TaintSet taint = mTaints[(key + mPass + 1) % distinctTaints];
+        return mPrefs.edit()
+                .putString(DATA, keyFor(key), "value" + key)
+                .putTaint(TAINT, keyFor(key), taint)
+                .commit();
+    }
+
+    @Benchmark
+    public boolean commitUntainted() {
+        int key = mNextKey;
+        mNextKey = (key + 1) % entries;
+        return mPrefs.edit()
+                .putString(DATA, keyFor(key), "value" + key)
+                .commit();
+    }
+}
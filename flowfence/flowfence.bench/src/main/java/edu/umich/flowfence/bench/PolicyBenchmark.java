@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.helpers.Utils;
+import edu.umich.flowfence.policy.NetworkSinkRequest;
+import edu.umich.flowfence.policy.Policy;
+import edu.umich.flowfence.policy.SinkRequest;
+import edu.umich.flowfence.policy.Source;
+import edu.umich.flowfence.service.ServiceFixtures;
+
+/**
+ * Sink checks against taint from one or more sources, each with a small policy parsed from
+ * the same XML a package manifest would carry. With cached=false the decision cache is dropped
+ * before every call, so each one walks the rules.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PolicyBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final String URL = "https://example.com/api";
+
+    private static final String SOURCE_XML =
+            "<source xmlns:ff='" + Utils.FLOWFENCE_NAMESPACE + "' ff:name='%s'>" +
+            "  <policy>" +
+            "    <drop ff:sink='PUSH'/>" +
+            "    <allow ff:sink='TOAST'/>" +
+            "    <allow ff:sink='NETWORK' ff:filter='" + URL + "'/>" +
+            "    <drop/>" +
+            "  </policy>" +
+            "</source>";
+
+    @Param({"1", "4"})
+    public int sources;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private TaintSet mTaint;
+
+    private static Source parseSource(String name) throws Exception {
+        FakeXmlResourceParser parser = new FakeXmlResourceParser(String.format(SOURCE_XML, name));
+        parser.nextTag();
+        return new Source(PACKAGE, parser, null);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        List<Source> sourceList = new ArrayList<>();
+        TaintSet.Builder taint = new TaintSet.Builder();
+        for (int i = 0; i < sources; i++) {
+            Source source = parseSource("Source" + i);
+            sourceList.add(source);
+            taint.addTaint(source.getSourceName());
+        }
+        ServiceFixtures.installManifests(Collections.singletonMap(PACKAGE, sourceList));
+        mTaint = taint.build();
+        Policy.invalidateDecisions();
+    }
+
+    private void maybeInvalidate() {
+        if (!cached) {
+            Policy.invalidateDecisions();
+        }
+    }
+
+    @Benchmark
+    public boolean allowed() {
+        maybeInvalidate();
+        return Policy.checkSink(mTaint, new SinkRequest("TOAST"));
+    }
+
+    @Benchmark
+    public boolean dropped() {
+        maybeInvalidate();
+        return Policy.checkSink(mTaint, new SinkRequest("PUSH"));
+    }
+
+    @Benchmark
+    public boolean filteredNetwork() {
+        maybeInvalidate();
+        return Policy.checkSink(mTaint, new NetworkSinkRequest("NETWORK", URL));
+    }
+}
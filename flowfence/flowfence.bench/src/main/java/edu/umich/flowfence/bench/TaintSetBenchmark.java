@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.bench;
+
+import android.content.ComponentName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.TaintSet;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TaintSetBenchmark {
+    @Param({"1", "4", "16"})
+    public int labels;
+
+    private ComponentName[] mNames;
+    private TaintSet mSet;
+    private TaintSet mSuperset;
+    private TaintSet mOther;
+
+    @Setup
+    public void setUp() {
+        mNames = new ComponentName[labels * 2];
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = new ComponentName("edu.umich.flowfence.bench", "Source" + i);
+        }
+
+        TaintSet.Builder set = new TaintSet.Builder();
+        TaintSet.Builder superset = new TaintSet.Builder();
+        TaintSet.Builder other = new TaintSet.Builder();
+        for (int i = 0; i < labels; i++) {
+            set.addTaint(mNames[i]);
+            superset.addTaint(mNames[i]);
+            superset.addTaint(mNames[labels + i]);
+            other.addTaint(mNames[labels + i], 0.5f);
+        }
+        mSet = set.build();
+        mSuperset = superset.build();
+        mOther = other.build();
+    }
+
+    @Benchmark
+    public TaintSet build() {
+        TaintSet.Builder builder = new TaintSet.Builder();
+        for (int i = 0; i < labels; i++) {
+            builder.addTaint(mNames[i]);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public TaintSet union() {
+        return mSet.asBuilder().unionWith(mOther).build();
+    }
+
+    @Benchmark
+    public boolean isSubsetOfHit() {
+        return mSet.isSubsetOf(mSuperset);
+    }
+
+    @Benchmark
+    public boolean isSubsetOfMiss() {
+        return mSuperset.isSubsetOf(mSet);
+    }
+
+    @Benchmark
+    public boolean equalsCopy() {
+        return mSet.equals(mSet.asBuilder().build());
+    }
+}
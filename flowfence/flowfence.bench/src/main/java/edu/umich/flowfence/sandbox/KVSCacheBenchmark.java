@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import android.content.SharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.service.KVSSharedPrefs;
+import edu.umich.flowfence.service.Sandbox;
+import edu.umich.flowfence.service.ServiceFixtures;
+
+/**
+ * Reads one key of a key-value store from a QM, through the sandbox's read cache and straight
+ * from the trusted side. Off-device there's no binder, so the direct read here is only the
+ * trusted side's share of what a cache miss costs. KVSCacheTest checks that the two read the
+ * same values and leave the same taint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KVSCacheBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+
+    // Sandbox contexts keep stores open by name for the life of the process.
+    private static int g_mStoreCount = 0;
+
+    private SandboxContext mContext;
+    private SharedPreferences mCached;
+    private KVSSharedPrefs mDirect;
+
+    @Setup
+    public void setUp() {
+        ServiceFixtures.installStores();
+        String storeName = "store" + (g_mStoreCount++);
+        Set<String> packages = Collections.singleton(PACKAGE);
+        Sandbox cachedSandbox = ServiceFixtures.newConnectedSandbox(0, PACKAGE, TaintSet.EMPTY,
+                                                                    packages);
+        Sandbox directSandbox = ServiceFixtures.newConnectedSandbox(1, PACKAGE, TaintSet.EMPTY,
+                                                                    packages);
+
+        mDirect = new KVSSharedPrefs(directSandbox, PACKAGE, PACKAGE, storeName, 0);
+        KVSSharedPrefs cachedRemote = new KVSSharedPrefs(cachedSandbox, PACKAGE, PACKAGE,
+                                                         storeName, 0);
+        mContext = SandboxFixtures.newContext(PACKAGE,
+                SandboxFixtures.newStoreCallout(cachedSandbox, cachedRemote));
+        mContext.beginQM();
+        mCached = mContext.getSharedPreferences(storeName, 0);
+
+        // One key, already read (and so cached) once.
+        KVSSharedPrefs.Editor editor = mDirect.edit();
+        editor.putInt("count", 1);
+        editor.commit();
+        mCached.getInt("count", 0);
+        mDirect.getInt("count", 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mContext.endQM();
+    }
+
+    @Benchmark
+    public int cachedRead() {
+        return mCached.getInt("count", 0);
+    }
+
+    @Benchmark
+    public int directRead() {
+        return mDirect.getInt("count", 0);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.common.TaintableSharedPreferencesEditor;
+import edu.umich.flowfence.service.KVSSharedPrefs;
+import edu.umich.flowfence.service.Sandbox;
+import edu.umich.flowfence.service.ServiceFixtures;
+
+/**
+ * The fencedhr frame counter: HRQM bumps it once per camera frame and TputQM drains it once
+ * a second. Each update is an increment in one transaction, against reading the counter and
+ * then writing it back. Off-device there's no binder, so what matters here is the number of
+ * calls each one makes to the trusted side, which is what the benchmarks return. KVSCounterTest
+ * checks the counter under concurrency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KVSCounterBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final String COUNTER = "counter";
+    private static final String TS = "ts";
+
+    private RemoteSharedPrefsWrapper mPrefs;
+    private AtomicInteger mCalls;
+
+    @Setup
+    public void setUp() {
+        ServiceFixtures.installStores();
+        Sandbox sb = ServiceFixtures.newConnectedSandbox(0, PACKAGE, TaintSet.EMPTY,
+                                                         Collections.singleton(PACKAGE));
+        mCalls = new AtomicInteger();
+        mPrefs = SandboxFixtures.newCountingWrapper(
+                new KVSSharedPrefs(sb, PACKAGE, PACKAGE, "counter", 0), mCalls);
+    }
+
+    @Benchmark
+    public int increment() {
+        int before = mCalls.get();
+        mPrefs.edit().increment(COUNTER, 1).apply();
+        return mCalls.get() - before;
+    }
+
+    // How HRQM counted frames before.
+    @Benchmark
+    public int readThenWrite() {
+        int before = mCalls.get();
+        int counter = mPrefs.getInt(COUNTER, 0);
+        TaintableSharedPreferencesEditor edit = mPrefs.edit();
+        edit.putInt(COUNTER, counter + 1);
+        if (counter == 0) {
+            edit.putLong(TS, 0);
+        }
+        edit.apply();
+        return mCalls.get() - before;
+    }
+}
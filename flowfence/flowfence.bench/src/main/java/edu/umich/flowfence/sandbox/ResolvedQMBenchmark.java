@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.IBinder;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.CallFlags;
+import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.CallResult;
+import edu.umich.flowfence.internal.IQMCallback;
+
+/**
+ * Sandbox-side overhead of one call through {@link ResolvedQM#call}: argument unpacking,
+ * dispatch to the QM and packaging up the result, for QMs that do no work of their own.
+ * Arguments are passed as already-decoded values, so no parceling is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResolvedQMBenchmark {
+    public static final class BenchQM {
+        public static int zero() {
+            return 0;
+        }
+
+        public static int one(Integer a) {
+            return a;
+        }
+
+        public static int four(Integer a, String b, Long c, String d) {
+            return a;
+        }
+
+        public int zeroInstance() {
+            return 0;
+        }
+
+        public int oneInstance(Integer a) {
+            return a;
+        }
+
+        public int fourInstance(Integer a, String b, Long c, String d) {
+            return a;
+        }
+    }
+
+    private static final class Callback implements IQMCallback {
+        public CallResult mResult;
+
+        @Override
+        public void onResult(CallResult result) {
+            mResult = result;
+        }
+
+        @Override
+        public void onBatchResult(CallResult[] results) {
+            mResult = results[0];
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    @Param({"0", "1", "4"})
+    public int arguments;
+
+    @Param({"true", "false"})
+    public boolean isStatic;
+
+    private ResolvedQM mQM;
+    private List<CallParam> mParams;
+    private final Callback mCallback = new Callback();
+
+    private static CallParam data(Object value) {
+        CallParam param = new CallParam();
+        param.setData(value, 0);
+        return param;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        String name = (arguments == 0) ? "zero" : (arguments == 1) ? "one" : "four";
+        Method target = null;
+        for (Method m : BenchQM.class.getMethods()) {
+            if (m.getName().equals(isStatic ? name : name + "Instance")) {
+                target = m;
+            }
+        }
+        mQM = SandboxFixtures.newResolvedQM(target);
+
+        mParams = new ArrayList<>();
+        if (!isStatic) {
+            mParams.add(data(new BenchQM()));
+        }
+        Object[] values = { 1, "two", 3L, "four" };
+        for (int i = 0; i < arguments; i++) {
+            mParams.add(data(values[i]));
+        }
+    }
+
+    @Benchmark
+    public CallResult call() throws Exception {
+        mQM.call(CallFlags.NO_RETURN_VALUE, mCallback, mParams);
+        return mCallback.mResult;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import android.content.ContextWrapper;
+import android.os.RemoteException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umich.flowfence.common.IFlowfenceService;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.internal.ITrustedAPI;
+import edu.umich.flowfence.kvs.IRemoteSharedPrefs;
+import edu.umich.flowfence.service.KVSSharedPrefs;
+import edu.umich.flowfence.service.Sandbox;
+
+import static edu.umich.flowfence.bench.Fixtures.allocate;
+import static edu.umich.flowfence.bench.Fixtures.set;
+import static edu.umich.flowfence.bench.Fixtures.stub;
+
+/**
+ * Builds sandbox-side objects on a plain JVM, the same way
+ * {@link edu.umich.flowfence.service.ServiceFixtures} does for the service.
+ */
+public final class SandboxFixtures {
+    private SandboxFixtures() { }
+
+    /**
+     * A context for QMs from packageName, whose calls out to the trusted side go to callout.
+     * Nothing it's expected to do needs the base context or the root service.
+     */
+    public static SandboxContext newContext(String packageName, ITrustedAPI callout) {
+        return new SandboxContext(new ContextWrapper(null), packageName, null, callout,
+                                  stub(IFlowfenceService.class));
+    }
+
+    /**
+     * Stands in for TrustedAPI, for the two calls a QM using a store makes: opening it, which
+     * always returns prefs, and dropping taint from sb, which its package may drop.
+     */
+    public static ITrustedAPI newStoreCallout(final Sandbox sb, final KVSSharedPrefs prefs) {
+        final Set<String> allowed = Collections.singleton(sb.getAssignedPackage());
+        return (ITrustedAPI)Proxy.newProxyInstance(ITrustedAPI.class.getClassLoader(),
+                new Class<?>[] { ITrustedAPI.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "openSharedPrefs":
+                                return prefs;
+                            case "removeTaints":
+                                return sb.removeTaint((TaintSet)args[0], allowed);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * A sandbox's view of prefs that counts its calls through to the trusted side, each of
+     * which would be a transaction on a device.
+     */
+    public static RemoteSharedPrefsWrapper newCountingWrapper(final KVSSharedPrefs prefs,
+                                                              final AtomicInteger calls) {
+        IRemoteSharedPrefs remote = (IRemoteSharedPrefs)Proxy.newProxyInstance(
+                IRemoteSharedPrefs.class.getClassLoader(), new Class<?>[] { IRemoteSharedPrefs.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        calls.incrementAndGet();
+                        try {
+                            return method.invoke(prefs, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        try {
+            return new RemoteSharedPrefsWrapper(remote);
+        } catch (RemoteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A QM resolved to a public method, ready to be called through
+     * {@link ResolvedQM#call}. Static methods resolve as static QMs, others as instance QMs.
+     */
+    public static ResolvedQM newResolvedQM(Method method) {
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        ResolvedQM qm = allocate(ResolvedQM.class);
+        set(qm, "mContext", allocate(SandboxContext.class));
+        set(qm, "mDefiningClass", method.getDeclaringClass());
+        set(qm, "mOriginalDescriptor", QMDescriptor.parse(
+                "edu.umich.flowfence.bench/" + method.getDeclaringClass().getName() +
+                (isStatic ? "::" : "#") + method.getName() + "()"));
+        try {
+            Class<?> dataClass = Class.forName(ResolvedQM.class.getName() +
+                    (isStatic ? "$MethodData" : "$InstanceMethodData"));
+            Constructor<?> ctor = dataClass.getDeclaredConstructor(ResolvedQM.class, Method.class);
+            ctor.setAccessible(true);
+            set(qm, "mMemberData", ctor.newInstance(qm, method));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return qm;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A pool of sandboxes shared by two kinds of calls, in simulated time. Background calls always
+ * have a backlog waiting, and each one runs for a while, like camera frames or sensor polls;
+ * a short foreground call comes in now and then, like a button press. Subclasses decide how
+ * waiting calls are queued and handed sandboxes. Each benchmark op is one {@link #step}.
+ */
+public abstract class CallSimulation {
+    protected static final int SANDBOXES = 8;
+    protected static final int BACKGROUND_OUTSTANDING = 32;
+    protected static final int BACKGROUND_TICKS = 4;
+    protected static final int FOREGROUND_TICKS = 1;
+    protected static final int FOREGROUND_INTERVAL = 5;
+    // A background call that waits longer than this to start is counted as late.
+    protected static final int LATE_TICKS = 12;
+
+    protected static class Call {
+        public final boolean mForeground;
+        public final long mMadeAt;
+        private long mFinishAt;
+
+        public Call(boolean foreground, long madeAt) {
+            mForeground = foreground;
+            mMadeAt = madeAt;
+        }
+    }
+
+    /**
+     * What the simulation did, reported by JMH as secondary results alongside the time per
+     * tick. JMH adds these up over all the measurement iterations, so only raw counts are kept
+     * here; rates and averages come from dividing one by another, e.g. foregroundWaitTicks by
+     * foregroundServed for the mean foreground wait.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        private long mTicks;
+        private long mBackgroundServed;
+        private long mBackgroundLate;
+        private long mBackgroundDropped;
+        private long mForegroundServed;
+        private long mForegroundDelayed;
+        private long mForegroundWaitTicks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mTicks = 0;
+            mBackgroundServed = 0;
+            mBackgroundLate = 0;
+            mBackgroundDropped = 0;
+            mForegroundServed = 0;
+            mForegroundDelayed = 0;
+            mForegroundWaitTicks = 0;
+        }
+
+        public long ticks() {
+            return mTicks;
+        }
+
+        public long backgroundServed() {
+            return mBackgroundServed;
+        }
+
+        // Background calls that waited over LATE_TICKS to start.
+        public long backgroundLate() {
+            return mBackgroundLate;
+        }
+
+        // Background calls that never started because their deadline passed.
+        public long backgroundDropped() {
+            return mBackgroundDropped;
+        }
+
+        public long foregroundServed() {
+            return mForegroundServed;
+        }
+
+        // Foreground calls that didn't start on the tick they were made.
+        public long foregroundDelayed() {
+            return mForegroundDelayed;
+        }
+
+        public long foregroundWaitTicks() {
+            return mForegroundWaitTicks;
+        }
+    }
+
+    private final ArrayList<Call> mRunning = new ArrayList<>(SANDBOXES);
+    private final ArrayList<Call> mFinished = new ArrayList<>(SANDBOXES);
+    private long mNow;
+    private Counters mCounters;
+
+    /**
+     * @return A new call made now. Subclasses can return their own kind of call.
+     */
+    protected abstract Call newCall(boolean foreground);
+
+    /**
+     * Queues call, or starts it right away if it can be.
+     */
+    protected abstract void submit(Call call);
+
+    /**
+     * Gives back whatever call was running in.
+     */
+    protected abstract void release(Call call);
+
+    /**
+     * Starts whatever waiting calls can be, once per tick.
+     */
+    protected abstract void serve();
+
+    /**
+     * Called at the start of each tick, once {@link #now()} has moved on.
+     */
+    protected void onTick() {
+    }
+
+    protected final long now() {
+        return mNow;
+    }
+
+    protected final int getRunningCount() {
+        return mRunning.size();
+    }
+
+    /**
+     * Starts over at tick 0 with the background backlog waiting. Subclasses set up their queue
+     * first. Anything that starts before the first tick isn't counted.
+     */
+    protected void reset() {
+        mRunning.clear();
+        mNow = 0;
+        mCounters = new Counters();
+        for (int i = 0; i < BACKGROUND_OUTSTANDING; i++) {
+            submit(newCall(false));
+        }
+    }
+
+    /**
+     * Called by subclasses when call gets a sandbox.
+     */
+    protected final void onStarted(Call call) {
+        mRunning.add(call);
+        call.mFinishAt = mNow + (call.mForeground ? FOREGROUND_TICKS : BACKGROUND_TICKS);
+        long waited = mNow - call.mMadeAt;
+        if (call.mForeground) {
+            mCounters.mForegroundServed++;
+            mCounters.mForegroundWaitTicks += waited;
+            if (waited > 0) {
+                mCounters.mForegroundDelayed++;
+            }
+        } else {
+            mCounters.mBackgroundServed++;
+            if (waited > LATE_TICKS) {
+                mCounters.mBackgroundLate++;
+            }
+        }
+    }
+
+    /**
+     * Called by subclasses when a background call is given up on. Whatever made it tries again.
+     */
+    protected final void onDropped(Call call) {
+        mCounters.mBackgroundDropped++;
+        submit(newCall(false));
+    }
+
+    /**
+     * Runs one tick: calls that are done finish, new ones are made, and waiting ones are served.
+     * @return How many calls are running afterwards.
+     */
+    protected final int step(Counters counters) {
+        mCounters = counters;
+        counters.mTicks++;
+        mNow++;
+        onTick();
+        // Releasing a call can start another, so collect them all first.
+        mFinished.clear();
+        Iterator<Call> iter = mRunning.iterator();
+        while (iter.hasNext()) {
+            Call call = iter.next();
+            if (call.mFinishAt <= mNow) {
+                iter.remove();
+                mFinished.add(call);
+            }
+        }
+        for (Call call : mFinished) {
+            release(call);
+            if (!call.mForeground) {
+                // Always more where that came from.
+                submit(newCall(false));
+            }
+        }
+        if (mNow % FOREGROUND_INTERVAL == 0) {
+            submit(newCall(true));
+        }
+        serve();
+        return mRunning.size();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.CallResult;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * Builds a call graph out of real CallRecords and Handles, then completes its roots and lets
+ * readiness propagate until every call is scheduled. "chain" is a line of calls each taking
+ * the previous call's result; "fanIn" is one call taking the results of many others.
+ * Scheduling stops at an open batch, so no sandbox is involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataflowBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+
+    @Param({"chain", "fanIn"})
+    public String shape;
+
+    @Param({"8", "64", "512"})
+    public int size;
+
+    private QMRef mQM;
+    private Sandbox mSandbox;
+    private LinkedHashMap<Object, Object> mGroups;
+    private CallBatch mBatch;
+    private Handle[] mHandles;
+
+    @Setup
+    public void setUp() {
+        ServiceFixtures.installScheduler(new SandboxManager());
+        mQM = ServiceFixtures.newQMRef(
+                QMDescriptor.parse(PACKAGE + "/.BenchQM::run(java.lang.String)"), TaintSet.EMPTY);
+        mSandbox = ServiceFixtures.newConnectedSandbox(
+                0, PACKAGE, TaintSet.EMPTY, Collections.singletonList(PACKAGE));
+        mGroups = new LinkedHashMap<>();
+        mBatch = ServiceFixtures.newOpenBatch(mQM, mGroups);
+        mHandles = new Handle[size];
+    }
+
+    private Handle call(Handle... preds) {
+        List<CallParam> params = new ArrayList<>(preds.length);
+        for (Handle pred : preds) {
+            CallParam param = new CallParam();
+            param.setHandle(pred, 0);
+            params.add(param);
+        }
+        CallRecord record = new CallRecord(mQM, 0, params, null, 0, mBatch, null);
+        return record.getOutHandles().get(CallResult.RETURN_VALUE);
+    }
+
+    @Benchmark
+    public int propagate() {
+        Handle[] handles = mHandles;
+        if ("chain".equals(shape)) {
+            handles[0] = call();
+            for (int i = 1; i < handles.length; i++) {
+                handles[i] = call(handles[i - 1]);
+            }
+        } else {
+            for (int i = 0; i < handles.length; i++) {
+                handles[i] = call();
+            }
+            call(handles);
+        }
+
+        for (Handle handle : handles) {
+            handle.onComplete(mSandbox, null);
+        }
+
+        int scheduled = mGroups.size();
+        mGroups.clear();
+        return scheduled;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch through a {@link Sandbox.EventChain} with many handlers registered on its parent,
+ * the way every live handle used to register on the global disconnect chain. "fire" sends one
+ * event through the chain; "churn" registers and unregisters one more handler, as a handle
+ * does over its lifetime.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventChainBenchmark {
+    @Param({"16", "1024"})
+    public int handlers;
+
+    private Sandbox.EventChain mChain;
+    private Sandbox.EventHandler[] mHandlers;
+    private Sandbox.EventHandler mExtra;
+    private int mEvents;
+
+    private Sandbox.EventHandler newHandler() {
+        return new Sandbox.EventHandler() {
+            @Override
+            public boolean onEvent(String event, Sandbox sender, Object args) {
+                mEvents++;
+                return false;
+            }
+        };
+    }
+
+    @Setup
+    public void setUp() {
+        Sandbox.EventChain parent = new Sandbox.EventChain("onDisconnected");
+        mChain = new Sandbox.EventChain(parent);
+        // Handlers are only weakly held by the chain; keep them alive here.
+        mHandlers = new Sandbox.EventHandler[handlers];
+        for (int i = 0; i < handlers; i++) {
+            mHandlers[i] = newHandler();
+            parent.register(this, mHandlers[i]);
+        }
+        mExtra = newHandler();
+        mEvents = 0;
+    }
+
+    @Benchmark
+    public int fire() {
+        mChain.fire(null, null);
+        return mEvents;
+    }
+
+    @Benchmark
+    public Sandbox.EventHandler churn() {
+        mChain.register(this, mExtra);
+        mChain.unregister(mExtra);
+        return mExtra;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two tenants sharing a pool of sandboxes through a {@link FairQueue}. The heavy tenant makes
+ * the background calls, like a camera-rate producer; the light tenant makes the foreground
+ * ones, like a light switch.
+ *
+ * "fifo" puts every call in one queue, the way calls were served before. "fair" queues them
+ * by tenant, with each tenant capped at {@link #cap} sandboxes. How each tenant fared is
+ * reported through {@link CallSimulation.Counters}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FairQueueBenchmark extends CallSimulation {
+    private static final String HEAVY = "edu.umich.flowfence.study.frameinjector";
+    private static final String LIGHT = "edu.umich.flowfence.study.smartdevresponder";
+
+    @Param({"fifo", "fair"})
+    public String policy;
+
+    // Most sandboxes one tenant may hold at once, under "fair".
+    @Param({"6", "8"})
+    public int cap;
+
+    private FairQueue<Call> mQueue;
+    private boolean mFair;
+
+    private final FairQueue.Server<Call> mServer = new FairQueue.Server<Call>() {
+        @Override
+        public boolean tryServe(Call call) {
+            onStarted(call);
+            return true;
+        }
+
+        @Override
+        public boolean hasCapacity(int priorityClass) {
+            return getRunningCount() < SANDBOXES;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mFair = "fair".equals(policy);
+        mQueue = new FairQueue<>(1, cap);
+        reset();
+    }
+
+    private String getTenant(Call call) {
+        return !mFair ? null : call.mForeground ? LIGHT : HEAVY;
+    }
+
+    @Override
+    protected Call newCall(boolean foreground) {
+        return new Call(foreground, now());
+    }
+
+    @Override
+    protected void submit(Call call) {
+        mQueue.add(getTenant(call), 0, call);
+    }
+
+    @Override
+    protected void release(Call call) {
+        if (mFair) {
+            mQueue.onFinished(getTenant(call));
+        }
+    }
+
+    @Override
+    protected void serve() {
+        mQueue.serve(mServer);
+    }
+
+    @Benchmark
+    public int tick(Counters counters) {
+        return step(counters);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.os.SystemClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.bench.ManualHandler;
+import edu.umich.flowfence.common.CallFlags;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * Background and interactive calls from one package sharing a {@link SandboxManager}'s pool.
+ * The background calls are periodic sensor polls; the foreground ones are button presses.
+ * Every call waits in the manager's own queue, and overdue ones are dropped by its own deadline
+ * sweep, run off a {@link ManualHandler}. A tick is a millisecond on the simulated clock.
+ *
+ * "flat" makes every call at normal priority, the way calls were made before. "priority" makes
+ * the button presses interactive, so they're served first and may take the last hot spare, and
+ * the polls background. With a {@link #deadline}, polls still waiting that many ticks after
+ * they were made are dropped instead of run late. How each kind fared is reported through
+ * {@link CallSimulation.Counters}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PriorityBenchmark extends CallSimulation {
+    private static final String PACKAGE = "edu.umich.flowfence.study.fencedhr";
+
+    @Param({"flat", "priority"})
+    public String policy;
+
+    // Ticks a background call may wait before it's dropped, or 0 for no deadline.
+    @Param({"0", "12"})
+    public int deadline;
+
+    private SandboxManager mManager;
+    private ManualHandler mUIHandler;
+    // What the manager looks at to pick a sandbox, one for each kind of call.
+    private CallRecord mForegroundRecord;
+    private CallRecord mBackgroundRecord;
+
+    private final class PooledCall extends Call implements SandboxManager.AsyncCallback,
+            SandboxManager.PackageAffinity, SandboxManager.Urgency {
+        private final CallRecord mRecord;
+        private final long mDeadline;
+        private Sandbox mSandbox;
+
+        public PooledCall(boolean foreground, long madeAt) {
+            super(foreground, madeAt);
+            mRecord = foreground ? mForegroundRecord : mBackgroundRecord;
+            mDeadline = (!foreground && deadline > 0) ? madeAt + deadline : 0;
+        }
+
+        @Override
+        public Sandbox tryFindSandbox(SandboxManager manager) {
+            return manager.tryGetSandboxForCall(mRecord);
+        }
+
+        @Override
+        public void execute(Sandbox finalChoice) {
+            mSandbox = finalChoice;
+            onStarted(this);
+        }
+
+        @Override
+        public String getPackageAffinity() {
+            return PACKAGE;
+        }
+
+        @Override
+        public int getPriorityClass() {
+            return mRecord.getPriorityClass();
+        }
+
+        @Override
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        @Override
+        public void onDeadlineExceeded() {
+            onDropped(this);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        boolean byClass = "priority".equals(policy);
+        QMRef qm = ServiceFixtures.newQMRef(
+                QMDescriptor.parse(PACKAGE + "/.PollQM::run(java.lang.String)"), TaintSet.EMPTY);
+        mForegroundRecord = ServiceFixtures.newReadyCall(qm, TaintSet.EMPTY,
+                byClass ? CallFlags.PRIORITY_INTERACTIVE : CallFlags.PRIORITY_NORMAL);
+        mBackgroundRecord = ServiceFixtures.newReadyCall(qm, TaintSet.EMPTY,
+                byClass ? CallFlags.PRIORITY_BACKGROUND : CallFlags.PRIORITY_NORMAL);
+
+        mManager = new SandboxManager();
+        mManager.setMaxPrewarmed(0);
+        mUIHandler = ServiceFixtures.newManualHandler();
+        ServiceFixtures.installScheduler(mManager, mUIHandler);
+        // One hot spare, as on a device; the rest start out idle. Refilling the spare restarts
+        // an idle sandbox, which these skip, since they're all clean anyway.
+        for (int i = 0; i < SANDBOXES; i++) {
+            Sandbox sb = ServiceFixtures.skipRestarts(ServiceFixtures.newConnectedSandbox(
+                    i, null, TaintSet.EMPTY, Collections.<String>emptyList()));
+            if (i == 0) {
+                ServiceFixtures.addHotSpare(mManager, sb);
+            } else {
+                ServiceFixtures.addPooledSandbox(mManager, sb);
+            }
+        }
+
+        SystemClock.setSimulatedTime(0);
+        reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SystemClock.setSimulatedTime(-1);
+    }
+
+    @Override
+    protected void onTick() {
+        SystemClock.setSimulatedTime(now());
+    }
+
+    @Override
+    protected Call newCall(boolean foreground) {
+        return new PooledCall(foreground, now());
+    }
+
+    @Override
+    protected void submit(Call call) {
+        mManager.getSandboxAsync((PooledCall)call);
+    }
+
+    @Override
+    protected void release(Call call) {
+        mManager.putSandbox(((PooledCall)call).mSandbox);
+    }
+
+    @Override
+    protected void serve() {
+        // Everything else is served as sandboxes are put back; this only drops overdue calls.
+        mUIHandler.runDue(now());
+    }
+
+    @Benchmark
+    public int tick(Counters counters) {
+        return step(counters);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * Many threads taking sandboxes from one {@link SandboxManager} and putting them back, the way
+ * concurrent calls do. Each thread makes calls from every package in turn, with and without
+ * taint. Half the pool is untainted sandboxes set aside for one package each; the rest are
+ * tainted, and either assigned to a package or not, so only some calls can use them. Each
+ * package may hold as many sandboxes as it has set aside, and calls past that wait for one of
+ * its sandboxes to be put back. That way a call let through always finds something idle it can
+ * use, and nothing ever needs a process restarted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SandboxContentionBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final int PACKAGE_COUNT = 4;
+
+    @Param({"8", "16", "64"})
+    public int idleSandboxes;
+
+    private SandboxManager mManager;
+    // Every call a thread makes, in the order it makes them.
+    private CallRecord[] mCalls;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private int mNext;
+
+        public int next(int count) {
+            int rv = mNext;
+            mNext = (rv + 1) % count;
+            return rv;
+        }
+    }
+
+    private static final class Waiter implements SandboxManager.AsyncCallback,
+            SandboxManager.PackageAffinity {
+        private final CallRecord mRecord;
+        private final String mPackageName;
+        private Sandbox mSandbox;
+
+        public Waiter(CallRecord record, String packageName) {
+            mRecord = record;
+            mPackageName = packageName;
+        }
+
+        @Override
+        public Sandbox tryFindSandbox(SandboxManager manager) {
+            return manager.tryGetSandboxForCall(mRecord);
+        }
+
+        @Override
+        public synchronized void execute(Sandbox finalChoice) {
+            mSandbox = finalChoice;
+            notifyAll();
+        }
+
+        @Override
+        public String getPackageAffinity() {
+            return mPackageName;
+        }
+
+        public synchronized Sandbox await() throws InterruptedException {
+            while (mSandbox == null) {
+                wait();
+            }
+            return mSandbox;
+        }
+    }
+
+    private static String packageName(int i) {
+        return PACKAGE + ".tenant" + i;
+    }
+
+    @Setup
+    public void setUp() {
+        TaintSet taintA = TaintSet.singleton(PACKAGE + "/SourceA");
+        TaintSet taintB = TaintSet.singleton(PACKAGE + "/SourceB");
+        TaintSet taintAB = taintA.asBuilder().unionWith(taintB).build();
+        TaintSet[] taints = { taintA, taintB, taintAB };
+
+        String[] packages = new String[PACKAGE_COUNT];
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            packages[i] = packageName(i);
+        }
+
+        mManager = new SandboxManager();
+        // Sandboxes only come from the idle set, so there's never a process to start.
+        mManager.setMinHotSpare(0);
+        mManager.setMaxRunningPerPackage(idleSandboxes / 2 / PACKAGE_COUNT);
+        for (int i = 0; i < idleSandboxes; i++) {
+            String packageName = packages[(i / 2) % PACKAGE_COUNT];
+            Sandbox sb;
+            if ((i % 2) == 0) {
+                sb = ServiceFixtures.newConnectedSandbox(
+                        i, packageName, TaintSet.EMPTY, Collections.singletonList(packageName));
+            } else {
+                String assignedPackage = ((i % 4) == 1) ? packageName : null;
+                sb = ServiceFixtures.newConnectedSandbox(
+                        i, assignedPackage, taints[(i / 4) % taints.length],
+                        (assignedPackage != null) ? Collections.singletonList(assignedPackage) :
+                                Arrays.asList(packages));
+            }
+            ServiceFixtures.addPooledSandbox(mManager, sb);
+        }
+
+        mCalls = new CallRecord[PACKAGE_COUNT * 2];
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            QMRef qm = ServiceFixtures.newQMRef(
+                    QMDescriptor.parse(packages[i] + "/.BenchQM::run(java.lang.String)"),
+                    TaintSet.EMPTY);
+            mCalls[i * 2] = ServiceFixtures.newReadyCall(qm, TaintSet.EMPTY);
+            mCalls[i * 2 + 1] = ServiceFixtures.newReadyCall(qm, taintAB);
+        }
+    }
+
+    @Benchmark
+    public Sandbox takeAndPut(Caller caller) throws InterruptedException {
+        CallRecord record = mCalls[caller.next(mCalls.length)];
+        Waiter waiter = new Waiter(
+                record, record.getQM().getDescriptor().definingClass.getPackageName());
+        mManager.getSandboxAsync(waiter);
+        Sandbox sb = waiter.await();
+        mManager.putSandbox(sb);
+        return sb;
+    }
+}
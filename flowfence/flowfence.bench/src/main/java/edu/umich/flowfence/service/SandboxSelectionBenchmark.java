@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * The cost loop in {@link SandboxManager#tryGetSandboxForCall}, over a pool of idle
+ * sandboxes in a mix of states: some assigned to the calling package, some unassigned, some
+ * assigned elsewhere, with various taints, and with the QM resolved in some of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SandboxSelectionBenchmark {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final String OTHER_PACKAGE = "edu.umich.flowfence.bench.other";
+
+    @Param({"4", "16", "64"})
+    public int idleSandboxes;
+
+    private SandboxManager mManager;
+    private CallRecord mUntaintedCall;
+    private CallRecord mTaintedCall;
+
+    @Setup
+    public void setUp() {
+        TaintSet taintA = TaintSet.singleton(PACKAGE + "/SourceA");
+        TaintSet taintB = TaintSet.singleton(PACKAGE + "/SourceB");
+        TaintSet taintAB = taintA.asBuilder().unionWith(taintB).build();
+        TaintSet[] taints = { TaintSet.EMPTY, taintA, taintB, taintAB };
+
+        QMRef qm = ServiceFixtures.newQMRef(
+                QMDescriptor.parse(PACKAGE + "/.BenchQM::run(java.lang.String)"), TaintSet.EMPTY);
+
+        mManager = new SandboxManager();
+        for (int i = 0; i < idleSandboxes; i++) {
+            String assignedPackage;
+            switch (i % 4) {
+                case 0:
+                    assignedPackage = null;
+                    break;
+                case 3:
+                    assignedPackage = OTHER_PACKAGE;
+                    break;
+                default:
+                    assignedPackage = PACKAGE;
+                    break;
+            }
+            Sandbox sb = ServiceFixtures.newConnectedSandbox(
+                    i, assignedPackage, taints[(i / 4) % taints.length],
+                    (assignedPackage != null) ? Collections.singletonList(assignedPackage) :
+                            Arrays.asList(PACKAGE, OTHER_PACKAGE));
+            if (PACKAGE.equals(assignedPackage) && (i % 8) == 1) {
+                ServiceFixtures.markResolved(qm, sb);
+            }
+            ServiceFixtures.addIdleSandbox(mManager, sb);
+        }
+
+        mUntaintedCall = ServiceFixtures.newReadyCall(qm, TaintSet.EMPTY);
+        mTaintedCall = ServiceFixtures.newReadyCall(qm, taintAB);
+    }
+
+    @Benchmark
+    public Sandbox untaintedCall() {
+        return mManager.tryGetSandboxForCall(mUntaintedCall);
+    }
+
+    @Benchmark
+    public Sandbox taintedCall() {
+        return mManager.tryGetSandboxForCall(mTaintedCall);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umich.flowfence.bench.FakeSharedPreferences;
+import edu.umich.flowfence.bench.ManualHandler;
+import edu.umich.flowfence.common.ParamInfo;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.internal.IResolvedQM;
+import edu.umich.flowfence.internal.ISandboxService;
+import edu.umich.flowfence.policy.PackageManifest;
+import edu.umich.flowfence.policy.Source;
+
+import static edu.umich.flowfence.bench.Fixtures.allocate;
+import static edu.umich.flowfence.bench.Fixtures.get;
+import static edu.umich.flowfence.bench.Fixtures.set;
+import static edu.umich.flowfence.bench.Fixtures.stub;
+
+/**
+ * Builds service objects on a plain JVM.
+ *
+ * Sandboxes, QMs and call records are Binders or talk to a live Application in their
+ * constructors, and neither works off-device. Instead, objects are allocated without running
+ * a constructor, through {@link edu.umich.flowfence.bench.Fixtures}, and only the fields the
+ * code under test reads are filled in. Anything that can be built through its own constructor
+ * once the application is stood up, like a store, should be.
+ */
+public final class ServiceFixtures {
+    private ServiceFixtures() { }
+
+    /**
+     * @return A started, connected sandbox with no call running in it.
+     */
+    public static Sandbox newConnectedSandbox(int id, String assignedPackage, TaintSet taints,
+                                              Collection<String> loadedPackages) {
+        Sandbox sb = allocate(Sandbox.class);
+        set(sb, "mID", id);
+        set(sb, "mSync", new ConditionVariable(true));
+        set(sb, "mStarts", new WeakHashMap<>());
+        set(sb, "mStartCount", 1);
+        set(sb, "mKnownPackages", new HashSet<>(loadedPackages));
+        set(sb, "mUnmarshalledObjects", new WeakHashMap<>());
+        set(sb, "mSandboxService", stub(ISandboxService.class));
+        set(sb, "mTaintSet", taints);
+        set(sb, "mTaintLock", new Object());
+        set(sb, "mAssignedPackage", assignedPackage);
+        set(sb, "onBeforeTaintAdd", new Sandbox.EventChain(Sandbox.g_onBeforeTaintAdd));
+        set(sb, "onTaintAdded", new Sandbox.EventChain(Sandbox.g_onTaintAdded));
+        set(sb, "onBeforeTaintRemove", new Sandbox.EventChain(Sandbox.g_onBeforeTaintRemove));
+        set(sb, "onTaintRemoved", new Sandbox.EventChain(Sandbox.g_onTaintRemoved));
+        return sb;
+    }
+
+    /**
+     * Makes restart() a no-op, so a fixture sandbox can be turned into a hot spare or trimmed
+     * without a process to start. The sandbox passes for one that's gone out of service, but
+     * only restarting and binding look at that.
+     */
+    public static Sandbox skipRestarts(Sandbox sb) {
+        set(sb, "mIsOutOfService", true);
+        return sb;
+    }
+
+    public static QMRef newQMRef(QMDescriptor descriptor, TaintSet requiredTaints) {
+        QMRef qm = allocate(QMRef.class);
+        set(qm, "mResolved", new PerSandboxMap<IResolvedQM>());
+        set(qm, "mDescriptor", descriptor);
+        set(qm, "mResultType", "void");
+        set(qm, "mParamInfo", Collections.<ParamInfo>emptyList());
+        set(qm, "mRequiredTaints", requiredTaints);
+        set(qm, "mOptionalTaints", TaintSet.EMPTY);
+        return qm;
+    }
+
+    /**
+     * Marks a QM as already resolved in a sandbox, as if an earlier call had resolved it there.
+     */
+    @SuppressWarnings("unchecked")
+    public static void markResolved(QMRef qm, Sandbox sb) {
+        ((PerSandboxMap<IResolvedQM>)get(QMRef.class, qm, "mResolved"))
+                .put(sb, stub(IResolvedQM.class));
+    }
+
+    /**
+     * @return A call with no predecessors, ready to be handed a sandbox.
+     */
+    public static CallRecord newReadyCall(QMRef qm, TaintSet inboundTaints) {
+        return newReadyCall(qm, inboundTaints, 0);
+    }
+
+    /**
+     * @param flags {@link edu.umich.flowfence.common.CallFlags}, e.g. a priority.
+     */
+    public static CallRecord newReadyCall(QMRef qm, TaintSet inboundTaints, int flags) {
+        CallRecord record = allocate(CallRecord.class);
+        set(record, "mFlags", flags);
+        set(record, "mSync", new ConditionVariable());
+        set(record, "mQM", qm);
+        set(record, "mPendingPredecessors", new AtomicInteger());
+        set(record, "mAllPredecessors", new HashSet<Handle>());
+        set(record, "mExtraTaint", TaintSet.EMPTY);
+        set(record, "mState", get(CallRecord.class, null, "STATE_READY"));
+        set(record, "mInboundTaints", inboundTaints);
+        return record;
+    }
+
+    /**
+     * @return A batch that never fills up. Records that become ready collect in groups, which
+     * the caller owns and should clear, and are never handed a sandbox.
+     */
+    public static CallBatch newOpenBatch(QMRef qm, Map<?, ?> groups) {
+        CallBatch batch = allocate(CallBatch.class);
+        set(batch, "mSync", new Object());
+        set(batch, "mQM", qm);
+        set(batch, "mRecords", new CallRecord[0]);
+        set(batch, "mGroups", groups);
+        set(batch, "mPendingRecords", Integer.MAX_VALUE);
+        return batch;
+    }
+
+    public static void addIdleSandbox(SandboxManager manager, Sandbox sb) {
+        Object idleSet = get(SandboxManager.class, manager, "mIdleSandboxes");
+        try {
+            Method put = idleSet.getClass().getDeclaredMethod("put", Sandbox.class);
+            put.setAccessible(true);
+            put.invoke(idleSet, sb);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds an idle sandbox that counts as part of the pool, so it goes back into the idle set
+     * when it's put back instead of being stopped.
+     */
+    public static void addPooledSandbox(SandboxManager manager, Sandbox sb) {
+        ((BitSet)get(SandboxManager.class, manager, "mInPool")).set(sb.getID());
+        addIdleSandbox(manager, sb);
+    }
+
+    /**
+     * @return The exception a handle failed with, or null if it hasn't.
+     */
+    public static Throwable getException(Handle handle) {
+        return (Throwable)get(Handle.class, handle, "mThrowable");
+    }
+
+    /**
+     * Adds a hot spare that counts as part of the pool.
+     */
+    @SuppressWarnings("unchecked")
+    public static void addHotSpare(SandboxManager manager, Sandbox sb) {
+        ((BitSet)get(SandboxManager.class, manager, "mInPool")).set(sb.getID());
+        ((ArrayDeque<Sandbox>)get(SandboxManager.class, manager, "mHotSpares")).add(sb);
+    }
+
+    /**
+     * @return A handler for {@link #installScheduler(SandboxManager, Handler)} whose timers
+     * only run when the caller says so.
+     */
+    public static ManualHandler newManualHandler() {
+        Looper looper = allocate(Looper.class);
+        set(looper, "mQueue", allocate(MessageQueue.class));
+        return new ManualHandler(looper);
+    }
+
+    /**
+     * Stands up just enough of the application for calls to be scheduled: the service's
+     * refcount and the given manager's demand model.
+     */
+    public static void installScheduler(SandboxManager manager) {
+        installScheduler(manager, null);
+    }
+
+    /**
+     * Also lets calls finish, and the manager set timers.
+     * @param uiHandler Where the manager posts its timers, or null if it never should.
+     */
+    public static void installScheduler(SandboxManager manager, Handler uiHandler) {
+        FlowfenceApplication app = allocate(FlowfenceApplication.class);
+        set(app, "mSync", new Object());
+        set(app, "mService", allocate(FlowfenceService.class));
+        set(app, "mSandboxManager", manager);
+        set(app, "mCallStats", new CallStatsCollector());
+        set(app, "mUIHandler", uiHandler);
+        set(FlowfenceApplication.class, null, "instance", app);
+    }
+
+    /**
+     * Stands up just enough of the application for stores to be opened through the
+     * {@link KVSSharedPrefs} constructor. Each platform prefs file is an in-memory
+     * {@link FakeSharedPreferences}, made the first time it's asked for, so every view of a
+     * store shares its data and cache listeners.
+     */
+    public static void installStores() {
+        final HashMap<String, SharedPreferences> stores = new HashMap<>();
+        Context base = new ContextWrapper(null) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                synchronized (stores) {
+                    SharedPreferences store = stores.get(name);
+                    if (store == null) {
+                        store = new FakeSharedPreferences();
+                        stores.put(name, store);
+                    }
+                    return store;
+                }
+            }
+        };
+        FlowfenceApplication app = allocate(FlowfenceApplication.class);
+        set(ContextWrapper.class, app, "mBase", base);
+        set(app, "mSync", new Object());
+        set(FlowfenceApplication.class, null, "instance", app);
+    }
+
+    /**
+     * Stands up just enough of the application for policy checks to find package manifests.
+     * @param sources The sources each package declares, by package name.
+     */
+    public static void installManifests(Map<String, ? extends Collection<Source>> sources) {
+        FlowfenceApplication app = allocate(FlowfenceApplication.class);
+        HashMap<String, PackageManifest> manifests = new HashMap<>();
+        for (Map.Entry<String, ? extends Collection<Source>> entry : sources.entrySet()) {
+            HashMap<String, Source> sourceMap = new HashMap<>();
+            for (Source source : entry.getValue()) {
+                sourceMap.put(source.getSourceName().getClassName(), source);
+            }
+            PackageManifest manifest = allocate(PackageManifest.class);
+            set(manifest, "sourceMap", sourceMap);
+            set(manifest, "channelMap", new HashMap<>());
+            manifests.put(entry.getKey(), manifest);
+        }
+        set(app, "mSync", new Object());
+        set(app, "mManifestMap", manifests);
+        set(app, "mResolvedMap", new HashMap<>());
+        set(FlowfenceApplication.class, null, "instance", app);
+    }
+}
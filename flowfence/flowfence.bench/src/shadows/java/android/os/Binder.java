@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Host replacement for Binder, whose constructor registers with the native driver. This lets
+ * service objects that are local Binders (handles, call records) be built with their real
+ * constructors. Nothing here crosses a process, so transactions are never dispatched.
+ */
+public class Binder implements IBinder {
+    private IInterface mOwner;
+    private String mDescriptor;
+
+    public Binder() { }
+
+    public static final int getCallingPid() {
+        return 0;
+    }
+
+    public static final int getCallingUid() {
+        return 0;
+    }
+
+    public static final long clearCallingIdentity() {
+        return 0;
+    }
+
+    public static final void restoreCallingIdentity(long token) { }
+
+    public void attachInterface(IInterface owner, String descriptor) {
+        mOwner = owner;
+        mDescriptor = descriptor;
+    }
+
+    @Override
+    public String getInterfaceDescriptor() {
+        return mDescriptor;
+    }
+
+    @Override
+    public boolean pingBinder() {
+        return true;
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return true;
+    }
+
+    @Override
+    public IInterface queryLocalInterface(String descriptor) {
+        return (mDescriptor != null && mDescriptor.equals(descriptor)) ? mOwner : null;
+    }
+
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        return false;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, String[] args) { }
+
+    @Override
+    public void dumpAsync(FileDescriptor fd, String[] args) { }
+
+    protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) { }
+
+    @Override
+    public final boolean transact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        throw new UnsupportedOperationException("No transactions on the host");
+    }
+
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) { }
+
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return true;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Host replacement for Parcel, which is native all the way down. Framework classes such as
+ * Bundle obtain one while being initialized; nothing benchmarked here marshals through it.
+ */
+public final class Parcel {
+    private Parcel() { }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public final void recycle() { }
+}
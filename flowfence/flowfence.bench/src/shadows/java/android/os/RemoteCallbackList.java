@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Host replacement for RemoteCallbackList, whose ArrayMap relies on System.arraycopy
+ * overloads that only exist on the device. Callbacks are keyed by binder, as on the device;
+ * nothing off-device ever dies, so none are dropped on their own.
+ */
+public class RemoteCallbackList<E extends IInterface> {
+    private final LinkedHashMap<IBinder, E> mCallbacks = new LinkedHashMap<>();
+    private Object[] mActiveBroadcast;
+    private int mBroadcastCount = -1;
+    private boolean mKilled = false;
+
+    public boolean register(E callback) {
+        return register(callback, null);
+    }
+
+    public boolean register(E callback, Object cookie) {
+        synchronized (mCallbacks) {
+            if (mKilled) {
+                return false;
+            }
+            mCallbacks.put(callback.asBinder(), callback);
+            return true;
+        }
+    }
+
+    public boolean unregister(E callback) {
+        synchronized (mCallbacks) {
+            return mCallbacks.remove(callback.asBinder()) != null;
+        }
+    }
+
+    public void kill() {
+        synchronized (mCallbacks) {
+            mCallbacks.clear();
+            mKilled = true;
+        }
+    }
+
+    public void onCallbackDied(E callback) { }
+
+    public void onCallbackDied(E callback, Object cookie) {
+        onCallbackDied(callback);
+    }
+
+    public int beginBroadcast() {
+        synchronized (mCallbacks) {
+            if (mBroadcastCount > 0) {
+                throw new IllegalStateException("beginBroadcast() called while already in a broadcast");
+            }
+            mActiveBroadcast = mCallbacks.values().toArray();
+            mBroadcastCount = mActiveBroadcast.length;
+            return mBroadcastCount;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E getBroadcastItem(int index) {
+        return (E)mActiveBroadcast[index];
+    }
+
+    public void finishBroadcast() {
+        synchronized (mCallbacks) {
+            if (mBroadcastCount < 0) {
+                throw new IllegalStateException("finishBroadcast() called outside of a broadcast");
+            }
+            mActiveBroadcast = null;
+            mBroadcastCount = -1;
+        }
+    }
+
+    public int getRegisteredCallbackCount() {
+        synchronized (mCallbacks) {
+            return mKilled ? 0 : mCallbacks.size();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Host replacement for SystemClock, whose clocks are native. Everything counts from the JVM's
+ * monotonic clock, unless a simulation has set the time itself.
+ */
+public final class SystemClock {
+    // Milliseconds, or -1 to use the real clock.
+    private static volatile long s_mSimulatedMillis = -1;
+
+    private SystemClock() { }
+
+    /**
+     * Host only: stops the clocks at millis, for simulations that run in their own time.
+     * They stay there until set again; -1 goes back to the real clock.
+     */
+    public static void setSimulatedTime(long millis) {
+        s_mSimulatedMillis = millis;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        long simulated = s_mSimulatedMillis;
+        return (simulated >= 0) ? simulated * 1000000 : System.nanoTime();
+    }
+
+    public static long elapsedRealtime() {
+        return elapsedRealtimeNanos() / 1000000;
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
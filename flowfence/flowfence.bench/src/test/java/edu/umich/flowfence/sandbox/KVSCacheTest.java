@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.service.KVSSharedPrefs;
+import edu.umich.flowfence.service.Sandbox;
+import edu.umich.flowfence.service.ServiceFixtures;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Caching reads in the sandbox mustn't change what it ends up tainted with. Two sandboxes read
+ * the same store in lockstep, one through the cache and one without, while a third writes to
+ * it and both drop taint; every step has to leave them with the same values and taint.
+ */
+public class KVSCacheTest {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final TaintSet TAINT_A = TaintSet.singleton(PACKAGE + "/A");
+    private static final TaintSet TAINT_B = TaintSet.singleton(PACKAGE + "/B");
+    private static final TaintSet TAINT_C = TaintSet.singleton(PACKAGE + "/C");
+    private static final Set<String> ALLOWED = Collections.singleton(PACKAGE);
+
+    // Sandbox contexts keep stores open by name for the life of the process.
+    private static int g_mStoreCount = 0;
+
+    private Sandbox mCachedSandbox;
+    private Sandbox mDirectSandbox;
+    private Sandbox mWriterSandbox;
+    private SandboxContext mContext;
+    private SharedPreferences mCached;
+    private SandboxContext.TaintAPI mTaintAPI;
+    private KVSSharedPrefs mDirect;
+    private KVSSharedPrefs mWriter;
+
+    @Before
+    public void setUp() {
+        ServiceFixtures.installStores();
+        String storeName = "cache" + (g_mStoreCount++);
+        mCachedSandbox = ServiceFixtures.newConnectedSandbox(0, PACKAGE, TaintSet.EMPTY, ALLOWED);
+        mDirectSandbox = ServiceFixtures.newConnectedSandbox(1, PACKAGE, TaintSet.EMPTY, ALLOWED);
+        mWriterSandbox = ServiceFixtures.newConnectedSandbox(2, PACKAGE, TaintSet.EMPTY, ALLOWED);
+
+        mDirect = new KVSSharedPrefs(mDirectSandbox, PACKAGE, PACKAGE, storeName, 0);
+        mWriter = new KVSSharedPrefs(mWriterSandbox, PACKAGE, PACKAGE, storeName, 0);
+        KVSSharedPrefs cachedRemote = new KVSSharedPrefs(mCachedSandbox, PACKAGE, PACKAGE,
+                                                         storeName, 0);
+        mContext = SandboxFixtures.newContext(PACKAGE,
+                SandboxFixtures.newStoreCallout(mCachedSandbox, cachedRemote));
+        mContext.beginQM();
+        mCached = mContext.getSharedPreferences(storeName, 0);
+        mTaintAPI = mContext.new TaintAPI();
+
+        mWriterSandbox.addTaint(TAINT_A);
+        KVSSharedPrefs.Editor editor = mWriter.edit();
+        editor.putInt("count", 1);
+        editor.putString("name", "x");
+        editor.commit();
+    }
+
+    @After
+    public void tearDown() {
+        mContext.endQM();
+    }
+
+    private void assertMatches(String step, Object cached, Object direct) {
+        assertEquals(step + ": value", direct, cached);
+        assertEquals(step + ": taint", mDirectSandbox.getTaints(), mCachedSandbox.getTaints());
+    }
+
+    private void removeTaint(TaintSet taint) {
+        mTaintAPI.removeTaint(taint);
+        mDirectSandbox.removeTaint(taint, ALLOWED);
+    }
+
+    @Test
+    public void readsMatch() {
+        assertMatches("first read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("second read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("missing key", mCached.getString("none", null), mDirect.getString("none"));
+    }
+
+    @Test
+    public void changeFromAnotherSandbox() {
+        assertMatches("first read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("first read", mCached.getString("name", null), mDirect.getString("name"));
+
+        // With more taint than the writer had before.
+        mWriterSandbox.addTaint(TAINT_B);
+        KVSSharedPrefs.Editor editor = mWriter.edit();
+        editor.putString("name", "y");
+        editor.commit();
+        assertMatches("unchanged key", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("changed key", mCached.getString("name", null), mDirect.getString("name"));
+    }
+
+    @Test
+    public void droppedTaintComesBack() {
+        mWriterSandbox.addTaint(TAINT_B);
+        KVSSharedPrefs.Editor editor = mWriter.edit();
+        editor.putString("name", "y");
+        editor.commit();
+        assertMatches("first read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("first read", mCached.getString("name", null), mDirect.getString("name"));
+
+        // Cached keys have to taint us again.
+        removeTaint(TAINT_B);
+        assertMatches("after removing taint", null, null);
+        assertMatches("reread after removing taint",
+                   mCached.getString("name", null), mDirect.getString("name"));
+        removeTaint(TAINT_A.asBuilder().unionWith(TAINT_B).build());
+        assertMatches("reread after removing all taint",
+                   mCached.getInt("count", 0), mDirect.getInt("count", 0));
+    }
+
+    @Test
+    public void retaintedKey() {
+        assertMatches("first read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+
+        // Taint added to a key without changing its value.
+        KVSSharedPrefs.Editor editor = mWriter.edit();
+        editor.addTaint("count", TAINT_C);
+        editor.commit();
+        assertMatches("retainted key", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+    }
+
+    @Test
+    public void ownWriteToMissingKey() {
+        assertMatches("own key before write",
+                   mCached.getString("mine.0", null), mDirect.getString("mine.1"));
+        mCached.edit().putString("mine.0", "z").apply();
+        KVSSharedPrefs.Editor editor = mDirect.edit();
+        editor.putString("mine.1", "z");
+        editor.apply();
+        assertMatches("own key after write",
+                   mCached.getString("mine.0", null), mDirect.getString("mine.1"));
+    }
+
+    @Test
+    public void removeAndClear() {
+        assertMatches("first read", mCached.getInt("count", 0), mDirect.getInt("count", 0));
+        assertMatches("first read", mCached.getString("name", null), mDirect.getString("name"));
+
+        KVSSharedPrefs.Editor editor = mWriter.edit();
+        editor.remove("count");
+        editor.commit();
+        assertMatches("removed key", mCached.contains("count"), mDirect.contains("count"));
+
+        editor = mWriter.edit();
+        editor.clear();
+        editor.commit();
+        assertMatches("cleared store", mCached.getString("name", null), mDirect.getString("name"));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.common.TaintableSharedPreferencesEditor;
+import edu.umich.flowfence.service.KVSSharedPrefs;
+import edu.umich.flowfence.service.Sandbox;
+import edu.umich.flowfence.service.ServiceFixtures;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Atomic counters in a key-value store, used the way fencedhr counts camera frames: HRQM bumps
+ * the counter once per frame and TputQM drains it.
+ */
+public class KVSCounterTest {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final String STORE = "counter";
+    private static final String COUNTER = "counter";
+    private static final String TS = "ts";
+    private static final int CAMERAS = 4;
+    // About ten seconds of frames at 30fps, from each camera.
+    private static final int FRAMES = 300;
+
+    @Before
+    public void setUp() {
+        ServiceFixtures.installStores();
+    }
+
+    private static KVSSharedPrefs openDirect(int id) {
+        Sandbox sb = ServiceFixtures.newConnectedSandbox(id, PACKAGE, TaintSet.EMPTY,
+                                                         Collections.singleton(PACKAGE));
+        return new KVSSharedPrefs(sb, PACKAGE, PACKAGE, STORE, 0);
+    }
+
+    private static RemoteSharedPrefsWrapper open(int id, AtomicInteger calls) {
+        return SandboxFixtures.newCountingWrapper(openDirect(id), calls);
+    }
+
+    /**
+     * Several sandboxes count frames into one store while another drains it. Every frame has
+     * to be counted exactly once, with one call to the trusted side per frame.
+     */
+    @Test
+    public void concurrentIncrementsAndDrains() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CAMERAS);
+        final AtomicInteger errors = new AtomicInteger();
+
+        final AtomicInteger[] calls = new AtomicInteger[CAMERAS];
+        Thread[] cameras = new Thread[CAMERAS];
+        for (int i = 0; i < CAMERAS; i++) {
+            calls[i] = new AtomicInteger();
+            final RemoteSharedPrefsWrapper prefs = open(i, calls[i]);
+            // Opening the store isn't part of counting frames.
+            calls[i].set(0);
+            cameras[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int frame = 0; frame < FRAMES; frame++) {
+                            prefs.edit().increment(COUNTER, 1).apply();
+                        }
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            cameras[i].start();
+        }
+
+        // TputQM.poll(), as often as it can go.
+        RemoteSharedPrefsWrapper poller = open(CAMERAS, new AtomicInteger());
+        long drained = 0;
+        int polls = 0;
+        start.countDown();
+        do {
+            Map<String, ?> values = poller.getMany(Arrays.asList(COUNTER, TS));
+            Integer counter = (Integer)values.get(COUNTER);
+            if (counter != null) {
+                poller.edit().increment(COUNTER, -counter).putLong(TS, polls).apply();
+                drained += counter;
+            }
+            polls++;
+        } while (!done.await(0, TimeUnit.MILLISECONDS));
+        for (Thread camera : cameras) {
+            camera.join();
+        }
+        assertEquals("cameras failed", 0, errors.get());
+
+        // Straight from the trusted side, so nothing here can be cached.
+        long counted = drained + openDirect(CAMERAS + 1).getInt(COUNTER, 0);
+        assertEquals("frames counted over " + polls + " polls", CAMERAS * FRAMES, counted);
+        for (int i = 0; i < CAMERAS; i++) {
+            assertEquals("calls from camera " + i, FRAMES, calls[i].get());
+        }
+    }
+
+    /**
+     * An editor starts over after each commit or apply, so using it again only sends what
+     * was added since.
+     */
+    @Test
+    public void editorReuse() {
+        AtomicInteger calls = new AtomicInteger();
+        RemoteSharedPrefsWrapper prefs = open(0, calls);
+        calls.set(0);
+
+        TaintableSharedPreferencesEditor editor = prefs.edit();
+        editor.increment(COUNTER, 1).apply();
+        editor.increment(COUNTER, 1).apply();
+        editor.putLong(TS, 1).commit();
+        editor.commit();
+
+        assertEquals("calls", 4, calls.get());
+        KVSSharedPrefs direct = openDirect(1);
+        assertEquals(2, direct.getInt(COUNTER, 0));
+        assertEquals(1, direct.getLong(TS, 0));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order {@link FairQueue} hands things out in: tenants share by weight, and a tenant at its
+ * cap waits without losing its place.
+ */
+public class FairQueueTest {
+    private static final String HEAVY = "edu.umich.flowfence.study.frameinjector";
+    private static final String LIGHT = "edu.umich.flowfence.study.smartdevresponder";
+    private static final int UNCAPPED = Integer.MAX_VALUE;
+
+    // Grants everything it's offered, up to a fixed number per serve().
+    private static final class Granter implements FairQueue.Server<String> {
+        public final List<String> mGranted = new ArrayList<>();
+        private int mCapacity;
+
+        public List<String> serve(FairQueue<String> queue, int capacity) {
+            mGranted.clear();
+            mCapacity = capacity;
+            queue.serve(this);
+            return mGranted;
+        }
+
+        @Override
+        public boolean tryServe(String item) {
+            mGranted.add(item);
+            mCapacity--;
+            return true;
+        }
+
+        @Override
+        public boolean hasCapacity(int priorityClass) {
+            return mCapacity > 0;
+        }
+    }
+
+    private static void addAll(FairQueue<String> queue, String tenant, int count) {
+        for (int i = 0; i < count; i++) {
+            queue.add(tenant, 0, tenant + "#" + i);
+        }
+    }
+
+    private static int countFrom(List<String> granted, String tenant) {
+        int count = 0;
+        for (String item : granted) {
+            if (item.startsWith(tenant + "#")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * With both tenants always waiting, each gets sandboxes in proportion to its weight, however
+     * they're handed out.
+     */
+    @Test
+    public void weightsShareInProportion() {
+        FairQueue<String> queue = new FairQueue<>(1, UNCAPPED);
+        queue.setWeight(HEAVY, 3);
+        addAll(queue, HEAVY, 1000);
+        addAll(queue, LIGHT, 1000);
+
+        Granter granter = new Granter();
+        List<String> granted = new ArrayList<>();
+        for (int capacity : new int[] { 1, 2, 3, 5, 7, 2, 1, 4, 3, 4 }) {
+            granted.addAll(granter.serve(queue, capacity));
+        }
+        for (int i = 0; i < 92; i++) {
+            granted.addAll(granter.serve(queue, 4));
+        }
+
+        assertEquals(400, granted.size());
+        assertEquals(300, countFrom(granted, HEAVY));
+        assertEquals(100, countFrom(granted, LIGHT));
+        assertEquals(3, queue.getWeight(HEAVY));
+        assertEquals(FairQueue.DEFAULT_WEIGHT, queue.getWeight(LIGHT));
+    }
+
+    /**
+     * A tenant that already queued a long backlog doesn't hold up one that shows up later with
+     * a few; they take turns from then on.
+     */
+    @Test
+    public void twoTenantsShareEqually() {
+        FairQueue<String> queue = new FairQueue<>(1, UNCAPPED);
+        addAll(queue, HEAVY, 90);
+        addAll(queue, LIGHT, 10);
+
+        List<String> granted = new Granter().serve(queue, 20);
+        assertEquals(10, countFrom(granted, HEAVY));
+        assertEquals(10, countFrom(granted, LIGHT));
+        for (int i = 0; i < granted.size(); i += 2) {
+            assertTrue(granted.get(i) + " then " + granted.get(i + 1),
+                       granted.get(i).startsWith(HEAVY) && granted.get(i + 1).startsWith(LIGHT));
+        }
+        assertEquals(80, queue.size());
+    }
+
+    /**
+     * A tenant at its cap is skipped, but keeps its place and its own order, and picks up
+     * where it left off once something of its finishes.
+     */
+    @Test
+    public void capSkipsTenantButKeepsItsPlace() {
+        FairQueue<String> queue = new FairQueue<>(1, 2);
+        addAll(queue, HEAVY, 5);
+        addAll(queue, LIGHT, 5);
+        Granter granter = new Granter();
+
+        assertEquals(Arrays.asList(HEAVY + "#0", LIGHT + "#0", HEAVY + "#1", LIGHT + "#1"),
+                     granter.serve(queue, 100));
+        assertFalse(queue.canStart(HEAVY));
+        assertFalse(queue.canStart(LIGHT));
+        assertTrue("items that can run anywhere are never capped", queue.canStart(null));
+        assertEquals(6, queue.size());
+
+        // Nothing finished, so nothing more can start, however much there is to hand out.
+        assertTrue(granter.serve(queue, 100).isEmpty());
+
+        queue.onFinished(HEAVY);
+        assertTrue(queue.canStart(HEAVY));
+        assertEquals(Arrays.asList(HEAVY + "#2"), granter.serve(queue, 100));
+
+        queue.onFinished(LIGHT);
+        queue.onFinished(LIGHT);
+        assertEquals(Arrays.asList(LIGHT + "#2", LIGHT + "#3"), granter.serve(queue, 100));
+        assertEquals(3, queue.size());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import edu.umich.flowfence.bench.ManualHandler;
+import edu.umich.flowfence.common.CallFlags;
+import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.CallResult;
+import edu.umich.flowfence.common.DeadlineExceededException;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.TaintSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How {@link SandboxManager} treats calls by urgency: calls still waiting at their deadline
+ * fail, and the last hot spare is kept for interactive calls. Timers run off the simulated
+ * clock, and only when the test says so.
+ */
+public class SandboxManagerTest {
+    private static final String PACKAGE = "edu.umich.flowfence.bench";
+    private static final long START_MILLIS = 1000;
+
+    private SandboxManager mManager;
+    private ManualHandler mUIHandler;
+    private QMRef mQM;
+
+    // Waits for a sandbox on behalf of a call made with the given flags.
+    private static final class Waiter implements SandboxManager.AsyncCallback,
+            SandboxManager.Urgency {
+        private final CallRecord mRecord;
+        public Sandbox mSandbox;
+        public boolean mExpired;
+
+        public Waiter(CallRecord record) {
+            mRecord = record;
+        }
+
+        @Override
+        public Sandbox tryFindSandbox(SandboxManager manager) {
+            return manager.tryGetSandboxForCall(mRecord);
+        }
+
+        @Override
+        public void execute(Sandbox finalChoice) {
+            mSandbox = finalChoice;
+        }
+
+        @Override
+        public int getPriorityClass() {
+            return mRecord.getPriorityClass();
+        }
+
+        @Override
+        public long getDeadline() {
+            return 0;
+        }
+
+        @Override
+        public void onDeadlineExceeded() {
+            mExpired = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SystemClock.setSimulatedTime(START_MILLIS);
+        mManager = new SandboxManager();
+        mManager.setMaxPrewarmed(0);
+        mUIHandler = ServiceFixtures.newManualHandler();
+        ServiceFixtures.installScheduler(mManager, mUIHandler);
+        mQM = ServiceFixtures.newQMRef(
+                QMDescriptor.parse(PACKAGE + "/.BenchQM::run(java.lang.String)"), TaintSet.EMPTY);
+    }
+
+    @After
+    public void tearDown() {
+        SystemClock.setSimulatedTime(-1);
+    }
+
+    private static Sandbox newSandbox(int id) {
+        return ServiceFixtures.skipRestarts(ServiceFixtures.newConnectedSandbox(
+                id, null, TaintSet.EMPTY, Collections.<String>emptyList()));
+    }
+
+    private Waiter waitFor(int flags) {
+        Waiter waiter = new Waiter(ServiceFixtures.newReadyCall(mQM, TaintSet.EMPTY, flags));
+        mManager.getSandboxAsync(waiter);
+        return waiter;
+    }
+
+    /**
+     * A call with nowhere to run fails once its deadline passes, with its own exception rather
+     * than whatever a failed call would throw, and is counted as done.
+     */
+    @Test
+    public void deadlineFailsWaitingCall() {
+        long deadline = START_MILLIS + 50;
+        CallRecord record = new CallRecord(mQM, CallFlags.PRIORITY_BACKGROUND,
+                                           Collections.<CallParam>emptyList(), null, deadline);
+        Handle result = record.getOutHandles().get(CallResult.RETURN_VALUE);
+
+        mUIHandler.runDue(deadline - 1);
+        assertFalse("failed early", result.isComplete());
+
+        SystemClock.setSimulatedTime(deadline);
+        assertEquals("deadline sweeps", 1, mUIHandler.runDue(deadline));
+        assertTrue(result.isComplete());
+        assertTrue(result.isException());
+        assertTrue(String.valueOf(ServiceFixtures.getException(result)),
+                   ServiceFixtures.getException(result) instanceof DeadlineExceededException);
+    }
+
+    /**
+     * With only the hot spare left, a normal call waits and an interactive one that comes in
+     * after it starts right away. The spare is refilled before the normal call gets anything.
+     */
+    @Test
+    public void lastHotSpareKeptForInteractive() {
+        Sandbox idle = newSandbox(0);
+        Sandbox spare = newSandbox(1);
+        ServiceFixtures.addPooledSandbox(mManager, idle);
+        ServiceFixtures.addHotSpare(mManager, spare);
+
+        Waiter first = waitFor(CallFlags.PRIORITY_NORMAL);
+        assertSame(idle, first.mSandbox);
+
+        Waiter normal = waitFor(CallFlags.PRIORITY_NORMAL);
+        Waiter background = waitFor(CallFlags.PRIORITY_BACKGROUND);
+        assertNull("normal call took the last spare", normal.mSandbox);
+        assertNull("background call took the last spare", background.mSandbox);
+
+        Waiter interactive = waitFor(CallFlags.PRIORITY_INTERACTIVE);
+        assertSame(spare, interactive.mSandbox);
+
+        mManager.putSandbox(interactive.mSandbox);
+        assertNull("spare wasn't refilled first", normal.mSandbox);
+
+        mManager.putSandbox(first.mSandbox);
+        assertSame(idle, normal.mSandbox);
+        assertNull("background call went ahead of normal", background.mSandbox);
+        assertFalse(normal.mExpired || background.mExpired);
+    }
+}
@@ -32,6 +32,15 @@ public interface CallRunner<TResult> extends CallBuilder {
     public CallRunner<TResult> taintedWith(String taint);
     public CallRunner<TResult> forceSandbox(int sandbox);
     public CallRunner<TResult> asAsync();
+    /**
+     * @param priority One of the CallFlags.PRIORITY_* constants.
+     */
+    public CallRunner<TResult> withPriority(int priority);
+    /**
+     * Fails the call with DeadlineExceededException if it hasn't been given a sandbox within
+     * timeoutMillis of being made. Calls already running aren't interrupted.
+     */
+    public CallRunner<TResult> withTimeout(long timeoutMillis);
 
     public Class<? extends TResult> getResultClass();
 }
@@ -18,6 +18,7 @@ package edu.umich.flowfence.client;
 
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -26,6 +27,7 @@ import org.apache.commons.lang3.ClassUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import edu.umich.flowfence.common.CallFlags;
 import edu.umich.flowfence.common.CallParam;
@@ -148,6 +150,59 @@ public class QuarentineModule<TResult> {
         return hQM;
     }
 
+    /**
+     * Makes several calls to this QM in a single transaction. The calls must have been built
+     * from this QM, and must all use the same flags, taints, and timeout.
+     * @param calls The calls to make, each built with ArgBuilder.
+     * @return The results, in the same order as calls.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Sealed<TResult>> callBatch(List<? extends CallRunner<TResult>> calls)
+            throws RemoteException {
+        final int numCalls = calls.size();
+        if (numCalls == 0) {
+            return Collections.emptyList();
+        }
+
+        List<CallRunnerImpl> runners = new ArrayList<>(numCalls);
+        List<CallParam> params = new ArrayList<>();
+        int[] paramCounts = new int[numCalls];
+        for (int i = 0; i < numCalls; i++) {
+            Object call = calls.get(i);
+            CallRunnerImpl runner;
+            if (call == this) {
+                runner = new CallRunnerImpl();
+            } else if (call instanceof QuarentineModule.CallRunnerImpl &&
+                    ((CallRunnerImpl)call).getModule() == this) {
+                runner = (CallRunnerImpl)call;
+            } else {
+                throw new IllegalArgumentException("Call was not built from this QM");
+            }
+            runners.add(runner);
+            params.addAll(runner.callParams);
+            paramCounts[i] = runner.callParams.size();
+        }
+
+        CallRunnerImpl first = runners.get(0);
+        final int flags = first.getCallFlags();
+        final TaintSet taints = first.buildTaints();
+        for (CallRunnerImpl runner : runners) {
+            if (runner.getCallFlags() != flags || !Objects.equals(runner.buildTaints(), taints) ||
+                    runner.timeoutMillis != first.timeoutMillis) {
+                throw new IllegalArgumentException(
+                        "Batched calls must share flags, taints, and timeout");
+            }
+        }
+
+        CallResult[] results = hQM.callBatch(flags, params, paramCounts, taints,
+                                             first.buildDeadline());
+        List<Sealed<TResult>> sealed = new ArrayList<>(numCalls);
+        for (int i = 0; i < numCalls; i++) {
+            sealed.add(new Sealed<TResult>(runners.get(i).handleResult(results[i])));
+        }
+        return sealed;
+    }
+
     /**
      * Beat the ever-loving hell out of Java's generics system to add some type safety to the client.
      * @param <TArg> The type of the argument that's being passed in.
@@ -340,6 +395,7 @@ public class QuarentineModule<TResult> {
         private SparseArray<Sealed<?>> outRefs;
         private TaintSet.Builder taints;
         private int flags = 0;
+        private long timeoutMillis = 0;
 
         public CallRunnerImpl() {
             callParams = new ArrayList<>();
@@ -350,8 +406,32 @@ public class QuarentineModule<TResult> {
             outRefs = outs;
         }
 
+        private QuarentineModule<TResult> getModule() {
+            return QuarentineModule.this;
+        }
+
+        private TaintSet buildTaints() {
+            return (taints == null) ? TaintSet.EMPTY : taints.build();
+        }
+
+        private long buildDeadline() {
+            return (timeoutMillis > 0) ? SystemClock.elapsedRealtime() + timeoutMillis : 0;
+        }
+
+        private int getCallFlags() {
+            if (resultClass == void.class || resultClass == Void.class) {
+                // Void responses will always be null, so we can safely
+                // ask for the return value to be ignored.
+                return flags | CallFlags.NO_RETURN_VALUE;
+            }
+            return flags;
+        }
+
         private IHandle execRemote() throws RemoteException {
-            CallResult result = hQM.call(flags, callParams, (taints == null) ? TaintSet.EMPTY : taints.build());
+            return handleResult(hQM.call(flags, callParams, buildTaints(), buildDeadline()));
+        }
+
+        private IHandle handleResult(CallResult result) throws RemoteException {
             // Handle out refs.
             IHandle hReturn = null;
             // This throws RuntimeException if the call failed in a
@@ -377,11 +457,7 @@ public class QuarentineModule<TResult> {
 
         @Override
         public Sealed<TResult> call() throws RemoteException {
-            if (resultClass == void.class || resultClass == Void.class) {
-                // Void responses will always be null, so we can safely
-                // ask for the return value to be ignored.
-                flags |= CallFlags.NO_RETURN_VALUE;
-            }
+            flags = getCallFlags();
             IHandle hReturn = execRemote();
             return new Sealed<>(hReturn);
         }
@@ -423,7 +499,7 @@ public class QuarentineModule<TResult> {
 
         @Override
         public CallRunner<TResult> forceSandbox(int sandbox) {
-            if (sandbox < 0 || sandbox >= FlowfenceConstants.NUM_SANDBOXES) {
+            if (sandbox < 0 || sandbox >= FlowfenceConstants.MAX_SANDBOXES) {
                 throw new IndexOutOfBoundsException();
             }
             flags |= (CallFlags.OVERRIDE_SANDBOX | (sandbox & CallFlags.SANDBOX_NUM_MASK));
@@ -436,6 +512,24 @@ public class QuarentineModule<TResult> {
             return this;
         }
 
+        @Override
+        public CallRunner<TResult> withPriority(int priority) {
+            if ((priority & ~CallFlags.PRIORITY_MASK) != 0) {
+                throw new IllegalArgumentException("Not a priority: " + priority);
+            }
+            flags = (flags & ~CallFlags.PRIORITY_MASK) | priority;
+            return this;
+        }
+
+        @Override
+        public CallRunner<TResult> withTimeout(long timeoutMillis) {
+            if (timeoutMillis < 0) {
+                throw new IllegalArgumentException("Negative timeout");
+            }
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
         @Override
         public Class<? extends TResult> getResultClass() {
             return resultClass;
@@ -481,6 +575,16 @@ public class QuarentineModule<TResult> {
             return new CallRunnerImpl().asAsync();
         }
 
+        @Override
+        public CallRunner<TResult> withPriority(int priority) {
+            return new CallRunnerImpl().withPriority(priority);
+        }
+
+        @Override
+        public CallRunner<TResult> withTimeout(long timeoutMillis) {
+            return new CallRunnerImpl().withTimeout(timeoutMillis);
+        }
+
         @Override
         public Class<? extends TResult> getResultClass() {
             return getResultType();
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A snapshot of the counters for one of FlowFence's internal caches.
+ */
+public class CacheStats implements Parcelable {
+    public long hits;
+    public long misses;
+    public long evictions;
+    public int entries;
+    public long bytes;
+
+    public CacheStats() {
+
+    }
+
+    public CacheStats(Parcel in) {
+        readFromParcel(in);
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0.0 : (double)hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits %d, misses %d, evictions %d, %d entries (%d bytes)",
+                             hits, misses, evictions, entries, bytes);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public void readFromParcel(Parcel source) {
+        hits = source.readLong();
+        misses = source.readLong();
+        evictions = source.readLong();
+        entries = source.readInt();
+        bytes = source.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(hits);
+        dest.writeLong(misses);
+        dest.writeLong(evictions);
+        dest.writeInt(entries);
+        dest.writeLong(bytes);
+    }
+
+    public static final Creator<CacheStats> CREATOR = new Creator<CacheStats>() {
+        @Override
+        public CacheStats createFromParcel(Parcel in) {
+            return new CacheStats(in);
+        }
+
+        @Override
+        public CacheStats[] newArray(int size) {
+            return new CacheStats[size];
+        }
+    };
+}
@@ -29,5 +29,27 @@ public final class CallFlags {
     public static final int FILTER_EXCEPTIONS   = 0x10000000; // TODO
     public static final int OVERRIDE_SANDBOX    = 0x08000000;
 
-    public static final int SANDBOX_NUM_MASK    = (Integer.highestOneBit(FlowfenceConstants.NUM_SANDBOXES-1) << 1) - 1;
+    // Priority. Waiting calls are served interactive first, then normal, then background.
+    public static final int PRIORITY_MASK        = 0x06000000;
+    public static final int PRIORITY_NORMAL      = 0x00000000;
+    public static final int PRIORITY_INTERACTIVE = 0x02000000;
+    public static final int PRIORITY_BACKGROUND  = 0x04000000;
+    public static final int PRIORITY_CLASS_COUNT = 3;
+
+    public static final int SANDBOX_NUM_MASK    = (Integer.highestOneBit(FlowfenceConstants.MAX_SANDBOXES-1) << 1) - 1;
+
+    /**
+     * @return The priority class for flags: 0 for interactive, 1 for normal, 2 for background.
+     * Unknown priorities count as normal.
+     */
+    public static int getPriorityClass(int flags) {
+        switch (flags & PRIORITY_MASK) {
+            case PRIORITY_INTERACTIVE:
+                return 0;
+            case PRIORITY_BACKGROUND:
+                return 2;
+            default:
+                return 1;
+        }
+    }
 }
@@ -23,6 +23,8 @@ import android.os.Parcelable;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.ClassUtils;
 
+import java.util.List;
+
 public final class CallParam implements Parcelable {
 
     private static final String TAG = "FF.CallParam";
@@ -113,6 +115,24 @@ public final class CallParam implements Parcelable {
         return payload;
     }
 
+    /**
+     * Releases this param's reference to its payload, if it has one.
+     * @see ParceledPayload#release()
+     */
+    public void releasePayload() {
+        if (payload instanceof ParceledPayload) {
+            ((ParceledPayload)payload).release();
+        }
+    }
+
+    public static void releasePayloads(List<CallParam> params) {
+        for (CallParam param : params) {
+            if (param != null) {
+                param.releasePayload();
+            }
+        }
+    }
+
 	@Override
     public String toString() {
         return toString(null);
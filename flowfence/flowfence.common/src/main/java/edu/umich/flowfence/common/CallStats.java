@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Latency percentiles for the calls made to one QM, broken down by the stage of the call's
+ * lifecycle. All times are in microseconds, and accurate to within about 6%.
+ */
+public class CallStats implements Parcelable {
+    /** From the call being made until all of its arguments are available. */
+    public static final int STAGE_PREDECESSORS = 0;
+    /** Waiting for a sandbox to be assigned. */
+    public static final int STAGE_QUEUED = 1;
+    /** Waiting for the assigned sandbox to finish starting up. */
+    public static final int STAGE_SANDBOX_START = 2;
+    /** Resolving the QM in the sandbox. */
+    public static final int STAGE_RESOLVE = 3;
+    /** Marshalling arguments into the sandbox. */
+    public static final int STAGE_MARSHAL = 4;
+    /** From the call being sent to the sandbox until its result comes back. */
+    public static final int STAGE_EXECUTE = 5;
+    /** From the call being made until its result comes back. */
+    public static final int STAGE_TOTAL = 6;
+    public static final int NUM_STAGES = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "predecessors",
+            "queued",
+            "sandbox start",
+            "resolve",
+            "marshal",
+            "execute",
+            "total"
+    };
+
+    public QMDescriptor descriptor;
+    public long calls;
+    public long failures;
+    // Indexed by stage. A stage a call never reached isn't counted.
+    public long[] counts = new long[NUM_STAGES];
+    public long[] p50Micros = new long[NUM_STAGES];
+    public long[] p90Micros = new long[NUM_STAGES];
+    public long[] p99Micros = new long[NUM_STAGES];
+    public long[] maxMicros = new long[NUM_STAGES];
+
+    public CallStats() {
+
+    }
+
+    public CallStats(Parcel in) {
+        readFromParcel(in);
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s: %d calls, %d failed", descriptor, calls, failures));
+        for (int i = 0; i < NUM_STAGES; i++) {
+            sb.append(String.format("\n  %-13s n=%d p50=%dus p90=%dus p99=%dus max=%dus",
+                                    STAGE_NAMES[i], counts[i], p50Micros[i], p90Micros[i],
+                                    p99Micros[i], maxMicros[i]));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public void readFromParcel(Parcel source) {
+        descriptor = QMDescriptor.readFromParcel(source);
+        calls = source.readLong();
+        failures = source.readLong();
+        counts = source.createLongArray();
+        p50Micros = source.createLongArray();
+        p90Micros = source.createLongArray();
+        p99Micros = source.createLongArray();
+        maxMicros = source.createLongArray();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        QMDescriptor.writeToParcel(descriptor, dest, flags);
+        dest.writeLong(calls);
+        dest.writeLong(failures);
+        dest.writeLongArray(counts);
+        dest.writeLongArray(p50Micros);
+        dest.writeLongArray(p90Micros);
+        dest.writeLongArray(p99Micros);
+        dest.writeLongArray(maxMicros);
+    }
+
+    public static final Creator<CallStats> CREATOR = new Creator<CallStats>() {
+        @Override
+        public CallStats createFromParcel(Parcel in) {
+            return new CallStats(in);
+        }
+
+        @Override
+        public CallStats[] newArray(int size) {
+            return new CallStats[size];
+        }
+    };
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.content.ComponentName;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Counters for one event channel, summed over its current subscribers.
+ */
+public class ChannelStats implements Parcelable {
+    public ComponentName channelName;
+    public int subscribers;
+    /** Events fired on the channel. */
+    public long fired;
+    /** Subscriber calls made. */
+    public long delivered;
+    /** Events dropped because a subscriber's queue was full. */
+    public long dropped;
+    /** Events that replaced a subscriber's pending event rather than queueing a call. */
+    public long coalesced;
+
+    public ChannelStats() {
+
+    }
+
+    public ChannelStats(Parcel in) {
+        readFromParcel(in);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d subscribers, fired %d, delivered %d, dropped %d, coalesced %d",
+                             (channelName == null) ? null : channelName.flattenToShortString(),
+                             subscribers, fired, delivered, dropped, coalesced);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public void readFromParcel(Parcel source) {
+        channelName = ComponentName.readFromParcel(source);
+        subscribers = source.readInt();
+        fired = source.readLong();
+        delivered = source.readLong();
+        dropped = source.readLong();
+        coalesced = source.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        ComponentName.writeToParcel(channelName, dest);
+        dest.writeInt(subscribers);
+        dest.writeLong(fired);
+        dest.writeLong(delivered);
+        dest.writeLong(dropped);
+        dest.writeLong(coalesced);
+    }
+
+    public static final Creator<ChannelStats> CREATOR = new Creator<ChannelStats>() {
+        @Override
+        public ChannelStats createFromParcel(Parcel in) {
+            return new ChannelStats(in);
+        }
+
+        @Override
+        public ChannelStats[] newArray(int size) {
+            return new ChannelStats[size];
+        }
+    };
+}
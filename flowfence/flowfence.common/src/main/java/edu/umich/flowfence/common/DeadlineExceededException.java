@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+/**
+ * Thrown from a call that was still waiting for a sandbox when its deadline passed. The call
+ * never ran.
+ */
+public class DeadlineExceededException extends FlowfenceException {
+    private static final long serialVersionUID = 1L;
+    public DeadlineExceededException() {
+        super();
+    }
+
+    public DeadlineExceededException(String detailMessage) {
+        super(detailMessage);
+    }
+
+    public DeadlineExceededException(Throwable throwable) {
+        super(throwable);
+    }
+
+    public DeadlineExceededException(String detailMessage, Throwable throwable) {
+        super(detailMessage, throwable);
+    }
+}
@@ -26,7 +26,10 @@ import java.util.regex.Pattern;
 public final class FlowfenceConstants
 {
     private FlowfenceConstants() { }
+    // How many sandboxes the service starts out with. It may declare more, and grow into them.
     public static final int NUM_SANDBOXES = ObjectUtils.CONST(16);
+    // The most sandboxes a service build can declare; sandbox IDs fit in CallFlags.SANDBOX_NUM_MASK.
+    public static final int MAX_SANDBOXES = ObjectUtils.CONST(256);
 
     public static final String JAVA_IDENTIFIER_PATTERN = "[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*";
     public static final String JAVA_PACKAGE_PATTERN = JAVA_IDENTIFIER_PATTERN + "(?:\\."+JAVA_IDENTIFIER_PATTERN+")*";
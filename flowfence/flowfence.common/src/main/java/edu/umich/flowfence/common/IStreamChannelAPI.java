@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.content.ComponentName;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Access to streaming event channels, declared with &lt;stream-channel&gt; in the FlowFence
+ * manifest. Records are written once into a buffer shared with every subscriber; subscriber
+ * QMs are called with a {@link StreamRecord} and read the bytes in place.
+ */
+public interface IStreamChannelAPI {
+    /**
+     * Copies a record into the channel and delivers it to the channel's subscribers.
+     * Once a sandbox has written to a channel, it can't take on any taint the channel
+     * isn't labelled with.
+     * @return The record's sequence number, or -1 if every slot is still being read
+     * and the record was dropped.
+     */
+    long write(ComponentName channelName, byte[] data, int offset, int length);
+
+    /**
+     * Returns a read-only view of the record's bytes, which is only valid until the calling
+     * QM returns. Taints the caller with the channel's taint.
+     * @throws IllegalStateException if the record has been overwritten.
+     */
+    ByteBuffer read(StreamRecord record);
+}
@@ -32,7 +32,8 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.NioUtils;
 import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
@@ -113,13 +114,29 @@ public final class ParceledPayload implements Parcelable {
         }
     }
 
+    // The marshalled value; only the first 'length' bytes are meaningful. Large payloads
+    // read from a Parcel are copied into a pooled buffer, which may be bigger than that.
     private final byte[] data;
+    private final int length;
+    // Outstanding references to a pooled buffer, or null if data isn't pooled.
+    private final Lease lease;
+    private boolean released = false;
+    private int contentHash;
+    private boolean hashed = false;
 
     private ParceledPayload(byte[] data) {
         if (localLOGV) {
             Log.v(TAG, "Payload = " + ArrayUtils.toString(data));
         }
         this.data = data;
+        this.length = data.length;
+        this.lease = null;
+    }
+
+    private ParceledPayload(byte[] data, int length, Lease lease) {
+        this.data = data;
+        this.length = length;
+        this.lease = lease;
     }
 
     public static ParceledPayload create(Object object) {
@@ -136,33 +153,52 @@ public final class ParceledPayload implements Parcelable {
 
     public static ParceledPayload fromParcel(Parcel p) {
         byte[] data = p.createByteArray();
-        if (data == null) {
-            // Null data = data's stored in an ashmem region.
-            try (ParcelFileDescriptor pfd = p.readFileDescriptor()) {
-                FileDescriptor fd = pfd.getFileDescriptor();
-                int size = MemoryFile.getSize(fd);
-                if (size == -1) {
-                    throw new ParcelFormatException("ParceledPayload blob is not ashmem");
-                }
-                data = new byte[size];
-                FileInputStream fis = new FileInputStream(fd);
-                FileChannel chan = fis.getChannel();
-                MappedByteBuffer mapping = chan.map(FileChannel.MapMode.READ_ONLY, 0, size);
-                mapping.get(data);
-            } catch (IOException e) {
-                Log.e(TAG, "Couldn't unparcel - not an ashmem region?", e);
-                ParcelFormatException pfe = new ParcelFormatException("Exception reading blob for ParceledPayload");
-                pfe.initCause(e);
-                throw pfe;
+        if (data != null) {
+            return new ParceledPayload(data);
+        }
+        // Null data = data's stored in an ashmem region.
+        // The sender can still write to the region, so take a snapshot of it now, into a
+        // pooled buffer, and let go of the region right away.
+        ByteBuffer mapping = null;
+        try (ParcelFileDescriptor pfd = p.readFileDescriptor()) {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            int size = MemoryFile.getSize(fd);
+            if (size == -1) {
+                throw new ParcelFormatException("ParceledPayload blob is not ashmem");
+            }
+            data = PayloadBufferPool.obtain(size);
+            FileInputStream fis = new FileInputStream(fd);
+            FileChannel chan = fis.getChannel();
+            mapping = chan.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.get(data, 0, size);
+            return new ParceledPayload(data, size, new Lease());
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't unparcel - not an ashmem region?", e);
+            if (data != null) {
+                PayloadBufferPool.recycle(data);
+            }
+            ParcelFormatException pfe = new ParcelFormatException("Exception reading blob for ParceledPayload");
+            pfe.initCause(e);
+            throw pfe;
+        } finally {
+            if (mapping != null) {
+                // Don't leave it mapped until the next GC.
+                NioUtils.freeDirectBuffer(mapping);
             }
         }
-        return new ParceledPayload(data);
+    }
+
+    private synchronized void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("Payload already released");
+        }
     }
 
     public Object getValue(ClassLoader loader) {
+        checkNotReleased();
         Parcel p = Parcel.obtain();
         try {
-            p.unmarshall(data, 0, data.length);
+            p.unmarshall(data, 0, length);
             p.setDataPosition(0);
             return p.readValue(loader);
         } finally {
@@ -170,12 +206,104 @@ public final class ParceledPayload implements Parcelable {
         }
     }
 
+    /**
+     * Returns a new reference to this payload, for code that will {@link #release()} it
+     * independently of this one.
+     */
+    public ParceledPayload acquire() {
+        if (lease == null) {
+            return this;
+        }
+        checkNotReleased();
+        lease.acquire();
+        ParceledPayload ref = new ParceledPayload(data, length, lease);
+        synchronized (this) {
+            ref.contentHash = contentHash;
+            ref.hashed = hashed;
+        }
+        return ref;
+    }
+
+    /**
+     * Drops this reference to the payload. Once every reference to a pooled payload has been
+     * released, its buffer goes back to the pool for the next large payload. Releasing more
+     * than once has no effect; using a released reference is an error.
+     */
+    public void release() {
+        if (lease == null) {
+            return;
+        }
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        if (lease.release()) {
+            PayloadBufferPool.recycle(data);
+        }
+    }
+
+    /**
+     * @return The size of the marshalled value, in bytes.
+     */
+    public int getSize() {
+        return length;
+    }
+
+    /**
+     * @return A hash of the marshalled bytes. Payloads with equal contents have equal hashes.
+     */
+    public int getContentHash() {
+        synchronized (this) {
+            if (hashed) {
+                return contentHash;
+            }
+        }
+        checkNotReleased();
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        synchronized (this) {
+            contentHash = hash;
+            hashed = true;
+        }
+        return hash;
+    }
+
+    /**
+     * @return True if both payloads hold exactly the same marshalled bytes.
+     */
+    public boolean contentEquals(ParceledPayload other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || other.length != length) {
+            return false;
+        }
+        checkNotReleased();
+        other.checkNotReleased();
+        if (other.data == data) {
+            return true;
+        }
+        if (getContentHash() != other.getContentHash()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[i] != other.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         if (data == null) {
             return "parceled[<null>]";
         } else {
-            return String.format("parceled[%d]", data.length);
+            return String.format("parceled[%d]", length);
         }
     }
 
@@ -183,19 +311,22 @@ public final class ParceledPayload implements Parcelable {
 
     @Override
     public int describeContents() {
-        return (data.length >= INLINE_SIZE) ? CONTENTS_FILE_DESCRIPTOR : 0;
+        return (length >= INLINE_SIZE) ? CONTENTS_FILE_DESCRIPTOR : 0;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        if (data.length < INLINE_SIZE) {
-            dest.writeByteArray(data);
+        checkNotReleased();
+        if (length < INLINE_SIZE) {
+            dest.writeByteArray(data, 0, length);
         } else {
+            // Every receiver gets a fresh region. It can write to whatever we send it, so a
+            // region can't be shared between receivers or reused once it's been sent.
             dest.writeByteArray(null);
             MemoryFile mf = null;
             try {
-                mf = new MemoryFile("ParceledPayload", data.length);
-                mf.writeBytes(data, 0, 0, data.length);
+                mf = new MemoryFile("ParceledPayload", length);
+                mf.writeBytes(data, 0, 0, length);
                 FileDescriptor ashmemFd = mf.getFileDescriptor();
                 dest.writeFileDescriptor(ashmemFd);
             } catch (IOException e) {
@@ -206,6 +337,26 @@ public final class ParceledPayload implements Parcelable {
                 }
             }
         }
+        if ((flags & PARCELABLE_WRITE_RETURN_VALUE) != 0) {
+            release();
+        }
+    }
+
+    // Counts the references sharing one pooled buffer.
+    private static final class Lease {
+        private int mRefCount = 1;
+
+        public synchronized void acquire() {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Payload already released");
+            }
+            mRefCount++;
+        }
+
+        // Returns true once the last reference is gone.
+        public synchronized boolean release() {
+            return (--mRefCount == 0);
+        }
     }
 
     public static final Parcelable.Creator<ParceledPayload> CREATOR =
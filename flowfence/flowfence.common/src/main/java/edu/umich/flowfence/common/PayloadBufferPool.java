@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Size-classed pool of scratch buffers for decoding large payloads.
+ *
+ * Parcel can only unmarshall from a byte[], so an ashmem-backed payload has to be copied out
+ * of its mapping before it can be decoded. The copy goes into a pooled buffer that is handed
+ * back as soon as the Parcel has it, instead of a new array per payload.
+ */
+/*package*/ final class PayloadBufferPool {
+    private static final String TAG = "FF.PayloadBufferPool";
+    private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Size classes are powers of two from MIN_SIZE to MAX_SIZE, inclusive.
+    private static final int MIN_SHIFT = 15; // 32K, the smallest payload kept in ashmem
+    private static final int MAX_SHIFT = 24; // 16M
+    private static final int MAX_IDLE_PER_CLASS = 2;
+    private static final long MAX_IDLE_BYTES = 32L * 1024 * 1024;
+
+    private static final Object g_mSync = new Object();
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<byte[]>[] g_mIdle = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+    private static long g_mIdleBytes = 0;
+
+    static {
+        for (int i = 0; i < g_mIdle.length; i++) {
+            g_mIdle[i] = new ArrayDeque<>(MAX_IDLE_PER_CLASS);
+        }
+    }
+
+    private PayloadBufferPool() { }
+
+    private static int classFor(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a buffer of at least the given size. The contents are undefined.
+     */
+    public static byte[] obtain(int size) {
+        int sizeClass = classFor(size);
+        if (sizeClass < 0) {
+            // Too big to be worth keeping around.
+            return new byte[size];
+        }
+        synchronized (g_mSync) {
+            byte[] buffer = g_mIdle[sizeClass].pollFirst();
+            if (buffer != null) {
+                g_mIdleBytes -= buffer.length;
+                return buffer;
+            }
+        }
+        if (localLOGD) {
+            Log.d(TAG, "Allocating "+(1 << (sizeClass + MIN_SHIFT))+" byte buffer");
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer from {@link #obtain(int)} to the pool. The caller must not use it again.
+     */
+    public static void recycle(byte[] buffer) {
+        int length = buffer.length;
+        int sizeClass = classFor(length);
+        if (sizeClass < 0 || length != (1 << (sizeClass + MIN_SHIFT))) {
+            return;
+        }
+        synchronized (g_mSync) {
+            ArrayDeque<byte[]> idle = g_mIdle[sizeClass];
+            if (idle.size() < MAX_IDLE_PER_CLASS && g_mIdleBytes + length <= MAX_IDLE_BYTES) {
+                idle.addFirst(buffer);
+                g_mIdleBytes += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * How long one sandbox takes to restart, and how long its old processes take to die once
+ * they've been told to. All times are in microseconds.
+ */
+public class RestartStats implements Parcelable {
+    public int sandboxId;
+    /** Restarts that have finished, from being requested until the new process connected. */
+    public long restarts;
+    public long lastRestartMicros;
+    public long totalRestartMicros;
+    public long maxRestartMicros;
+    /** Old processes that died, from the kill request until the death notification. */
+    public long deaths;
+    public long totalDeathMicros;
+    public long maxDeathMicros;
+    /** Old processes still alive long after they were told to die. */
+    public long deathTimeouts;
+    /** Old processes that have been told to die, but haven't yet. */
+    public int dying;
+
+    public RestartStats() {
+
+    }
+
+    public RestartStats(Parcel in) {
+        readFromParcel(in);
+    }
+
+    public long getMeanRestartMicros() {
+        return (restarts == 0) ? 0 : totalRestartMicros / restarts;
+    }
+
+    public long getMeanDeathMicros() {
+        return (deaths == 0) ? 0 : totalDeathMicros / deaths;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sandbox %d: %d restarts, last %dus, mean %dus, max %dus; " +
+                             "%d deaths, mean %dus, max %dus, %d timed out, %d dying",
+                             sandboxId, restarts, lastRestartMicros, getMeanRestartMicros(),
+                             maxRestartMicros, deaths, getMeanDeathMicros(), maxDeathMicros,
+                             deathTimeouts, dying);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public void readFromParcel(Parcel source) {
+        sandboxId = source.readInt();
+        restarts = source.readLong();
+        lastRestartMicros = source.readLong();
+        totalRestartMicros = source.readLong();
+        maxRestartMicros = source.readLong();
+        deaths = source.readLong();
+        totalDeathMicros = source.readLong();
+        maxDeathMicros = source.readLong();
+        deathTimeouts = source.readLong();
+        dying = source.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(sandboxId);
+        dest.writeLong(restarts);
+        dest.writeLong(lastRestartMicros);
+        dest.writeLong(totalRestartMicros);
+        dest.writeLong(maxRestartMicros);
+        dest.writeLong(deaths);
+        dest.writeLong(totalDeathMicros);
+        dest.writeLong(maxDeathMicros);
+        dest.writeLong(deathTimeouts);
+        dest.writeInt(dying);
+    }
+
+    public static final Creator<RestartStats> CREATOR = new Creator<RestartStats>() {
+        @Override
+        public RestartStats createFromParcel(Parcel in) {
+            return new RestartStats(in);
+        }
+
+        @Override
+        public RestartStats[] newArray(int size) {
+            return new RestartStats[size];
+        }
+    };
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.content.ComponentName;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One record published on a streaming event channel. The record's bytes stay in the channel's
+ * shared buffer; this only says where to find them, and is what a subscriber QM is called with.
+ *
+ * The buffer starts with a header (magic, record size, slot count), then a table holding the
+ * sequence number and length of the record currently in each slot, then the slots themselves,
+ * each starting on a page boundary.
+ */
+public final class StreamRecord implements Parcelable {
+    public static final int MAGIC = 0x46465352; // 'FFSR'
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_RECORD_SIZE = 4;
+    public static final int OFFSET_SLOT_COUNT = 8;
+    public static final int HEADER_SIZE = 16;
+    public static final int SLOT_HEADER_SIZE = 16;
+    private static final int PAGE_SIZE = 4096;
+
+    public final ComponentName channelName;
+    public final int slot;
+    public final long sequence;
+    public final int length;
+
+    public StreamRecord(ComponentName channelName, int slot, long sequence, int length) {
+        this.channelName = channelName;
+        this.slot = slot;
+        this.sequence = sequence;
+        this.length = length;
+    }
+
+    private StreamRecord(Parcel source) {
+        channelName = ComponentName.readFromParcel(source);
+        slot = source.readInt();
+        sequence = source.readLong();
+        length = source.readInt();
+    }
+
+    /**
+     * @return The offset of the sequence number for slot; its length follows as an int.
+     */
+    public static int getSlotHeaderOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_HEADER_SIZE;
+    }
+
+    public static long getSlotOffset(int slot, int recordSize, int slotCount) {
+        long tableEnd = roundToPage(getSlotHeaderOffset(slotCount));
+        return tableEnd + slot * roundToPage(recordSize);
+    }
+
+    public static long getBufferSize(int recordSize, int slotCount) {
+        return getSlotOffset(slotCount, recordSize, slotCount);
+    }
+
+    private static long roundToPage(long size) {
+        return (size + PAGE_SIZE - 1) & ~(long)(PAGE_SIZE - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StreamRecord[%s #%d, slot %d, %d bytes]",
+                channelName.flattenToShortString(), sequence, slot, length);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        ComponentName.writeToParcel(channelName, dest);
+        dest.writeInt(slot);
+        dest.writeLong(sequence);
+        dest.writeInt(length);
+    }
+
+    public static final Creator<StreamRecord> CREATOR = new Creator<StreamRecord>() {
+        @Override
+        public StreamRecord createFromParcel(Parcel in) {
+            return new StreamRecord(in);
+        }
+
+        @Override
+        public StreamRecord[] newArray(int size) {
+            return new StreamRecord[size];
+        }
+    };
+}
@@ -16,26 +16,21 @@
 
 package edu.umich.flowfence.common;
 
-import android.app.Notification;
 import android.content.ComponentName;
-import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import org.apache.commons.lang3.Validate;
-
-import java.util.AbstractMap;
-import java.util.Collection;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 public final class TaintSet implements Parcelable {
     private static final String TAG = "FF.TaintSet";
@@ -45,21 +40,103 @@ public final class TaintSet implements Parcelable {
     public static final float NOT_TAINTED = Float.NEGATIVE_INFINITY;
     public static final float UNKNOWN_TAINT = Float.POSITIVE_INFINITY;
 
+    /**
+     * Process-wide registry assigning each taint label a small, dense id. Ids are never
+     * reused and never leave the process; parcels still carry the ComponentName itself.
+     */
+    private static final class Labels {
+        private static final ConcurrentHashMap<ComponentName, Integer> g_mIds =
+                new ConcurrentHashMap<>();
+        private static volatile ComponentName[] g_mNames = new ComponentName[64];
+        private static int g_mCount = 0;
+
+        public static int find(ComponentName name) {
+            Integer id = g_mIds.get(Objects.requireNonNull(name));
+            return (id != null) ? id : -1;
+        }
+
+        public static int register(ComponentName name) {
+            int id = find(name);
+            if (id >= 0) {
+                return id;
+            }
+            synchronized (g_mIds) {
+                Integer existing = g_mIds.get(name);
+                if (existing != null) {
+                    return existing;
+                }
+                ComponentName[] names = g_mNames;
+                id = g_mCount++;
+                if (id >= names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                names[id] = name;
+                g_mNames = names;
+                g_mIds.put(name, id);
+                return id;
+            }
+        }
+
+        public static ComponentName get(int id) {
+            return g_mNames[id];
+        }
+    }
+
+    private static float addAmounts(float oldAmount, float amountToAdd) {
+        return Math.max(oldAmount + amountToAdd, 0.0f);
+    }
+
+    private static boolean sameAmount(float a, float b) {
+        return Float.floatToIntBits(a) == Float.floatToIntBits(b);
+    }
+
     public static final class Builder {
-        private final ConcurrentHashMap<ComponentName, Float> newTaints;
+        // Until the first real change, the builder just points at the set it started from;
+        // this keeps no-op unions (the common case) from copying anything.
+        private TaintSet mBase;
+        private long[] mBits;
+        private float[] mAmounts;
 
         public Builder() {
             this(null);
         }
 
         private Builder(TaintSet from) {
-            if (from == null) {
-                newTaints = new ConcurrentHashMap<>();
-            } else {
-                newTaints = new ConcurrentHashMap<>(from.taints);
+            mBase = (from != null) ? from : TaintSet.EMPTY;
+        }
+
+        private void makeMutable(int minId) {
+            if (mBits == null) {
+                TaintSet base = mBase;
+                mBase = null;
+                int words = Math.max(base.mBits.length, (minId >>> 6) + 1);
+                mBits = Arrays.copyOf(base.mBits, words);
+                mAmounts = new float[words << 6];
+                int rank = 0;
+                for (int w = 0; w < base.mBits.length; w++) {
+                    long word = base.mBits[w];
+                    while (word != 0) {
+                        int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                        mAmounts[id] = base.mAmounts[rank++];
+                        word &= word - 1;
+                    }
+                }
+            } else if ((minId >>> 6) >= mBits.length) {
+                int words = Math.max(mBits.length * 2, (minId >>> 6) + 1);
+                mBits = Arrays.copyOf(mBits, words);
+                mAmounts = Arrays.copyOf(mAmounts, words << 6);
             }
         }
 
+        private void addById(int id, float amountToAdd) {
+            makeMutable(id);
+            long mask = 1L << id;
+            int word = id >>> 6;
+            float oldAmount = ((mBits[word] & mask) != 0) ? mAmounts[id] : 0.0f;
+            mBits[word] |= mask;
+            mAmounts[id] = addAmounts(oldAmount, amountToAdd);
+        }
+
         public Builder addTaint(String taintKind) {
             return addTaint(ComponentName.unflattenFromString(taintKind));
         }
@@ -72,17 +149,11 @@ public final class TaintSet implements Parcelable {
             return addTaint(ComponentName.unflattenFromString(taintKind), amountToAdd);
         }
 
-        public Builder addTaint(ComponentName taintKind, float amountToAdd) {
-            Objects.requireNonNull(taintKind);
-            Float oldAmount, newAmount;
-            do {
-                Float absentAmount = 0.0f;
-                oldAmount = newTaints.putIfAbsent(taintKind, absentAmount);
-                if (oldAmount == null) {
-                    oldAmount = absentAmount;
-                }
-                newAmount = Math.max(oldAmount + amountToAdd, 0.0f);
-            } while (!newTaints.replace(taintKind, oldAmount, newAmount));
+        public synchronized Builder addTaint(ComponentName taintKind, float amountToAdd) {
+            int id = Labels.register(Objects.requireNonNull(taintKind));
+            if (mBase == null || !mBase.absorbs(id, amountToAdd)) {
+                addById(id, amountToAdd);
+            }
             return this;
         }
 
@@ -90,48 +161,165 @@ public final class TaintSet implements Parcelable {
             return removeTaint(ComponentName.unflattenFromString(taintKind));
         }
 
-        public Builder removeTaint(ComponentName taintKind) {
-            newTaints.remove(Objects.requireNonNull(taintKind));
+        public synchronized Builder removeTaint(ComponentName taintKind) {
+            int id = Labels.find(Objects.requireNonNull(taintKind));
+            if (id < 0) {
+                return this;
+            }
+            if (mBase != null) {
+                if (mBase.rankOf(id) < 0) {
+                    return this;
+                }
+                makeMutable(id);
+            }
+            int word = id >>> 6;
+            if (word < mBits.length) {
+                mBits[word] &= ~(1L << id);
+            }
             return this;
         }
 
-        private void unionWith(Map<? extends ComponentName, ? extends Float> taintMap) {
-            for (Map.Entry<? extends ComponentName, ? extends Float> entry : taintMap.entrySet()) {
-                this.addTaint(entry.getKey(), entry.getValue());
+        public synchronized Builder unionWith(TaintSet other) {
+            if (other == null || other.isEmpty()) {
+                return this;
             }
-        }
-
-        public Builder unionWith(TaintSet other) {
-            if (other != null) {
-                unionWith(other.taints);
+            if (mBase != null) {
+                if (mBase.isEmpty() && other.mCanonical) {
+                    mBase = other;
+                    return this;
+                }
+                if (mBase.absorbs(other)) {
+                    return this;
+                }
+            }
+            int rank = 0;
+            for (int w = 0; w < other.mBits.length; w++) {
+                long word = other.mBits[w];
+                while (word != 0) {
+                    int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                    addById(id, other.mAmounts[rank++]);
+                    word &= word - 1;
+                }
             }
             return this;
         }
 
-        public TaintSet build() {
-            if (newTaints.isEmpty()) {
+        public synchronized TaintSet build() {
+            if (mBase != null) {
+                return mBase;
+            }
+            int words = mBits.length;
+            while (words > 0 && mBits[words - 1] == 0) {
+                words--;
+            }
+            if (words == 0) {
                 return TaintSet.EMPTY;
-            } else {
-                return new TaintSet(new HashMap<>(newTaints));
+            }
+            long[] bits = Arrays.copyOf(mBits, words);
+            int count = 0;
+            for (long word : bits) {
+                count += Long.bitCount(word);
+            }
+            float[] amounts = new float[count];
+            int rank = 0;
+            for (int w = 0; w < words; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    amounts[rank++] = mAmounts[(w << 6) + Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                }
+            }
+            return intern(new TaintSet(bits, amounts));
+        }
+    }
+
+    // Bit i is set if label i is present; mAmounts holds the amounts of the set bits in
+    // ascending id order. mBits never has trailing zero words, so equal sets have equal arrays.
+    private final long[] mBits;
+    private final float[] mAmounts;
+    private final int mHashCode;
+    // True if every amount is already what a Builder would have produced for it.
+    private final boolean mCanonical;
+    private volatile Map<ComponentName, Float> mMap;
+
+    private TaintSet(long[] bits, float[] amounts) {
+        mBits = bits;
+        mAmounts = amounts;
+        mHashCode = 31 * Arrays.hashCode(bits) + Arrays.hashCode(amounts);
+        boolean canonical = true;
+        for (float amount : amounts) {
+            if (!sameAmount(amount, addAmounts(0.0f, amount))) {
+                canonical = false;
+                break;
             }
         }
+        mCanonical = canonical;
     }
 
-    private final Map<ComponentName, Float> taints;
+    public static TaintSet EMPTY = new TaintSet(new long[0], new float[0]);
 
-    private TaintSet(Map<? extends ComponentName, ? extends Float> taintMap) {
-        if (taintMap == null || taintMap.isEmpty()) {
-            taints = Collections.emptyMap();
-        } else {
-            taints = Collections.unmodifiableMap(taintMap);
+    private static final WeakHashMap<TaintSet, WeakReference<TaintSet>> g_mInterned =
+            new WeakHashMap<>();
+
+    private static TaintSet intern(TaintSet ts) {
+        if (ts.isEmpty()) {
+            return TaintSet.EMPTY;
+        }
+        synchronized (g_mInterned) {
+            WeakReference<TaintSet> ref = g_mInterned.get(ts);
+            TaintSet existing = (ref != null) ? ref.get() : null;
+            if (existing != null) {
+                return existing;
+            }
+            g_mInterned.put(ts, new WeakReference<>(ts));
+            return ts;
+        }
+    }
+
+    private int rankOf(int id) {
+        int word = id >>> 6;
+        if (id < 0 || word >= mBits.length) {
+            return -1;
+        }
+        long mask = 1L << id;
+        if ((mBits[word] & mask) == 0) {
+            return -1;
         }
+        int rank = Long.bitCount(mBits[word] & (mask - 1));
+        for (int w = 0; w < word; w++) {
+            rank += Long.bitCount(mBits[w]);
+        }
+        return rank;
     }
 
-    private TaintSet(ComponentName singleTaint, float singleAmount) {
-        taints = Collections.singletonMap(Objects.requireNonNull(singleTaint), singleAmount);
+    // Would adding this amount of this label leave the set unchanged?
+    private boolean absorbs(int id, float amountToAdd) {
+        int rank = rankOf(id);
+        if (rank < 0) {
+            return false;
+        }
+        float amount = mAmounts[rank];
+        return sameAmount(amount, addAmounts(amount, amountToAdd));
     }
 
-    public static TaintSet EMPTY = new TaintSet(null);
+    // Would a union with other leave the set unchanged?
+    private boolean absorbs(TaintSet other) {
+        if (!other.isSubsetOf(this)) {
+            return false;
+        }
+        int rank = 0;
+        for (int w = 0; w < other.mBits.length; w++) {
+            long word = other.mBits[w];
+            while (word != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (!absorbs(id, other.mAmounts[rank++])) {
+                    return false;
+                }
+                word &= word - 1;
+            }
+        }
+        return true;
+    }
 
     public static TaintSet singleton(String taintKind) {
         return singleton(ComponentName.unflattenFromString(taintKind));
@@ -146,7 +334,18 @@ public final class TaintSet implements Parcelable {
     }
 
     public static TaintSet singleton(ComponentName taintKind, float amount) {
-        return new TaintSet(taintKind, amount);
+        int id = Labels.register(Objects.requireNonNull(taintKind));
+        long[] bits = new long[(id >>> 6) + 1];
+        bits[id >>> 6] = 1L << id;
+        return intern(new TaintSet(bits, new float[] { amount }));
+    }
+
+    public boolean isEmpty() {
+        return mBits.length == 0;
+    }
+
+    public int size() {
+        return mAmounts.length;
     }
 
     @Deprecated
@@ -155,7 +354,7 @@ public final class TaintSet implements Parcelable {
     }
 
     public boolean isTaintedWith(ComponentName taintKind) {
-        return taints.containsKey(Objects.requireNonNull(taintKind));
+        return rankOf(Labels.find(taintKind)) >= 0;
     }
 
     @Deprecated
@@ -173,29 +372,44 @@ public final class TaintSet implements Parcelable {
     }
 
     public float getTaintAmount(ComponentName taintKind, float amountIfNotTainted) {
-        Float amount = taints.get(Objects.requireNonNull(taintKind));
-        if (amount == null) {
-            return amountIfNotTainted;
-        } else {
-            return amount;
-        }
+        int rank = rankOf(Labels.find(taintKind));
+        return (rank < 0) ? amountIfNotTainted : mAmounts[rank];
     }
 
     @Deprecated
     public Map<String, Float> getAllTaints() {
-        if (taints.isEmpty()) {
+        if (isEmpty()) {
             return Collections.emptyMap();
         }
 
-        HashMap<String, Float> stringTaints = new HashMap<>(taints.size());
-        for (Map.Entry<ComponentName, Float> entry : taints.entrySet()) {
+        HashMap<String, Float> stringTaints = new HashMap<>(size());
+        for (Map.Entry<ComponentName, Float> entry : asMap().entrySet()) {
             stringTaints.put(entry.getKey().flattenToShortString(), entry.getValue());
         }
         return stringTaints;
     }
 
     public Map<ComponentName, Float> asMap() {
-        return taints;
+        Map<ComponentName, Float> map = mMap;
+        if (map == null) {
+            if (isEmpty()) {
+                map = Collections.emptyMap();
+            } else {
+                HashMap<ComponentName, Float> taints = new HashMap<>(size() * 2);
+                int rank = 0;
+                for (int w = 0; w < mBits.length; w++) {
+                    long word = mBits[w];
+                    while (word != 0) {
+                        int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                        taints.put(Labels.get(id), mAmounts[rank++]);
+                        word &= word - 1;
+                    }
+                }
+                map = Collections.unmodifiableMap(taints);
+            }
+            mMap = map;
+        }
+        return map;
     }
 
     /**
@@ -205,7 +419,11 @@ public final class TaintSet implements Parcelable {
      * @return True, if T[this] <= T[other]; false otherwise.
      */
     public boolean isSubsetOf(TaintSet other) {
-        boolean isSubset = Objects.requireNonNull(other).taints.keySet().containsAll(taints.keySet());
+        long[] otherBits = Objects.requireNonNull(other).mBits;
+        boolean isSubset = (mBits.length <= otherBits.length);
+        for (int w = 0; isSubset && w < mBits.length; w++) {
+            isSubset = (mBits[w] & ~otherBits[w]) == 0;
+        }
         if (localLOGV) {
             Log.v(TAG, String.format("%s %s %s", this, isSubset ? "<=" : ">", other));
         }
@@ -220,18 +438,21 @@ public final class TaintSet implements Parcelable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("TaintSet{");
-        Iterator<Map.Entry<ComponentName, Float>> it = taints.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<ComponentName, Float> entry = it.next();
-            sb.append(entry.getKey().flattenToShortString());
-            float amount = entry.getValue();
-            if (amount != UNKNOWN_TAINT) {
-                sb.append('=');
-                sb.append(amount);
-            }
-
-            if (it.hasNext()) {
-                sb.append(", ");
+        int rank = 0;
+        for (int w = 0; w < mBits.length; w++) {
+            long word = mBits[w];
+            while (word != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (rank > 0) {
+                    sb.append(", ");
+                }
+                sb.append(Labels.get(id).flattenToShortString());
+                float amount = mAmounts[rank++];
+                if (amount != UNKNOWN_TAINT) {
+                    sb.append('=');
+                    sb.append(amount);
+                }
+                word &= word - 1;
             }
         }
         sb.append("}");
@@ -267,12 +488,12 @@ public final class TaintSet implements Parcelable {
     }
 
     public Set<String> toStringSet() {
-        if (taints.isEmpty()) {
+        if (isEmpty()) {
             return Collections.emptySet();
         }
 
         HashSet<String> stringSet = new HashSet<>();
-        for (Map.Entry<ComponentName, Float> entry : taints.entrySet()) {
+        for (Map.Entry<ComponentName, Float> entry : asMap().entrySet()) {
             stringSet.add(Float.toHexString(entry.getValue()) + SEPARATOR +
                     entry.getKey().flattenToShortString());
         }
@@ -288,22 +509,28 @@ public final class TaintSet implements Parcelable {
         if (numTaints == 0) {
             return TaintSet.EMPTY;
         }
-        Map<ComponentName, Float> taints = new HashMap<>(numTaints);
+        Builder builder = new Builder();
         while (numTaints-- > 0) {
             ComponentName taintKind = new ComponentName(source);
             float taintAmount = Math.max(source.readFloat(), 0.0f);
-            taints.put(taintKind, taintAmount);
+            builder.removeTaint(taintKind).addTaint(taintKind, taintAmount);
         }
-        return new TaintSet(taints);
+        return builder.build();
 	}
 
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
-		int numTaints = taints.size();
+		int numTaints = size();
         dest.writeInt(numTaints);
-        for (Map.Entry<ComponentName, Float> entry : taints.entrySet()) {
-            entry.getKey().writeToParcel(dest, flags);
-            dest.writeFloat(entry.getValue());
+        int rank = 0;
+        for (int w = 0; w < mBits.length; w++) {
+            long word = mBits[w];
+            while (word != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                Labels.get(id).writeToParcel(dest, flags);
+                dest.writeFloat(mAmounts[rank++]);
+                word &= word - 1;
+            }
         }
 	}
 
@@ -339,15 +566,21 @@ public final class TaintSet implements Parcelable {
 
     @Override
     public boolean equals(Object o) {
-        if (o != null) {
-            return (o instanceof TaintSet) && taints.equals(((TaintSet)o).taints);
-        } else {
-            return taints.isEmpty();
+        if (o == this) {
+            return true;
+        } else if (o == null) {
+            return isEmpty();
+        } else if (!(o instanceof TaintSet)) {
+            return false;
         }
+        TaintSet other = (TaintSet)o;
+        return mHashCode == other.mHashCode &&
+                Arrays.equals(mBits, other.mBits) &&
+                Arrays.equals(mAmounts, other.mAmounts);
     }
 
     @Override
     public int hashCode() {
-        return taints.hashCode();
+        return mHashCode;
     }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.common;
+
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A key-value store as seen from inside a sandbox. Change listeners are accepted but never
+ * called, since the sandbox may be running another QM by the time a key changes; to hear about
+ * changes, subscribe a QM with {@code IFlowfenceService.subscribeSharedPrefs}.
+ */
+public interface TaintableSharedPreferences extends SharedPreferences {
+    /**
+     * Reads several keys at once, tainting the caller as reading each of them would.
+     * @return The values of the keys that are set.
+     */
+    Map<String, ?> getMany(Collection<String> keys);
+
+    @Override
+    TaintableSharedPreferencesEditor edit();
+}
@@ -18,7 +18,31 @@ package edu.umich.flowfence.common;
 
 import android.content.SharedPreferences;
 
+import java.util.Map;
+
 public interface TaintableSharedPreferencesEditor extends SharedPreferences.Editor {
     TaintableSharedPreferencesEditor addTaint(String key, TaintSet taint);
     TaintableSharedPreferencesEditor addTaintToAll(TaintSet taint);
+
+    /**
+     * Puts every entry of values, as the matching put method would; a null value removes
+     * its key. Values must be Integer, Long, Float, Boolean, String or Set&lt;String&gt;.
+     */
+    TaintableSharedPreferencesEditor putMany(Map<String, ?> values);
+
+    /**
+     * Adds delta to key's int value when the edit is committed, atomically with respect to
+     * every other edit of the store. An unset key counts as 0. Reading the old value taints
+     * the caller, as a get would.
+     */
+    TaintableSharedPreferencesEditor increment(String key, int delta);
+    TaintableSharedPreferencesEditor increment(String key, long delta);
+
+    /**
+     * Makes the edit conditional: on commit, if key's stored value doesn't equal expected
+     * (null for unset), nothing in the edit is written and commit() returns false. Otherwise
+     * key is set to newValue, or removed if it's null. apply() can't report failure, so use
+     * commit() to find out. Reading the old value taints the caller, as a get would.
+     */
+    TaintableSharedPreferencesEditor compareAndSet(String key, Object expected, Object newValue);
 }
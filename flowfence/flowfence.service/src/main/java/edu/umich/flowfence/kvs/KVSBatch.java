@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.kvs;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Every change made through one editor, in order, so that a sandbox can commit an edit in a
+ * single transaction. The trusted side replays it through its own editor, so each operation
+ * means exactly what the matching IRemoteSharedPrefsEditor call would.
+ */
+public final class KVSBatch implements Parcelable {
+    /** Value is the new value, or null to remove the key. */
+    public static final int OP_PUT = 1;
+    public static final int OP_CLEAR = 2;
+    /** Value is the TaintSet to add. */
+    public static final int OP_ADD_TAINT = 3;
+    /** Key is unused; value is the TaintSet to add. */
+    public static final int OP_ADD_TAINT_TO_ALL = 4;
+    /** Value is an Integer or Long delta. */
+    public static final int OP_INCREMENT = 5;
+    /** Value is what the key must hold on commit, or null if it must be unset. */
+    public static final int OP_EXPECT = 6;
+
+    private final ArrayList<Integer> mOps;
+    private final ArrayList<String> mKeys;
+    private final ArrayList<Object> mValues;
+
+    public KVSBatch() {
+        mOps = new ArrayList<>();
+        mKeys = new ArrayList<>();
+        mValues = new ArrayList<>();
+    }
+
+    private KVSBatch(Parcel in) {
+        int size = in.readInt();
+        mOps = new ArrayList<>(size);
+        mKeys = new ArrayList<>(size);
+        mValues = new ArrayList<>(size);
+        ClassLoader loader = KVSBatch.class.getClassLoader();
+        for (int i = 0; i < size; i++) {
+            mOps.add(in.readInt());
+            mKeys.add(in.readString());
+            mValues.add(in.readValue(loader));
+        }
+    }
+
+    public KVSBatch add(int op, String key, Object value) {
+        if (value instanceof Set) {
+            value = new ArrayList<>((Set<?>)value);
+        }
+        mOps.add(op);
+        mKeys.add(key);
+        mValues.add(value);
+        return this;
+    }
+
+    public int size() {
+        return mOps.size();
+    }
+
+    public int getOp(int index) {
+        return mOps.get(index);
+    }
+
+    public String getKey(int index) {
+        return mKeys.get(index);
+    }
+
+    public Object getValue(int index) {
+        return mValues.get(index);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        int size = mOps.size();
+        dest.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dest.writeInt(mOps.get(i));
+            dest.writeString(mKeys.get(i));
+            dest.writeValue(mValues.get(i));
+        }
+    }
+
+    public static final Creator<KVSBatch> CREATOR = new Creator<KVSBatch>() {
+        @Override
+        public KVSBatch createFromParcel(Parcel in) {
+            return new KVSBatch(in);
+        }
+
+        @Override
+        public KVSBatch[] newArray(int size) {
+            return new KVSBatch[size];
+        }
+    };
+}
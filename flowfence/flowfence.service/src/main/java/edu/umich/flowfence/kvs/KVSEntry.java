@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.kvs;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * One key of a key-value store as read by a sandbox: its value, or null if the key isn't set,
+ * and the taint reading it put on the sandbox. String sets are carried as lists.
+ */
+public final class KVSEntry implements Parcelable {
+    private final Object mValue;
+    private final TaintSet mTaint;
+
+    public KVSEntry(Object value, TaintSet taint) {
+        if (value instanceof Set) {
+            value = new ArrayList<>((Set<?>)value);
+        }
+        mValue = value;
+        mTaint = TaintSet.nullToEmpty(taint);
+    }
+
+    private KVSEntry(Parcel in) {
+        mValue = in.readValue(KVSEntry.class.getClassLoader());
+        mTaint = TaintSet.nullToEmpty(TaintSet.readFromParcel(in));
+    }
+
+    public Object getValue() {
+        return mValue;
+    }
+
+    public TaintSet getTaint() {
+        return mTaint;
+    }
+
+    @Override
+    public String toString() {
+        return "KVSEntry{" + mValue + ", taint=" + mTaint + '}';
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeValue(mValue);
+        mTaint.writeToParcel(dest, flags);
+    }
+
+    public static final Creator<KVSEntry> CREATOR = new Creator<KVSEntry>() {
+        @Override
+        public KVSEntry createFromParcel(Parcel in) {
+            return new KVSEntry(in);
+        }
+
+        @Override
+        public KVSEntry[] newArray(int size) {
+            return new KVSEntry[size];
+        }
+    };
+}
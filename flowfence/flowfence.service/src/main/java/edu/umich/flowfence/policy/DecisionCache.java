@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.policy;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.umich.flowfence.common.CacheStats;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * Remembers the outcome of recent sink checks, keyed by taint set, request type, sink name and
+ * the request's {@link SinkRequest#getCacheKey() cache key}.
+ *
+ * Every cached decision depends only on the manifests that were loaded when it was made, so
+ * the whole cache is dropped whenever a package's manifest might have changed.
+ */
+/*package*/ final class DecisionCache {
+    private static final String TAG = "FF.Policy.Cache";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final class Key {
+        private final TaintSet mTaints;
+        private final Class<?> mRequestClass;
+        private final String mSinkName;
+        private final Object mRequestKey;
+        private final int mHashCode;
+
+        public Key(TaintSet taints, SinkRequest request) {
+            mTaints = taints;
+            mRequestClass = request.getClass();
+            mSinkName = request.getSinkName();
+            mRequestKey = request.getCacheKey();
+            mHashCode = Objects.hash(mTaints, mRequestClass, mSinkName, mRequestKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return mHashCode == other.mHashCode &&
+                    mRequestClass == other.mRequestClass &&
+                    mTaints.equals(other.mTaints) &&
+                    Objects.equals(mSinkName, other.mSinkName) &&
+                    Objects.equals(mRequestKey, other.mRequestKey);
+        }
+    }
+
+    /**
+     * The outcome of evaluating a request against every source in a taint set.
+     */
+    public static final class Decision {
+        private final boolean mRejected;
+        private final List<String> mErrorMessages;
+
+        private Decision(boolean rejected, Collection<String> errorMessages) {
+            mRejected = rejected;
+            mErrorMessages = errorMessages.isEmpty() ?
+                    Collections.<String>emptyList() :
+                    Collections.unmodifiableList(new ArrayList<>(errorMessages));
+        }
+
+        public boolean isRejected() {
+            return mRejected;
+        }
+
+        public List<String> getErrorMessages() {
+            return mErrorMessages;
+        }
+    }
+
+    private final LinkedHashMap<Key, Decision> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // Bumped on every invalidation, so a decision that was being worked out at the time
+    // doesn't get cached afterwards.
+    private long mGeneration = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public synchronized Decision get(TaintSet taints, SinkRequest request) {
+        Decision decision = mEntries.get(new Key(taints, request));
+        if (decision != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return decision;
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the outcome of a request that has just been evaluated.
+     * @param generation The result of {@link #getGeneration()} from before the evaluation began.
+     * @return The decision, whether it was cached or not.
+     */
+    public Decision put(long generation, TaintSet taints, SinkRequest request) {
+        Decision decision = new Decision(request.isRejected(),
+                                         request.getErrorMessages().values());
+        if (!request.isCacheable()) {
+            return decision;
+        }
+
+        Key key = new Key(taints, request);
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return decision;
+            }
+            mEntries.put(key, decision);
+            if (mEntries.size() > MAX_ENTRIES) {
+                Map.Entry<Key, Decision> eldest = mEntries.entrySet().iterator().next();
+                mEntries.remove(eldest.getKey());
+                mEvictions++;
+            }
+        }
+        return decision;
+    }
+
+    public synchronized void invalidate() {
+        if (localLOGV) {
+            Log.v(TAG, "Dropping "+mEntries.size()+" cached decisions");
+        }
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    public synchronized CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.hits = mHits;
+        stats.misses = mMisses;
+        stats.evictions = mEvictions;
+        stats.entries = mEntries.size();
+        return stats;
+    }
+}
@@ -22,4 +22,9 @@ public class NetworkSinkRequest extends SinkRequest {
     public String getUrl() {
         return url;
     }
+
+    @Override
+    protected Object getCacheKey() {
+        return url;
+    }
 }
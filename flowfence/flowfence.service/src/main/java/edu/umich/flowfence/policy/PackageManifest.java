@@ -86,6 +86,7 @@ public class PackageManifest {
                         sourceMap.put(src.getSourceName().getClassName(), src);
                         break;
                     case "event-channel":
+                    case "stream-channel":
                         EventChannel ec = new EventChannel(packageName, parser, resources);
                         channelMap.put(ec.getChannelName().getClassName(), ec);
                         break;
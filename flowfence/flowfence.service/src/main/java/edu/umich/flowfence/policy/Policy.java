@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+import edu.umich.flowfence.common.CacheStats;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.service.FlowfenceApplication;
 import edu.umich.flowfence.service.Sandbox;
@@ -41,6 +42,8 @@ public final class Policy {
     private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
     private static final String TAG_NAME = "policy";
 
+    private static final DecisionCache g_mDecisions = new DecisionCache();
+
     private final Source source;
     private final List<Rule> rules;
 
@@ -69,11 +72,42 @@ public final class Policy {
 
     public static boolean checkSink(TaintSet ts, SinkRequest request) {
         Objects.requireNonNull(request);
-        if (ts == null) {
+        if (ts == null || ts.isEmpty()) {
             // no taint; everything succeeds
             return true;
         }
 
+        DecisionCache.Decision decision = g_mDecisions.get(ts, request);
+        if (decision != null) {
+            if (localLOGD) {
+                Log.d(TAG, "Cached decision for "+request+" with "+ts);
+            }
+            if (decision.isRejected()) {
+                request.reject();
+            }
+        } else {
+            long generation = g_mDecisions.getGeneration();
+            evaluateSources(ts, request);
+            decision = g_mDecisions.put(generation, ts, request);
+        }
+
+        List<String> errorMessages = decision.getErrorMessages();
+        if (!errorMessages.isEmpty()) {
+            SecurityException se = null;
+            for (String message : errorMessages) {
+                if (se == null) {
+                    se = new SecurityException(message);
+                } else {
+                    se.addSuppressed(new SecurityException(message));
+                }
+            }
+            throw se;
+        }
+
+        return !decision.isRejected();
+    }
+
+    private static void evaluateSources(TaintSet ts, SinkRequest request) {
         Map<ComponentName, Float> amounts = ts.asMap();
 
         if (localLOGD) {
@@ -84,6 +118,8 @@ public final class Policy {
             PackageManifest manifest = FlowfenceApplication.getInstance().getManifestForPackage(taintName.getPackageName());
             if (manifest == null) {
                 Log.e(TAG, "Couldn't find manifest for "+taintName.getPackageName());
+                // The package may be installed later; don't remember this.
+                request.markUncacheable();
                 request.reject();
                 continue;
             }
@@ -91,6 +127,7 @@ public final class Policy {
             Source source = manifest.getSources().get(taintName.getClassName());
             if (source == null) {
                 Log.e(TAG, "Couldn't find source "+taintName.flattenToShortString());
+                request.markUncacheable();
                 request.reject();
                 continue;
             }
@@ -101,21 +138,18 @@ public final class Policy {
 
             source.getPolicy().evaluateRules(request);
         }
+    }
 
-        Map<Source, String> errorMessages = request.getErrorMessages();
-        if (!errorMessages.isEmpty()) {
-            SecurityException se = null;
-            for (String message : errorMessages.values()) {
-                if (se == null) {
-                    se = new SecurityException(message);
-                } else {
-                    se.addSuppressed(new SecurityException(message));
-                }
-            }
-            throw se;
-        }
+    /**
+     * Forgets every cached sink decision. Must be called whenever a package's manifest may have
+     * changed.
+     */
+    public static void invalidateDecisions() {
+        g_mDecisions.invalidate();
+    }
 
-        return !request.isRejected();
+    public static CacheStats getDecisionCacheStats() {
+        return g_mDecisions.getStats();
     }
 
     public Source getSource() {
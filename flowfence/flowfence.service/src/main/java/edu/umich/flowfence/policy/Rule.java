@@ -251,6 +251,8 @@ public abstract class Rule {
 
         @Override
         protected boolean onProcess(SinkRequest request) {
+            // The audit message must be logged on every request, not just the first.
+            request.markUncacheable();
             Source src = getPolicy().getSource();
             Log.w(TAG, String.format(message, src.getSourceName().flattenToShortString(), request.getSinkName()));
             return true;
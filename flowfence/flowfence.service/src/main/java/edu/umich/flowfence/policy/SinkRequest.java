@@ -30,6 +30,7 @@ import java.util.Map;
 public class SinkRequest {
     private final String sinkName;
     private boolean rejected = false;
+    private boolean cacheable = true;
     private LinkedHashMap<Source, String> errorMessages = null;
 
     /**
@@ -124,6 +125,29 @@ public class SinkRequest {
         return sinkName;
     }
 
+    /**
+     * Gets the parameters of this request that filters may look at, for caching decisions.
+     *
+     * Two requests of the same class, for the same sink, with equal cache keys must be treated
+     * identically by every rule and filter. Subclasses that add parameters must override this.
+     * @return An object with value semantics, or null if this request has no parameters.
+     */
+    protected Object getCacheKey() {
+        return null;
+    }
+
+    /**
+     * Marks the decision for this request as unsafe to reuse, for instance because evaluating it
+     * had side effects that must happen every time.
+     */
+    /*package*/ final void markUncacheable() {
+        cacheable = false;
+    }
+
+    /*package*/ final boolean isCacheable() {
+        return cacheable;
+    }
+
     @Override
     public String toString() {
         return String.format("SinkRequest<%s>(%s)", sinkName, parametersToString());
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import edu.umich.flowfence.common.CacheStats;
+import edu.umich.flowfence.common.ParceledPayload;
+
+/**
+ * Sandbox-side cache of decoded values, keyed by payload bytes.
+ *
+ * Only Strings and boxed primitives are kept. Those are the only types the sandbox knows to be
+ * immutable; an app's own classes could be changed by one QM under another. With them, handing
+ * the same instance to several QMs is indistinguishable from decoding a fresh copy for each.
+ * Identical bytes always decode to an equal value of the same type, so no declared type is
+ * needed in the key.
+ *
+ * Only payloads up to {@link #MAX_ENTRY_BYTES} are looked up. Those are never pooled, so a key
+ * can hold on to their bytes after the call is done with them, and they cover the IDs, keys and
+ * readings that get fanned out the most. Bigger values are decoded for each call.
+ */
+/*package*/ final class DecodedValueCache {
+    private static final String TAG = "FF.DecodedValueCache";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final int MAX_BYTES = 256 * 1024;
+    private static final int MAX_ENTRY_BYTES = 4 * 1024;
+
+    // Parcel has no way to write a char, so Character never shows up here.
+    private static final Set<Class<?>> g_mImmutableTypes;
+
+    static {
+        HashSet<Class<?>> immut = new HashSet<>();
+        immut.add(String.class);
+        immut.add(Integer.class);
+        immut.add(Long.class);
+        immut.add(Byte.class);
+        immut.add(Short.class);
+        immut.add(Boolean.class);
+        immut.add(Float.class);
+        immut.add(Double.class);
+        g_mImmutableTypes = Collections.unmodifiableSet(immut);
+    }
+
+    private static final DecodedValueCache g_mInstance = new DecodedValueCache();
+
+    public static DecodedValueCache getInstance() {
+        return g_mInstance;
+    }
+
+    private final LinkedHashMap<Key, Object> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    private DecodedValueCache() { }
+
+    private static final class Key {
+        private final ParceledPayload mPayload;
+
+        public Key(ParceledPayload payload) {
+            mPayload = payload;
+        }
+
+        @Override
+        public int hashCode() {
+            return mPayload.getContentHash();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && mPayload.contentEquals(((Key)o).mPayload);
+        }
+    }
+
+    /**
+     * Decodes a payload, reusing an earlier result if one with the same bytes is cached.
+     */
+    public Object decode(ParceledPayload payload, ClassLoader loader) {
+        final int size = payload.getSize();
+        if (size > MAX_ENTRY_BYTES) {
+            return payload.getValue(loader);
+        }
+
+        // Small payloads are never pooled, so the key can hang on to this one's bytes.
+        Key key = new Key(payload);
+        synchronized (this) {
+            Object cached = mEntries.get(key);
+            if (cached != null) {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+        }
+
+        Object value = payload.getValue(loader);
+        if (value != null && g_mImmutableTypes.contains(value.getClass())) {
+            if (localLOGV) {
+                Log.v(TAG, "Caching decoded "+value.getClass().getName());
+            }
+            synchronized (this) {
+                if (mEntries.put(key, value) == null) {
+                    mBytes += size;
+                }
+                trimLocked();
+            }
+        }
+        return value;
+    }
+
+    public synchronized CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.hits = mHits;
+        stats.misses = mMisses;
+        stats.evictions = mEvictions;
+        stats.entries = mEntries.size();
+        stats.bytes = mBytes;
+        return stats;
+    }
+
+    private void trimLocked() {
+        Iterator<Key> iter = mEntries.keySet().iterator();
+        while (mBytes > MAX_BYTES && iter.hasNext()) {
+            Key evicted = iter.next();
+            iter.remove();
+            mBytes -= evicted.mPayload.getSize();
+            mEvictions++;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.sandbox;
+
+import android.content.ComponentName;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.umich.flowfence.common.StreamRecord;
+import edu.umich.flowfence.events.IEventChannelSender;
+
+/**
+ * This process's view of a streaming channel. Readers map the channel's whole shared buffer
+ * read-only, once. Writers never see that buffer: they write to a staging buffer of their
+ * own, one record long, and the service copies each record from there into the stream.
+ */
+/*package*/ final class MappedStream {
+    private final ComponentName mChannelName;
+    private final IEventChannelSender mSender;
+
+    private ByteBuffer mReadBuffer = null;
+
+    // Held so the descriptor isn't closed out from under mWriteChannel when it's finalized.
+    private ParcelFileDescriptor mWriteDescriptor = null;
+    private FileChannel mWriteChannel = null;
+    private int mRecordSize;
+
+    public MappedStream(ComponentName channelName, IEventChannelSender sender) {
+        mChannelName = channelName;
+        mSender = sender;
+    }
+
+    /**
+     * Returns the record's bytes, in place. attach should be set for the first read in each
+     * QM, so the service can taint the sandbox.
+     */
+    public synchronized ByteBuffer read(StreamRecord record, boolean attach)
+            throws RemoteException, IOException {
+        if (attach || mReadBuffer == null) {
+            ParcelFileDescriptor pfd = mSender.attachStream(false, mReadBuffer == null);
+            if (pfd != null) {
+                mReadBuffer = mapReadOnly(pfd);
+            }
+        }
+
+        int headerOffset = StreamRecord.getSlotHeaderOffset(record.slot);
+        if (mReadBuffer.getLong(headerOffset) != record.sequence) {
+            throw new IllegalStateException(record + " has been overwritten");
+        }
+        int recordSize = mReadBuffer.getInt(StreamRecord.OFFSET_RECORD_SIZE);
+        int slotCount = mReadBuffer.getInt(StreamRecord.OFFSET_SLOT_COUNT);
+        int offset = (int)StreamRecord.getSlotOffset(record.slot, recordSize, slotCount);
+
+        ByteBuffer view = mReadBuffer.duplicate();
+        view.limit(offset + record.length).position(offset);
+        return view.slice();
+    }
+
+    /**
+     * @return The record's sequence number, or -1 if it was dropped.
+     */
+    public synchronized long write(byte[] data, int offset, int length)
+            throws RemoteException, IOException {
+        if (mWriteChannel == null) {
+            attachForWrite();
+        }
+        if (length > mRecordSize) {
+            throw new IllegalArgumentException(String.format("%d-byte record too large for %s",
+                    length, mChannelName.flattenToShortString()));
+        }
+
+        // Calls through here are serialized, and the service copies the record out before
+        // publishStreamRecord() returns, so the staging buffer can be reused right away.
+        ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+        long position = 0;
+        while (src.hasRemaining()) {
+            position += mWriteChannel.write(src, position);
+        }
+        return mSender.publishStreamRecord(length);
+    }
+
+    private void attachForWrite() throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = mSender.attachStream(true, true);
+        // Streams made from a bare FileDescriptor don't close it.
+        mWriteChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel();
+        // The staging buffer is exactly one record long.
+        mRecordSize = (int)mWriteChannel.size();
+        mWriteDescriptor = pfd;
+    }
+
+    private MappedByteBuffer mapReadOnly(ParcelFileDescriptor pfd) throws IOException {
+        // The mapping outlives the descriptor.
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            checkMagic(buffer);
+            return buffer;
+        }
+    }
+
+    private void checkMagic(ByteBuffer header) throws IOException {
+        if (header.getInt(StreamRecord.OFFSET_MAGIC) != StreamRecord.MAGIC) {
+            throw new IOException("Bad stream header for "+mChannelName.flattenToShortString());
+        }
+    }
+}
@@ -16,12 +16,13 @@
 
 package edu.umich.flowfence.sandbox;
 
-import android.content.SharedPreferences;
 import android.os.RemoteException;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -29,169 +30,318 @@ import java.util.Set;
 
 import edu.umich.flowfence.common.RemoteCallException;
 import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.common.TaintableSharedPreferences;
 import edu.umich.flowfence.common.TaintableSharedPreferencesEditor;
+import edu.umich.flowfence.kvs.IKVSCacheListener;
 import edu.umich.flowfence.kvs.IRemoteSharedPrefs;
-import edu.umich.flowfence.kvs.IRemoteSharedPrefsEditor;
-import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
-
-/*package*/ final class RemoteSharedPrefsWrapper implements SharedPreferences {
+import edu.umich.flowfence.kvs.KVSBatch;
+import edu.umich.flowfence.kvs.KVSEntry;
+
+/**
+ * A sandbox's view of a key-value store. Reads are cached along with the taint of each key,
+ * and a cached value is only handed out without asking the trusted side if this sandbox is
+ * already known to carry that taint, when tainting it again would change nothing. The trusted
+ * side tells us which keys changed; since that's oneway, a read can see a value a moment
+ * after someone else replaced it, the same as a read that raced the commit.
+ */
+/*package*/ final class RemoteSharedPrefsWrapper implements TaintableSharedPreferences {
     private static final String TAG = "FF.SharedPrefs.Proxy";
     private final IRemoteSharedPrefs mRemote;
-
+    private final boolean mIsWritable;
+
+    // Taint the trusted side has put on this sandbox for reads through any store. It only
+    // grows, except when the sandbox drops taint or is handed to a new connection; then it's
+    // forgotten, and g_mTaintEpoch keeps reads that were in flight from adding it back.
+    private static final Object g_mTaintLock = new Object();
+    private static TaintSet g_mAppliedTaint = TaintSet.EMPTY;
+    private static int g_mTaintEpoch = 0;
+
+    // Guarded by itself. mCacheEpoch counts invalidations, so a read that raced one isn't cached.
+    private final HashMap<String, KVSEntry> mCache = new HashMap<>();
+    private int mCacheEpoch = 0;
+    private final Invalidator mInvalidator = new Invalidator();
+
+    /**
+     * Collects the whole edit and sends it in one transaction on commit or apply. Anything the
+     * trusted side would refuse is refused then, rather than at the call that asked for it.
+     */
     public static final class Editor implements TaintableSharedPreferencesEditor {
-        private final IRemoteSharedPrefsEditor mEditor;
+        private final RemoteSharedPrefsWrapper mPrefs;
+        // Both start over after each commit or apply, so reusing the editor only sends what
+        // was done since, as with the framework's editor.
+        private KVSBatch mBatch = new KVSBatch();
+        // What to drop from our own cache once this is committed; null means everything.
+        private HashSet<String> mModifiedKeys = new HashSet<>();
+
+        public Editor(RemoteSharedPrefsWrapper prefs) {
+            if (prefs == null) {
+                throw new IllegalArgumentException("prefs cannot be null");
+            }
+            mPrefs = prefs;
+        }
+
+        private synchronized Editor add(int op, String key, Object value) {
+            if (key != null && mModifiedKeys != null) {
+                mModifiedKeys.add(key);
+            }
+            mBatch.add(op, key, value);
+            return this;
+        }
 
-        public Editor(IRemoteSharedPrefsEditor editor) {
-            if (editor == null) {
-                throw new IllegalArgumentException("editor cannot be null");
+        private static void checkValue(String key, Object value) {
+            if (value != null && !(value instanceof String || value instanceof Integer ||
+                    value instanceof Long || value instanceof Float ||
+                    value instanceof Boolean || value instanceof Set)) {
+                throw new IllegalArgumentException("Can't store a " + value.getClass().getName() +
+                                                   " for " + key);
             }
-            mEditor = editor;
         }
 
         @Override
         public Editor putString(String key, String value) {
-            try {
-                mEditor.putString(key, value);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, value);
         }
 
         @Override
         public Editor putStringSet(String key, Set<String> values) {
-            try {
-                List<String> valueList = (values != null) ? new ArrayList<>(values) : null;
-                mEditor.putStringSet(key, valueList);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, values);
         }
 
         @Override
         public Editor putInt(String key, int value) {
-            try {
-                mEditor.putInt(key, value);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, value);
         }
 
         @Override
         public Editor putLong(String key, long value) {
-            try {
-                mEditor.putLong(key, value);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, value);
         }
 
         @Override
         public Editor putFloat(String key, float value) {
-            try {
-                mEditor.putFloat(key, value);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, value);
         }
 
         @Override
         public Editor putBoolean(String key, boolean value) {
-            try {
-                mEditor.putBoolean(key, value);
-            } catch (Exception e) {
-                handleCallException(e);
+            return add(KVSBatch.OP_PUT, key, value);
+        }
+
+        @Override
+        public synchronized Editor putMany(Map<String, ?> values) {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                checkValue(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                add(KVSBatch.OP_PUT, entry.getKey(), entry.getValue());
             }
             return this;
         }
 
         @Override
         public Editor remove(String key) {
-            try {
-                mEditor.remove(key);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_PUT, key, null);
         }
 
         @Override
-        public Editor clear() {
-            try {
-                mEditor.clear();
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+        public synchronized Editor clear() {
+            mModifiedKeys = null;
+            return add(KVSBatch.OP_CLEAR, null, null);
         }
 
         @Override
         public Editor addTaint(String key, TaintSet taint) {
-            try {
-                mEditor.addTaint(key, taint);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+            return add(KVSBatch.OP_ADD_TAINT, key, taint);
         }
 
         @Override
-        public Editor addTaintToAll(TaintSet taint) {
-            try {
-                mEditor.addTaintToAll(taint);
-            } catch (Exception e) {
-                handleCallException(e);
-            }
-            return this;
+        public synchronized Editor addTaintToAll(TaintSet taint) {
+            mModifiedKeys = null;
+            return add(KVSBatch.OP_ADD_TAINT_TO_ALL, null, taint);
         }
 
         @Override
-        public boolean commit() {
+        public Editor increment(String key, int delta) {
+            return add(KVSBatch.OP_INCREMENT, key, delta);
+        }
+
+        @Override
+        public Editor increment(String key, long delta) {
+            return add(KVSBatch.OP_INCREMENT, key, delta);
+        }
+
+        @Override
+        public synchronized Editor compareAndSet(String key, Object expected, Object newValue) {
+            checkValue(key, newValue);
+            add(KVSBatch.OP_EXPECT, key, expected);
+            return add(KVSBatch.OP_PUT, key, newValue);
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            KVSBatch batch = mBatch;
+            HashSet<String> modifiedKeys = mModifiedKeys;
+            mBatch = new KVSBatch();
+            mModifiedKeys = new HashSet<>();
             try {
-                return mEditor.commit();
+                return mPrefs.mRemote.commitBatch(batch);
             } catch (Exception e) {
                 handleCallException(e);
                 return false;
+            } finally {
+                mPrefs.invalidate(modifiedKeys);
             }
         }
 
         @Override
-        public void apply() {
+        public synchronized void apply() {
+            KVSBatch batch = mBatch;
+            HashSet<String> modifiedKeys = mModifiedKeys;
+            mBatch = new KVSBatch();
+            mModifiedKeys = new HashSet<>();
             try {
-                mEditor.apply();
+                mPrefs.mRemote.applyBatch(batch);
             } catch (Exception e) {
                 handleCallException(e);
+            } finally {
+                // The trusted side will tell us too, but maybe not before our next read.
+                mPrefs.invalidate(modifiedKeys);
             }
         }
     }
 
-    private final class Listener extends IRemoteSharedPrefsListener.Stub {
-        private final SharedPreferences.OnSharedPreferenceChangeListener mListener;
+    private final class Invalidator extends IKVSCacheListener.Stub {
+        @Override
+        public void onInvalidate(List<String> keys) {
+            invalidate(keys);
+        }
+    }
 
-        public Listener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-            if (listener == null) {
-                throw new IllegalArgumentException("listener cannot be null");
+    public RemoteSharedPrefsWrapper(IRemoteSharedPrefs prefs) throws RemoteException {
+        if (prefs == null) {
+            throw new IllegalArgumentException("prefs cannot be null");
+        }
+        mRemote = prefs;
+        mRemote.setCacheListener(mInvalidator);
+        mIsWritable = mRemote.isWritable();
+    }
+
+    /**
+     * Forgets what taint this sandbox is known to carry, so the next read of every cached key
+     * goes back to the trusted side. Called around anything that can take taint away.
+     */
+    public static void forgetAppliedTaint() {
+        synchronized (g_mTaintLock) {
+            g_mAppliedTaint = TaintSet.EMPTY;
+            g_mTaintEpoch++;
+        }
+    }
+
+    private static boolean isTaintApplied(TaintSet taint) {
+        synchronized (g_mTaintLock) {
+            return taint.isSubsetOf(g_mAppliedTaint);
+        }
+    }
+
+    private static void markTaintApplied(TaintSet taint, int epoch) {
+        synchronized (g_mTaintLock) {
+            if (epoch == g_mTaintEpoch && !taint.isSubsetOf(g_mAppliedTaint)) {
+                g_mAppliedTaint = g_mAppliedTaint.asBuilder().unionWith(taint).build();
             }
-            mListener = listener;
         }
+    }
 
-        @Override
-        public void onSharedPreferenceChanged(IRemoteSharedPrefs prefs, String key) {
-            if (prefs == mRemote) {
-                mListener.onSharedPreferenceChanged(RemoteSharedPrefsWrapper.this, key);
+    /*package*/ void invalidate(Collection<String> keys) {
+        synchronized (mCache) {
+            mCacheEpoch++;
+            if (keys == null) {
+                mCache.clear();
+            } else {
+                mCache.keySet().removeAll(keys);
             }
         }
     }
 
-    public RemoteSharedPrefsWrapper(IRemoteSharedPrefs prefs) {
-        if (prefs == null) {
-            throw new IllegalArgumentException("prefs cannot be null");
+    private static int getTaintEpoch() {
+        synchronized (g_mTaintLock) {
+            return g_mTaintEpoch;
+        }
+    }
+
+    private KVSEntry read(String key) throws RemoteException {
+        int cacheEpoch;
+        synchronized (mCache) {
+            KVSEntry entry = mCache.get(key);
+            if (entry != null && isTaintApplied(entry.getTaint())) {
+                return entry;
+            }
+            cacheEpoch = mCacheEpoch;
+        }
+
+        int taintEpoch = getTaintEpoch();
+        // This is what taints us, even if the value turns out to be cached already.
+        KVSEntry entry = mRemote.read(key);
+        markTaintApplied(entry.getTaint(), taintEpoch);
+
+        synchronized (mCache) {
+            if (cacheEpoch == mCacheEpoch) {
+                mCache.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public Map<String, ?> getMany(Collection<String> keys) {
+        HashMap<String, Object> values = new HashMap<>();
+        try {
+            // Whatever isn't cached comes back in a single read.
+            List<String> misses = new ArrayList<>();
+            int cacheEpoch;
+            synchronized (mCache) {
+                for (String key : keys) {
+                    KVSEntry entry = mCache.get(key);
+                    if (entry != null && isTaintApplied(entry.getTaint())) {
+                        putValue(values, key, entry);
+                    } else {
+                        misses.add(key);
+                    }
+                }
+                cacheEpoch = mCacheEpoch;
+            }
+            if (misses.isEmpty()) {
+                return values;
+            }
+
+            int taintEpoch = getTaintEpoch();
+            List<KVSEntry> entries = mRemote.readMany(misses);
+            for (KVSEntry entry : entries) {
+                markTaintApplied(entry.getTaint(), taintEpoch);
+            }
+
+            synchronized (mCache) {
+                boolean isCacheable = (cacheEpoch == mCacheEpoch);
+                for (int i = 0; i < entries.size(); i++) {
+                    if (isCacheable) {
+                        mCache.put(misses.get(i), entries.get(i));
+                    }
+                    putValue(values, misses.get(i), entries.get(i));
+                }
+            }
+        } catch (Exception e) {
+            handleCallException(e);
+        }
+        return values;
+    }
+
+    private static void putValue(Map<String, Object> values, String key, KVSEntry entry) {
+        Object value = entry.getValue();
+        if (value instanceof List) {
+            value = new HashSet<>((List<?>)value);
+        }
+        if (value != null) {
+            values.put(key, value);
         }
-        mRemote = prefs;
     }
 
     private static void handleCallException(Exception e) {
@@ -227,7 +377,7 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public String getString(String key, String defValue) {
         try {
-            String rv = mRemote.getString(key);
+            String rv = (String)read(key).getValue();
             return (rv != null) ? rv : defValue;
         } catch (Exception e) {
             handleCallException(e);
@@ -238,7 +388,8 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public Set<String> getStringSet(String key, Set<String> defValues) {
         try {
-            List<String> rv = mRemote.getStringSet(key);
+            @SuppressWarnings("unchecked")
+            List<String> rv = (List<String>)read(key).getValue();
             return (rv != null) ? new HashSet<>(rv) : defValues;
         } catch (Exception e) {
             handleCallException(e);
@@ -249,7 +400,8 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public int getInt(String key, int defValue) {
         try {
-            return mRemote.getInt(key, defValue);
+            Integer rv = (Integer)read(key).getValue();
+            return (rv != null) ? rv : defValue;
         } catch (Exception e) {
             handleCallException(e);
             return defValue;
@@ -259,7 +411,8 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public long getLong(String key, long defValue) {
         try {
-            return mRemote.getLong(key, defValue);
+            Long rv = (Long)read(key).getValue();
+            return (rv != null) ? rv : defValue;
         } catch (Exception e) {
             handleCallException(e);
             return defValue;
@@ -269,7 +422,8 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public float getFloat(String key, float defValue) {
         try {
-            return mRemote.getFloat(key, defValue);
+            Float rv = (Float)read(key).getValue();
+            return (rv != null) ? rv : defValue;
         } catch (Exception e) {
             handleCallException(e);
             return defValue;
@@ -279,7 +433,8 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public boolean getBoolean(String key, boolean defValue) {
         try {
-            return mRemote.getBoolean(key, defValue);
+            Boolean rv = (Boolean)read(key).getValue();
+            return (rv != null) ? rv : defValue;
         } catch (Exception e) {
             handleCallException(e);
             return defValue;
@@ -289,7 +444,7 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
     @Override
     public boolean contains(String key) {
         try {
-            return mRemote.contains(key);
+            return read(key).getValue() != null;
         } catch (Exception e) {
             handleCallException(e);
             return false;
@@ -298,22 +453,23 @@ import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
 
     @Override
     public Editor edit() {
-        try {
-            IRemoteSharedPrefsEditor editor = mRemote.edit();
-            return new Editor(editor);
-        } catch (Exception e) {
-            handleCallException(e);
-            return null;
+        // Nothing reaches the trusted side until commit, so refuse now if it would.
+        if (!mIsWritable) {
+            throw new SecurityException("This SharedPreferences cannot be modified");
         }
+        return new Editor(this);
     }
 
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        // TODO
+        // This sandbox may be running someone else's QM by the time anything changes, so the
+        // listener is never called. Don't throw, though; QMs written against plain
+        // SharedPreferences often register one in passing.
+        Log.w(TAG, "Ignoring change listener; subscribe a QM with subscribeSharedPrefs instead");
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        // TODO
+        // Registering was ignored, so there's nothing to remove.
     }
 }
@@ -22,6 +22,7 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.util.SparseArray;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.ClassUtils;
 
 import java.lang.annotation.Annotation;
@@ -57,9 +58,7 @@ import edu.umich.flowfence.internal.IResolvedQM;
     private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
     private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
 
-    private interface Caller {
-        Object call(Object... args) throws Exception;
-    }
+    private static final Object[] NO_ARGS = new Object[0];
 
     private final SandboxService mSandbox;
     private final QMDescriptor mOriginalDescriptor;
@@ -100,12 +99,19 @@ import edu.umich.flowfence.internal.IResolvedQM;
     private abstract class MemberData<TElem extends AnnotatedElement & Member> {
         protected final TElem element;
         private QMDetails details = null;
+        private final int mArgumentCount;
 
         protected MemberData(TElem element) {
             this.element = element;
+            this.mArgumentCount = getDeclaredParameterTypes().length;
         }
 
-        public abstract Object call(Object... args) throws Exception;
+        /**
+         * Calls the member.
+         * @param receiver The object to call an instance method on; ignored otherwise.
+         * @param args The arguments, exactly {@link #countArguments()} of them.
+         */
+        public abstract Object call(Object receiver, Object[] args) throws Exception;
 
         public synchronized final QMDetails getDetails() {
             if (details == null) {
@@ -137,9 +143,16 @@ import edu.umich.flowfence.internal.IResolvedQM;
             }
         }
 
+        // Parameters as the caller sees them, including the receiver of an instance method.
         public int countParameters() {
-            return getDeclaredParameterTypes().length;
+            return countArguments();
+        }
+
+        // Parameters as the member itself declares them.
+        public final int countArguments() {
+            return mArgumentCount;
         }
+
         public abstract Class<?> getReturnType();
 
         protected abstract Class<?>[] getDeclaredParameterTypes();
@@ -172,7 +185,7 @@ import edu.umich.flowfence.internal.IResolvedQM;
         }
 
         @Override
-        public Object call(Object... args) throws Exception {
+        public Object call(Object receiver, Object[] args) throws Exception {
             return element.invoke(null, args);
         }
 
@@ -203,12 +216,8 @@ import edu.umich.flowfence.internal.IResolvedQM;
         }
 
         @Override
-        public Object call(Object... args) throws Exception {
-            if (args.length == 0) {
-                throw new IllegalArgumentException("Not enough arguments");
-            }
-            Object[] methodArgs = Arrays.copyOfRange(args, 1, args.length);
-            return element.invoke(args[0], methodArgs);
+        public Object call(Object receiver, Object[] args) throws Exception {
+            return element.invoke(receiver, args);
         }
 
         @Override
@@ -235,7 +244,7 @@ import edu.umich.flowfence.internal.IResolvedQM;
         }
 
         @Override
-        public Object call(Object... args) throws Exception {
+        public Object call(Object receiver, Object[] args) throws Exception {
             return element.newInstance(args);
         }
 
@@ -356,7 +365,15 @@ import edu.umich.flowfence.internal.IResolvedQM;
             }
 
             case CallParam.TYPE_DATA: {
-                return param.decodePayload(mContext.getClassLoader());
+                if (!(param.getPayload() instanceof ParceledPayload)) {
+                    return param.getPayload();
+                }
+                ParceledPayload payload = (ParceledPayload)param.getPayload();
+                try {
+                    return DecodedValueCache.getInstance().decode(payload, mContext.getClassLoader());
+                } finally {
+                    payload.release();
+                }
             }
 
             case CallParam.TYPE_HANDLE: {
@@ -373,6 +390,45 @@ import edu.umich.flowfence.internal.IResolvedQM;
 
     @Override
     public void call(int flags, IQMCallback callback, List<CallParam> params) throws RemoteException {
+        if (localLOGV) {
+            Log.v(TAG, String.format("Callback %s, flags %d", callback, flags));
+        }
+        CallResult result = invoke(flags, params);
+        // Post results to caller.
+        if (localLOGD) {
+            Log.d(TAG, "Posting results to caller");
+        }
+        callback.onResult(result);
+    }
+
+    @Override
+    public void callBatch(int flags, IQMCallback callback, List<CallParam> params,
+                          int[] paramCounts) throws RemoteException {
+        if (localLOGD) {
+            Log.d(TAG, String.format("Incoming batch of %d calls for %s",
+                                     paramCounts.length, mOriginalDescriptor));
+        }
+        int totalParams = 0;
+        for (int count : paramCounts) {
+            totalParams += count;
+        }
+        if (totalParams != params.size()) {
+            callback.onResult(new CallResult(
+                    new IllegalArgumentException("Parameter counts don't match parameter list")));
+            return;
+        }
+
+        // Run the calls back to back, and post all of the results in one transaction.
+        CallResult[] results = new CallResult[paramCounts.length];
+        int offset = 0;
+        for (int i = 0; i < paramCounts.length; i++) {
+            results[i] = invoke(flags, params.subList(offset, offset + paramCounts[i]));
+            offset += paramCounts[i];
+        }
+        callback.onBatchResult(results);
+    }
+
+    private CallResult invoke(int flags, List<CallParam> params) {
         try {
             if (localLOGD) {
                 Log.d(TAG, String.format("Incoming sandbox call for %s, %d parameters:",
@@ -381,9 +437,6 @@ import edu.umich.flowfence.internal.IResolvedQM;
                     Log.d(TAG, param.toString(mContext.getClassLoader()));
                 }
             }
-            if (localLOGV) {
-                Log.v(TAG, String.format("Callback %s, flags %d", callback, flags));
-            }
             // Sanity check.
             final int numParams = params.size();
             if (numParams != mMemberData.countParameters()) {
@@ -392,7 +445,13 @@ import edu.umich.flowfence.internal.IResolvedQM;
 
             boolean hasReturn = (flags & CallFlags.NO_RETURN_VALUE) == 0;
 
-            final ArrayList<Object> args = new ArrayList<>();
+            // Arguments are decoded straight into the array the member is called with. The
+            // receiver of an instance method comes first, and is kept separate.
+            final int numArgs = mMemberData.countArguments();
+            final int firstArg = numParams - numArgs;
+            final Object[] args = (numArgs == 0) ? NO_ARGS : new Object[numArgs];
+            Object receiver = null;
+            boolean skippedParam = false;
             final SparseArray<IBinder> outs = new SparseArray<>();
 
             mContext.beginQM();
@@ -407,12 +466,17 @@ import edu.umich.flowfence.internal.IResolvedQM;
                     if (param.getType() == CallParam.TYPE_HANDLE &&
                             (paramHeader & CallParam.HANDLE_SYNC_ONLY) != 0) {
                         Log.w(TAG, "HANDLE_SYNC_ONLY in sandbox for " + mOriginalDescriptor);
+                        skippedParam = true;
                         continue;
                     }
                     // Deserialize argument, marshaling as necessary.
                     Object arg = unpack(param);
                     // TODO: FLAG_BY_REF
-                    args.add(arg);
+                    if (i < firstArg) {
+                        receiver = arg;
+                    } else {
+                        args[i - firstArg] = arg;
+                    }
                     // Put together the out parameter for inout params.
                     if ((paramHeader & CallParam.FLAG_RETURN) != 0) {
                         if (localLOGV) {
@@ -422,13 +486,17 @@ import edu.umich.flowfence.internal.IResolvedQM;
                     }
                 }
 
+                if (skippedParam) {
+                    throw new IllegalArgumentException("Wrong number of arguments supplied");
+                }
+
                 // Actually do the call.
-                Object[] argArray = args.toArray();
                 if (localLOGD) {
-                    Log.d(TAG, "Preparing to call " + mOriginalDescriptor.printCall(argArray));
+                    Object[] allArgs = (firstArg == 0) ? args : ArrayUtils.add(args, 0, receiver);
+                    Log.d(TAG, "Preparing to call " + mOriginalDescriptor.printCall(allArgs));
                 }
 
-                Object retval = mMemberData.call(argArray);
+                Object retval = mMemberData.call(receiver, args);
 
                 if (localLOGD) {
                     Log.d(TAG, "Call returned: " + Objects.toString(retval));
@@ -446,11 +514,7 @@ import edu.umich.flowfence.internal.IResolvedQM;
                         Log.v(TAG, String.format("out[%d] = %s", outs.keyAt(i), outs.valueAt(i)));
                     }
                 }
-                // Post results to caller.
-                if (localLOGD) {
-                    Log.d(TAG, "Posting results to caller");
-                }
-                callback.onResult(new CallResult(outs));
+                return new CallResult(outs);
             } catch (InvocationTargetException ioe) {
                 Throwable t = ioe.getTargetException();
                 if (t instanceof Exception) {
@@ -466,7 +530,7 @@ import edu.umich.flowfence.internal.IResolvedQM;
             }
         } catch (Exception e) {
             //Log.e(TAG, String.format("Error invoking %s", mOriginalDescriptor), e);
-            callback.onResult(new CallResult(e));
+            return new CallResult(e);
         }
     }
 
@@ -28,8 +28,10 @@ import android.util.Log;
 import org.apache.commons.lang3.reflect.MethodUtils;
 
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -40,11 +42,13 @@ import edu.umich.flowfence.common.IEventChannelAPI;
 import edu.umich.flowfence.common.IFlowfenceService;
 import edu.umich.flowfence.common.INetworkAPI;
 import edu.umich.flowfence.common.ISensitiveViewAPI;
+import edu.umich.flowfence.common.IStreamChannelAPI;
 import edu.umich.flowfence.common.ITaintAPI;
 import edu.umich.flowfence.common.IDynamicAPI;
 import edu.umich.flowfence.common.FlowfenceContext;
 import edu.umich.flowfence.common.ParceledPayload;
 import edu.umich.flowfence.common.RemoteCallException;
+import edu.umich.flowfence.common.StreamRecord;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.common.smartthings.ISmartSwitchAPI;
 import edu.umich.flowfence.common.smartthings.SmartDevice;
@@ -102,6 +106,7 @@ import edu.umich.flowfence.service.FlowfenceService;
 
     public synchronized void endQM() {
         FlowfenceContext.setInstance(null);
+        mAttachedStreams.clear();
     }
 
     private void checkNotFinished() {
@@ -242,10 +247,15 @@ import edu.umich.flowfence.service.FlowfenceService;
 
         @Override
         public TaintSet removeTaint(TaintSet toRemove) {
+            // Before, so no cached read skips the trusted side while this is in flight, and
+            // after, so nothing tainted before the removal is remembered as still applied.
+            RemoteSharedPrefsWrapper.forgetAppliedTaint();
             try {
                 return mCallout.removeTaints(toRemove);
             } catch (Exception e) {
                 throw translateException(e);
+            } finally {
+                RemoteSharedPrefsWrapper.forgetAppliedTaint();
             }
         }
 
@@ -301,6 +311,52 @@ import edu.umich.flowfence.service.FlowfenceService;
         }
     }
 
+    private static final Map<ComponentName, MappedStream> g_mStreams = new HashMap<>();
+    // Streams this QM has read from, and so has already been tainted by.
+    private final Set<ComponentName> mAttachedStreams = new HashSet<>();
+
+    private MappedStream getStream(ComponentName channelName) throws RemoteException {
+        synchronized (g_mStreams) {
+            MappedStream stream = g_mStreams.get(channelName);
+            if (stream == null) {
+                stream = new MappedStream(channelName, mCallout.getEventChannel(channelName));
+                g_mStreams.put(channelName, stream);
+            }
+            return stream;
+        }
+    }
+
+    public class StreamChannelAPI extends APIBase implements IStreamChannelAPI {
+        @Override
+        public long write(ComponentName channelName, byte[] data, int offset, int length) {
+            try {
+                return getStream(channelName).write(data, offset, length);
+            } catch (Exception e) {
+                throw translateException(e);
+            }
+        }
+
+        @Override
+        public ByteBuffer read(StreamRecord record) {
+            checkNotFinished();
+            try {
+                boolean attach;
+                synchronized (SandboxContext.this) {
+                    attach = !mAttachedStreams.contains(record.channelName);
+                }
+                ByteBuffer result = getStream(record.channelName).read(record, attach);
+                if (attach) {
+                    synchronized (SandboxContext.this) {
+                        mAttachedStreams.add(record.channelName);
+                    }
+                }
+                return result;
+            } catch (Exception e) {
+                throw translateException(e);
+            }
+        }
+    }
+
     public class SensitiveViewAPI extends APIBase implements ISensitiveViewAPI {
         @Override
         public void addSensitiveValue(String viewId, String value) {
@@ -365,6 +421,8 @@ import edu.umich.flowfence.service.FlowfenceService;
                 return new SmartSwitchAPI();
             case "event":
                 return new EventChannelAPI();
+            case "stream":
+                return new StreamChannelAPI();
             case "ui":
                 return new SensitiveViewAPI();
             case "network":
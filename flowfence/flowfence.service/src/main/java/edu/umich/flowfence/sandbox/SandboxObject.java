@@ -114,7 +114,12 @@ import edu.umich.flowfence.common.ParceledPayloadExceptionResult;
             return obj;
         } else {
             // Remote - go through Parcel.
-            return marshalBinder(binder).getValue(loader);
+            ParceledPayload payload = marshalBinder(binder);
+            try {
+                return payload.getValue(loader);
+            } finally {
+                payload.release();
+            }
         }
     }
 
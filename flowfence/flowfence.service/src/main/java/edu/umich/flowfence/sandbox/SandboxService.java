@@ -36,6 +36,7 @@ import org.apache.commons.lang3.ArrayUtils;
 import java.util.HashMap;
 
 import dalvik.system.PathClassLoader;
+import edu.umich.flowfence.common.CacheStats;
 import edu.umich.flowfence.common.IFlowfenceService;
 import edu.umich.flowfence.common.QMDescriptor;
 import edu.umich.flowfence.common.QMDetails;
@@ -45,7 +46,7 @@ import edu.umich.flowfence.internal.ResolvedQMExceptionResult;
 
 public abstract class SandboxService extends Service
 {
-    public static final String SERVICE_FORMAT = "edu.umich.flowfence.sandbox.SandboxService$Impl%02X";
+    public static final String SERVICE_FORMAT = "edu.umich.flowfence.sandbox.SandboxServices$Impl%02X";
     public static final String EXTRA_TRUSTED_API = "edu.umich.flowfence.service.ITrustedAPI";
     public static final String EXTRA_ROOT_SERVICE = "edu.umich.flowfence.service.IFlowfenceService";
     public static final String EXTRA_KNOWN_PACKAGES = "edu.umich.flowfence.service.KnownPackages";
@@ -55,24 +56,8 @@ public abstract class SandboxService extends Service
     private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
     private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
 
-    // region Sandbox process impls
-    public static final class Impl00 extends SandboxService { }
-    public static final class Impl01 extends SandboxService { }
-    public static final class Impl02 extends SandboxService { }
-    public static final class Impl03 extends SandboxService { }
-    public static final class Impl04 extends SandboxService { }
-    public static final class Impl05 extends SandboxService { }
-    public static final class Impl06 extends SandboxService { }
-    public static final class Impl07 extends SandboxService { }
-    public static final class Impl08 extends SandboxService { }
-    public static final class Impl09 extends SandboxService { }
-    public static final class Impl0A extends SandboxService { }
-    public static final class Impl0B extends SandboxService { }
-    public static final class Impl0C extends SandboxService { }
-    public static final class Impl0D extends SandboxService { }
-    public static final class Impl0E extends SandboxService { }
-    public static final class Impl0F extends SandboxService { }
-    // endregion
+    // The isolated SandboxServices$ImplNN subclasses, one per sandbox, and their manifest
+    // entries are generated at build time; see flowfence.service/build.gradle.
 
     protected SandboxService()
     {
@@ -108,6 +93,8 @@ public abstract class SandboxService extends Service
         mTrustedAPI = ITrustedAPI.Stub.asInterface(api);
         mRootService = IFlowfenceService.Stub.asInterface(root);
         mID = extras.getInt(EXTRA_SANDBOX_ID, -1);
+        // A new connection starts out untainted on the trusted side.
+        RemoteSharedPrefsWrapper.forgetAppliedTaint();
 
         if (localLOGV) {
             ClassLoader cl = getClassLoader();
@@ -264,6 +251,11 @@ public abstract class SandboxService extends Service
             return rv;
         }
 
+        @Override
+        public CacheStats getDecodeCacheStats() {
+            return DecodedValueCache.getInstance().getStats();
+        }
+
         @Override
         public void gc() {
             System.gc();
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.CallResult;
+import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.internal.IQMCallback;
+import edu.umich.flowfence.internal.IResolvedQM;
+
+/**
+ * A group of CallRecords for the same QM that are sent to a sandbox in a single transaction.
+ *
+ * Each call keeps its own CallRecord, so dependencies and output handles work as they do for
+ * individual calls. Once every record is ready, the records are split up by inbound taint.
+ * Each group runs in one sandbox that holds exactly the taint an individual call would have
+ * given it.
+ */
+/*package*/ final class CallBatch {
+    private static final String TAG = "FF.CallBatch";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+    private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final Object mSync = new Object();
+    private final QMRef mQM;
+    private final int mFlags;
+    private final CallRecord[] mRecords;
+    private final LinkedHashMap<TaintSet, Group> mGroups = new LinkedHashMap<>();
+    // One extra count is held by the constructor, so nothing runs until all records exist.
+    private int mPendingRecords;
+
+    public CallBatch(QMRef qm, int flags, List<CallParam> callParams, int[] paramCounts,
+                     TaintSet extraTaint, long deadline) {
+        int totalParams = 0;
+        for (int count : paramCounts) {
+            if (count < 0) {
+                throw new IllegalArgumentException("Negative parameter count");
+            }
+            totalParams += count;
+        }
+        if (totalParams != callParams.size()) {
+            throw new IllegalArgumentException("Parameter counts don't match parameter list");
+        }
+
+        mQM = qm;
+        mFlags = flags;
+        mRecords = new CallRecord[paramCounts.length];
+        mPendingRecords = paramCounts.length + 1;
+
+        int offset = 0;
+        for (int i = 0; i < paramCounts.length; i++) {
+            List<CallParam> params = callParams.subList(offset, offset + paramCounts[i]);
+            mRecords[i] = new CallRecord(qm, flags, params, extraTaint, deadline, this, null);
+            offset += paramCounts[i];
+        }
+        onRecordReady(null);
+    }
+
+    /*package*/ CallRecord[] getRecords() {
+        return mRecords.clone();
+    }
+
+    /*package*/ void onRecordReady(CallRecord record) {
+        // Must be computed before taking our lock; it takes the record's.
+        TaintSet inboundTaints = (record != null) ? record.getInboundTaints() : null;
+        List<Group> toSchedule = null;
+        synchronized (mSync) {
+            if (record != null) {
+                Group group = mGroups.get(inboundTaints);
+                if (group == null) {
+                    group = new Group(inboundTaints);
+                    mGroups.put(inboundTaints, group);
+                }
+                group.mMembers.add(record);
+            }
+            if (--mPendingRecords == 0) {
+                toSchedule = new ArrayList<>(mGroups.values());
+                mGroups.clear();
+            }
+        }
+
+        if (toSchedule != null) {
+            if (localLOGD) {
+                Log.d(TAG, String.format("Scheduling %d calls to %s in %d group(s)",
+                                         mRecords.length, mQM.getDescriptor(), toSchedule.size()));
+            }
+            for (Group group : toSchedule) {
+                FlowfenceApplication.getInstance().getSandboxAsync(group);
+            }
+        }
+    }
+
+    private final class Group extends IQMCallback.Stub
+            implements SandboxManager.AsyncCallback, SandboxManager.PackageAffinity,
+                       SandboxManager.Urgency {
+        private final TaintSet mInboundTaints;
+        private final ArrayList<CallRecord> mMembers = new ArrayList<>();
+        private final ArrayList<CallRecord> mRunning = new ArrayList<>();
+        private Sandbox mSandbox;
+
+        public Group(TaintSet inboundTaints) {
+            mInboundTaints = inboundTaints;
+        }
+
+        // Every member has the same QM, flags, and inbound taint, so any of them can stand
+        // in for the whole group when choosing a sandbox.
+        private CallRecord getLeader() {
+            return mMembers.get(0);
+        }
+
+        @Override
+        public Sandbox tryFindSandbox(SandboxManager manager) {
+            return getLeader().tryFindSandbox(manager);
+        }
+
+        @Override
+        public String getPackageAffinity() {
+            return getLeader().getPackageAffinity();
+        }
+
+        @Override
+        public int getPriorityClass() {
+            return getLeader().getPriorityClass();
+        }
+
+        @Override
+        public long getDeadline() {
+            return getLeader().getDeadline();
+        }
+
+        @Override
+        public void onDeadlineExceeded() {
+            for (CallRecord record : mMembers) {
+                record.onDeadlineExceeded();
+            }
+        }
+
+        @Override
+        public void execute(Sandbox sandbox) {
+            if (localLOGV) {
+                Log.v(TAG, String.format("Executing %d calls to %s in %s",
+                                         mMembers.size(), mQM.getDescriptor(), sandbox));
+            }
+            final long assignedNanos = SystemClock.elapsedRealtimeNanos();
+            sandbox.waitForStartupComplete();
+            final long startedNanos = SystemClock.elapsedRealtimeNanos();
+            if (!sandbox.getTaints().isSubsetOf(mInboundTaints)) {
+                Log.w(TAG, "Sandbox "+sandbox+" has unexpected taints");
+            }
+
+            Throwable resolveError = null;
+            IResolvedQM resolvedQM = null;
+            try {
+                resolvedQM = mQM.resolveFor(sandbox);
+            } catch (Throwable t) {
+                resolveError = t;
+            }
+            final long resolvedNanos = (resolveError == null) ? SystemClock.elapsedRealtimeNanos() : 0;
+
+            synchronized (this) {
+                sandbox.beginExecute(getLeader());
+                mSandbox = sandbox;
+
+                List<CallParam> outboundParams = new ArrayList<>();
+                int[] paramCounts = new int[mMembers.size()];
+                for (CallRecord record : mMembers) {
+                    record.setBatchStageTimes(assignedNanos, startedNanos, resolvedNanos);
+                    List<CallParam> params = record.prepareForBatch(sandbox, resolveError);
+                    if (params != null) {
+                        paramCounts[mRunning.size()] = params.size();
+                        outboundParams.addAll(params);
+                        mRunning.add(record);
+                    }
+                }
+
+                if (mRunning.isEmpty()) {
+                    releaseSandbox();
+                    return;
+                }
+                if (mRunning.size() < paramCounts.length) {
+                    int[] trimmed = new int[mRunning.size()];
+                    System.arraycopy(paramCounts, 0, trimmed, 0, trimmed.length);
+                    paramCounts = trimmed;
+                }
+
+                try {
+                    // Taint sandbox now, if necessary.
+                    sandbox.addTaint(mInboundTaints);
+                    resolvedQM.callBatch(mFlags, this, outboundParams, paramCounts);
+                } catch (Throwable t) {
+                    onResult(new CallResult(t));
+                } finally {
+                    CallParam.releasePayloads(outboundParams);
+                }
+            }
+        }
+
+        @Override
+        public void onResult(CallResult result) {
+            // The whole batch failed before any call could run.
+            synchronized (this) {
+                CallResult[] results = new CallResult[mRunning.size()];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = result;
+                }
+                onBatchResult(results);
+            }
+        }
+
+        @Override
+        public void onBatchResult(CallResult[] results) {
+            synchronized (this) {
+                if (mSandbox == null) {
+                    Log.w(TAG, "Duplicate result for batch to "+mQM.getDescriptor());
+                    return;
+                }
+                Sandbox sandbox = mSandbox;
+                try {
+                    sandbox.endExecute(getLeader());
+                    for (int i = 0; i < mRunning.size(); i++) {
+                        CallResult result = (results != null && i < results.length) ? results[i] :
+                                new CallResult(new IllegalStateException("Missing batch result"));
+                        mRunning.get(i).completeFromBatch(result);
+                    }
+                } finally {
+                    mRunning.clear();
+                    mSandbox = null;
+                    FlowfenceApplication.getInstance().putSandbox(sandbox);
+                }
+            }
+        }
+
+        private void releaseSandbox() {
+            Sandbox sandbox = mSandbox;
+            mSandbox = null;
+            try {
+                sandbox.endExecute(getLeader());
+            } finally {
+                FlowfenceApplication.getInstance().putSandbox(sandbox);
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package edu.umich.flowfence.service;
 
 import android.os.ConditionVariable;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -32,14 +33,17 @@ import java.util.concurrent.atomic.AtomicInteger;
 import edu.umich.flowfence.common.CallFlags;
 import edu.umich.flowfence.common.CallParam;
 import edu.umich.flowfence.common.CallResult;
+import edu.umich.flowfence.common.CallStats;
+import edu.umich.flowfence.common.DeadlineExceededException;
 import edu.umich.flowfence.common.HandleDestroyedException;
-import edu.umich.flowfence.common.FlowfenceConstants;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.internal.IQMCallback;
 import edu.umich.flowfence.internal.IResolvedQM;
 import edu.umich.flowfence.internal.ISandboxObject;
 
-/*package*/ final class CallRecord extends IQMCallback.Stub implements SandboxManager.AsyncCallback {
+/*package*/ final class CallRecord extends IQMCallback.Stub
+        implements SandboxManager.AsyncCallback, SandboxManager.PackageAffinity,
+                   SandboxManager.Urgency {
     private static final String TAG = "FF.CallRecord";
     private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
     private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
@@ -61,79 +65,136 @@ import edu.umich.flowfence.internal.ISandboxObject;
             "failed"
     };
 
-    // Lock: protects everything.
+    // Lock: protects everything except the predecessor count.
     // CV: unblocked when all data ready.
     private final ConditionVariable mSync = new ConditionVariable();
     private final QMRef mQM;
     private final List<CallParam> mCallParams;
     private final SparseArray<Handle> mOutParams;
-    private final HashSet<Handle> mPendingPredecessors;
+    // Predecessors that haven't completed yet, plus one held by the constructor until every
+    // link is in place. Whoever takes it to zero schedules the call.
+    private final AtomicInteger mPendingPredecessors;
     private final HashSet<Handle> mAllPredecessors;
     private final TaintSet mExtraTaint;
     private final int mFlags;
+    // SystemClock.elapsedRealtime() by which we must have a sandbox, or 0 for no deadline.
+    private final long mDeadline;
     private final int mRecordId;
+    private final CallBatch mBatch;
+    private final Runnable mOnComplete;
     private Sandbox mRunningSandbox;
     private int mState;
     private TaintSet mInboundTaints;
+    // Lifecycle timestamps, from SystemClock.elapsedRealtimeNanos(). mStageEndNanos is indexed
+    // by CallStats stage; 0 means the stage hasn't ended (yet).
+    private final long mCreatedNanos;
+    private final long[] mStageEndNanos = new long[CallStats.STAGE_TOTAL];
+
+    public CallRecord(QMRef qm, int flags, List<CallParam> callParams, TaintSet extraTaint,
+                      long deadline) {
+        this(qm, flags, callParams, extraTaint, deadline, null, null);
+    }
 
-    public CallRecord(QMRef qm, int flags, List<CallParam> callParams, TaintSet extraTaint) {
+    /**
+     * @param deadline SystemClock.elapsedRealtime() by which the call must get a sandbox, or 0.
+     * @param batch The batch this record belongs to, or null if it runs on its own.
+     * @param onComplete Run once this record has succeeded or failed, or null.
+     */
+    /*package*/ CallRecord(QMRef qm, int flags, List<CallParam> callParams, TaintSet extraTaint,
+                           long deadline, CallBatch batch, Runnable onComplete) {
+        mCreatedNanos = SystemClock.elapsedRealtimeNanos();
         mQM = qm;
-        mPendingPredecessors = new HashSet<>();
+        mBatch = batch;
+        mOnComplete = onComplete;
+        mPendingPredecessors = new AtomicInteger(1);
         mAllPredecessors = new HashSet<>();
         mCallParams = new ArrayList<>(callParams.size());
         mOutParams = new SparseArray<>();
         mFlags = flags;
+        mDeadline = Math.max(0, deadline);
         mRecordId = g_mNextRecordId.getAndIncrement();
         mState = STATE_WAITING;
         mExtraTaint = (extraTaint != null) ? extraTaint : TaintSet.EMPTY;
 
-        // Synchronize here, since we may get callbacks for data ready.
-        synchronized (mSync) {
-            // Build handles and set up links.
-            if ((flags & CallFlags.NO_RETURN_VALUE) == 0) {
-                Handle returnValue = new Handle(this, CallResult.RETURN_VALUE);
-                mOutParams.append(CallResult.RETURN_VALUE, returnValue);
-            }
+        // Build handles and set up links. Predecessors may complete and call onDataReady while
+        // we're still going; the constructor's count keeps that from scheduling us early.
+        if ((flags & CallFlags.NO_RETURN_VALUE) == 0) {
+            Handle returnValue = new Handle(this, CallResult.RETURN_VALUE);
+            mOutParams.append(CallResult.RETURN_VALUE, returnValue);
+        }
 
-            for (int i = 0; i < callParams.size(); i++) {
-                CallParam param = callParams.get(i);
-
-                // If this param was from a previous QM, take a dependency on it.
-                // Otherwise, just use the param as-is.
-                int paramFlags = param.getHeader();
-                switch (param.getType()) {
-                    case CallParam.TYPE_NULL:
-                    case CallParam.TYPE_DATA:
-                        mCallParams.add(param);
-                        break;
-
-                    case CallParam.TYPE_HANDLE:
-                        Handle pred = (Handle) param.getPayload();
-                        boolean releaseAtomic = ((paramFlags & CallParam.HANDLE_RELEASE) != 0);
-                        // Link this call in as a successor to that handle.
-                        if (pred.addSuccessor(this, releaseAtomic)) {
-                            mPendingPredecessors.add(pred);
+        for (int i = 0; i < callParams.size(); i++) {
+            CallParam param = callParams.get(i);
+
+            // If this param was from a previous QM, take a dependency on it.
+            // Otherwise, just use the param as-is.
+            int paramFlags = param.getHeader();
+            switch (param.getType()) {
+                case CallParam.TYPE_NULL:
+                case CallParam.TYPE_DATA:
+                    mCallParams.add(param);
+                    break;
+
+                case CallParam.TYPE_HANDLE:
+                    Handle pred = (Handle) param.getPayload();
+                    boolean releaseAtomic = ((paramFlags & CallParam.HANDLE_RELEASE) != 0);
+                    if (mAllPredecessors.add(pred)) {
+                        // Link this call in as a successor to that handle. Count it first, since
+                        // it can complete as soon as we're linked.
+                        mPendingPredecessors.incrementAndGet();
+                        if (!pred.addSuccessor(this, releaseAtomic)) {
+                            mPendingPredecessors.decrementAndGet();
                         }
-                        mAllPredecessors.add(pred);
-                        mCallParams.add(param);
-                }
-
-                // If this param is marshaled out, set up a return handle for it.
-                if ((paramFlags & CallParam.FLAG_RETURN) != 0) {
-                    mOutParams.append(i, new Handle(this, i));
-                }
+                    } else if (releaseAtomic) {
+                        // Already linked by an earlier param, which holds our reference.
+                        pred.release();
+                    }
+                    mCallParams.add(param);
             }
 
-            if (mPendingPredecessors.isEmpty()) {
-                scheduleForExecutionLocked();
+            // If this param is marshaled out, set up a return handle for it.
+            if ((paramFlags & CallParam.FLAG_RETURN) != 0) {
+                mOutParams.append(i, new Handle(this, i));
             }
         }
+
+        onPredecessorDone();
     }
 
-    private void scheduleForExecutionLocked() {
-        mState = STATE_READY;
+    private void onPredecessorDone() {
+        if (mPendingPredecessors.decrementAndGet() == 0) {
+            scheduleForExecution();
+        }
+    }
+
+    private void scheduleForExecution() {
+        synchronized (mSync) {
+            mState = STATE_READY;
+            markStageEnd(CallStats.STAGE_PREDECESSORS);
+        }
         FlowfenceApplication.getInstance().getService().addRef();
-        FlowfenceApplication.getInstance().getSandboxAsync(this);
+        FlowfenceApplication.getInstance().getDemandModel().onCallScheduled(mQM);
+        if (mBatch != null) {
+            mBatch.onRecordReady(this);
+        } else {
+            FlowfenceApplication.getInstance().getSandboxAsync(this);
+        }
+    }
+
+    private void markStageEnd(int stage) {
+        mStageEndNanos[stage] = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records when the batch this record belongs to got through the stages it runs on behalf
+     * of all of its members.
+     */
+    /*package*/ void setBatchStageTimes(long assignedNanos, long startedNanos, long resolvedNanos) {
+        synchronized (mSync) {
+            mStageEndNanos[CallStats.STAGE_QUEUED] = assignedNanos;
+            mStageEndNanos[CallStats.STAGE_SANDBOX_START] = startedNanos;
+            mStageEndNanos[CallStats.STAGE_RESOLVE] = resolvedNanos;
+        }
     }
 
     /*package*/ int getFlags() {
@@ -145,12 +206,7 @@ import edu.umich.flowfence.internal.ISandboxObject;
     }
 
     /*package*/ void onDataReady(Handle handle) {
-        synchronized (mSync) {
-            mPendingPredecessors.remove(handle);
-            if (mPendingPredecessors.isEmpty()) {
-                scheduleForExecutionLocked();
-            }
-        }
+        onPredecessorDone();
     }
 
     /*package*/ Set<Handle> getPredecessors() {
@@ -189,18 +245,68 @@ import edu.umich.flowfence.internal.ISandboxObject;
     @Override
     public Sandbox tryFindSandbox(SandboxManager manager) {
         if ((mFlags & CallFlags.OVERRIDE_SANDBOX) != 0) {
-            int sandboxId = (mFlags & CallFlags.SANDBOX_NUM_MASK) % FlowfenceConstants.NUM_SANDBOXES;
+            int sandboxId = (mFlags & CallFlags.SANDBOX_NUM_MASK) % Sandbox.getCapacity();
             return manager.tryGetSandboxById(sandboxId, this);
         } else {
             return manager.tryGetSandboxForCall(this);
         }
     }
 
+    @Override
+    public String getPackageAffinity() {
+        if ((mFlags & CallFlags.OVERRIDE_SANDBOX) != 0) {
+            return null;
+        }
+        return mQM.getDescriptor().definingClass.getPackageName();
+    }
+
+    @Override
+    public int getPriorityClass() {
+        return CallFlags.getPriorityClass(mFlags);
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Fails this call without running it. Its outputs carry the taint the call would have run
+     * with, so successors can't learn more from the failure than from a result.
+     */
+    @Override
+    public void onDeadlineExceeded() {
+        Log.w(TAG, "Deadline passed before "+this+" got a sandbox");
+        DeadlineExceededException e = new DeadlineExceededException(
+                "Deadline passed before "+mQM.getDescriptor()+" got a sandbox");
+        try {
+            TaintSet taint = getInboundTaints();
+            synchronized (mSync) {
+                for (Handle h : mAllPredecessors) {
+                    h.removeSuccessor(this);
+                }
+                mAllPredecessors.clear();
+                CallParam.releasePayloads(mCallParams);
+                mCallParams.clear();
+                markStageEnd(CallStats.STAGE_QUEUED);
+                mState = STATE_FAILURE;
+            }
+            for (int i = 0; i < mOutParams.size(); i++) {
+                mOutParams.valueAt(i).onException(null, taint, e);
+            }
+        } finally {
+            finish();
+        }
+    }
+
     @Override
     public void execute(Sandbox sandbox) {
         if (localLOGV) {
             Log.v(TAG, "Executing CallRecord "+this);
         }
+        synchronized (mSync) {
+            markStageEnd(CallStats.STAGE_QUEUED);
+        }
         sandbox.waitForStartupComplete();
         TaintSet inboundTaints = getInboundTaints();
         if (!sandbox.getTaints().isSubsetOf(inboundTaints)) {
@@ -209,6 +315,7 @@ import edu.umich.flowfence.internal.ISandboxObject;
         sandbox.beginExecute(this);
         mRunningSandbox = sandbox;
         synchronized (mSync) {
+            markStageEnd(CallStats.STAGE_SANDBOX_START);
             // Resolve first.
             Throwable throwable = null;
             IResolvedQM resolvedQM = null;
@@ -220,59 +327,121 @@ import edu.umich.flowfence.internal.ISandboxObject;
                 if (localLOGV) {
                     Log.v(TAG, "Resolved "+ getQM().getDescriptor());
                 }
+                markStageEnd(CallStats.STAGE_RESOLVE);
             } catch (Throwable t) {
                 throwable = t;
             }
 
-            if (localLOGD) {
-                Log.d(TAG, String.format("Preparing call for %s", mQM.getDescriptor()));
+            List<CallParam> outboundParams;
+            try {
+                outboundParams = prepareOutboundLocked(sandbox, throwable);
+            } catch (Throwable t) {
+                Log.e(TAG, "Bailing early on "+this+" with exception");
+                CallParam.releasePayloads(mCallParams);
+                onResult(new CallResult(t));
+                return;
             }
 
-            // Prepare arguments.
-            List<CallParam> outboundParams = new ArrayList<>(mCallParams.size());
-            for (int i = 0; i < mCallParams.size(); i++) {
-                try {
-                    CallParam outbound = Handle.getOutboundCallParam(sandbox, mCallParams.get(i), this);
-                    if (localLOGD) {
-                        Log.d(TAG, Objects.toString(outbound));
-                    }
-                    outboundParams.add(i, outbound);
-                } catch (Throwable t) {
-                    if (throwable == null) {
-                        throwable = t;
-                    } else if (throwable != t) {
-                        throwable.addSuppressed(t);
-                    } else {
-                        Log.w(TAG, "Duplicate throwable", t);
-                    }
+            try {
+                if (localLOGV) {
+                    Log.v(TAG, String.format("Callback %s, flags %x", this.asBinder(), mFlags));
                 }
+                // Taint sandbox now, if necessary.
+                sandbox.addTaint(inboundTaints);
+                // Call on resolved QM.
+                resolvedQM.call(mFlags, this, outboundParams);
+            } catch (Throwable t) {
+                onResult(new CallResult(t));
+            } finally {
+                // The transaction has its own copy of every payload by now.
+                CallParam.releasePayloads(outboundParams);
+                outboundParams.clear();
+                mCallParams.clear();
             }
+        }
+    }
+
+    // Marshals arguments into the sandbox and moves to STATE_RUNNING. Any failure, including
+    // one passed in from an earlier step, is thrown once all of the arguments have been tried,
+    // after releasing the ones that did marshal.
+    private List<CallParam> prepareOutboundLocked(Sandbox sandbox, Throwable throwable)
+            throws Throwable {
+        if (localLOGD) {
+            Log.d(TAG, String.format("Preparing call for %s", mQM.getDescriptor()));
+        }
 
-            for (Handle h : mAllPredecessors) {
-                h.removeSuccessor(this);
+        // Prepare arguments.
+        List<CallParam> outboundParams = new ArrayList<>(mCallParams.size());
+        for (int i = 0; i < mCallParams.size(); i++) {
+            try {
+                CallParam outbound = Handle.getOutboundCallParam(sandbox, mCallParams.get(i), this);
+                if (localLOGD) {
+                    Log.d(TAG, Objects.toString(outbound));
+                }
+                outboundParams.add(outbound);
+            } catch (Throwable t) {
+                if (throwable == null) {
+                    throwable = t;
+                } else if (throwable != t) {
+                    throwable.addSuppressed(t);
+                } else {
+                    Log.w(TAG, "Duplicate throwable", t);
+                }
             }
-            mAllPredecessors.clear();
+        }
+
+        for (Handle h : mAllPredecessors) {
+            h.removeSuccessor(this);
+        }
+        mAllPredecessors.clear();
 
-            mState = STATE_RUNNING;
-            if (throwable != null) {
+        mState = STATE_RUNNING;
+        if (throwable != null) {
+            // Nothing will send what was marshalled so far, so give the payloads back now.
+            CallParam.releasePayloads(outboundParams);
+            throw throwable;
+        }
+        markStageEnd(CallStats.STAGE_MARSHAL);
+        return outboundParams;
+    }
+
+    /**
+     * Prepares this record to run as part of a batch in the given sandbox. The batch owns the
+     * sandbox, so a record that fails here completes without releasing it.
+     * @return The outbound params, or null if this record has already failed.
+     */
+    /*package*/ List<CallParam> prepareForBatch(Sandbox sandbox, Throwable resolveError) {
+        Throwable failure;
+        synchronized (mSync) {
+            mRunningSandbox = sandbox;
+            try {
+                List<CallParam> outboundParams = prepareOutboundLocked(sandbox, resolveError);
+                mCallParams.clear();
+                return outboundParams;
+            } catch (Throwable t) {
                 Log.e(TAG, "Bailing early on "+this+" with exception");
-                onResult(new CallResult(throwable));
-            } else {
-                try {
-                    if (localLOGV) {
-                        Log.v(TAG, String.format("Callback %s, flags %x", this.asBinder(), mFlags));
-                    }
-                    // Taint sandbox now, if necessary.
-                    sandbox.addTaint(inboundTaints);
-                    // Call on resolved QM.
-                    resolvedQM.call(mFlags, this, outboundParams);
-                    outboundParams.clear();
-                    mCallParams.clear();
-                } catch (Throwable t) {
-                    onResult(new CallResult(t));
-                }
+                CallParam.releasePayloads(mCallParams);
+                failure = t;
             }
         }
+        completeFromBatch(new CallResult(failure));
+        return null;
+    }
+
+    /*package*/ void completeFromBatch(CallResult result) {
+        try {
+            complete(result);
+        } finally {
+            finish();
+        }
+    }
+
+    @Override
+    public void onBatchResult(CallResult[] results) {
+        // Only CallBatch issues batched calls; a single record should never see this.
+        Log.wtf(TAG, "Unexpected batch result for "+this);
+        onResult((results != null && results.length == 1) ? results[0] :
+                new CallResult(new IllegalStateException("Unexpected batch result")));
     }
 
     @Override
@@ -287,37 +456,61 @@ import edu.umich.flowfence.internal.ISandboxObject;
             if (toRelease != null) {
                 toRelease.endExecute(this);
             }
-            synchronized (mSync) {
-                Throwable t = result.getThrowable();
-                if (t != null) {
-                    Log.e(TAG, "Unhandled exception in "+this, t);
-                    for (int i = 0; i < mOutParams.size(); i++) {
-                        mOutParams.valueAt(i).onException(mRunningSandbox, t);
-                    }
-                    mState = STATE_FAILURE;
-                    return;
-                }
-
-                SparseArray<IBinder> outputs = result.getOutputs();
-                mState = STATE_SUCCESS;
-
-                for (int i = 0; i < mOutParams.size(); i++) {
-                    int index = mOutParams.keyAt(i);
-                    Handle value = mOutParams.valueAt(i);
-                    if (outputs.indexOfKey(index) < 0) {
-                        Log.wtf(TAG, "Missing expected output handle??");
-                        value.onException(mRunningSandbox, new HandleDestroyedException("Missing handle on return ?!?"));
-                    }
-                    value.onComplete(mRunningSandbox, ISandboxObject.Stub.asInterface(outputs.get(index)));
-                }
-            }
+            complete(result);
         } finally {
             if (toRelease != null) {
                 FlowfenceApplication.getInstance().putSandbox(toRelease);
             }
-            FlowfenceApplication.getInstance().getService().release();
-            mSync.open();
-            mRunningSandbox = null;
+            finish();
+        }
+    }
+
+    // Completing the out handles wakes up their successors, which may schedule themselves on
+    // this thread, so it's done without holding our lock.
+    private void complete(CallResult result) {
+        final Sandbox sandbox;
+        final Throwable t = result.getThrowable();
+        synchronized (mSync) {
+            markStageEnd(CallStats.STAGE_EXECUTE);
+            mState = (t != null) ? STATE_FAILURE : STATE_SUCCESS;
+            sandbox = mRunningSandbox;
+        }
+
+        if (t != null) {
+            Log.e(TAG, "Unhandled exception in "+this, t);
+            for (int i = 0; i < mOutParams.size(); i++) {
+                mOutParams.valueAt(i).onException(sandbox, t);
+            }
+            return;
+        }
+
+        SparseArray<IBinder> outputs = result.getOutputs();
+        for (int i = 0; i < mOutParams.size(); i++) {
+            int index = mOutParams.keyAt(i);
+            Handle value = mOutParams.valueAt(i);
+            if (outputs.indexOfKey(index) < 0) {
+                Log.wtf(TAG, "Missing expected output handle??");
+                value.onException(sandbox, new HandleDestroyedException("Missing handle on return ?!?"));
+                continue;
+            }
+            value.onComplete(sandbox, ISandboxObject.Stub.asInterface(outputs.get(index)));
+        }
+    }
+
+    private void finish() {
+        long[] stageEndNanos;
+        boolean failed;
+        synchronized (mSync) {
+            stageEndNanos = mStageEndNanos.clone();
+            failed = (mState != STATE_SUCCESS);
+        }
+        FlowfenceApplication.getInstance().getCallStats().record(
+                mQM.getDescriptor(), mCreatedNanos, stageEndNanos, failed);
+        FlowfenceApplication.getInstance().getService().release();
+        mSync.open();
+        mRunningSandbox = null;
+        if (mOnComplete != null) {
+            mOnComplete.run();
         }
     }
 
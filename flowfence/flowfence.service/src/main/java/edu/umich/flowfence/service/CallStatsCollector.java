@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umich.flowfence.common.CallStats;
+import edu.umich.flowfence.common.QMDescriptor;
+
+/**
+ * Collects per-stage call latencies for each QM, from the timestamps each {@link CallRecord}
+ * takes as it moves through its lifecycle.
+ */
+/*package*/ final class CallStatsCollector {
+    private static final String TAG = "FF.CallStats";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final class QMStats {
+        public final LatencyHistogram[] mStages = new LatencyHistogram[CallStats.NUM_STAGES];
+        public final AtomicLong mCalls = new AtomicLong();
+        public final AtomicLong mFailures = new AtomicLong();
+
+        public QMStats() {
+            for (int i = 0; i < mStages.length; i++) {
+                mStages[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<QMDescriptor, QMStats> mStats = new ConcurrentHashMap<>();
+
+    /**
+     * Records a finished call.
+     * @param createdNanos When the call was made.
+     * @param stageEndNanos When each stage before {@link CallStats#STAGE_TOTAL} ended, or 0 for
+     *                      stages the call never got through.
+     */
+    public void record(QMDescriptor descriptor, long createdNanos, long[] stageEndNanos,
+                       boolean failed) {
+        QMStats stats = mStats.get(descriptor);
+        if (stats == null) {
+            QMStats newStats = new QMStats();
+            stats = mStats.putIfAbsent(descriptor, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+
+        stats.mCalls.incrementAndGet();
+        if (failed) {
+            stats.mFailures.incrementAndGet();
+        }
+
+        // A stage is only timed if the one before it finished too.
+        long previous = createdNanos;
+        long last = 0;
+        for (int stage = 0; stage < CallStats.STAGE_TOTAL; stage++) {
+            long end = stageEndNanos[stage];
+            if (end != 0 && previous != 0) {
+                stats.mStages[stage].record((end - previous) / 1000);
+            }
+            previous = end;
+            if (end != 0) {
+                last = end;
+            }
+        }
+        if (last != 0) {
+            stats.mStages[CallStats.STAGE_TOTAL].record((last - createdNanos) / 1000);
+        }
+
+        if (localLOGV) {
+            Log.v(TAG, String.format("%s took %dus", descriptor, (last - createdNanos) / 1000));
+        }
+    }
+
+    public List<CallStats> getStats() {
+        ArrayList<CallStats> result = new ArrayList<>(mStats.size());
+        for (QMDescriptor descriptor : mStats.keySet()) {
+            QMStats stats = mStats.get(descriptor);
+            if (stats == null) {
+                continue;
+            }
+            CallStats out = new CallStats();
+            out.descriptor = descriptor;
+            out.calls = stats.mCalls.get();
+            out.failures = stats.mFailures.get();
+            for (int stage = 0; stage < CallStats.NUM_STAGES; stage++) {
+                LatencyHistogram hist = stats.mStages[stage];
+                long[] percentiles = hist.getPercentiles(50, 90, 99);
+                out.counts[stage] = hist.getCount();
+                out.p50Micros[stage] = percentiles[0];
+                out.p90Micros[stage] = percentiles[1];
+                out.p99Micros[stage] = percentiles[2];
+                out.maxMicros[stage] = hist.getMax();
+            }
+            result.add(out);
+        }
+        return result;
+    }
+
+    public void forgetPackage(String packageName) {
+        Iterator<QMDescriptor> iter = mStats.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().definingClass.getPackageName().equals(packageName)) {
+                iter.remove();
+            }
+        }
+    }
+}
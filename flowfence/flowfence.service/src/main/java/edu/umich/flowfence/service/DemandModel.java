@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import edu.umich.flowfence.common.QMDescriptor;
+
+/**
+ * Tracks how often each package and QM has been called recently, so sandboxes can be
+ * prepared for the calls most likely to come next.
+ *
+ * Each rate is a call count that decays by half every {@link #HALF_LIFE_MS} without calls,
+ * so a burst an hour ago still counts for something after the device has been idle.
+ */
+/*package*/ final class DemandModel {
+    private static final String TAG = "FF.DemandModel";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final long HALF_LIFE_MS = 15 * 60 * 1000;
+    // Packages and QMs below this rate aren't worth preparing a sandbox for.
+    private static final double MIN_HOT_RATE = 0.5;
+    // Entries below this rate are forgotten altogether.
+    private static final double MIN_TRACKED_RATE = 0.01;
+
+    private static final class Rate {
+        private double mValue = 0.0;
+        private long mLastUpdate;
+
+        public Rate(long now) {
+            mLastUpdate = now;
+        }
+
+        public double valueAt(long now) {
+            long elapsed = now - mLastUpdate;
+            if (elapsed <= 0) {
+                return mValue;
+            }
+            return mValue * Math.pow(0.5, (double)elapsed / HALF_LIFE_MS);
+        }
+
+        public void hit(long now) {
+            mValue = valueAt(now) + 1.0;
+            mLastUpdate = now;
+        }
+    }
+
+    private static final class QMDemand {
+        public final Rate mRate;
+        public QMRef mQM;
+
+        public QMDemand(long now, QMRef qm) {
+            mRate = new Rate(now);
+            mQM = qm;
+        }
+    }
+
+    private static final class PackageDemand {
+        public final Rate mRate;
+        public final HashMap<QMDescriptor, QMDemand> mQMs = new HashMap<>();
+
+        public PackageDemand(long now) {
+            mRate = new Rate(now);
+        }
+    }
+
+    private final HashMap<String, PackageDemand> mPackages = new HashMap<>();
+
+    /**
+     * Records that a call to a QM is ready to run.
+     */
+    public synchronized void onCallScheduled(QMRef qm) {
+        final long now = SystemClock.elapsedRealtime();
+        QMDescriptor desc = qm.getDescriptor();
+        String packageName = desc.definingClass.getPackageName();
+
+        PackageDemand pkg = mPackages.get(packageName);
+        if (pkg == null) {
+            pkg = new PackageDemand(now);
+            mPackages.put(packageName, pkg);
+        }
+        pkg.mRate.hit(now);
+
+        QMDemand qmDemand = pkg.mQMs.get(desc);
+        if (qmDemand == null) {
+            qmDemand = new QMDemand(now, qm);
+            pkg.mQMs.put(desc, qmDemand);
+        } else {
+            // A re-resolved QM gets a new ref; keep the newest one.
+            qmDemand.mQM = qm;
+        }
+        qmDemand.mRate.hit(now);
+    }
+
+    /**
+     * @return Up to max packages whose call rate makes them worth preparing a sandbox for,
+     * hottest first.
+     */
+    public synchronized List<String> getHotPackages(int max) {
+        final long now = SystemClock.elapsedRealtime();
+        final HashMap<String, Double> rates = new HashMap<>();
+        Iterator<Map.Entry<String, PackageDemand>> iter = mPackages.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, PackageDemand> entry = iter.next();
+            double rate = entry.getValue().mRate.valueAt(now);
+            if (rate < MIN_TRACKED_RATE) {
+                iter.remove();
+            } else if (rate >= MIN_HOT_RATE) {
+                rates.put(entry.getKey(), rate);
+            }
+        }
+        return topByRate(rates, max);
+    }
+
+    /**
+     * @return The recent call rate of a package, or 0 if it hasn't been called lately.
+     */
+    public synchronized double getPackageRate(String packageName) {
+        PackageDemand pkg = mPackages.get(packageName);
+        return (pkg != null) ? pkg.mRate.valueAt(SystemClock.elapsedRealtime()) : 0.0;
+    }
+
+    /**
+     * @return Up to max of the given packages, hottest first. Packages with no recent calls
+     * come last, in no particular order.
+     */
+    public synchronized List<String> rankPackages(Collection<String> packages, int max) {
+        final long now = SystemClock.elapsedRealtime();
+        final HashMap<String, Double> rates = new HashMap<>();
+        for (String packageName : packages) {
+            PackageDemand pkg = mPackages.get(packageName);
+            rates.put(packageName, (pkg != null) ? pkg.mRate.valueAt(now) : 0.0);
+        }
+        return topByRate(rates, max);
+    }
+
+    /**
+     * @return Up to max QMs in the given package that are likely to be called soon,
+     * hottest first.
+     */
+    public synchronized List<QMRef> getHotQMs(String packageName, int max) {
+        PackageDemand pkg = mPackages.get(packageName);
+        if (pkg == null) {
+            return Collections.emptyList();
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final HashMap<QMRef, Double> rates = new HashMap<>();
+        Iterator<QMDemand> iter = pkg.mQMs.values().iterator();
+        while (iter.hasNext()) {
+            QMDemand qmDemand = iter.next();
+            double rate = qmDemand.mRate.valueAt(now);
+            if (rate < MIN_TRACKED_RATE) {
+                iter.remove();
+            } else if (rate >= MIN_HOT_RATE) {
+                rates.put(qmDemand.mQM, rate);
+            }
+        }
+        List<QMRef> result = topByRate(rates, max);
+        if (localLOGV) {
+            Log.v(TAG, String.format("Hot QMs for %s: %d of %d", packageName,
+                                     result.size(), pkg.mQMs.size()));
+        }
+        return result;
+    }
+
+    public synchronized void forgetPackage(String packageName) {
+        mPackages.remove(packageName);
+    }
+
+    private static <T> List<T> topByRate(final Map<T, Double> rates, int max) {
+        ArrayList<T> result = new ArrayList<>(rates.keySet());
+        Collections.sort(result, new Comparator<T>() {
+            @Override
+            public int compare(T lhs, T rhs) {
+                return Double.compare(rates.get(rhs), rates.get(lhs));
+            }
+        });
+        if (result.size() > max) {
+            result.subList(Math.max(0, max), result.size()).clear();
+        }
+        return result;
+    }
+}
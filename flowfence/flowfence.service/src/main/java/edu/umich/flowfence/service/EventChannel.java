@@ -20,6 +20,7 @@ import android.content.ComponentName;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.SparseArray;
@@ -27,7 +28,9 @@ import android.util.SparseArray;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,11 +39,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umich.flowfence.common.CallFlags;
 import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.ChannelStats;
 import edu.umich.flowfence.common.ParceledPayload;
 import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.StreamRecord;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.events.IEventChannelReceiver;
 import edu.umich.flowfence.events.IEventChannelSender;
@@ -65,19 +71,66 @@ public final class EventChannel {
             "both"
     };
 
+    // What to do with an event for a subscriber whose queue is full. Blocking is the default,
+    // since it's the only one that doesn't lose events; channels that would rather not hold up
+    // the firing QM ask for one of the others.
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+
+    private static final String[] overflowOptions = {
+            "block",
+            "drop-oldest",
+            "drop-newest"
+    };
+
+    public static final int COALESCE_NONE = 0;
+    public static final int COALESCE_LATEST = 1;
+
+    private static final String[] coalesceOptions = {
+            "none",
+            "latest"
+    };
+
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+    private static final int DEFAULT_STREAM_SLOTS = 4;
+    private static final String STREAM_DIR = "streams";
+
     private final FlowfenceApplication mApplication;
     private final ComponentName mChannelName;
     private final boolean mExportsSubscribe;
     private final boolean mExportsFire;
+    private final int mQueueSize;
+    private final int mOverflowPolicy;
+    private final int mCoalescePolicy;
+    private final AtomicLong mFired = new AtomicLong();
     private final NamespaceSharedPrefs mPrefs;
-    private Map<QMRef, TaintSet> mInvocationList = new HashMap<>();
+    private Map<QMRef, Subscriber> mInvocationList = new HashMap<>();
     // TODO: transient receivers
 
+    // Streaming channels only.
+    private final boolean mIsStream;
+    private final int mRecordSize;
+    private final int mSlotCount;
+    private final TaintSet mStreamTaint;
+    private StreamBuffer mStream = null;
+    // Each attached writer's staging buffer.
+    private final Map<Sandbox, StreamBuffer.Staging> mStreamWriters = new HashMap<>();
+    private final Sandbox.EventHandler mWriterDisconnectHandler = new Sandbox.EventHandler() {
+        @Override
+        public boolean onEvent(String event, Sandbox sender, Object args) throws Exception {
+            onWriterDisconnected(sender);
+            return true;
+        }
+    };
+
     public EventChannel(String packageName, XmlResourceParser parser, Resources res)
             throws XmlPullParserException, IOException {
         mApplication = FlowfenceApplication.getInstance();
 
-        parser.require(XmlPullParser.START_TAG, "", "event-channel");
+        final String tagName = parser.getName();
+        parser.require(XmlPullParser.START_TAG, "", tagName);
+        mIsStream = "stream-channel".equals(tagName);
 
         String channelName = parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "name");
         if (channelName == null) {
@@ -91,29 +144,92 @@ public final class EventChannel {
             exports = 0;
         }
 
+        int queueSize = parser.getAttributeIntValue(Utils.FLOWFENCE_NAMESPACE, "queueSize",
+                DEFAULT_QUEUE_SIZE);
+        if (queueSize < 1) {
+            Log.w(TAG, "Bad flowfence:queueSize attribute "+queueSize+", using 1");
+            queueSize = 1;
+        }
+
+        int overflow = parser.getAttributeListValue(Utils.FLOWFENCE_NAMESPACE, "overflow", overflowOptions, -1);
+        if (overflow == -1) {
+            String overflowName = parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "overflow");
+            if (overflowName != null) {
+                // Guessing could mean losing events the app expects delivered.
+                throw new PolicyParseException("Bad flowfence:overflow attribute '" + overflowName +
+                                               "' on channel " + mChannelName);
+            }
+            overflow = OVERFLOW_BLOCK;
+        }
+
+        int coalesce = parser.getAttributeListValue(Utils.FLOWFENCE_NAMESPACE, "coalesce", coalesceOptions, -1);
+        if (coalesce == -1) {
+            if (parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "coalesce") != null) {
+                Log.w(TAG, "Can't understand flowfence:coalesce attribute, assuming none");
+            }
+            coalesce = COALESCE_NONE;
+        }
+        if (coalesce == COALESCE_LATEST &&
+                (parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "queueSize") != null ||
+                 parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "overflow") != null)) {
+            // A coalescing queue never holds more than one event, so it never overflows.
+            Log.w(TAG, "flowfence:queueSize and flowfence:overflow are ignored with " +
+                       "flowfence:coalesce=\"latest\" on channel " + mChannelName);
+        }
+
+        if (mIsStream) {
+            mRecordSize = parser.getAttributeIntValue(Utils.FLOWFENCE_NAMESPACE, "recordSize", 0);
+            if (mRecordSize <= 0) {
+                throw new PolicyParseException("Missing or bad flowfence:recordSize on stream "+mChannelName);
+            }
+            int slotCount = parser.getAttributeIntValue(Utils.FLOWFENCE_NAMESPACE, "slots",
+                    DEFAULT_STREAM_SLOTS);
+            if (slotCount < 2) {
+                Log.w(TAG, "Bad flowfence:slots attribute "+slotCount+", using 2");
+                slotCount = 2;
+            }
+            mSlotCount = slotCount;
+
+            TaintSet.Builder taint = new TaintSet.Builder();
+            String taintNames = parser.getAttributeValue(Utils.FLOWFENCE_NAMESPACE, "taint");
+            if (taintNames != null) {
+                for (String taintName : taintNames.split(",")) {
+                    taint.addTaint(new ComponentName(packageName, taintName.trim()));
+                }
+            }
+            mStreamTaint = taint.build();
+        } else {
+            mRecordSize = 0;
+            mSlotCount = 0;
+            mStreamTaint = TaintSet.EMPTY;
+        }
+
         Utils.skip(parser);
-        parser.require(XmlPullParser.END_TAG, "", "event-channel");
+        parser.require(XmlPullParser.END_TAG, "", tagName);
 
         mExportsSubscribe = (exports & 0x1) != 0;
         mExportsFire = (exports & 0x2) != 0;
+        mQueueSize = queueSize;
+        mOverflowPolicy = overflow;
+        mCoalescePolicy = coalesce;
 
         String prefsName = EVENT_CHANNEL_PREFIX + mChannelName.flattenToShortString().replace('/', ':');
         SharedPreferences prefs = mApplication.getSharedPreferences(prefsName, 0);
         mPrefs = NamespaceSharedPrefs.get(prefs, NS_TAINT_SET, NS_DESCRIPTOR_TAINT);
     }
 
-    private synchronized Map<QMRef, TaintSet> getInvocationList() throws Exception {
+    private synchronized Map<QMRef, Subscriber> getInvocationList() throws Exception {
         if (mInvocationList == null) {
             Set<String> stringDescs = mPrefs.getStringSet(NS_SUBSCRIBERS, KEY_SUBSCRIBERS,
                     Collections.<String>emptySet());
 
-            Map<QMRef, TaintSet> invList = new HashMap<>(stringDescs.size());
+            Map<QMRef, Subscriber> invList = new HashMap<>(stringDescs.size());
 
             for (String descStr : stringDescs) {
                 QMDescriptor desc = QMDescriptor.parse(descStr);
                 QMRef ref = mApplication.resolveQM(desc, 0);
                 TaintSet ts = mPrefs.getTaint(NS_DESCRIPTOR_TAINT, descStr, TaintSet.EMPTY);
-                invList.put(ref, ts);
+                invList.put(ref, new Subscriber(ref, ts));
             }
 
             mInvocationList = invList;
@@ -122,6 +238,10 @@ public final class EventChannel {
         return mInvocationList;
     }
 
+    private synchronized List<Subscriber> getSubscribers() throws Exception {
+        return new ArrayList<>(getInvocationList().values());
+    }
+
     public synchronized void subscribe(QMDescriptor desc, QMRef ref, TaintSet ts) throws Exception {
         String packageName = desc.definingClass.getPackageName();
         if (!mExportsSubscribe && !packageName.equals(mChannelName.getPackageName())) {
@@ -139,7 +259,10 @@ public final class EventChannel {
                 ref = mApplication.resolveQM(desc, 0);
             }
 
-            getInvocationList().put(ref, ts);
+            Subscriber old = getInvocationList().put(ref, new Subscriber(ref, ts));
+            if (old != null) {
+                old.close();
+            }
 
             currentDescriptors = new HashSet<>(currentDescriptors);
             currentDescriptors.add(descString);
@@ -171,7 +294,10 @@ public final class EventChannel {
                     // and we've previously initialized the list.
                     ref = mApplication.resolveQM(desc, 0);
                 }
-                mInvocationList.remove(ref);
+                Subscriber old = mInvocationList.remove(ref);
+                if (old != null) {
+                    old.close();
+                }
             }
 
             NamespaceSharedPrefs.Editor editor = mPrefs.edit();
@@ -200,64 +326,56 @@ public final class EventChannel {
         @Override
         public void fire(List<ParceledPayload> parceledArgs, TaintSet extraTaint) throws RemoteException {
             Sandbox caller = Sandbox.getCallingSandbox();
-            String packageName = caller.getAssignedPackage();
-            Objects.requireNonNull(packageName);
-            if (!mExportsFire && !packageName.equals(mChannelName.getPackageName())) {
-                throw new SecurityException("Package "+packageName+" can't fire channel "+mChannelName.flattenToShortString());
+            checkCanFire(caller);
+            if (mIsStream) {
+                releaseAll(parceledArgs);
+                throw new IllegalStateException("Channel "+mChannelName.flattenToShortString()+" is a stream");
             }
             if (parceledArgs == null) {
                 parceledArgs = Collections.emptyList();
             }
-            List<CallParam> callParamList = new ArrayList<>(parceledArgs.size());
 
+            mFired.incrementAndGet();
             TaintSet ts = caller.getTaints();
 
             if (extraTaint != null && !TaintSet.EMPTY.equals(extraTaint)) {
                 ts = ts.asBuilder().unionWith(extraTaint).build();
             }
 
-            for (ParceledPayload payload : parceledArgs) {
-                CallParam cp = new CallParam();
-                cp.setData(payload, 0);
-                callParamList.add(cp);
-            }
-
-            callParamList = Collections.unmodifiableList(callParamList);
-            Map<QMRef, TaintSet> invocationList;
+            List<Subscriber> subscribers;
             try {
-                invocationList = getInvocationList();
+                subscribers = getSubscribers();
             } catch (Exception e) {
                 Log.e(TAG, "Error getting invocation list for channel "+mChannelName.flattenToShortString(), e);
+                releaseAll(parceledArgs);
                 return;
             }
 
-            List<CallRecord> records = new ArrayList<>(invocationList.size());
-            for (Map.Entry<QMRef, TaintSet> receiver : invocationList.entrySet()) {
-                QMRef ref = receiver.getKey();
-                try {
-                    TaintSet callTaint = ts;
-                    TaintSet subscriptionTaint = receiver.getValue();
-
-                    if (!TaintSet.EMPTY.equals(subscriptionTaint)) {
-                        callTaint = callTaint.asBuilder().unionWith(subscriptionTaint).build();
-                    }
-
-                    final int flags = CallFlags.CALL_ASYNC | CallFlags.NO_RETURN_VALUE;
-                    CallRecord record = new CallRecord(ref, flags, callParamList, callTaint);
-                    records.add(record);
-
-                    // Deallocate the output handles now, we don't need them (since there's nowhere to pass them to).
-                    SparseArray<Handle> outputs = record.getOutHandles();
-                    for (int i = 0; i < outputs.size(); i++) {
-                        outputs.valueAt(i).release();
+            // Only the enqueue happens here; the calls themselves are made on a background
+            // thread, so the firing sandbox isn't held up by slow subscribers.
+            try {
+                for (Subscriber subscriber : subscribers) {
+                    // Each event holds its own payload references, which its call releases,
+                    // so large payloads are shared between subscribers rather than copied.
+                    List<CallParam> callParamList = new ArrayList<>(parceledArgs.size());
+                    for (ParceledPayload payload : parceledArgs) {
+                        CallParam cp = new CallParam();
+                        cp.setData(payload.acquire(), 0);
+                        callParamList.add(cp);
                     }
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error firing "+ref.getDescriptor()+" for channel "+mChannelName.flattenToShortString(), t);
+                    subscriber.enqueue(Collections.unmodifiableList(callParamList), ts);
                 }
+            } finally {
+                releaseAll(parceledArgs);
             }
+        }
 
-            for (CallRecord record : records) {
-                record.waitForReady();
+        private void releaseAll(List<ParceledPayload> payloads) {
+            if (payloads == null) {
+                return;
+            }
+            for (ParceledPayload payload : payloads) {
+                payload.release();
             }
         }
 
@@ -270,9 +388,392 @@ public final class EventChannel {
         public void deregisterTransientReceiver(IEventChannelReceiver receiver) throws RemoteException {
             // TODO
         }
+
+        @Override
+        public ParcelFileDescriptor attachStream(boolean forWrite, boolean needDescriptor) {
+            Sandbox caller = Sandbox.getCallingSandbox();
+            StreamBuffer stream = getStream();
+            if (forWrite) {
+                checkCanFire(caller);
+                // Anything the writer copies in is labelled with the stream's taint alone,
+                // so it can't be allowed to see anything more sensitive.
+                caller.restrictTaint(mStreamTaint);
+                // Writers only get their own staging buffer, never the stream itself.
+                try {
+                    StreamBuffer.Staging staging;
+                    synchronized (mStreamWriters) {
+                        staging = mStreamWriters.get(caller);
+                        if (staging == null) {
+                            staging = stream.newStaging();
+                            mStreamWriters.put(caller, staging);
+                            caller.onDisconnected.register(EventChannel.this, mWriterDisconnectHandler);
+                        }
+                    }
+                    return needDescriptor ? staging.dupDescriptor() : null;
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't share stream for "+mChannelName.flattenToShortString(), e);
+                    throw new IllegalStateException(e.getMessage());
+                }
+            } else {
+                String packageName = Objects.requireNonNull(caller.getAssignedPackage());
+                if (!mExportsSubscribe && !packageName.equals(mChannelName.getPackageName())) {
+                    throw new SecurityException("Package "+packageName+" can't read stream "+mChannelName.flattenToShortString());
+                }
+                caller.addTaint(mStreamTaint);
+            }
+
+            if (!needDescriptor) {
+                return null;
+            }
+            try {
+                return stream.dupReadDescriptor();
+            } catch (IOException e) {
+                Log.e(TAG, "Can't share stream for "+mChannelName.flattenToShortString(), e);
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        @Override
+        public long publishStreamRecord(int length) {
+            Sandbox caller = Sandbox.getCallingSandbox();
+            StreamBuffer stream = getStream();
+            StreamBuffer.Staging staging = getStaging(caller);
+            if (!caller.getTaints().isSubsetOf(mStreamTaint)) {
+                throw new SecurityException("Sandbox taint exceeds stream "+mChannelName.flattenToShortString());
+            }
+
+            StreamRecord record = stream.publish(staging, length);
+            if (record == null) {
+                return -1;
+            }
+            int slot = record.slot;
+            mFired.incrementAndGet();
+            ParceledPayload payload = null;
+            try {
+                List<Subscriber> subscribers = getSubscribers();
+                payload = ParceledPayload.create(record);
+                // Each delivery holds the slot until its call finishes, so it isn't reused
+                // for another record while this one is still being read.
+                for (Subscriber subscriber : subscribers) {
+                    stream.acquire(slot);
+                    CallParam cp = new CallParam();
+                    cp.setData(payload.acquire(), 0);
+                    subscriber.enqueue(Collections.singletonList(cp), mStreamTaint,
+                                       newSlotRelease(stream, slot));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error getting invocation list for channel "+mChannelName.flattenToShortString(), e);
+            } finally {
+                if (payload != null) {
+                    payload.release();
+                }
+                stream.release(slot);
+            }
+            return record.sequence;
+        }
     };
 
+    private void checkCanFire(Sandbox caller) {
+        String packageName = caller.getAssignedPackage();
+        Objects.requireNonNull(packageName);
+        if (!mExportsFire && !packageName.equals(mChannelName.getPackageName())) {
+            throw new SecurityException("Package "+packageName+" can't fire channel "+mChannelName.flattenToShortString());
+        }
+    }
+
+    private synchronized StreamBuffer getStream() {
+        if (!mIsStream) {
+            throw new IllegalStateException("Channel "+mChannelName.flattenToShortString()+" is not a stream");
+        }
+        if (mStream == null) {
+            // Allocated on first use; most declared channels are never streamed to.
+            File dir = new File(mApplication.getCacheDir(), STREAM_DIR);
+            try {
+                mStream = new StreamBuffer(mChannelName, dir, mRecordSize, mSlotCount);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't allocate stream for "+mChannelName.flattenToShortString(), e);
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return mStream;
+    }
+
+    private StreamBuffer.Staging getStaging(Sandbox caller) {
+        synchronized (mStreamWriters) {
+            StreamBuffer.Staging staging = mStreamWriters.get(caller);
+            if (staging == null) {
+                throw new SecurityException("Sandbox hasn't attached to stream "+mChannelName.flattenToShortString());
+            }
+            return staging;
+        }
+    }
+
+    private void onWriterDisconnected(Sandbox writer) {
+        StreamBuffer.Staging staging;
+        synchronized (mStreamWriters) {
+            staging = mStreamWriters.remove(writer);
+        }
+        if (staging != null) {
+            try {
+                staging.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Can't close staging buffer for "+mChannelName.flattenToShortString(), e);
+            }
+        }
+    }
+
+    private static Runnable newSlotRelease(final StreamBuffer stream, final int slot) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                stream.release(slot);
+            }
+        };
+    }
+
     public IEventChannelSender getSender() {
         return sender;
     }
+
+    public boolean isStream() {
+        return mIsStream;
+    }
+
+    public int getQueueSize() {
+        return mQueueSize;
+    }
+
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public int getCoalescePolicy() {
+        return mCoalescePolicy;
+    }
+
+    /**
+     * Returns the channel's counters, summed over its current subscribers.
+     */
+    public ChannelStats getChannelStats() throws Exception {
+        ChannelStats stats = new ChannelStats();
+        stats.channelName = mChannelName;
+        stats.fired = mFired.get();
+        for (QueueStats queue : getQueueStats()) {
+            stats.subscribers++;
+            stats.delivered += queue.delivered;
+            stats.dropped += queue.dropped;
+            stats.coalesced += queue.coalesced;
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the dispatch queue for each current subscriber.
+     */
+    public List<QueueStats> getQueueStats() throws Exception {
+        List<Subscriber> subscribers = getSubscribers();
+        List<QueueStats> stats = new ArrayList<>(subscribers.size());
+        for (Subscriber subscriber : subscribers) {
+            stats.add(subscriber.getStats());
+        }
+        return stats;
+    }
+
+    public static final class QueueStats {
+        public final QMDescriptor subscriber;
+        public final int depth;
+        public final int maxDepth;
+        public final long delivered;
+        public final long dropped;
+        public final long coalesced;
+
+        private QueueStats(QMDescriptor subscriber, int depth, int maxDepth,
+                           long delivered, long dropped, long coalesced) {
+            this.subscriber = subscriber;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.coalesced = coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: depth %d (max %d), delivered %d, dropped %d, coalesced %d",
+                    subscriber, depth, maxDepth, delivered, dropped, coalesced);
+        }
+    }
+
+    private static final class Event {
+        public final List<CallParam> params;
+        public final TaintSet taint;
+        // Run once the event has been delivered or dropped; may be null.
+        public final Runnable onFinished;
+
+        public Event(List<CallParam> params, TaintSet taint, Runnable onFinished) {
+            this.params = params;
+            this.taint = taint;
+            this.onFinished = onFinished;
+        }
+
+        public void discard() {
+            CallParam.releasePayloads(params);
+            if (onFinished != null) {
+                onFinished.run();
+            }
+        }
+    }
+
+    /**
+     * A bounded queue of events waiting to be delivered to one subscriber. Events are
+     * delivered one at a time and in order; the next call is only made once the previous
+     * one has finished. On a coalescing channel, at most one event waits: a new event
+     * replaces it, carrying the taint of both.
+     */
+    private final class Subscriber {
+        private final QMRef mRef;
+        private final TaintSet mSubscriptionTaint;
+        private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+        private boolean mDispatching = false;
+        private boolean mClosed = false;
+        private int mMaxDepth = 0;
+        private long mDelivered = 0;
+        private long mDropped = 0;
+        private long mCoalesced = 0;
+
+        private final Runnable mDispatchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                dispatchNext();
+            }
+        };
+
+        private final Runnable mCompleteRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mApplication.getBackgroundExecutor().submit(mDispatchRunnable);
+            }
+        };
+
+        public Subscriber(QMRef ref, TaintSet subscriptionTaint) {
+            mRef = ref;
+            mSubscriptionTaint = TaintSet.nullToEmpty(subscriptionTaint);
+        }
+
+        public void enqueue(List<CallParam> params, TaintSet taint) {
+            enqueue(params, taint, null);
+        }
+
+        public void enqueue(List<CallParam> params, TaintSet taint, Runnable onFinished) {
+            if (!TaintSet.EMPTY.equals(mSubscriptionTaint)) {
+                taint = taint.asBuilder().unionWith(mSubscriptionTaint).build();
+            }
+            Event event = new Event(params, taint, onFinished);
+
+            synchronized (this) {
+                if (mCoalescePolicy == COALESCE_LATEST && !mClosed && !mQueue.isEmpty()) {
+                    // The pending event's data is discarded, but its taint may still have
+                    // influenced the firing QM, so keep it.
+                    Event pending = mQueue.removeLast();
+                    TaintSet merged = pending.taint.asBuilder().unionWith(event.taint).build();
+                    pending.discard();
+                    mQueue.addLast(new Event(params, merged, onFinished));
+                    mCoalesced++;
+                    return;
+                }
+
+                while (!mClosed && mQueue.size() >= mQueueSize) {
+                    if (mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                        onDropLocked(mQueue.removeFirst());
+                    } else if (mOverflowPolicy == OVERFLOW_DROP_NEWEST) {
+                        onDropLocked(event);
+                        return;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            onDropLocked(event);
+                            return;
+                        }
+                    }
+                }
+
+                if (mClosed) {
+                    event.discard();
+                    return;
+                }
+
+                mQueue.addLast(event);
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+                if (!mDispatching) {
+                    mDispatching = true;
+                    mApplication.getBackgroundExecutor().submit(mDispatchRunnable);
+                }
+            }
+        }
+
+        private void onDropLocked(Event event) {
+            event.discard();
+            mDropped++;
+            if (localLOGD) {
+                Log.d(TAG, String.format("Dropped event on %s for %s (%d dropped)",
+                        mChannelName.flattenToShortString(), mRef.getDescriptor(), mDropped));
+            }
+        }
+
+        private void dispatchNext() {
+            final Event event;
+            synchronized (this) {
+                event = mClosed ? null : mQueue.pollFirst();
+                if (event == null) {
+                    mDispatching = false;
+                    return;
+                }
+                mDelivered++;
+                notifyAll();
+            }
+
+            Runnable onComplete = mCompleteRunnable;
+            if (event.onFinished != null) {
+                onComplete = new Runnable() {
+                    @Override
+                    public void run() {
+                        event.onFinished.run();
+                        mCompleteRunnable.run();
+                    }
+                };
+            }
+
+            try {
+                final int flags = CallFlags.CALL_ASYNC | CallFlags.NO_RETURN_VALUE;
+                CallRecord record = new CallRecord(mRef, flags, event.params, event.taint,
+                                                   0, null, onComplete);
+
+                // Deallocate the output handles now, we don't need them (since there's nowhere to pass them to).
+                SparseArray<Handle> outputs = record.getOutHandles();
+                for (int i = 0; i < outputs.size(); i++) {
+                    outputs.valueAt(i).release();
+                }
+            } catch (Throwable t) {
+                Log.e(TAG, "Error firing "+mRef.getDescriptor()+" for channel "+mChannelName.flattenToShortString(), t);
+                event.discard();
+                mCompleteRunnable.run();
+            }
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            for (Event event : mQueue) {
+                event.discard();
+            }
+            mQueue.clear();
+            notifyAll();
+        }
+
+        public synchronized QueueStats getStats() {
+            return new QueueStats(mRef.getDescriptor(), mQueue.size(), mMaxDepth,
+                                  mDelivered, mDropped, mCoalesced);
+        }
+    }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Waiting work, kept in one FIFO per tenant (the package that will run it) and served by
+ * deficit round robin. Each time a tenant's turn comes up, it earns credit equal to its
+ * weight, and each item it's granted costs one credit. A tenant whose items can't be served
+ * right now gives up its turn, keeping at most one turn's worth of credit.
+ *
+ * Items also have a priority class, 0 being the most urgent. Each class takes turns
+ * separately, and a class is only served once nothing in a more urgent class can be.
+ *
+ * Tenants may also be capped on how many items they have running at once. Capped tenants keep
+ * their place in line, but are skipped until something of theirs finishes.
+ *
+ * Not thread-safe; the owner synchronizes.
+ */
+/*package*/ final class FairQueue<T> {
+    private static final String TAG = "FF.FairQueue";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 100;
+
+    /**
+     * Hands out whatever the queued items are waiting for.
+     */
+    public interface Server<T> {
+        /**
+         * @return True if item was granted what it was waiting for, and should leave the queue.
+         */
+        boolean tryServe(T item);
+
+        /**
+         * @return False once nothing more can be granted to anything in priorityClass. A class
+         * never has capacity when a more urgent one doesn't.
+         */
+        boolean hasCapacity(int priorityClass);
+    }
+
+    // One tenant's items in one priority class.
+    private static final class Lane<T> {
+        public final Tenant<T> mTenant;
+        public final LinkedHashSet<T> mItems = new LinkedHashSet<>();
+        public int mDeficit = 0;
+        // True between the start of this lane's turn and the end of it.
+        public boolean mHasTurn = false;
+
+        public Lane(Tenant<T> tenant) {
+            mTenant = tenant;
+        }
+    }
+
+    private static final class Tenant<T> {
+        public final String mName;
+        public final ArrayList<Lane<T>> mLanes;
+        public int mWeight = DEFAULT_WEIGHT;
+        public int mRunning = 0;
+        public int mWaiting = 0;
+
+        public Tenant(String name, int classes) {
+            mName = name;
+            mLanes = new ArrayList<>(classes);
+            for (int i = 0; i < classes; i++) {
+                mLanes.add(new Lane<>(this));
+            }
+        }
+
+        public boolean isIdle() {
+            return mWaiting == 0 && mRunning == 0 && mWeight == DEFAULT_WEIGHT;
+        }
+    }
+
+    // Tenants by name. The null tenant holds items that can run in any package.
+    private final HashMap<String, Tenant<T>> mTenants = new HashMap<>();
+    // For each priority class, the lanes with waiting items, in turn order. The head is the lane
+    // whose turn it is.
+    private final ArrayList<ArrayDeque<Lane<T>>> mActive;
+    private final int mClasses;
+    private int mSize = 0;
+    private int mMaxRunning;
+
+    public FairQueue(int classes, int maxRunning) {
+        mClasses = classes;
+        mActive = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            mActive.add(new ArrayDeque<Lane<T>>());
+        }
+        mMaxRunning = maxRunning;
+    }
+
+    private Tenant<T> getTenant(String name) {
+        Tenant<T> tenant = mTenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant<>(name, mClasses);
+            mTenants.put(name, tenant);
+        }
+        return tenant;
+    }
+
+    private void forgetIfIdle(Tenant<T> tenant) {
+        if (tenant.isIdle()) {
+            mTenants.remove(tenant.mName);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void add(String tenantName, int priorityClass, T item) {
+        Tenant<T> tenant = getTenant(tenantName);
+        Lane<T> lane = tenant.mLanes.get(priorityClass);
+        if (!lane.mItems.add(item)) {
+            return;
+        }
+        mSize++;
+        tenant.mWaiting++;
+        if (lane.mItems.size() == 1) {
+            mActive.get(priorityClass).add(lane);
+        }
+    }
+
+    /**
+     * Takes an item out of the queue without serving it.
+     * @return True if it was waiting.
+     */
+    public boolean remove(String tenantName, int priorityClass, T item) {
+        Tenant<T> tenant = mTenants.get(tenantName);
+        if (tenant == null) {
+            return false;
+        }
+        Lane<T> lane = tenant.mLanes.get(priorityClass);
+        if (!lane.mItems.remove(item)) {
+            return false;
+        }
+        mSize--;
+        tenant.mWaiting--;
+        if (lane.mItems.isEmpty()) {
+            retire(priorityClass, lane);
+        }
+        return true;
+    }
+
+    // A lane with nothing left waiting leaves the turn order, and its unused credit is gone.
+    private void retire(int priorityClass, Lane<T> lane) {
+        mActive.get(priorityClass).remove(lane);
+        lane.mDeficit = 0;
+        lane.mHasTurn = false;
+        forgetIfIdle(lane.mTenant);
+    }
+
+    /**
+     * @return True if tenantName may start another item without going over its cap.
+     */
+    public boolean canStart(String tenantName) {
+        if (tenantName == null) {
+            return true;
+        }
+        Tenant<T> tenant = mTenants.get(tenantName);
+        return (tenant == null || tenant.mRunning < mMaxRunning);
+    }
+
+    /**
+     * Counts an item against its tenant's cap, whether or not it came through the queue.
+     */
+    public void onStarted(String tenantName) {
+        if (tenantName != null) {
+            getTenant(tenantName).mRunning++;
+        }
+    }
+
+    public void onFinished(String tenantName) {
+        Tenant<T> tenant = (tenantName != null) ? mTenants.get(tenantName) : null;
+        if (tenant == null || tenant.mRunning == 0) {
+            Log.w(TAG, "Finished more than started for " + tenantName);
+            return;
+        }
+        tenant.mRunning--;
+        forgetIfIdle(tenant);
+    }
+
+    public int setWeight(String tenantName, int weight) {
+        Tenant<T> tenant = getTenant(tenantName);
+        int oldWeight = tenant.mWeight;
+        tenant.mWeight = Math.max(1, Math.min(weight, MAX_WEIGHT));
+        forgetIfIdle(tenant);
+        return oldWeight;
+    }
+
+    public int getWeight(String tenantName) {
+        Tenant<T> tenant = mTenants.get(tenantName);
+        return (tenant != null) ? tenant.mWeight : DEFAULT_WEIGHT;
+    }
+
+    public int setMaxRunning(int maxRunning) {
+        int oldMax = mMaxRunning;
+        mMaxRunning = Math.max(1, maxRunning);
+        return oldMax;
+    }
+
+    public int getMaxRunning() {
+        return mMaxRunning;
+    }
+
+    /**
+     * Offers waiting items to the server in fair order, most urgent class first, until the
+     * server runs out or no waiting item can be served. Items are removed from the queue as
+     * they're granted.
+     */
+    public void serve(Server<T> server) {
+        for (int priorityClass = 0; priorityClass < mClasses; priorityClass++) {
+            if (!serveClass(priorityClass, server)) {
+                break;
+            }
+        }
+
+        if (localLOGV) {
+            Log.v(TAG, String.format("%d items waiting", mSize));
+        }
+    }
+
+    // Returns false once the server is out of capacity.
+    private boolean serveClass(int priorityClass, Server<T> server) {
+        ArrayDeque<Lane<T>> active = mActive.get(priorityClass);
+        // Turns in a row that granted nothing. Once every active lane has had one, stop.
+        int fruitlessTurns = 0;
+        while (!active.isEmpty() && fruitlessTurns < active.size()) {
+            if (!server.hasCapacity(priorityClass)) {
+                return false;
+            }
+            Lane<T> lane = active.peek();
+            Tenant<T> tenant = lane.mTenant;
+            if (!lane.mHasTurn) {
+                lane.mDeficit += tenant.mWeight;
+                lane.mHasTurn = true;
+            }
+
+            boolean granted = false;
+            Iterator<T> iter = lane.mItems.iterator();
+            while (iter.hasNext() && lane.mDeficit > 0 && canStart(tenant.mName) &&
+                    server.hasCapacity(priorityClass)) {
+                T item = iter.next();
+                if (server.tryServe(item)) {
+                    iter.remove();
+                    mSize--;
+                    tenant.mWaiting--;
+                    lane.mDeficit--;
+                    onStarted(tenant.mName);
+                    granted = true;
+                }
+            }
+            fruitlessTurns = granted ? 0 : fruitlessTurns + 1;
+
+            if (lane.mItems.isEmpty()) {
+                retire(priorityClass, lane);
+            } else if (lane.mDeficit > 0 && granted && !server.hasCapacity(priorityClass)) {
+                // Out of capacity mid-turn. The turn picks up here next time.
+                return false;
+            } else {
+                // Used up its credit, or couldn't use it. Either way, next lane.
+                active.add(active.poll());
+                lane.mDeficit = Math.min(lane.mDeficit, tenant.mWeight);
+                lane.mHasTurn = false;
+            }
+        }
+        return server.hasCapacity(priorityClass);
+    }
+}
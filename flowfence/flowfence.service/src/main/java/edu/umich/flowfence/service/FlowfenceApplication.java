@@ -34,6 +34,7 @@ import com.androidnetworking.AndroidNetworking;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -41,6 +42,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
+import edu.umich.flowfence.common.CacheStats;
+import edu.umich.flowfence.common.CallStats;
+import edu.umich.flowfence.common.ChannelStats;
 import edu.umich.flowfence.common.ExceptionResult;
 import edu.umich.flowfence.common.FlowfenceConstants;
 import edu.umich.flowfence.common.IFlowfenceService;
@@ -49,8 +53,10 @@ import edu.umich.flowfence.common.QMDescriptor;
 import edu.umich.flowfence.common.QMDetails;
 import edu.umich.flowfence.common.QMExceptionResult;
 import edu.umich.flowfence.common.ResolveFlags;
+import edu.umich.flowfence.common.RestartStats;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.policy.PackageManifest;
+import edu.umich.flowfence.policy.Policy;
 import edu.umich.flowfence.policy.PolicyParseException;
 import okhttp3.OkHttpClient;
 
@@ -67,6 +73,22 @@ public class FlowfenceApplication extends ContextWrapper {
                 new FlowfenceApplication(this).onCreate();
             }
         }
+
+        @Override
+        public void onTrimMemory(int level) {
+            super.onTrimMemory(level);
+            if (instance != null) {
+                instance.onTrimMemory(level);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            super.onLowMemory();
+            if (instance != null) {
+                instance.onTrimMemory(TRIM_MEMORY_COMPLETE);
+            }
+        }
     }
 
     private static FlowfenceApplication instance;
@@ -79,6 +101,9 @@ public class FlowfenceApplication extends ContextWrapper {
     private final HashMap<String, PackageManifest> mManifestMap = new HashMap<>();
     private final HashMap<QMDescriptor, QMRef> mResolvedMap = new HashMap<>();
     private final SandboxManager mSandboxManager;
+    private final PayloadCache mPayloadCache = new PayloadCache();
+    private final CallStatsCollector mCallStats = new CallStatsCollector();
+    private final ResolutionCache mResolutionCache;
 
     private final Handler mUIHandler = new Handler(getMainLooper());
     private final ExecutorService mBackgroundPool = Executors.newCachedThreadPool();
@@ -90,6 +115,7 @@ public class FlowfenceApplication extends ContextWrapper {
         super(base);
         instance = this;
         mSandboxManager = new SandboxManager();
+        mResolutionCache = new ResolutionCache(this);
         FileUtils.setPermissions(getDir("shared_prefs", 0), FileUtils.S_IRWXU|FileUtils.S_IRWXG, -1, -1);
         Log.i(TAG, "created");
     }
@@ -117,6 +143,11 @@ public class FlowfenceApplication extends ContextWrapper {
         mService = null;
     }
 
+    /* package */ void onTrimMemory(int level)
+    {
+        mSandboxManager.onTrimMemory(level);
+    }
+
     /* package */ FlowfenceService getService() {
         return mService;
     }
@@ -130,6 +161,14 @@ public class FlowfenceApplication extends ContextWrapper {
         return packageName;
     }
 
+    /* package */ PayloadCache getPayloadCache() {
+        return mPayloadCache;
+    }
+
+    /* package */ CallStatsCollector getCallStats() {
+        return mCallStats;
+    }
+
     public IFlowfenceService.Stub getBinder()
     {
         return mBinder;
@@ -145,7 +184,19 @@ public class FlowfenceApplication extends ContextWrapper {
             QMRef ref = mResolvedMap.get(descriptor);
             if (ref == null) {
                 boolean bestMatch = (flags & ResolveFlags.BEST_MATCH) != 0;
-                ref = new QMRef(descriptor, bestMatch, details);
+                QMDetails cached = ((flags & ResolveFlags.FORCE_RESOLVE) == 0) ?
+                        mResolutionCache.get(descriptor, bestMatch) : null;
+                if (cached != null) {
+                    ref = new QMRef(cached);
+                    if (details != null) {
+                        details.copyFrom(cached);
+                    }
+                } else {
+                    ref = new QMRef(descriptor, bestMatch, details);
+                    QMDetails resolved = new QMDetails();
+                    ref.getDetails(resolved);
+                    mResolutionCache.put(descriptor, bestMatch, resolved);
+                }
                 mResolvedMap.put(descriptor, ref);
             } else if ((flags & ResolveFlags.FORCE_RESOLVE) != 0) {
                 Sandbox sb = getSandboxForResolve(descriptor.definingClass.getPackageName());
@@ -186,6 +237,21 @@ public class FlowfenceApplication extends ContextWrapper {
             return mSandboxManager.setMaxSandboxCount(count);
         }
 
+        @Override
+        public int setSandboxAutoscale(int minCount, int maxCount, long idleMillis) {
+            return mSandboxManager.setAutoscale(minCount, maxCount, idleMillis);
+        }
+
+        @Override
+        public int getSandboxCapacity() {
+            return Sandbox.getCapacity();
+        }
+
+        @Override
+        public int setSandboxMemoryBudget(int kilobytes) {
+            return mSandboxManager.setMemoryBudget(kilobytes);
+        }
+
         @Override
         public int setMaxIdleCount(int count) {
             return mSandboxManager.setMaxIdleSandboxCount(count);
@@ -201,6 +267,26 @@ public class FlowfenceApplication extends ContextWrapper {
             return mSandboxManager.setMaxHotSpare(count);
         }
 
+        @Override
+        public int setMaxPrewarmed(int count) {
+            return mSandboxManager.setMaxPrewarmed(count);
+        }
+
+        @Override
+        public int setMaxPreloadedPackages(int count) {
+            return Sandbox.setMaxPreloadedPackages(count);
+        }
+
+        @Override
+        public int setPackageWeight(String packageName, int weight) {
+            return mSandboxManager.setPackageWeight(checkPackageName(packageName), weight);
+        }
+
+        @Override
+        public int setMaxRunningPerPackage(int count) {
+            return mSandboxManager.setMaxRunningPerPackage(count);
+        }
+
 
         @Override
         public synchronized void restartSandbox(int sandboxId) {
@@ -215,7 +301,7 @@ public class FlowfenceApplication extends ContextWrapper {
         @Override
         public void forceGarbageCollection() throws RemoteException {
             System.gc();
-            for (int i = 0; i < FlowfenceConstants.NUM_SANDBOXES; i++) {
+            for (int i = 0; i < Sandbox.getCapacity(); i++) {
                 Sandbox.get(i).gc();
             }
             System.gc();
@@ -224,7 +310,7 @@ public class FlowfenceApplication extends ContextWrapper {
         @Override
         public Debug.MemoryInfo dumpMemoryInfo(List<Debug.MemoryInfo> sandboxInfo) throws RemoteException {
             sandboxInfo.clear();
-            for (int i = 0; i < FlowfenceConstants.NUM_SANDBOXES; i++) {
+            for (int i = 0; i < Sandbox.getCapacity(); i++) {
                 sandboxInfo.add(Sandbox.get(i).getMemoryInfo());
             }
 
@@ -233,6 +319,48 @@ public class FlowfenceApplication extends ContextWrapper {
             return rv;
         }
 
+        @Override
+        public CacheStats getPayloadCacheStats(List<CacheStats> sandboxDecodeStats) throws RemoteException {
+            sandboxDecodeStats.clear();
+            for (int i = 0; i < Sandbox.getCapacity(); i++) {
+                sandboxDecodeStats.add(Sandbox.get(i).getDecodeCacheStats());
+            }
+            return mPayloadCache.getStats();
+        }
+
+        @Override
+        public CacheStats getPolicyCacheStats() throws RemoteException {
+            return Policy.getDecisionCacheStats();
+        }
+
+        @Override
+        public List<CallStats> getCallStats() throws RemoteException {
+            return mCallStats.getStats();
+        }
+
+        @Override
+        public List<RestartStats> getRestartStats() throws RemoteException {
+            List<RestartStats> stats = new ArrayList<>(Sandbox.getCapacity());
+            for (int i = 0; i < Sandbox.getCapacity(); i++) {
+                stats.add(Sandbox.get(i).getRestartStats());
+            }
+            return stats;
+        }
+
+        @Override
+        public ChannelStats getChannelStats(ComponentName channelName) throws RemoteException {
+            EventChannel channel = getChannel(channelName);
+            if (channel == null) {
+                return null;
+            }
+            try {
+                return channel.getChannelStats();
+            } catch (Exception e) {
+                Log.e(TAG, "Can't get stats for "+channelName.flattenToShortString(), e);
+                return null;
+            }
+        }
+
         private final ExceptionResult<Boolean> TRUE_RESULT = new ExceptionResult<>(Boolean.TRUE);
         private final ExceptionResult<Boolean> FALSE_RESULT = new ExceptionResult<>(Boolean.FALSE);
         private ExceptionResult<Boolean> resultFor(boolean result) {
@@ -283,6 +411,28 @@ public class FlowfenceApplication extends ContextWrapper {
                 return new ExceptionResult<>(t);
             }
         }
+
+        @Override
+        public ExceptionResult<Boolean> subscribeSharedPrefs(String packageName, String storeName,
+                                                             QMDescriptor desc) {
+            try {
+                return resultFor(FlowfenceApplication.this.subscribeSharedPrefs(
+                        packageName, storeName, desc, Sandbox.getCallingTaint()));
+            } catch (Throwable t) {
+                return new ExceptionResult<>(t);
+            }
+        }
+
+        @Override
+        public ExceptionResult<Boolean> unsubscribeSharedPrefs(String packageName, String storeName,
+                                                               QMDescriptor desc) {
+            try {
+                return resultFor(FlowfenceApplication.this.unsubscribeSharedPrefs(
+                        packageName, storeName, desc));
+            } catch (Throwable t) {
+                return new ExceptionResult<>(t);
+            }
+        }
     };
 
     /* package */ Sandbox getSandboxForResolve(String packageName) {
@@ -299,6 +449,10 @@ public class FlowfenceApplication extends ContextWrapper {
         mSandboxManager.putSandbox(sb);
     }
 
+    /* package */ DemandModel getDemandModel() {
+        return mSandboxManager.getDemandModel();
+    }
+
     public Handler getUIHandler() {
         return mUIHandler;
     }
@@ -329,8 +483,11 @@ public class FlowfenceApplication extends ContextWrapper {
     /* package */ void onPackageRemoved(String packageName) {
         mSandboxManager.onPackageRemoved(packageName);
         Sandbox.forgetKnownPackage(packageName);
+        mCallStats.forgetPackage(packageName);
+        mResolutionCache.forgetPackage(packageName);
         synchronized (mSync) {
             mManifestMap.remove(packageName);
+            Policy.invalidateDecisions();
             for (QMDescriptor descriptor : new HashSet<>(mResolvedMap.keySet())) {
                 if (descriptor.definingClass.getPackageName().equals(packageName)) {
                     mResolvedMap.remove(descriptor);
@@ -368,4 +525,14 @@ public class FlowfenceApplication extends ContextWrapper {
             return false;
         }
     }
+
+    /* package */ boolean subscribeSharedPrefs(String packageName, String storeName, QMDescriptor desc, TaintSet ts) throws Exception {
+        QMRef ref = resolveQM(desc, 0);
+        return KVSListeners.subscribe(checkPackageName(packageName), storeName, ref, ts);
+    }
+
+    /* package */ boolean unsubscribeSharedPrefs(String packageName, String storeName, QMDescriptor desc) throws Exception {
+        QMRef ref = resolveQM(desc, 0);
+        return KVSListeners.unsubscribe(checkPackageName(packageName), storeName, ref);
+    }
 }
@@ -24,6 +24,9 @@ import android.util.Log;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import edu.umich.flowfence.common.CallParam;
 import edu.umich.flowfence.common.CallResult;
@@ -78,16 +81,33 @@ public class Handle extends IHandle.Stub {
         DESTROYED
     };
 
-    private State mState = State.PENDING;
+    // One link in the list of calls waiting on this handle. Links are only ever pushed on the
+    // front, so a reader that has the head can walk the rest without locking.
+    private static final class Waiter {
+        public final CallRecord mRecord;
+        public final Waiter mNext;
 
-    // Lock: Protects all state.
+        public Waiter(CallRecord record, Waiter next) {
+            mRecord = record;
+            mNext = next;
+        }
+    }
+
+    // Replaces the waiter list once the value is complete; nothing can wait after that.
+    private static final Waiter WAITERS_CLOSED = new Waiter(null, null);
+
+    private volatile State mState = State.PENDING;
+
+    // Lock: Protects the value state below. The dependency graph (refcount and waiters) is
+    // lock-free, so completing a handle never holds this while calling into a CallRecord.
     // CV: Blocks until computation is complete.
     private final ConditionVariable mSyncRoot = new ConditionVariable();
 
-    private boolean mReleased = false;
-    // The set of calls waiting on us.
-    // TODO: Should this be weak? Or a set?
-    private Set<CallRecord> mSuccessors = new HashSet<>();
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+    // 1 until released, +1 for every successor. 0 means destroyed.
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    // The calls waiting on us, or WAITERS_CLOSED once complete.
+    private final AtomicReference<Waiter> mWaiters = new AtomicReference<>();
 
     // The CallRecord describing the call. Contains arguments and preds.
     private CallRecord mCallRecord;
@@ -95,15 +115,17 @@ public class Handle extends IHandle.Stub {
     // Used by finished calls.
     // The Sandbox that defined the value.
     private Sandbox mDefiningSandbox = null;
-    // The SandboxObjects that are live for this value.
-    private PerSandboxMap<ISandboxObject> mLiveValues = new PerSandboxMap<>();
-    // The marshaled value.
+    // The value, still live in the defining sandbox, or null. Only good while that sandbox is
+    // on the connection it had when the value was made, mLiveGeneration.
+    private ISandboxObject mLiveValue = null;
+    private int mLiveGeneration;
+    // The marshaled value. Made the first time the value has to leave its sandbox, then handed
+    // to every later consumer, so fanning out to many calls marshals once.
     private ParceledPayload mMarshaled = null;
     // The taint of the value.
     private TaintSet mTaint = TaintSet.EMPTY;
     // The exception that occurred when running the QM. Null if no exception.
     private Throwable mThrowable = null;
-    private Sandbox.EventHandler mHandler;
     private boolean mValueNull;
 
     private int mParamIndex;
@@ -121,7 +143,7 @@ public class Handle extends IHandle.Stub {
     }
 
     private void checkNotReleased() {
-        if (mReleased) {
+        if (mReleased.get()) {
             throw new HandleDestroyedException("Handle has been released");
         }
     }
@@ -141,31 +163,64 @@ public class Handle extends IHandle.Stub {
     }
 
     /**
-     * Add a CallRecord that depends on this value.
+     * Add a CallRecord that depends on this value. Each CallRecord must add itself only once.
      * @param succ The CallRecord to add.
      * @param releaseAtomic True to release() atomically with taking this reference.
      * @return True if the CallRecord needs to wait for {@link CallRecord#onDataReady(Handle)} on this Handle,
-     * false if it is already completed and/or already referenced by that CallRecord.
+     * false if it is already completed.
      */
     public boolean addSuccessor(CallRecord succ, boolean releaseAtomic) {
-        synchronized (mSyncRoot) {
+        if (!releaseAtomic) {
             checkNotReleased();
-            checkNotDestroyed();
-            if (releaseAtomic) {
-                mReleased = true;
+        }
+        acquireRef();
+        if (releaseAtomic && !mReleased.compareAndSet(false, true)) {
+            releaseRef();
+            throw new HandleDestroyedException("Handle has been released");
+        }
+
+        boolean needsWait = false;
+        Waiter head;
+        do {
+            head = mWaiters.get();
+            if (head == WAITERS_CLOSED) {
+                break;
             }
-            boolean needsWait = mSuccessors.add(succ) && mState == State.PENDING;
-            checkForDestroyLocked();
-            return needsWait;
+            needsWait = mWaiters.compareAndSet(head, new Waiter(succ, head));
+        } while (!needsWait);
+
+        if (releaseAtomic) {
+            // Drop the app's reference only now, so the handle can't be destroyed under us.
+            releaseRef();
         }
+        return needsWait;
     }
 
-    public boolean removeSuccessor(CallRecord succ) {
-        synchronized (mSyncRoot) {
-            checkNotDestroyed();
-            boolean didRemove = mSuccessors.remove(succ);
-            checkForDestroyLocked();
-            return didRemove;
+    /**
+     * Drops the reference a CallRecord took in {@link #addSuccessor}.
+     */
+    public void removeSuccessor(CallRecord succ) {
+        releaseRef();
+    }
+
+    private void acquireRef() {
+        int refs;
+        do {
+            refs = mRefCount.get();
+            if (refs == 0) {
+                throw new HandleDestroyedException("Handle destroyed");
+            }
+        } while (!mRefCount.compareAndSet(refs, refs + 1));
+    }
+
+    private void releaseRef() {
+        int refs = mRefCount.decrementAndGet();
+        if (refs == 0) {
+            synchronized (mSyncRoot) {
+                destroyLocked();
+            }
+        } else if (refs < 0) {
+            Log.wtf(TAG, "Reference count underflow on handle", new Exception());
         }
     }
 
@@ -186,7 +241,7 @@ public class Handle extends IHandle.Stub {
     public boolean isLiveIn(Sandbox sb) {
         synchronized (mSyncRoot) {
             checkComplete();
-            return mLiveValues.containsKey(sb);
+            return (getLiveValueLocked(sb) != null);
         }
     }
 
@@ -205,19 +260,7 @@ public class Handle extends IHandle.Stub {
     // If a handle hits 0 references, we mark it dead.
     // References are 1 ref if not released, +1 for every successor.
     public int getRefCount() {
-        synchronized (mSyncRoot) {
-            return getRefCountLocked();
-        }
-    }
-
-    private int getRefCountLocked() {
-        if (mState == State.DESTROYED) {
-            return 0;
-        } else {
-            int refcount = mReleased ? 0 : 1;
-            refcount += mSuccessors.size();
-            return refcount;
-        }
+        return Math.max(mRefCount.get(), 0);
     }
 
     public void onComplete(Sandbox sandbox, ISandboxObject hObj) {
@@ -227,55 +270,78 @@ public class Handle extends IHandle.Stub {
             mDefiningSandbox = sandbox;
             mValueNull = (hObj == null);
             if (!mValueNull) {
-                mLiveValues.put(sandbox, hObj);
-                mHandler = new Sandbox.EventHandler() {
-                    @Override
-                    public boolean onEvent(String event, Sandbox sender, Object args) throws Exception {
-                        marshalOut();
-                        return true;
-                    }
-                };
-                sandbox.onBeforeDisconnect.register(this, mHandler);
-                sandbox.onBeforeTaintAdd.register(this, mHandler);
+                mLiveValue = hObj;
+                mLiveGeneration = sandbox.getGeneration();
+                // The sandbox marshals us out before it's tainted further or disconnected.
                 sandbox.registerUnmarshalledObject(this, hObj);
             }
             mTaint = sandbox.getTaints();
             mThrowable = null;
-            callSuccessorsLocked();
         }
+        callSuccessors();
     }
 
     public void onException(Sandbox sandbox, Throwable t) {
+        onException(sandbox, sandbox.getTaints(), t);
+    }
+
+    /**
+     * Fails this handle with the given taint. The sandbox may be null if the call never got one.
+     */
+    /*package*/ void onException(Sandbox sandbox, TaintSet taint, Throwable t) {
         synchronized (mSyncRoot) {
             checkPending();
             mState = State.COMPLETE;
             mDefiningSandbox = sandbox;
             mThrowable = t;
-            mTaint = sandbox.getTaints();
-            callSuccessorsLocked();
+            mTaint = taint;
         }
+        callSuccessors();
     }
 
-    private void callSuccessorsLocked() {
-        for (CallRecord record : mSuccessors) {
-            record.onDataReady(this);
+    // Called without the lock held; the records we wake up may schedule themselves right here.
+    private void callSuccessors() {
+        for (Waiter w = mWaiters.getAndSet(WAITERS_CLOSED); w != null; w = w.mNext) {
+            w.mRecord.onDataReady(this);
         }
     }
 
+    private ISandboxObject getLiveValueLocked(Sandbox sb) {
+        return (mLiveValue != null && sb == mDefiningSandbox &&
+                sb.getGeneration() == mLiveGeneration) ? mLiveValue : null;
+    }
+
     private void unregisterMarshal() {
-        mDefiningSandbox.onBeforeDisconnect.unregister(mHandler);
-        mDefiningSandbox.onBeforeTaintAdd.unregister(mHandler);
         mDefiningSandbox.unregisterUnmarshalledObject(this);
     }
 
+    /**
+     * Marshals out the value, if it's still only held in sandbox. Called by the sandbox.
+     */
+    /*package*/ void marshalOutFrom(Sandbox sandbox) {
+        synchronized (mSyncRoot) {
+            if (mState == State.COMPLETE && mDefiningSandbox == sandbox) {
+                marshalOut();
+            }
+        }
+    }
+
     public void marshalOut() {
+        marshalOut(true);
+    }
+
+    /**
+     * @param share Whether to look for an identical payload to share in the PayloadCache. That
+     * costs a hash of the bytes, which a payload only used once won't earn back.
+     */
+    private void marshalOut(boolean share) {
         synchronized (mSyncRoot) {
             checkComplete();
             if (isMarshalled()) {
                 return;
             }
             try {
-                ISandboxObject obj = mLiveValues.get(mDefiningSandbox);
+                ISandboxObject obj = getLiveValueLocked(mDefiningSandbox);
                 if (obj == null) {
                     // shouldn't have happened - means the sandbox has been destroyed
                     Log.e(TAG, "Can't find live value to marshal out");
@@ -284,6 +350,10 @@ public class Handle extends IHandle.Stub {
                     ParceledPayloadExceptionResult result = obj.marshalOut();
                     if (result.isException()) {
                         mThrowable = result.getException();
+                    } else if (share) {
+                        // Share bytes with any identical value that's already been marshalled.
+                        mMarshaled = FlowfenceApplication.getInstance().getPayloadCache()
+                                .intern(getParamInfo().getTypeName(), result.getResult());
                     } else {
                         mMarshaled = result.getResult();
                     }
@@ -296,7 +366,6 @@ public class Handle extends IHandle.Stub {
                 mTaint = mDefiningSandbox.getTaints();
             }
             unregisterMarshal();
-            mHandler = null;
         }
     }
 
@@ -320,6 +389,12 @@ public class Handle extends IHandle.Stub {
         }
     }
 
+    // The calling record holds a reference until it's done preparing, so a lone reference on a
+    // released handle has to be its own.
+    private boolean isLastUse() {
+        return mReleased.get() && mRefCount.get() == 1;
+    }
+
     private CallParam getCallParam(Sandbox sb, int flags, CallRecord record) throws Exception {
         CallParam rv = new CallParam();
         synchronized (mSyncRoot) {
@@ -327,7 +402,7 @@ public class Handle extends IHandle.Stub {
             if (mThrowable != null) {
                 ParceledThrowable.throwUnchecked(mThrowable);
             }
-            ISandboxObject sbo = mLiveValues.get(sb);
+            ISandboxObject sbo = getLiveValueLocked(sb);
             if (sbo != null) {
                 // Do we need to marshal out? We don't if we're the last ones to use this.
                 if (isImmutable()) {
@@ -337,7 +412,7 @@ public class Handle extends IHandle.Stub {
                         Log.v(TAG, "Skipping marshal-out for immutable object " + toString());
                     }
                 } else {
-                    if (mReleased && mSuccessors.size() == 1 && mSuccessors.contains(record)) {
+                    if (isLastUse()) {
                         if (localLOGV) {
                             Log.v(TAG, "Skipping marshal-out for discarded object " + toString());
                         }
@@ -348,7 +423,7 @@ public class Handle extends IHandle.Stub {
                         }
                         marshalOut();
                     }
-                    mLiveValues.remove(sb);
+                    mLiveValue = null;
                     flags |= CallParam.HANDLE_RELEASE;
                 }
                 if (localLOGV) {
@@ -360,11 +435,12 @@ public class Handle extends IHandle.Stub {
                 if (localLOGV) {
                     Log.v(TAG, "Marshalling from storage " + toString());
                 }
-                marshalOut();
+                marshalOut(!isLastUse());
                 if (mValueNull) {
                     rv.setNull(flags);
                 } else {
-                    rv.setData(mMarshaled, flags);
+                    // The call releases its reference once the sandbox has the payload.
+                    rv.setData(mMarshaled.acquire(), flags);
                 }
             }
 
@@ -381,34 +457,34 @@ public class Handle extends IHandle.Stub {
         return g_mKnownImmutableTypes.contains(getParamInfo().getTypeName());
     }
 
-    private void checkForDestroyLocked() {
-        if (getRefCountLocked() == 0) {
+    private void destroyLocked() {
+        if (mState != State.DESTROYED) {
             if (localLOGV) {
                 Log.v(TAG, "Destroying "+this, new Exception());
             }
             // no references left - destroy
             if (mDefiningSandbox != null) {
-                mDefiningSandbox.onBeforeDisconnect.unregister(mHandler);
-                mDefiningSandbox.onBeforeTaintAdd.unregister(mHandler);
                 mDefiningSandbox.unregisterUnmarshalledObject(this);
             }
             /*
             // Shouldn't do this - let IBinder ref counting handle this.
-            for (ISandboxObject sbo : mLiveValues.values()) {
+            if (mLiveValue != null) {
                 try {
-                    sbo.destroy();
+                    mLiveValue.destroy();
                 } catch (RemoteException re) {
                     Log.e(TAG, "Failed to destroy ISandboxObject", re);
                 }
             }
             */
             mCallRecord = null;
-            mMarshaled = null;
-            mLiveValues = null;
+            if (mMarshaled != null) {
+                // Calls we've passed the value to hold their own references.
+                mMarshaled.release();
+                mMarshaled = null;
+            }
+            mLiveValue = null;
             mDefiningSandbox = null;
-            mHandler = null;
             mThrowable = null;
-            mSuccessors = null;
             mState = State.DESTROYED;
             mParamInfo = null;
         }
@@ -416,15 +492,15 @@ public class Handle extends IHandle.Stub {
 
     @Override
     public void release() {
-        synchronized (mSyncRoot) {
-            if (localLOGV) {
-                Log.v(TAG, "Releasing "+this, new Exception());
-            }
-            mReleased = true;
-            checkForDestroyLocked();
-            if (localLOGV && getRefCountLocked() > 0) {
-                Log.v(TAG, "Still have "+getRefCountLocked()+" successors on "+this);
-            }
+        if (localLOGV) {
+            Log.v(TAG, "Releasing "+this, new Exception());
+        }
+        if (!mReleased.compareAndSet(false, true)) {
+            return;
+        }
+        releaseRef();
+        if (localLOGV && getRefCount() > 0) {
+            Log.v(TAG, "Still have "+getRefCount()+" successors on "+this);
         }
     }
 
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import edu.umich.flowfence.common.CallFlags;
+import edu.umich.flowfence.common.CallParam;
+import edu.umich.flowfence.common.ParceledPayload;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * QMs subscribed to changes in key-value stores. Each commit becomes one call per subscriber,
+ * tainted with the taint of every key it changed, since even knowing that a key changed says
+ * something about what was written. Commits that land while a subscriber's previous call is
+ * still running are folded into its next call rather than queued behind it.
+ *
+ * A subscriber QM takes either no arguments, and reads the store itself, or a String[] of
+ * the keys that changed. Subscriptions are only kept in memory, so apps should subscribe
+ * each time they connect.
+ */
+/*package*/ final class KVSListeners {
+    private static final String TAG = "FF.KVSListeners";
+    private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    // By platform prefs name, then by QM.
+    private static final HashMap<String, Map<QMRef, Subscriber>> s_mSubscribers = new HashMap<>();
+
+    private KVSListeners() { }
+
+    /**
+     * @param ownerPackage The package that owns the store.
+     * @param ref The QM to call. Its package must be able to read the store.
+     * @param subscriptionTaint Added to every call, on top of the changed keys' taint.
+     * @return False if ref was already subscribed to this store.
+     */
+    public static boolean subscribe(String ownerPackage, String storeName, QMRef ref,
+                                    TaintSet subscriptionTaint) {
+        int paramCount = ref.getParamInfo().size();
+        if (paramCount > 1) {
+            throw new IllegalArgumentException(ref.getDescriptor() +
+                    " must take no arguments, or the changed keys as a String[]");
+        }
+        String readerPackage = ref.getDescriptor().definingClass.getPackageName();
+        if (!readerPackage.equals(ownerPackage) &&
+                !KVSSharedPrefs.isPublicReadable(ownerPackage, storeName)) {
+            throw new SecurityException("Package "+readerPackage+" can't read store "+storeName+
+                                        " of "+ownerPackage);
+        }
+
+        String platformName = KVSSharedPrefs.getPlatformName(ownerPackage, storeName);
+        Subscriber subscriber = new Subscriber(ref, readerPackage, paramCount == 1,
+                                               subscriptionTaint);
+        synchronized (s_mSubscribers) {
+            Map<QMRef, Subscriber> subscribers = s_mSubscribers.get(platformName);
+            if (subscribers == null) {
+                subscribers = new HashMap<>();
+                s_mSubscribers.put(platformName, subscribers);
+            } else if (subscribers.containsKey(ref)) {
+                return false;
+            }
+            Log.i(TAG, "Subscribing "+ref.getDescriptor()+" to "+platformName);
+            subscribers.put(ref, subscriber);
+            return true;
+        }
+    }
+
+    /**
+     * @return False if ref wasn't subscribed to this store.
+     */
+    public static boolean unsubscribe(String ownerPackage, String storeName, QMRef ref) {
+        String platformName = KVSSharedPrefs.getPlatformName(ownerPackage, storeName);
+        Subscriber old;
+        synchronized (s_mSubscribers) {
+            Map<QMRef, Subscriber> subscribers = s_mSubscribers.get(platformName);
+            old = (subscribers != null) ? subscribers.remove(ref) : null;
+            if (subscribers != null && subscribers.isEmpty()) {
+                s_mSubscribers.remove(platformName);
+            }
+        }
+        if (old == null) {
+            return false;
+        }
+        old.close();
+        return true;
+    }
+
+    /**
+     * Called once a commit's new values can be read.
+     * @param keys Every key the commit changed, removed, or retainted.
+     * @param taint The union of those keys' new taints.
+     * @param isPublicReadable Whether packages other than the owner may now read the store.
+     */
+    public static void onCommit(String platformName, String ownerPackage, Collection<String> keys,
+                                TaintSet taint, boolean isPublicReadable) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Subscriber[] subscribers;
+        synchronized (s_mSubscribers) {
+            Map<QMRef, Subscriber> map = s_mSubscribers.get(platformName);
+            if (map == null) {
+                return;
+            }
+            subscribers = map.values().toArray(new Subscriber[map.size()]);
+        }
+        for (Subscriber subscriber : subscribers) {
+            // The store may have stopped being public since the subscription was made.
+            if (isPublicReadable || subscriber.mPackage.equals(ownerPackage)) {
+                subscriber.enqueue(keys, taint);
+            }
+        }
+    }
+
+    private static final class Subscriber {
+        private final QMRef mRef;
+        private final String mPackage;
+        private final boolean mPassKeys;
+        private final TaintSet mSubscriptionTaint;
+        // What hasn't been delivered yet; mPendingKeys is null if nothing has changed since
+        // the last call was made.
+        private HashSet<String> mPendingKeys = null;
+        private TaintSet.Builder mPendingTaint = null;
+        private boolean mDispatching = false;
+        private boolean mClosed = false;
+
+        private final Runnable mDispatchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                dispatchNext();
+            }
+        };
+
+        private final Runnable mCompleteRunnable = new Runnable() {
+            @Override
+            public void run() {
+                FlowfenceApplication.getInstance().getBackgroundExecutor()
+                        .submit(mDispatchRunnable);
+            }
+        };
+
+        public Subscriber(QMRef ref, String packageName, boolean passKeys,
+                          TaintSet subscriptionTaint) {
+            mRef = ref;
+            mPackage = packageName;
+            mPassKeys = passKeys;
+            mSubscriptionTaint = TaintSet.nullToEmpty(subscriptionTaint);
+        }
+
+        public synchronized void enqueue(Collection<String> keys, TaintSet taint) {
+            if (mClosed) {
+                return;
+            }
+            if (mPendingKeys == null) {
+                mPendingKeys = new HashSet<>();
+                mPendingTaint = new TaintSet.Builder().unionWith(mSubscriptionTaint);
+            }
+            mPendingKeys.addAll(keys);
+            mPendingTaint.unionWith(taint);
+            if (!mDispatching) {
+                mDispatching = true;
+                FlowfenceApplication.getInstance().getBackgroundExecutor()
+                        .submit(mDispatchRunnable);
+            }
+        }
+
+        private void dispatchNext() {
+            final HashSet<String> keys;
+            final TaintSet taint;
+            synchronized (this) {
+                keys = mClosed ? null : mPendingKeys;
+                if (keys == null) {
+                    mDispatching = false;
+                    return;
+                }
+                taint = mPendingTaint.build();
+                mPendingKeys = null;
+                mPendingTaint = null;
+            }
+
+            List<CallParam> params = Collections.emptyList();
+            try {
+                if (mPassKeys) {
+                    CallParam cp = new CallParam();
+                    cp.setData(ParceledPayload.create(keys.toArray(new String[keys.size()])), 0);
+                    params = Collections.singletonList(cp);
+                }
+                if (localLOGD) {
+                    Log.d(TAG, "Calling "+mRef.getDescriptor()+" for "+keys.size()+" keys");
+                }
+                final int flags = CallFlags.CALL_ASYNC | CallFlags.NO_RETURN_VALUE;
+                CallRecord record = new CallRecord(mRef, flags, params, taint,
+                                                   0, null, mCompleteRunnable);
+
+                // Nothing to pass the outputs to.
+                SparseArray<Handle> outputs = record.getOutHandles();
+                for (int i = 0; i < outputs.size(); i++) {
+                    outputs.valueAt(i).release();
+                }
+            } catch (Throwable t) {
+                Log.e(TAG, "Error calling "+mRef.getDescriptor()+" for store change", t);
+                CallParam.releasePayloads(params);
+                mCompleteRunnable.run();
+            }
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            mPendingKeys = null;
+            mPendingTaint = null;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package edu.umich.flowfence.service;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -26,15 +27,19 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
 import edu.umich.flowfence.common.TaintSet;
+import edu.umich.flowfence.kvs.IKVSCacheListener;
 import edu.umich.flowfence.kvs.IRemoteSharedPrefs;
 import edu.umich.flowfence.kvs.IRemoteSharedPrefsEditor;
 import edu.umich.flowfence.kvs.IRemoteSharedPrefsListener;
+import edu.umich.flowfence.kvs.KVSBatch;
+import edu.umich.flowfence.kvs.KVSEntry;
 
 public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements AutoCloseable {
     private static final String TAG = "FF.SharedPrefs.Impl";
@@ -52,7 +57,15 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
 
     private static final String PLATFORM_NAME_PREFIX = "kvs" + SEPARATOR;
 
+    private static final Object REMOVED = new Object();
+
+    // Sandbox read caches, by platform prefs name. Every instance open on a store tells all of
+    // them about its commits, whichever sandbox they're in.
+    private static final HashMap<String, RemoteCallbackList<IKVSCacheListener>> s_mCacheListeners =
+            new HashMap<>();
+
     private final NamespaceSharedPrefs mPrefs;
+    private final String mPlatformName;
     private final FlowfenceApplication mContext;
     private final Sandbox mSandbox;
     private final String mOwningPackage;
@@ -63,6 +76,7 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
     private final boolean isWritable;
 
     private boolean isClosed;
+    private IKVSCacheListener mCacheListener;
 
 
     public final class Editor extends IRemoteSharedPrefsEditor.Stub {
@@ -71,6 +85,14 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         // Maps to null for deleted keys.
         private final HashMap<String, TaintSet.Builder> mPendingChanges = new HashMap<>();
         private final NamespaceSharedPrefs.Editor mEditor = mPrefs.edit();
+        // Union of the taints written by prepareChanges(), for change subscribers.
+        private final TaintSet.Builder mChangedTaint = new TaintSet.Builder();
+        // What this edit has put so far, for increments to build on; REMOVED for removed keys.
+        private final HashMap<String, Object> mPendingValues = new HashMap<>();
+        private boolean isCleared = false;
+        // Resolved against the stored values at commit; see resolveAtomicOps().
+        private final LinkedHashMap<String, Number> mIncrements = new LinkedHashMap<>();
+        private final HashMap<String, Object> mExpectations = new HashMap<>();
         private boolean isCommitted = false;
 
         private void throwIfCommitted() {
@@ -90,44 +112,77 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
             return ts;
         }
 
-        private synchronized void addTaintFromSandbox(String key) {
+        private synchronized void addTaintFromSandbox(String key, Object value) {
             throwIfCommitted();
             markModified(key);
+            // A put overrides any increment that came before it.
+            mIncrements.remove(key);
+            mPendingValues.put(key, value);
         }
 
         @Override
         public synchronized void putString(String key, String value) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, value);
             mEditor.putString(DATA, key, value);
         }
 
         @Override
         public synchronized void putStringSet(String key, List<String> values) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, values);
             mEditor.putStringSet(DATA, key, new HashSet<>(values));
         }
 
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized void putMany(Map values) {
+            for (Map.Entry<String, ?> entry : ((Map<String, ?>)values).entrySet()) {
+                putValue(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void putValue(String key, Object value) {
+            if (value == null) {
+                remove(key);
+            } else if (value instanceof String) {
+                putString(key, (String)value);
+            } else if (value instanceof Integer) {
+                putInt(key, (Integer)value);
+            } else if (value instanceof Long) {
+                putLong(key, (Long)value);
+            } else if (value instanceof Float) {
+                putFloat(key, (Float)value);
+            } else if (value instanceof Boolean) {
+                putBoolean(key, (Boolean)value);
+            } else if (value instanceof List) {
+                putStringSet(key, (List<String>)value);
+            } else {
+                throw new IllegalArgumentException("Can't store a " + value.getClass().getName() +
+                                                   " for " + key);
+            }
+        }
+
         @Override
         public synchronized void putInt(String key, int value) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, value);
             mEditor.putInt(DATA, key, value);
         }
 
         @Override
         public synchronized void putLong(String key, long value) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, value);
             mEditor.putLong(DATA, key, value);
         }
 
         @Override
         public synchronized void putFloat(String key, float value) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, value);
             mEditor.putFloat(DATA, key, value);
         }
 
         @Override
         public synchronized void putBoolean(String key, boolean value) {
-            addTaintFromSandbox(key);
+            addTaintFromSandbox(key, value);
             mEditor.putBoolean(DATA, key, value);
         }
 
@@ -160,6 +215,8 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         public synchronized void remove(String key) {
             throwIfCommitted();
             mPendingChanges.put(key, null);
+            mIncrements.remove(key);
+            mPendingValues.put(key, REMOVED);
             mEditor.remove(DATA, key);
         }
 
@@ -167,6 +224,9 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         public synchronized void clear() {
             throwIfCommitted();
             mPendingChanges.clear();
+            mIncrements.clear();
+            mPendingValues.clear();
+            isCleared = true;
             for (ImmutablePair<String, String> pair : mPrefs.getAll().keySet()) {
                 if (DATA.equals(pair.getLeft())) {
                     mPendingChanges.put(pair.getRight(), null);
@@ -175,6 +235,114 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
             }
         }
 
+        @Override
+        public synchronized void incrementInt(String key, int delta) {
+            addIncrement(key, delta);
+        }
+
+        @Override
+        public synchronized void incrementLong(String key, long delta) {
+            addIncrement(key, delta);
+        }
+
+        private void addIncrement(String key, Number delta) {
+            throwIfCommitted();
+            Number previous = mIncrements.get(key);
+            if (previous == null) {
+                mIncrements.put(key, delta);
+            } else if (previous instanceof Integer && delta instanceof Integer) {
+                mIncrements.put(key, previous.intValue() + delta.intValue());
+            } else if (previous instanceof Long && delta instanceof Long) {
+                mIncrements.put(key, previous.longValue() + delta.longValue());
+            } else {
+                throw new IllegalArgumentException("Mixed int and long increments of " + key);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized void expect(Map values) {
+            throwIfCommitted();
+            for (Map.Entry<String, ?> entry : ((Map<String, ?>)values).entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof List) {
+                    value = new HashSet<>((List<?>)value);
+                }
+                mExpectations.put(entry.getKey(), value);
+            }
+        }
+
+        // Call with the store locked, so nothing can change between the reads and the writes.
+        private synchronized boolean resolveAtomicOps() {
+            for (Map.Entry<String, Object> entry : mExpectations.entrySet()) {
+                checkReadKey(entry.getKey());
+                if (!holds(entry.getKey(), entry.getValue())) {
+                    if (localLOGD) {
+                        Log.d(TAG, "Expectation failed for " + mStoreName + '/' + entry.getKey());
+                    }
+                    return false;
+                }
+            }
+
+            for (Map.Entry<String, Number> entry : new ArrayList<>(mIncrements.entrySet())) {
+                String key = entry.getKey();
+                Number delta = entry.getValue();
+                Object pending = mPendingValues.get(key);
+                // Only reading the stored value taints us; a value this edit wrote doesn't.
+                boolean isStored = (pending == null && !isCleared);
+                if (isStored) {
+                    checkReadKey(key);
+                }
+                try {
+                    if (delta instanceof Integer) {
+                        int value;
+                        if (pending != null) {
+                            value = (pending != REMOVED) ? (Integer)pending : 0;
+                        } else {
+                            value = isStored ? mPrefs.getInt(DATA, key, 0) : 0;
+                        }
+                        putInt(key, value + delta.intValue());
+                    } else {
+                        long value;
+                        if (pending != null) {
+                            value = (pending != REMOVED) ? (Long)pending : 0L;
+                        } else {
+                            value = isStored ? mPrefs.getLong(DATA, key, 0L) : 0L;
+                        }
+                        putLong(key, value + delta.longValue());
+                    }
+                } catch (ClassCastException cce) {
+                    throw wrapClassCast(cce);
+                }
+            }
+            return true;
+        }
+
+        // Looked up as the type expected, so the store isn't copied; any other type doesn't match.
+        private boolean holds(String key, Object expected) {
+            if (!mPrefs.contains(DATA, key)) {
+                return expected == null;
+            }
+            try {
+                if (expected instanceof String) {
+                    return expected.equals(mPrefs.getString(DATA, key, null));
+                } else if (expected instanceof Integer) {
+                    return expected.equals(mPrefs.getInt(DATA, key, 0));
+                } else if (expected instanceof Long) {
+                    return expected.equals(mPrefs.getLong(DATA, key, 0L));
+                } else if (expected instanceof Float) {
+                    return expected.equals(mPrefs.getFloat(DATA, key, 0.0f));
+                } else if (expected instanceof Boolean) {
+                    return expected.equals(mPrefs.getBoolean(DATA, key, false));
+                } else if (expected instanceof Set) {
+                    return expected.equals(mPrefs.getStringSet(DATA, key, null));
+                }
+            } catch (ClassCastException e) {
+                // Stored as something else.
+            }
+            return false;
+        }
+
         @SuppressWarnings("unchecked")
         private synchronized void prepareChanges() {
             for (Map.Entry<String, TaintSet.Builder> entry : mPendingChanges.entrySet()) {
@@ -193,6 +361,7 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
                 if (localLOGV) {
                     Log.v(TAG, "Tainting " + mStoreName + '/' + key + " with " + ts);
                 }
+                mChangedTaint.unionWith(ts);
                 if (ts.equals(TaintSet.EMPTY)) {
                     mEditor.remove(TAINT, key);
                 } else {
@@ -207,26 +376,98 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
 
         @Override
         public synchronized boolean commit() {
+            return commitOrApply(true);
+        }
+
+        @Override
+        public synchronized void apply() {
+            commitOrApply(false);
+        }
+
+        private synchronized boolean commitOrApply(boolean isCommit) {
+            boolean result;
             // Synchronize on external SharedPrefs, to ensure that we don't get
             // the taint tag from before and the data from after (or vice-versa).
+            // The store itself is shared with every other instance open on it, so lock that
+            // too, or increments could read a value another instance is about to replace.
             synchronized (KVSSharedPrefs.this) {
-                prepareChanges();
-                return mEditor.commit();
+                synchronized (mPrefs) {
+                    if (!resolveAtomicOps()) {
+                        isCommitted = true;
+                        return false;
+                    }
+                    prepareChanges();
+                    if (isCommit) {
+                        result = mEditor.commit();
+                    } else {
+                        // apply() updates the in-memory values before it returns.
+                        mEditor.apply();
+                        result = true;
+                    }
+                }
             }
+            notifyCommitted();
+            return result;
         }
 
-        @Override
-        public void apply() {
-            synchronized (KVSSharedPrefs.this) {
-                prepareChanges();
-                mEditor.apply();
+        // Only once the new values can be read, or a cache could refill with the old ones,
+        // and a subscriber could be called before there's anything new to see.
+        private void notifyCommitted() {
+            List<String> keys = new ArrayList<>(mPendingChanges.keySet());
+            notifyCacheListeners(mPlatformName, keys);
+            KVSListeners.onCommit(mPlatformName, mOwningPackage, keys, mChangedTaint.build(),
+                                  canReadPublic);
+        }
+    }
+
+    private static void notifyCacheListeners(String platformName, List<String> keys) {
+        RemoteCallbackList<IKVSCacheListener> listeners;
+        synchronized (s_mCacheListeners) {
+            listeners = s_mCacheListeners.get(platformName);
+        }
+        if (listeners == null) {
+            return;
+        }
+        // Broadcasts on one list can't overlap.
+        synchronized (listeners) {
+            int count = listeners.beginBroadcast();
+            try {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        listeners.getBroadcastItem(i).onInvalidate(keys);
+                    } catch (RemoteException e) {
+                        // Sandbox died; RemoteCallbackList drops it for us.
+                    }
+                }
+            } finally {
+                listeners.finishBroadcast();
             }
         }
     }
 
-    private SharedPreferences getPlatformSharedPrefs(String store) {
-        final String prefsName = PLATFORM_NAME_PREFIX + mOwningPackage + SEPARATOR + store;
-        return mContext.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+    private static RemoteCallbackList<IKVSCacheListener> getCacheListeners(String platformName) {
+        synchronized (s_mCacheListeners) {
+            RemoteCallbackList<IKVSCacheListener> listeners = s_mCacheListeners.get(platformName);
+            if (listeners == null) {
+                listeners = new RemoteCallbackList<>();
+                s_mCacheListeners.put(platformName, listeners);
+            }
+            return listeners;
+        }
+    }
+
+    /*package*/ static String getPlatformName(String owningPackage, String store) {
+        return PLATFORM_NAME_PREFIX + owningPackage + SEPARATOR + store;
+    }
+
+    /**
+     * @return Whether packages other than owningPackage may read the store, as of its last commit.
+     */
+    /*package*/ static boolean isPublicReadable(String owningPackage, String store) {
+        SharedPreferences sp = FlowfenceApplication.getInstance().getSharedPreferences(
+                getPlatformName(owningPackage, store), Context.MODE_PRIVATE);
+        return NamespaceSharedPrefs.get(sp, TAINT_SET, TAINT)
+                .getBoolean(CONFIG, CONFIG_PUBLIC_READABLE, false);
     }
 
     @SuppressWarnings("deprecation")
@@ -238,7 +479,8 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         mStoreName = storeName;
         mOwningPackage = mContext.checkPackageName(owningPackage);
 
-        SharedPreferences sp = getPlatformSharedPrefs(storeName);
+        mPlatformName = getPlatformName(mOwningPackage, storeName);
+        SharedPreferences sp = mContext.getSharedPreferences(mPlatformName, Context.MODE_PRIVATE);
         mPrefs = NamespaceSharedPrefs.get(sp, TAINT_SET, TAINT);
 
         // Handle read and write permissions, as previously configured.
@@ -275,11 +517,13 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         }
     }
 
-    private void checkReadKey(String key) {
+    private TaintSet checkReadKey(String key) {
         checkRead();
+        TaintSet taint = mPrefs.getTaint(TAINT, key, TaintSet.EMPTY);
         if (mSandbox != null) {
-            mSandbox.addTaint(mPrefs.getTaint(TAINT, key, TaintSet.EMPTY));
+            mSandbox.addTaint(taint);
         }
+        return taint;
     }
 
     /**
@@ -392,9 +636,102 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
         }
     }
 
+    @Override
+    public synchronized KVSEntry read(String key) {
+        TaintSet taint = checkReadKey(key);
+        return new KVSEntry(mPrefs.get(DATA, key), taint);
+    }
+
+    @Override
+    public synchronized List<KVSEntry> readMany(List<String> keys) {
+        checkRead();
+        List<KVSEntry> entries = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            entries.add(read(key));
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return isWritable;
+    }
+
+    @Override
+    public boolean commitBatch(KVSBatch batch) {
+        return replay(batch).commit();
+    }
+
+    @Override
+    public void applyBatch(KVSBatch batch) {
+        replay(batch).apply();
+    }
+
+    // Through the same calls a sandbox would make one at a time, so the same rules apply.
+    private Editor replay(KVSBatch batch) {
+        Editor editor = edit();
+        Map<String, Object> single = new HashMap<>(1);
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            String key = batch.getKey(i);
+            Object value = batch.getValue(i);
+            switch (batch.getOp(i)) {
+                case KVSBatch.OP_PUT:
+                    editor.putValue(key, value);
+                    break;
+                case KVSBatch.OP_CLEAR:
+                    editor.clear();
+                    break;
+                case KVSBatch.OP_ADD_TAINT:
+                    editor.addTaint(key, (TaintSet)value);
+                    break;
+                case KVSBatch.OP_ADD_TAINT_TO_ALL:
+                    editor.addTaintToAll((TaintSet)value);
+                    break;
+                case KVSBatch.OP_INCREMENT:
+                    if (value instanceof Integer) {
+                        editor.incrementInt(key, (Integer)value);
+                    } else {
+                        editor.incrementLong(key, (Long)value);
+                    }
+                    break;
+                case KVSBatch.OP_EXPECT:
+                    single.clear();
+                    single.put(key, value);
+                    editor.expect(single);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown batch op " + batch.getOp(i));
+            }
+        }
+        return editor;
+    }
+
+    @Override
+    public synchronized void setCacheListener(IKVSCacheListener listener) {
+        checkClosed();
+        RemoteCallbackList<IKVSCacheListener> listeners = getCacheListeners(mPlatformName);
+        if (mCacheListener != null) {
+            listeners.unregister(mCacheListener);
+        }
+        mCacheListener = listener;
+        if (listener != null) {
+            listeners.register(listener);
+        }
+    }
+
     @Override
     public synchronized void close() {
         isClosed = true;
+        if (mCacheListener != null) {
+            getCacheListeners(mPlatformName).unregister(mCacheListener);
+            // Nothing can be read through here any more, so nothing should be cached either.
+            try {
+                mCacheListener.onInvalidate(null);
+            } catch (RemoteException e) {
+                // Sandbox is gone, and its cache with it.
+            }
+            mCacheListener = null;
+        }
     }
 
     @Override
@@ -406,13 +743,15 @@ public final class KVSSharedPrefs extends IRemoteSharedPrefs.Stub implements Aut
                 '}';
     }
 
+    // A listener would be a raw callback into whatever its sandbox is running by then, with
+    // nothing to taint; subscribe a QM through IFlowfenceService instead (see KVSListeners).
     @Override
     public void registerOnSharedPreferenceChangeListener(IRemoteSharedPrefsListener listener) throws RemoteException {
-        throw new IllegalStateException("Not implemented");
+        throw new IllegalStateException("Listeners aren't supported; subscribe a QM with subscribeSharedPrefs");
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(IRemoteSharedPrefsListener listener) throws RemoteException {
-        throw new IllegalStateException("Not implemented");
+        throw new IllegalStateException("Listeners aren't supported; subscribe a QM with subscribeSharedPrefs");
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latencies, in the style of HdrHistogram.
+ *
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so any recorded value is
+ * reported to within about 6%, across the whole range of a long. Recording never locks or
+ * allocates, so it's safe to call from binder threads on every call.
+ */
+/*package*/ final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // The largest value that lands in a bucket.
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @param value The value to record. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketFor(value));
+        mTotalCount.incrementAndGet();
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Computes several percentiles at once. Calls recorded while this runs may or may not be
+     * included.
+     * @param percentiles The percentiles to compute, in increasing order, each from 0 to 100.
+     * @return The value at each percentile, or all zeroes if nothing has been recorded.
+     */
+    public long[] getPercentiles(double... percentiles) {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+
+        long[] result = new long[percentiles.length];
+        if (total == 0) {
+            return result;
+        }
+        long max = mMax.get();
+        long seen = 0;
+        int bucket = -1;
+        for (int i = 0; i < percentiles.length; i++) {
+            long rank = Math.max(1, (long)Math.ceil(percentiles[i] / 100.0 * total));
+            while (seen < rank && bucket < NUM_BUCKETS - 1) {
+                seen += counts[++bucket];
+            }
+            result[i] = Math.min(highestValueIn(Math.max(bucket, 0)), max);
+        }
+        return result;
+    }
+}
@@ -26,10 +26,12 @@ import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -62,6 +64,13 @@ public class NamespaceSharedPrefs {
     private final SparseArray<TaintSet> mKnownTaints;
     private final SharedPreferences.OnSharedPreferenceChangeListener mListener;
 
+    // Reference counts for every taint set in the store, and the ID each one is stored under.
+    // Read from the store on the first commit, then kept up to date by each commit, so a
+    // commit only costs as much as the keys it changes. All writes go through Editor.
+    private boolean mTaintsLoaded = false;
+    private final SparseIntArray mRefCounts = new SparseIntArray();
+    private final HashMap<TaintSet, Integer> mTaintIds = new HashMap<>();
+
     private String getTaintSetKey(int id) {
         return NS(mTaintSetNamespace, Integer.toString(id));
     }
@@ -172,6 +181,44 @@ public class NamespaceSharedPrefs {
         return rv;
     }
 
+    /**
+     * Returns whatever is stored under key, or null. There's no untyped lookup short of copying
+     * the whole store, so this tries each type in turn; a wrong guess costs an exception.
+     */
+    public Object get(String namespace, String key) {
+        checkNotTaintNamespace(namespace);
+        String nsKey = NS(namespace, key);
+        if (!mBasePrefs.contains(nsKey)) {
+            return null;
+        }
+        try {
+            return mBasePrefs.getString(nsKey, null);
+        } catch (ClassCastException e) {
+            // Not a string.
+        }
+        try {
+            return mBasePrefs.getInt(nsKey, 0);
+        } catch (ClassCastException e) {
+            // Not an int.
+        }
+        try {
+            return mBasePrefs.getLong(nsKey, 0L);
+        } catch (ClassCastException e) {
+            // Not a long.
+        }
+        try {
+            return mBasePrefs.getFloat(nsKey, 0.0f);
+        } catch (ClassCastException e) {
+            // Not a float.
+        }
+        try {
+            return mBasePrefs.getBoolean(nsKey, false);
+        } catch (ClassCastException e) {
+            // Not a boolean.
+        }
+        return mBasePrefs.getStringSet(nsKey, null);
+    }
+
     public String getString(String namespace, String key, String defValue) {
         checkNotTaintNamespace(namespace);
         return mBasePrefs.getString(NS(namespace, key), defValue);
@@ -319,52 +366,39 @@ public class NamespaceSharedPrefs {
             }
         }
 
-        @SuppressWarnings("unchecked")
         private synchronized void prepareChanges() {
-            SparseIntArray refCounts = new SparseIntArray();
-            // Gather ref counts for current taints.
+            // Taint IDs whose reference count may have dropped to zero.
+            ArrayList<Integer> released = new ArrayList<>();
             if (mCleared) {
                 mKnownTaints.clear();
-            } else {
-                for (Map.Entry<String, ?> entry : mBasePrefs.getAll().entrySet()) {
-                    Map.Entry<String, String> pair = getTypeAndKey(entry.getKey());
-                    if (mTaintSetNamespace.equals(pair.getKey())) {
-                        // A taint with this id exists in the SharedPreferences; keep track of its references.
-                        int taintId = Integer.parseInt(pair.getValue());
-                        if (refCounts.indexOfKey(taintId) < 0) {
-                            refCounts.put(taintId, 0);
-                        }
-                        if (mKnownTaints.indexOfKey(taintId) < 0) {
-                            mKnownTaints.put(taintId, TaintSet.fromStrings((Set<String>) entry.getValue()));
-                        }
-                    } else if (mTaintNamespaces.contains(pair.getKey())) {
-                        // It's referring to something.
-                        int taintId = (Integer)entry.getValue();
-                        if (taintId != TAINT_ID_EMPTY) {
-                            refCounts.put(taintId, refCounts.get(taintId, 0) + 1);
-                        }
-                    }
-                }
+                mRefCounts.clear();
+                mTaintIds.clear();
+                mTaintsLoaded = true;
+            } else if (!mTaintsLoaded) {
+                loadTaintsLocked(released);
             }
-            HashMap<TaintSet, Integer> reverseKnownTaints = new HashMap<>();
-            for (int i = 0; i < mKnownTaints.size(); i++) {
-                int taintId = mKnownTaints.keyAt(i);
-                TaintSet knownTaint = mKnownTaints.valueAt(i);
-                if (localLOGD) {
-                    Log.d(TAG, String.format("Known taint #%d %s, refcount=%d", taintId, knownTaint,
-                            refCounts.get(taintId, 0)));
-                }
-                reverseKnownTaints.put(knownTaint, taintId);
+
+            try {
+                applyTaintChangesLocked(released);
+            } catch (RuntimeException e) {
+                // Nothing gets committed, so start over from what's in the store next time.
+                mTaintsLoaded = false;
+                throw e;
             }
 
+            mCleared = false;
+            mPendingChanges.clear();
+        }
+
+        private void applyTaintChangesLocked(List<Integer> released) {
             int nextTaintSetId = 0;
-            // Apply taint changes to the taint editor.
             for (Map.Entry<ImmutablePair<String, String>, TaintSet> entry : mPendingChanges.entrySet()) {
                 final String namespacedKey = NS(entry.getKey());
                 if (!mCleared) {
                     int currentTaintId = mBasePrefs.getInt(namespacedKey, TAINT_ID_EMPTY);
                     if (currentTaintId != TAINT_ID_EMPTY) {
-                        refCounts.put(currentTaintId, refCounts.get(currentTaintId) - 1);
+                        mRefCounts.put(currentTaintId, mRefCounts.get(currentTaintId) - 1);
+                        released.add(currentTaintId);
                     }
                 }
                 TaintSet ts = entry.getValue();
@@ -377,40 +411,89 @@ public class NamespaceSharedPrefs {
                 if (TaintSet.EMPTY.equals(ts)) {
                     newTaintId = TAINT_ID_EMPTY;
                 } else {
-                    Integer currentKnownTaint = reverseKnownTaints.get(ts);
+                    Integer currentKnownTaint = mTaintIds.get(ts);
                     if (currentKnownTaint == null) {
-                        while (refCounts.indexOfKey(nextTaintSetId) >= 0) {
+                        // IDs released above are still in mRefCounts, so they aren't reused
+                        // until the next commit.
+                        while (mRefCounts.indexOfKey(nextTaintSetId) >= 0) {
                             nextTaintSetId++;
                         }
-                        // We found a hole to map ts in at nextTaintSetId.
                         newTaintId = nextTaintSetId;
-                        refCounts.put(newTaintId, 1);
+                        mRefCounts.put(newTaintId, 1);
                         mKnownTaints.put(newTaintId, ts);
-                        reverseKnownTaints.put(ts, newTaintId);
+                        mTaintIds.put(ts, newTaintId);
                         mEditor.putStringSet(getTaintSetKey(newTaintId), ts.toStringSet());
                     } else {
                         newTaintId = currentKnownTaint;
-                        refCounts.put(newTaintId, refCounts.get(newTaintId)+1);
+                        mRefCounts.put(newTaintId, mRefCounts.get(newTaintId) + 1);
                     }
                 }
 
                 mEditor.putInt(namespacedKey, newTaintId);
             }
 
-            if (!mCleared) {
-                // Free up unreferenced taint sets.
-                for (int i = 0; i < refCounts.size(); i++) {
-                    if (refCounts.valueAt(i) == 0) {
-                        int taintId = refCounts.keyAt(i);
-                        mEditor.remove(getTaintSetKey(taintId));
+            // Free up unreferenced taint sets.
+            for (int taintId : released) {
+                int index = mRefCounts.indexOfKey(taintId);
+                if (index >= 0 && mRefCounts.valueAt(index) <= 0) {
+                    if (localLOGD) {
+                        Log.d(TAG, "Freeing taint #" + taintId);
+                    }
+                    mRefCounts.removeAt(index);
+                    TaintSet ts = mKnownTaints.get(taintId);
+                    if (ts != null) {
+                        mTaintIds.remove(ts);
                         mKnownTaints.remove(taintId);
                     }
+                    mEditor.remove(getTaintSetKey(taintId));
                 }
             }
+        }
+    }
 
-            mCleared = false;
-            mPendingChanges.clear();
+    /**
+     * Counts the references to each taint set in the store.
+     * @param unreferenced Receives the IDs of stored taint sets that nothing refers to.
+     */
+    @SuppressWarnings("unchecked")
+    private void loadTaintsLocked(List<Integer> unreferenced) {
+        mRefCounts.clear();
+        mTaintIds.clear();
+        for (Map.Entry<String, ?> entry : mBasePrefs.getAll().entrySet()) {
+            Map.Entry<String, String> pair = getTypeAndKey(entry.getKey());
+            if (mTaintSetNamespace.equals(pair.getKey())) {
+                // A taint with this id exists in the SharedPreferences; keep track of its references.
+                int taintId = Integer.parseInt(pair.getValue());
+                if (mRefCounts.indexOfKey(taintId) < 0) {
+                    mRefCounts.put(taintId, 0);
+                }
+                if (mKnownTaints.indexOfKey(taintId) < 0) {
+                    mKnownTaints.put(taintId, TaintSet.fromStrings((Set<String>) entry.getValue()));
+                }
+            } else if (mTaintNamespaces.contains(pair.getKey())) {
+                // It's referring to something.
+                int taintId = (Integer)entry.getValue();
+                if (taintId != TAINT_ID_EMPTY) {
+                    mRefCounts.put(taintId, mRefCounts.get(taintId, 0) + 1);
+                }
+            }
+        }
+
+        for (int i = 0; i < mRefCounts.size(); i++) {
+            int taintId = mRefCounts.keyAt(i);
+            TaintSet knownTaint = mKnownTaints.get(taintId);
+            if (localLOGD) {
+                Log.d(TAG, String.format("Known taint #%d %s, refcount=%d", taintId, knownTaint,
+                        mRefCounts.valueAt(i)));
+            }
+            if (knownTaint != null) {
+                mTaintIds.put(knownTaint, taintId);
+            }
+            if (mRefCounts.valueAt(i) <= 0) {
+                unreferenced.add(taintId);
+            }
         }
+        mTaintsLoaded = true;
     }
 
     public Editor edit() {
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.umich.flowfence.common.CacheStats;
+import edu.umich.flowfence.common.ParceledPayload;
+
+/**
+ * Content-addressed cache of marshalled values, keyed by declared type and payload bytes.
+ *
+ * Handles that marshal out identical values share a single payload instead of each holding
+ * a copy. Taint is tracked by the Handle, not the payload, so sharing bytes between handles
+ * with different taints is safe. Entries are evicted least-recently-used first once the
+ * cached payloads add up to more than the byte budget.
+ */
+/*package*/ final class PayloadCache {
+    private static final String TAG = "FF.PayloadCache";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final long MAX_BYTES = 4L * 1024 * 1024;
+    // Anything bigger would churn the whole cache, and isn't worth hashing.
+    private static final int MAX_ENTRY_BYTES = (int)(MAX_BYTES / 8);
+
+    private final Object mSync = new Object();
+    private final LinkedHashMap<Key, ParceledPayload> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    private static final class Key {
+        private final String mTypeName;
+        private final ParceledPayload mPayload;
+
+        public Key(String typeName, ParceledPayload payload) {
+            mTypeName = typeName;
+            mPayload = payload;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(mTypeName) + mPayload.getContentHash();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return Objects.equals(mTypeName, other.mTypeName) &&
+                    mPayload.contentEquals(other.mPayload);
+        }
+    }
+
+    /**
+     * Looks up a freshly marshalled value.
+     * @param typeName The declared type of the value.
+     * @param payload The marshalled value. The cache takes over the caller's reference.
+     * @return A reference to an identical payload, which may or may not be the one passed in.
+     * The caller must release it when done.
+     */
+    public ParceledPayload intern(String typeName, ParceledPayload payload) {
+        if (payload == null) {
+            return null;
+        }
+        final int size = payload.getSize();
+        if (size <= MAX_ENTRY_BYTES) {
+            // Hash outside the lock; the payload remembers it.
+            payload.getContentHash();
+        }
+        synchronized (mSync) {
+            if (size > MAX_ENTRY_BYTES) {
+                mMisses++;
+                return payload;
+            }
+
+            Key key = new Key(typeName, payload);
+            ParceledPayload cached = mEntries.get(key);
+            if (cached != null) {
+                mHits++;
+                if (localLOGV) {
+                    Log.v(TAG, String.format("Hit for %s %s", typeName, payload));
+                }
+                payload.release();
+                return cached.acquire();
+            }
+
+            mMisses++;
+            ParceledPayload entry = payload.acquire();
+            mEntries.put(new Key(typeName, entry), entry);
+            mBytes += size;
+            trimLocked();
+            return payload;
+        }
+    }
+
+    public CacheStats getStats() {
+        synchronized (mSync) {
+            CacheStats stats = new CacheStats();
+            stats.hits = mHits;
+            stats.misses = mMisses;
+            stats.evictions = mEvictions;
+            stats.entries = mEntries.size();
+            stats.bytes = mBytes;
+            return stats;
+        }
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<Key, ParceledPayload>> iter = mEntries.entrySet().iterator();
+        while (mBytes > MAX_BYTES && iter.hasNext()) {
+            ParceledPayload evicted = iter.next().getValue();
+            iter.remove();
+            mBytes -= evicted.getSize();
+            mEvictions++;
+            evicted.release();
+        }
+    }
+}
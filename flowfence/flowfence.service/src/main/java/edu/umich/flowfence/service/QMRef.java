@@ -66,6 +66,21 @@ public class QMRef extends IQM.Stub {
         }
     }
 
+    /**
+     * Creates a reference from the details of an earlier resolve. The QM isn't resolved in any
+     * sandbox until it's first called.
+     */
+    /*package*/ QMRef(QMDetails cached) {
+        mResolved = new PerSandboxMap<>();
+        mApplication = FlowfenceApplication.getInstance();
+
+        mDescriptor = cached.descriptor;
+        mResultType = cached.resultType;
+        mParamInfo = cached.paramInfo;
+        mRequiredTaints = cached.requiredTaints;
+        mOptionalTaints = cached.optionalTaints;
+    }
+
     /*package*/ final IResolvedQM resolveFor(Sandbox sandbox) throws Exception {
         IResolvedQM resolvedQM = mResolved.get(sandbox);
             if (resolvedQM == null) {
@@ -132,10 +147,11 @@ public class QMRef extends IQM.Stub {
     }
 
     @Override
-    public CallResult call(int flags, List<CallParam> params, TaintSet extraTaint) {
+    public CallResult call(int flags, List<CallParam> params, TaintSet extraTaint,
+                           long deadline) {
         try {
             // Start by setting up a call record.
-            CallRecord record = new CallRecord(this, flags, params, extraTaint);
+            CallRecord record = new CallRecord(this, flags, params, extraTaint, deadline);
 
             if ((flags & CallFlags.CALL_ASYNC) != CallFlags.CALL_ASYNC) {
                 record.waitForReady();
@@ -146,4 +162,31 @@ public class QMRef extends IQM.Stub {
             return new CallResult(t);
         }
     }
+
+    @Override
+    public CallResult[] callBatch(int flags, List<CallParam> params, int[] paramCounts,
+                                  TaintSet extraTaint, long deadline) {
+        final int numCalls = (paramCounts != null) ? paramCounts.length : 0;
+        final CallResult[] results = new CallResult[numCalls];
+        try {
+            CallBatch batch = new CallBatch(this, flags, params, paramCounts, extraTaint,
+                                            deadline);
+            CallRecord[] records = batch.getRecords();
+
+            for (int i = 0; i < numCalls; i++) {
+                if ((flags & CallFlags.CALL_ASYNC) != CallFlags.CALL_ASYNC) {
+                    records[i].waitForReady();
+                }
+                results[i] = new CallResult(records[i].getOutHandles());
+            }
+        } catch (Throwable t) {
+            CallResult failure = new CallResult(t);
+            for (int i = 0; i < numCalls; i++) {
+                if (results[i] == null) {
+                    results[i] = failure;
+                }
+            }
+        }
+        return results;
+    }
 }
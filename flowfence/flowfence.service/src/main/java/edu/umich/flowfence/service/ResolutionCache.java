@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umich.flowfence.common.Direction;
+import edu.umich.flowfence.common.ParamInfo;
+import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.QMDetails;
+import edu.umich.flowfence.common.TaintSet;
+
+/**
+ * Remembers what resolving each QM turned up, across restarts of the service, so a QMRef
+ * can be handed out without first loading the QM's package into a sandbox.
+ *
+ * Entries are tied to the exact build of both the QM's package and FlowFence itself, and are
+ * dropped when the package is replaced or removed.
+ */
+/*package*/ final class ResolutionCache {
+    private static final String TAG = "FF.ResolutionCache";
+    private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final String PREFS_NAME = "qm_resolution_cache";
+    private static final char KEY_SEPARATOR = '|';
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_DESCRIPTOR = "descriptor";
+    private static final String KEY_RESULT_TYPE = "resultType";
+    private static final String KEY_PARAMS = "params";
+    private static final String KEY_PARAM_TYPE = "type";
+    private static final String KEY_PARAM_INDEX = "index";
+    private static final String KEY_PARAM_DIRECTION = "direction";
+    private static final String KEY_REQUIRED_TAINTS = "requiredTaints";
+    private static final String KEY_OPTIONAL_TAINTS = "optionalTaints";
+
+    private final Context mContext;
+    private SharedPreferences mPrefs;
+    private String mOwnVersion;
+
+    public ResolutionCache(Context context) {
+        mContext = context;
+    }
+
+    private synchronized SharedPreferences getPrefs() {
+        if (mPrefs == null) {
+            mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+        return mPrefs;
+    }
+
+    // Keys start with the package name, for forgetPackage.
+    private static String getKey(QMDescriptor requested, boolean bestMatch) {
+        return requested.definingClass.getPackageName() + KEY_SEPARATOR + requested +
+                (bestMatch ? "~" : "");
+    }
+
+    // Identifies one build of a package, or returns null if it isn't installed.
+    private String getPackageVersion(String packageName) {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            return info.versionCode + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private String getVersionFor(QMDescriptor descriptor) {
+        String packageVersion = getPackageVersion(descriptor.definingClass.getPackageName());
+        if (packageVersion == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (mOwnVersion == null) {
+                mOwnVersion = getPackageVersion(mContext.getPackageName());
+            }
+        }
+        return packageVersion + "/" + mOwnVersion;
+    }
+
+    /**
+     * @return The details from an earlier resolve of this descriptor against the package as it
+     * is installed now, or null if there's no such resolve on record.
+     */
+    public QMDetails get(QMDescriptor requested, boolean bestMatch) {
+        String key = getKey(requested, bestMatch);
+        String json = getPrefs().getString(key, null);
+        if (json == null) {
+            return null;
+        }
+
+        try {
+            JSONObject entry = new JSONObject(json);
+            String version = getVersionFor(requested);
+            if (version == null || !version.equals(entry.getString(KEY_VERSION))) {
+                if (localLOGD) {
+                    Log.d(TAG, "Stale entry for " + key);
+                }
+                getPrefs().edit().remove(key).apply();
+                return null;
+            }
+
+            QMDetails details = new QMDetails();
+            details.descriptor = QMDescriptor.parse(entry.getString(KEY_DESCRIPTOR));
+            details.resultType = entry.getString(KEY_RESULT_TYPE);
+
+            JSONArray params = entry.getJSONArray(KEY_PARAMS);
+            details.paramInfo = new ArrayList<>(params.length());
+            for (int i = 0; i < params.length(); i++) {
+                JSONObject param = params.getJSONObject(i);
+                details.paramInfo.add(new ParamInfo(param.getString(KEY_PARAM_TYPE),
+                        param.getInt(KEY_PARAM_INDEX),
+                        Direction.fromCode(param.getInt(KEY_PARAM_DIRECTION))));
+            }
+
+            details.requiredTaints = TaintSet.fromStrings(toStrings(entry.getJSONArray(KEY_REQUIRED_TAINTS)));
+            details.optionalTaints = TaintSet.fromStrings(toStrings(entry.getJSONArray(KEY_OPTIONAL_TAINTS)));
+            if (localLOGD) {
+                Log.d(TAG, "Hit for " + key);
+            }
+            return details;
+        } catch (JSONException | RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable entry for " + key, e);
+            getPrefs().edit().remove(key).apply();
+            return null;
+        }
+    }
+
+    public void put(QMDescriptor requested, boolean bestMatch, QMDetails details) {
+        String version = getVersionFor(requested);
+        if (version == null || details.descriptor == null) {
+            return;
+        }
+
+        String key = getKey(requested, bestMatch);
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(KEY_VERSION, version);
+            entry.put(KEY_DESCRIPTOR, details.descriptor.toString());
+            entry.put(KEY_RESULT_TYPE, details.resultType);
+
+            JSONArray params = new JSONArray();
+            if (details.paramInfo != null) {
+                for (ParamInfo info : details.paramInfo) {
+                    JSONObject param = new JSONObject();
+                    param.put(KEY_PARAM_TYPE, info.getTypeName());
+                    param.put(KEY_PARAM_INDEX, info.getParamIndex());
+                    param.put(KEY_PARAM_DIRECTION, info.getDirection().getCode());
+                    params.put(param);
+                }
+            }
+            entry.put(KEY_PARAMS, params);
+            entry.put(KEY_REQUIRED_TAINTS, toJSON(details.requiredTaints));
+            entry.put(KEY_OPTIONAL_TAINTS, toJSON(details.optionalTaints));
+
+            getPrefs().edit().putString(key, entry.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Couldn't cache resolve of " + key, e);
+        }
+    }
+
+    public void forgetPackage(String packageName) {
+        String prefix = packageName + KEY_SEPARATOR;
+        SharedPreferences.Editor editor = null;
+        for (String key : getPrefs().getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                if (editor == null) {
+                    editor = getPrefs().edit();
+                }
+                editor.remove(key);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private static JSONArray toJSON(TaintSet taints) {
+        JSONArray array = new JSONArray();
+        if (taints != null) {
+            for (String taint : taints.toStringSet()) {
+                array.put(taint);
+            }
+        }
+        return array;
+    }
+
+    private static List<String> toStrings(JSONArray array) throws JSONException {
+        ArrayList<String> strings = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            strings.add(array.getString(i));
+        }
+        return strings;
+    }
+}
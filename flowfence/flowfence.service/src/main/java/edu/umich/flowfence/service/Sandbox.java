@@ -35,6 +35,7 @@ import org.apache.commons.lang3.Validate;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -45,9 +46,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import edu.umich.flowfence.common.FlowfenceConstants;
+import edu.umich.flowfence.common.CacheStats;
 import edu.umich.flowfence.common.QMDescriptor;
 import edu.umich.flowfence.common.QMDetails;
+import edu.umich.flowfence.common.RestartStats;
 import edu.umich.flowfence.common.TaintSet;
 import edu.umich.flowfence.internal.IResolvedQM;
 import edu.umich.flowfence.internal.ISandboxObject;
@@ -66,8 +68,28 @@ public final class Sandbox implements Comparable<Sandbox> {
         public boolean onEvent(String event, Sandbox sender, Object args) throws Exception;
     }
 
+    /**
+     * Handlers are held weakly, and run in no particular order, after the parent chain's.
+     *
+     * The handler list is copy-on-write: firing walks whatever snapshot is current without
+     * locking or allocating, and registering or unregistering copies it. Handlers that have
+     * been collected are dropped whenever the list is next copied, or by a fire that finds the
+     * list mostly stale.
+     */
     public static final class EventChain {
-        private final WeakHashMap<EventHandler, WeakReference<Object>> mHandlers = new WeakHashMap<>();
+        private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+        private static final class Registration extends WeakReference<EventHandler> {
+            public final WeakReference<Object> mToken;
+
+            public Registration(EventHandler handler, Object token) {
+                super(handler);
+                mToken = new WeakReference<>(token);
+            }
+        }
+
+        private final Object mWriteLock = new Object();
+        private volatile Registration[] mRegistrations = NO_REGISTRATIONS;
         private final EventChain mParent;
         private final String mEventName;
 
@@ -81,31 +103,42 @@ public final class Sandbox implements Comparable<Sandbox> {
             mEventName = parent.mEventName;
         }
 
-        private boolean fireInternal(Sandbox sender, Object args, List<Exception> exceptions) {
-            synchronized (mHandlers) {
-                if (mParent != null) {
-                    mParent.fireInternal(sender, args, exceptions);
+        // Returns exceptions, or null if there weren't any.
+        private List<Exception> fireInternal(Sandbox sender, Object args, List<Exception> exceptions) {
+            if (mParent != null) {
+                exceptions = mParent.fireInternal(sender, args, exceptions);
+            }
+            Registration[] registrations = mRegistrations;
+            int stale = 0;
+            for (Registration registration : registrations) {
+                EventHandler handler = registration.get();
+                if (handler == null) {
+                    stale++;
+                    continue;
                 }
-                Set<EventHandler> handlerSet = new HashSet<>(mHandlers.keySet());
-                for (EventHandler handler : handlerSet) {
-                    try {
-                        if (handler.onEvent(mEventName, sender, args)) {
-                            mHandlers.remove(handler);
-                        }
-                    } catch (Exception e) {
-                        exceptions.add(e);
+                try {
+                    if (handler.onEvent(mEventName, sender, args)) {
+                        unregister(handler);
                     }
+                } catch (Exception e) {
+                    if (exceptions == null) {
+                        exceptions = new ArrayList<>();
+                    }
+                    exceptions.add(e);
                 }
             }
-            return !exceptions.isEmpty();
+            if (stale > 0 && stale * 2 >= registrations.length) {
+                purge(null);
+            }
+            return exceptions;
         }
 
-        private void fire(Sandbox sender, Object args) {
+        /*package*/ void fire(Sandbox sender, Object args) {
             if (localLOGV) {
                 Log.v(TAG, "Firing event chain " + mEventName);
             }
-            ArrayList<Exception> exList = new ArrayList<>();
-            if (fireInternal(sender, args, exList)) {
+            List<Exception> exList = fireInternal(sender, args, null);
+            if (exList != null) {
                 RuntimeException e = new RuntimeException("Error firing event " + mEventName);
                 for (Exception cause : exList) {
                     e.addSuppressed(cause);
@@ -114,22 +147,52 @@ public final class Sandbox implements Comparable<Sandbox> {
             }
         }
 
+        // Replaces the list with one that leaves out collected handlers, anything matching
+        // handler or token, and adds toAdd if non-null. Callers hold mWriteLock.
+        private void rewriteLocked(EventHandler handler, Object token, Registration toAdd) {
+            Registration[] old = mRegistrations;
+            Registration[] updated = new Registration[old.length + ((toAdd != null) ? 1 : 0)];
+            int count = 0;
+            for (Registration registration : old) {
+                EventHandler existing = registration.get();
+                if (existing == null || existing == handler ||
+                        (token != null && registration.mToken.get() == token)) {
+                    continue;
+                }
+                updated[count++] = registration;
+            }
+            if (toAdd != null) {
+                updated[count++] = toAdd;
+            }
+            if (count == old.length && toAdd == null) {
+                // Nothing removed.
+                return;
+            }
+            mRegistrations = (count == 0) ? NO_REGISTRATIONS :
+                    (count == updated.length) ? updated : Arrays.copyOf(updated, count);
+        }
+
+        private void purge(EventHandler handler) {
+            synchronized (mWriteLock) {
+                rewriteLocked(handler, null, null);
+            }
+        }
+
         public EventHandler register(Object token, EventHandler handler) {
-            synchronized (mHandlers) {
-                mHandlers.put(handler, new WeakReference<>(token));
+            synchronized (mWriteLock) {
+                // Registering again just replaces the token.
+                rewriteLocked(handler, null, new Registration(handler, token));
                 return handler;
             }
         }
 
         public void unregister(EventHandler handler) {
-            synchronized (mHandlers) {
-                mHandlers.remove(handler);
-            }
+            purge(Objects.requireNonNull(handler));
         }
 
         public void unregisterAll(Object token) {
-            synchronized (mHandlers) {
-                mHandlers.values().removeAll(Collections.singleton(new WeakReference<>(token)));
+            synchronized (mWriteLock) {
+                rewriteLocked(null, Objects.requireNonNull(token), null);
             }
         }
 
@@ -149,6 +212,7 @@ public final class Sandbox implements Comparable<Sandbox> {
     public static final EventChain g_onTaintRemoved = new EventChain("onTaintRemoved");
     public static final EventChain g_onExecutionStart = new EventChain("onExecutionStart");
     public static final EventChain g_onExecutionFinish = new EventChain("onExecutionFinish");
+    public static final EventChain g_onOutOfService = new EventChain("onOutOfService");
 
     public final EventChain onBeforeConnect = new EventChain(g_onBeforeConnect);
     public final EventChain onConnected = new EventChain(g_onConnected);
@@ -160,6 +224,7 @@ public final class Sandbox implements Comparable<Sandbox> {
     public final EventChain onTaintRemoved = new EventChain(g_onTaintRemoved);
     public final EventChain onExecutionStart = new EventChain(g_onExecutionStart);
     public final EventChain onExecutionFinish = new EventChain(g_onExecutionFinish);
+    public final EventChain onOutOfService = new EventChain(g_onOutOfService);
     //endregion
 
     //region PID-to-Sandbox mapping
@@ -214,15 +279,36 @@ public final class Sandbox implements Comparable<Sandbox> {
     }
     //endregion
 
-    private static final Sandbox[] s_mSandboxesById = new Sandbox[FlowfenceConstants.NUM_SANDBOXES];
+    // One slot per isolated service declared in this build; see flowfence.service/build.gradle.
+    private static final Sandbox[] s_mSandboxesById = new Sandbox[BuildConfig.SANDBOX_CAPACITY];
     private static final Bundle s_mExtrasBundle = new Bundle(2);
 
     private static final Set<String> s_mKnownPackages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    // Each package loaded into a sandbox costs it a class loader and that package's code, so
+    // only the packages most likely to be called get loaded ahead of time.
+    private static final int DEFAULT_MAX_PRELOADED_PACKAGES = 4;
+    private static volatile int s_mMaxPreloadedPackages = DEFAULT_MAX_PRELOADED_PACKAGES;
+
     public static void forgetKnownPackage(String packageName) {
         s_mKnownPackages.remove(packageName);
     }
 
+    public static int setMaxPreloadedPackages(int count) {
+        int oldCount = s_mMaxPreloadedPackages;
+        int newCount = Math.max(0, count);
+        Log.i(TAG, "Changing max preloaded packages from "+oldCount+" to "+newCount);
+        s_mMaxPreloadedPackages = newCount;
+        return oldCount;
+    }
+
+    /**
+     * @return How many sandboxes this build declares. IDs run from 0 to one less than this.
+     */
+    public static int getCapacity() {
+        return s_mSandboxesById.length;
+    }
+
     public static Sandbox get(int id) {
         Validate.validIndex(s_mSandboxesById, id, "Invalid sandbox ID %d", id);
         synchronized (s_mSandboxesById) {
@@ -316,16 +402,40 @@ public final class Sandbox implements Comparable<Sandbox> {
     private final ConditionVariable mSync = new ConditionVariable();
     private final ConditionVariable mCanRestart = new ConditionVariable(true);
     private final HashSet<String> mKnownPackages = new HashSet<>();
+    // The packages the sandbox was told to load when it was last bound.
+    private List<String> mPreloadedPackages = Collections.emptyList();
+    // Values that only live in this sandbox so far. They're marshalled out before the sandbox
+    // takes on more taint or disconnects.
     private final WeakHashMap<Handle, ISandboxObject> mUnmarshalledObjects = new WeakHashMap<>();
+    // Bumped on every connect and disconnect, so values from an old process can tell they're
+    // gone.
+    private volatile int mGeneration;
 
     private ISandboxService mSandboxService;
     private int mPid;
     private TaintSet mTaintSet;
+    // If set, the sandbox can't be tainted with anything outside this until it restarts.
+    private TaintSet mTaintCeiling;
     private final Object mTaintLock = new Object();
     private String mAssignedPackage;
     private boolean mIsRestarting;
+    // Processes we've told to die that haven't yet. Android can hand one back to us on the next
+    // bind, with the last QM's data still in it, so connections to them are refused.
+    private final HashSet<Integer> mDyingPids = new HashSet<>();
+    // The dying process we were last connected to instead of a new one, or 0.
+    private int mRefusedPid;
+    // Set when an old process wouldn't die. The sandbox never binds again after that.
+    private boolean mIsOutOfService;
+    // When the restart in progress was requested, from SystemClock.elapsedRealtimeNanos().
+    private long mRestartStartNanos;
+    // Guarded by itself, not mSync, so it can be read while we're busy.
+    private final RestartStats mRestartStats = new RestartStats();
 
     private CallRecord mCurrentlyRunning;
+    // Total PSS of the sandbox process in kB, as of the last sample, or 0 if not sampled yet.
+    private int mLastPss;
+    // How many QMs have been resolved in the sandbox process.
+    private int mResolveCount;
 
     private Sandbox(int id) {
         mID = id;
@@ -361,6 +471,7 @@ public final class Sandbox implements Comparable<Sandbox> {
         mSandboxService = null;
         mTaintSet = null;
         mIsRestarting = false;
+        mRestartStats.sandboxId = id;
 
         g_onCreated.fire(this, null);
     }
@@ -374,7 +485,26 @@ public final class Sandbox implements Comparable<Sandbox> {
     }
 
     private void handleConnected(IBinder service) {
+        ISandboxService sandboxService = ISandboxService.Stub.asInterface(service);
+        int pid;
+        try {
+            pid = sandboxService.getPid();
+        } catch (RemoteException e) {
+            Log.wtf(TAG, e);
+            throw new RuntimeException(e);
+        }
+
+        long restartNanos = 0;
         synchronized (mSync) {
+            if (mIsOutOfService) {
+                return;
+            }
+            if (mDyingPids.contains(pid)) {
+                // Don't let a new QM in; bind again once it's gone. See Reaper.binderDied().
+                Log.w(TAG, String.format("Sandbox %d reconnected to dying process %d", mID, pid));
+                mRefusedPid = pid;
+                return;
+            }
             if (isConnectedLocked()) {
                 Log.w(TAG, "Connected while already connected");
             }
@@ -382,19 +512,25 @@ public final class Sandbox implements Comparable<Sandbox> {
             if (localLOGD) {
                 Log.d(TAG, String.format("Service connected for sandbox %d", mID));
             }
-            mSandboxService = ISandboxService.Stub.asInterface(service);
+            mSandboxService = sandboxService;
+            mPid = pid;
+            mRefusedPid = 0;
+            mGeneration++;
             mTaintSet = TaintSet.EMPTY;
+            mTaintCeiling = null;
             mAssignedPackage = null;
             mCurrentlyRunning = null;
-            mKnownPackages.addAll(s_mKnownPackages);
-            try {
-                mPid = mSandboxService.getPid();
-            } catch (RemoteException e) {
-                Log.wtf(TAG, e);
-                throw new RuntimeException(e);
-            } finally {
-                mSync.open();
+            mLastPss = 0;
+            mResolveCount = 0;
+            mKnownPackages.addAll(mPreloadedPackages);
+            if (mRestartStartNanos != 0) {
+                restartNanos = SystemClock.elapsedRealtimeNanos() - mRestartStartNanos;
+                mRestartStartNanos = 0;
             }
+            mSync.open();
+        }
+        if (restartNanos != 0) {
+            onRestarted(restartNanos);
         }
         onConnected.fire(this, null);
     }
@@ -402,7 +538,9 @@ public final class Sandbox implements Comparable<Sandbox> {
     private void handleDisconnected() {
         boolean shouldRebind = false;
         synchronized (mSync) {
-            mSync.close();
+            if (!mIsOutOfService) {
+                mSync.close();
+            }
 
             if (!mIsRestarting) {
                 if (!isConnectedLocked()) {
@@ -422,11 +560,15 @@ public final class Sandbox implements Comparable<Sandbox> {
                 Log.d(TAG, String.format("Service disconnected for sandbox %d", mID));
             }
             mSandboxService = null;
+            mGeneration++;
             mTaintSet = null;
+            mTaintCeiling = null;
             mAssignedPackage = null;
             mKnownPackages.clear();
             mUnmarshalledObjects.clear();
             mCurrentlyRunning = null;
+            mLastPss = 0;
+            mResolveCount = 0;
         }
         onDisconnected.fire(this, null);
         if (shouldRebind) {
@@ -435,13 +577,22 @@ public final class Sandbox implements Comparable<Sandbox> {
     }
 
     private void bind() {
+        synchronized (mSync) {
+            if (mIsOutOfService) {
+                return;
+            }
+        }
         onBeforeConnect.fire(this, null);
         int flags = Context.BIND_AUTO_CREATE | Context.BIND_IMPORTANT | Context.BIND_DEBUG_UNBIND;
         if (localLOGD) {
             Log.d(TAG, "binding: " + this);
         }
-        String[] packages = new String[s_mKnownPackages.size()];
-        packages = s_mKnownPackages.toArray(packages);
+        List<String> preload = mApplication.getDemandModel().rankPackages(
+                s_mKnownPackages, s_mMaxPreloadedPackages);
+        synchronized (mSync) {
+            mPreloadedPackages = preload;
+        }
+        String[] packages = preload.toArray(new String[preload.size()]);
         Intent bindIntent = new Intent()
                 .setComponent(mComponent)
                 .putExtras(s_mExtrasBundle)
@@ -515,9 +666,11 @@ public final class Sandbox implements Comparable<Sandbox> {
     private final Runnable mRestartRunnable = new Runnable() {
         @Override
         public void run() {
+            // Neither of these waits for a process, so the new one starts up while the old one
+            // is still dying. If we get the old one back, handleConnected() turns it away.
+            unbind();
+            bind();
             synchronized (mSync) {
-                unbind();
-                bind();
                 mIsRestarting = false;
                 // Drop the reference we grabbed earlier in the call to restart().
                 releaseLocked();
@@ -531,7 +684,7 @@ public final class Sandbox implements Comparable<Sandbox> {
         }
 
         synchronized (mSync) {
-            if (mStartCount == 0 || mIsRestarting) {
+            if (mStartCount == 0 || mIsRestarting || mIsOutOfService) {
                 // We're already stopped or restarting, no need to restart it again.
                 return;
             }
@@ -541,52 +694,194 @@ public final class Sandbox implements Comparable<Sandbox> {
             mIsRestarting = true;
             waitForStartupComplete();
             mSync.close();
+            mRestartStartNanos = SystemClock.elapsedRealtimeNanos();
         }
 
         FlowfenceApplication.getInstance().getBackgroundExecutor().submit(mRestartRunnable);
     }
 
-    private final int DEATH_PING_INTERVAL = 50; // ping every 50 ms
-    private final int DEATH_PING_MAX = 300;     // 300 total pings = 15 s
+    // How long an old process gets to die before the sandbox is taken out of service.
+    // It SIGKILLs itself after 15 s.
+    private static final long DEATH_TIMEOUT_MS = 20 * 1000;
+
+    // Binds again after a refused connection's process has died.
+    private final Runnable mRebindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mSync) {
+                if (!isStartedLocked() || isConnectedLocked()) {
+                    return;
+                }
+            }
+            mApplication.unbindService(mConnection);
+            bind();
+        }
+    };
+
     private void unbind() {
         if (localLOGD) {
             Log.d(TAG, "unbind: "+this);
         }
+        marshalOutObjects();
         onBeforeDisconnect.fire(this, null);
         ISandboxService sandbox;
+        int pid;
         synchronized (mSync) {
             sandbox = mSandboxService;
+            pid = mPid;
+            if (sandbox != null) {
+                // Before the unbind, so a reconnect can't beat it.
+                mDyingPids.add(pid);
+            }
             mApplication.unbindService(mConnection);
         }
 
         if (sandbox != null) {
             handleDisconnected();
-        } else {
-            return;
+            new Reaper(sandbox, pid).kill();
         }
+    }
 
+    /**
+     * Takes the sandbox out of service for good: it won't bind again, and anyone waiting for
+     * it to connect is let go, to find it isn't. Whatever holds it still has to stop it.
+     */
+    private void takeOutOfService() {
         synchronized (mSync) {
-            // Ask it to terminate itself.
-            try {
-                IBinder binder = sandbox.asBinder();
-                sandbox.kill();
+            if (mIsOutOfService) {
+                return;
+            }
+            mIsOutOfService = true;
+            mRefusedPid = 0;
+            mSync.open();
+        }
+        onOutOfService.fire(this, null);
+    }
 
-                if (!binder.isBinderAlive()) {
-                    return;
-                }
+    /**
+     * Tells an old sandbox process to terminate itself, and keeps track of it until it does.
+     * Nothing waits for it; a replacement can be bound as soon as the kill has been sent, but
+     * won't be used if it turns out to be the old process. If the old process outlives
+     * DEATH_TIMEOUT_MS, the sandbox is taken out of service.
+     */
+    private final class Reaper implements IBinder.DeathRecipient, Runnable {
+        private final ISandboxService mService;
+        private final IBinder mBinder;
+        private final int mPid;
+        private final AtomicBoolean mDone = new AtomicBoolean(false);
+        private long mKillNanos;
+
+        public Reaper(ISandboxService service, int pid) {
+            mService = service;
+            mBinder = service.asBinder();
+            mPid = pid;
+        }
 
-                int timeout = DEATH_PING_MAX;
-                while (--timeout >= 0) {
-                    if (!binder.pingBinder() || !binder.isBinderAlive()) {
-                        return;
-                    }
-                    SystemClock.sleep(DEATH_PING_INTERVAL);
-                }
-                throw new SecurityException("Sandbox process has not died");
+        public void kill() {
+            synchronized (mRestartStats) {
+                mRestartStats.dying++;
+            }
+            mKillNanos = SystemClock.elapsedRealtimeNanos();
+            try {
+                mBinder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                // Already dead.
+                binderDied();
+                return;
+            }
+            FlowfenceApplication.getInstance().getUIHandler().postDelayed(this, DEATH_TIMEOUT_MS);
+            try {
+                mService.kill();
             } catch (RemoteException e) {
                 // Object's already dead, or we're getting a spurious TransactionTooLarge.
+                // Either way, linkToDeath tells us when it's gone.
             }
         }
+
+        @Override
+        public void binderDied() {
+            if (!mDone.compareAndSet(false, true)) {
+                return;
+            }
+            long deathNanos = SystemClock.elapsedRealtimeNanos() - mKillNanos;
+            FlowfenceApplication.getInstance().getUIHandler().removeCallbacks(this);
+            if (localLOGD) {
+                Log.d(TAG, String.format("Old process for sandbox %d died after %d ms",
+                                         mID, deathNanos / 1000000));
+            }
+            synchronized (mRestartStats) {
+                long deathMicros = deathNanos / 1000;
+                mRestartStats.dying--;
+                mRestartStats.deaths++;
+                mRestartStats.totalDeathMicros += deathMicros;
+                mRestartStats.maxDeathMicros = Math.max(mRestartStats.maxDeathMicros, deathMicros);
+            }
+
+            boolean shouldRebind;
+            synchronized (mSync) {
+                mDyingPids.remove(mPid);
+                shouldRebind = (mRefusedPid == mPid);
+                if (shouldRebind) {
+                    mRefusedPid = 0;
+                }
+            }
+            if (shouldRebind) {
+                FlowfenceApplication.getInstance().getBackgroundExecutor().submit(mRebindRunnable);
+            }
+        }
+
+        // Death timeout.
+        @Override
+        public void run() {
+            if (!mBinder.isBinderAlive() || !mBinder.pingBinder()) {
+                // Died without telling us; count it anyway.
+                binderDied();
+                return;
+            }
+            if (!mDone.compareAndSet(false, true)) {
+                return;
+            }
+            mBinder.unlinkToDeath(this, 0);
+            synchronized (mRestartStats) {
+                mRestartStats.dying--;
+                mRestartStats.deathTimeouts++;
+            }
+            // It may still hold the last QM's data, and the next bind could get it back.
+            Log.wtf(TAG, "Old process for sandbox "+mID+" has not died; taking it out of service",
+                    new SecurityException("Sandbox process has not died"));
+            takeOutOfService();
+        }
+    }
+
+    private void onRestarted(long restartNanos) {
+        long restartMicros = restartNanos / 1000;
+        if (localLOGD) {
+            Log.d(TAG, String.format("Sandbox %d restarted in %d us", mID, restartMicros));
+        }
+        synchronized (mRestartStats) {
+            mRestartStats.restarts++;
+            mRestartStats.lastRestartMicros = restartMicros;
+            mRestartStats.totalRestartMicros += restartMicros;
+            mRestartStats.maxRestartMicros = Math.max(mRestartStats.maxRestartMicros,
+                                                      restartMicros);
+        }
+    }
+
+    public RestartStats getRestartStats() {
+        RestartStats stats = new RestartStats();
+        synchronized (mRestartStats) {
+            stats.sandboxId = mRestartStats.sandboxId;
+            stats.restarts = mRestartStats.restarts;
+            stats.lastRestartMicros = mRestartStats.lastRestartMicros;
+            stats.totalRestartMicros = mRestartStats.totalRestartMicros;
+            stats.maxRestartMicros = mRestartStats.maxRestartMicros;
+            stats.deaths = mRestartStats.deaths;
+            stats.totalDeathMicros = mRestartStats.totalDeathMicros;
+            stats.maxDeathMicros = mRestartStats.maxDeathMicros;
+            stats.deathTimeouts = mRestartStats.deathTimeouts;
+            stats.dying = mRestartStats.dying;
+        }
+        return stats;
     }
 
     private void switchSandboxesLocked(CallRecord record, boolean isStarting) {
@@ -620,12 +915,26 @@ public final class Sandbox implements Comparable<Sandbox> {
         }
     }
 
-    private ISandboxService getService() {
+    /**
+     * Assigns an idle sandbox to a package ahead of any calls, so that QMs in that package can be
+     * resolved in it before they're needed.
+     */
+    /*package*/ void assignPackage(String packageName) {
         synchronized (mSync) {
-            checkStarted();
-            if (!isConnectedLocked()) {
-                waitForStartupComplete();
+            checkConnected();
+            if (mAssignedPackage != null && !mAssignedPackage.equals(packageName)) {
+                throw new SandboxInUseException(String.format(
+                        "%s can't be assigned to '%s', since it's already assigned to package '%s'",
+                        this.toString(), packageName, mAssignedPackage));
             }
+            mAssignedPackage = packageName;
+            mKnownPackages.add(packageName);
+        }
+    }
+
+    private ISandboxService getService() {
+        synchronized (mSync) {
+            checkConnected();
             return mSandboxService;
         }
     }
@@ -640,6 +949,16 @@ public final class Sandbox implements Comparable<Sandbox> {
         checkStarted();
         if (!isConnectedLocked()) {
             waitForStartupComplete();
+            // Only out of service sandboxes are let go without a connection.
+            if (mSandboxService == null) {
+                throw new IllegalStateException("Sandbox " + mID + " is out of service");
+            }
+        }
+    }
+
+    public boolean isOutOfService() {
+        synchronized (mSync) {
+            return mIsOutOfService;
         }
     }
 
@@ -703,11 +1022,15 @@ public final class Sandbox implements Comparable<Sandbox> {
             boolean wasTainted;
             synchronized (mSync) {
                 checkConnected();
+                if (mTaintCeiling != null && !taint.isSubsetOf(mTaintCeiling)) {
+                    throw new SecurityException("Sandbox "+mID+" can't be tainted beyond "+mTaintCeiling);
+                }
                 wasTainted = !taint.isSubsetOf(mTaintSet);
             }
             if (!wasTainted) {
                 return false;
             }
+            marshalOutObjects();
             onBeforeTaintAdd.fire(this, taint);
             synchronized (mSync) {
                 mTaintSet = mTaintSet.asBuilder().unionWith(taint).build();
@@ -720,6 +1043,32 @@ public final class Sandbox implements Comparable<Sandbox> {
         }
     }
 
+    /**
+     * Keeps this sandbox from being tainted with anything outside ceiling until it restarts.
+     * Used when the sandbox is given a way to write data that will be labelled with ceiling.
+     */
+    public void restrictTaint(TaintSet ceiling) {
+        synchronized (mTaintLock) {
+            synchronized (mSync) {
+                checkConnected();
+                if (!mTaintSet.isSubsetOf(ceiling)) {
+                    throw new SecurityException("Sandbox "+mID+" is already tainted with "+mTaintSet);
+                }
+                if (mTaintCeiling == null || ceiling.isSubsetOf(mTaintCeiling)) {
+                    mTaintCeiling = ceiling;
+                } else if (!mTaintCeiling.isSubsetOf(ceiling)) {
+                    throw new SecurityException("Sandbox "+mID+" is already restricted to "+mTaintCeiling);
+                }
+            }
+        }
+    }
+
+    public boolean canTakeTaint(TaintSet taint) {
+        synchronized (mSync) {
+            return (mTaintCeiling == null || taint.isSubsetOf(mTaintCeiling));
+        }
+    }
+
     public TaintSet removeTaint(TaintSet taintsToRemove, Set<String> allowedPackages) {
         synchronized (mTaintLock) {
             synchronized (mSync) {
@@ -758,6 +1107,7 @@ public final class Sandbox implements Comparable<Sandbox> {
             checkConnected();
             checkAssignedPackageLocked(descriptor);
             result = getService().resolveQM(descriptor, bestMatch, details);
+            mResolveCount++;
         }
         result.throwChecked();
         return result.getResult();
@@ -775,6 +1125,28 @@ public final class Sandbox implements Comparable<Sandbox> {
         }
     }
 
+    /*package*/ int getGeneration() {
+        return mGeneration;
+    }
+
+    // Anything still only in here would leak into whatever comes next, so get it out first.
+    private void marshalOutObjects() {
+        Handle[] handles;
+        synchronized (mUnmarshalledObjects) {
+            if (mUnmarshalledObjects.isEmpty()) {
+                return;
+            }
+            handles = mUnmarshalledObjects.keySet().toArray(
+                    new Handle[mUnmarshalledObjects.size()]);
+        }
+        for (Handle h : handles) {
+            // Handles that have already gone (or been collected) in the meantime are skipped.
+            if (h != null) {
+                h.marshalOutFrom(this);
+            }
+        }
+    }
+
     public int countUnmarshalledObjects() {
         synchronized (mUnmarshalledObjects) {
             return mUnmarshalledObjects.size();
@@ -811,14 +1183,86 @@ public final class Sandbox implements Comparable<Sandbox> {
         return mID - other.mID;
     }
 
+    /**
+     * @return The sandbox process's memory use, or null if it isn't connected. The sandbox lock
+     * isn't held while it's measured, since that takes a while.
+     */
     public Debug.MemoryInfo getMemoryInfo() throws RemoteException {
+        ISandboxService service;
         synchronized (mSync) {
-            if (isConnectedLocked()) {
-                return mSandboxService.dumpMemoryInfo();
-            } else {
+            if (!isConnectedLocked()) {
+                return null;
+            }
+            service = mSandboxService;
+        }
+        return service.dumpMemoryInfo();
+    }
+
+    /**
+     * Measures the sandbox process's total PSS, and remembers it for {@link #getLastPss()}.
+     * The sandbox lock isn't held while it's measured, since that takes a while.
+     * @return The PSS in kB, or 0 if the sandbox isn't connected.
+     */
+    public int samplePss() throws RemoteException {
+        ISandboxService service;
+        int generation;
+        synchronized (mSync) {
+            if (!isConnectedLocked()) {
+                return 0;
+            }
+            service = mSandboxService;
+            generation = mGeneration;
+        }
+        int pss = service.dumpMemoryInfo().getTotalPss();
+        synchronized (mSync) {
+            if (mGeneration == generation) {
+                mLastPss = pss;
+            }
+        }
+        return pss;
+    }
+
+    /**
+     * @return The total PSS of the sandbox process in kB as of the last {@link #samplePss()},
+     * or 0 if it hasn't been sampled since it started.
+     */
+    public int getLastPss() {
+        synchronized (mSync) {
+            return mLastPss;
+        }
+    }
+
+    /**
+     * @return How many QMs have been resolved in the sandbox process.
+     */
+    public int getResolveCount() {
+        synchronized (mSync) {
+            return mResolveCount;
+        }
+    }
+
+    /**
+     * @return The packages loaded in the sandbox process, or an empty set if not connected.
+     */
+    public Set<String> getLoadedPackages() {
+        synchronized (mSync) {
+            return new HashSet<>(mKnownPackages);
+        }
+    }
+
+    /**
+     * @return The sandbox process's decode cache stats, or null if it isn't connected. The
+     * sandbox lock isn't held while they're fetched.
+     */
+    public CacheStats getDecodeCacheStats() throws RemoteException {
+        ISandboxService service;
+        synchronized (mSync) {
+            if (!isConnectedLocked()) {
                 return null;
             }
+            service = mSandboxService;
         }
+        return service.getDecodeCacheStats();
     }
 
     public void gc() throws RemoteException {
@@ -16,19 +16,28 @@
 
 package edu.umich.flowfence.service;
 
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.apache.commons.lang3.ObjectUtils;
-
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
 
+import edu.umich.flowfence.common.CallFlags;
 import edu.umich.flowfence.common.FlowfenceConstants;
 import edu.umich.flowfence.common.TaintSet;
 
@@ -36,7 +45,7 @@ public class SandboxManager {
     private static final String TAG = "SandboxManager";
     private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
     private static final boolean localLOGD = Log.isLoggable(TAG, Log.DEBUG);
-    private static final int SANDBOX_COUNT = FlowfenceConstants.NUM_SANDBOXES;
+    private static final int CAPACITY = Sandbox.getCapacity();
 
     private static final float COST_START_PROCESS = 50.0f;
     private static final float COST_LOAD_CODE = 10.0f;
@@ -44,21 +53,102 @@ public class SandboxManager {
     private static final float COST_MARSHAL_OUT = 1.0f;
     private static final float COST_MARSHAL_IN = 1.0f;
 
-    private final LinkedHashMap<Sandbox, ObjectUtils.Null> mIdleSandboxes = new LinkedHashMap<>(SANDBOX_COUNT*2, 0.75f, true);
-    private final ArrayDeque<Sandbox> mStoppedSandboxes = new ArrayDeque<>(SANDBOX_COUNT);
-    private final HashSet<Sandbox> mRunningSandboxes = new HashSet<>(SANDBOX_COUNT*2);
-    private final ArrayDeque<Sandbox> mHotSpares = new ArrayDeque<>(SANDBOX_COUNT);
-
-    private final LinkedList<AsyncCallback> mPendingCallbacks = new LinkedList<>();
+    // No cap by default. Taking turns already keeps a busy package from starving the others, and
+    // a cap would leave sandboxes idle while only one package has work.
+    private static final int DEFAULT_MAX_RUNNING_PER_PACKAGE = CAPACITY;
+
+    private static final int INTERACTIVE_CLASS =
+            CallFlags.getPriorityClass(CallFlags.PRIORITY_INTERACTIVE);
+    private static final int NORMAL_CLASS = CallFlags.getPriorityClass(CallFlags.PRIORITY_NORMAL);
+
+    // Number of QMs resolved in a sandbox prewarmed for a package.
+    private static final int PREWARM_QM_COUNT = 4;
+
+    // How long a sandbox sits idle before autoscaling takes it out of the pool.
+    private static final long DEFAULT_SCALE_IDLE_MILLIS = 60 * 1000L;
+    private static final long MIN_SHRINK_INTERVAL_MILLIS = 1000L;
+
+    // How often the memory use of each live sandbox is measured.
+    private static final long PSS_SAMPLE_INTERVAL_MILLIS = 60 * 1000L;
+
+    private final IdleSet mIdleSandboxes = new IdleSet();
+    private final ArrayDeque<Sandbox> mStoppedSandboxes = new ArrayDeque<>(CAPACITY);
+    private final HashSet<Sandbox> mRunningSandboxes = new HashSet<>(CAPACITY*2);
+    private final ArrayDeque<Sandbox> mHotSpares = new ArrayDeque<>(CAPACITY);
+
+    // Waiting callbacks, queued by priority and package affinity and served fairly between
+    // packages.
+    private final FairQueue<AsyncCallback> mPending =
+            new FairQueue<>(CallFlags.PRIORITY_CLASS_COUNT, DEFAULT_MAX_RUNNING_PER_PACKAGE);
+    // Waiting callbacks with deadlines, soonest first. Callbacks that have since been served
+    // are dropped lazily, when their deadline comes up.
+    private final PriorityQueue<AsyncCallback> mDeadlines =
+            new PriorityQueue<>(11, new Comparator<AsyncCallback>() {
+                @Override
+                public int compare(AsyncCallback lhs, AsyncCallback rhs) {
+                    return Long.compare(getDeadline(lhs), getDeadline(rhs));
+                }
+            });
+    // When the deadline sweep is next due to run, or 0 if it isn't scheduled.
+    private long mSweepAt = 0;
+    // The package each running sandbox was handed out for, if it counts against one.
+    private final HashMap<Sandbox, String> mRunningPackages = new HashMap<>(CAPACITY*2);
+    // What tryExecuteQueueLocked() has handed out so far. Only touched with the lock held.
+    private Map<AsyncCallback, Sandbox> mGranted;
 
     private final Object mExecutionReferenceKey = new Object();
 
+    private final DemandModel mDemand = new DemandModel();
+    private final HashSet<String> mPrewarmingPackages = new HashSet<>();
+
+    // The sandboxes in the pool, by ID. There are mMaxCount of them, unless too many have gone
+    // out of service to replace them all.
+    private final BitSet mInPool = new BitSet(CAPACITY);
+    // Sandboxes whose old process wouldn't die. They never go back in the pool.
+    private final BitSet mOutOfService = new BitSet(CAPACITY);
     private int mMaxCount = 0;
-    private int mMaxIdleCount = SANDBOX_COUNT;
+    // Autoscaling keeps the pool size between these. They're equal when the size is fixed.
+    private int mScaleMin = 0;
+    private int mScaleMax = 0;
+    private long mScaleIdleMillis = DEFAULT_SCALE_IDLE_MILLIS;
+    private boolean mShrinkScheduled = false;
+    // Total PSS, in kB, that live sandboxes may use before idle ones are stopped; 0 for no limit.
+    private int mMemoryBudget = 0;
+    private boolean mPssSampleScheduled = false;
+    private int mMaxIdleCount = CAPACITY;
     private int mMinHotSpares = 1;
-    private int mMaxHotSpares = SANDBOX_COUNT;
+    private int mMaxHotSpares = CAPACITY;
+    private int mMaxPrewarmed = 2;
+
+    // Event chains only hold their handlers weakly.
+    private final Sandbox.EventHandler mOutOfServiceHandler;
+    private final Sandbox.EventHandler mRefileHandler;
 
     public SandboxManager() {
+        // A sandbox that restarts or disconnects comes back unassigned and untainted. These
+        // fire on whatever thread saw the connection change, which a call holding our lock may
+        // be waiting on, so the idle set is fixed up later instead of here.
+        mRefileHandler = new Sandbox.EventHandler() {
+            @Override
+            public boolean onEvent(String event, final Sandbox sender, Object args) {
+                FlowfenceApplication.getInstance().getBackgroundExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        refileIdle(sender);
+                    }
+                });
+                return false;
+            }
+        };
+        Sandbox.g_onConnected.register(this, mRefileHandler);
+        Sandbox.g_onDisconnected.register(this, mRefileHandler);
+        mOutOfServiceHandler = Sandbox.g_onOutOfService.register(this, new Sandbox.EventHandler() {
+            @Override
+            public boolean onEvent(String event, Sandbox sender, Object args) throws Exception {
+                onOutOfService(sender);
+                return false;
+            }
+        });
     }
 
     public interface AsyncCallback {
@@ -66,6 +156,185 @@ public class SandboxManager {
         void execute(Sandbox finalChoice);
     }
 
+    /**
+     * Optionally implemented by an {@link AsyncCallback} that will run one package's code.
+     * Waiting callbacks are queued by package, and packages take turns according to their
+     * weights, so a busy package can't starve the rest. Each package is also capped on how many
+     * sandboxes it can hold at once.
+     */
+    public interface PackageAffinity {
+        /**
+         * @return The package this callback will run code from, or null if it doesn't count
+         * against any package.
+         */
+        String getPackageAffinity();
+    }
+
+    /**
+     * Optionally implemented by an {@link AsyncCallback} to say how urgently it needs a sandbox.
+     * Waiting callbacks in a more urgent class are always served first, and only interactive
+     * callbacks may take the last hot spare. A callback still waiting at its deadline leaves the
+     * queue without a sandbox.
+     */
+    public interface Urgency {
+        /**
+         * @return 0 for interactive, 1 for normal, 2 for background, as from
+         * {@link CallFlags#getPriorityClass(int)}.
+         */
+        int getPriorityClass();
+
+        /**
+         * @return The SystemClock.elapsedRealtime() by which this callback must have a sandbox,
+         * or 0 for no deadline.
+         */
+        long getDeadline();
+
+        /**
+         * Called, instead of execute(), once the deadline has passed. No locks are held.
+         */
+        void onDeadlineExceeded();
+    }
+
+    /**
+     * The idle sandboxes, in LRU order, along with an index by signature: the package each one
+     * is assigned to, and its taints. Unassigned sandboxes are filed under {@link #UNASSIGNED}.
+     * Idle sandboxes don't run code, so their signature only changes when they restart or
+     * disconnect; {@link #refile} has to be called then.
+     */
+    private static final class IdleSet {
+        private static final String UNASSIGNED = "";
+
+        private static final class Signature {
+            public final String mPackage;
+            public final TaintSet mTaints;
+
+            public Signature(String packageKey, TaintSet taints) {
+                mPackage = packageKey;
+                mTaints = taints;
+            }
+        }
+
+        // When each sandbox went idle. Refiling an idle sandbox doesn't reset it.
+        private final LinkedHashMap<Sandbox, Long> mLru = new LinkedHashMap<>(CAPACITY*2, 0.75f, true);
+        private final HashMap<Sandbox, Signature> mSignatures = new HashMap<>(CAPACITY*2);
+        // By package, then by taints.
+        private final HashMap<String, HashMap<TaintSet, LinkedHashSet<Sandbox>>> mIndex =
+                new HashMap<>();
+
+        private static String keyFor(String packageName) {
+            return (packageName != null) ? packageName : UNASSIGNED;
+        }
+
+        public void put(Sandbox sb) {
+            Long idleSince = mLru.get(sb);
+            mLru.put(sb, (idleSince != null) ? idleSince : SystemClock.elapsedRealtime());
+            file(sb);
+        }
+
+        /**
+         * Files an idle sandbox under its current signature, without changing its place in LRU
+         * order.
+         * @return false if the sandbox isn't idle.
+         */
+        public boolean refile(Sandbox sb) {
+            if (!mSignatures.containsKey(sb)) {
+                return false;
+            }
+            file(sb);
+            return true;
+        }
+
+        public boolean remove(Sandbox sb) {
+            if (mLru.remove(sb) == null) {
+                return false;
+            }
+            unfile(sb, mSignatures.remove(sb));
+            return true;
+        }
+
+        /**
+         * @return How many sandboxes have been idle since cutoff or earlier.
+         */
+        public int countIdleSince(long cutoff) {
+            int count = 0;
+            for (long since : mLru.values()) {
+                if (since <= cutoff) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void file(Sandbox sb) {
+            String packageKey = keyFor(sb.getAssignedPackage());
+            TaintSet taints = sb.getTaints();
+            Signature old = mSignatures.get(sb);
+            if (old != null) {
+                if (old.mPackage.equals(packageKey) && old.mTaints.equals(taints)) {
+                    return;
+                }
+                unfile(sb, old);
+            }
+            mSignatures.put(sb, new Signature(packageKey, taints));
+
+            HashMap<TaintSet, LinkedHashSet<Sandbox>> byTaints = mIndex.get(packageKey);
+            if (byTaints == null) {
+                byTaints = new HashMap<>();
+                mIndex.put(packageKey, byTaints);
+            }
+            LinkedHashSet<Sandbox> bucket = byTaints.get(taints);
+            if (bucket == null) {
+                bucket = new LinkedHashSet<>();
+                byTaints.put(taints, bucket);
+            }
+            bucket.add(sb);
+        }
+
+        private void unfile(Sandbox sb, Signature signature) {
+            HashMap<TaintSet, LinkedHashSet<Sandbox>> byTaints = mIndex.get(signature.mPackage);
+            if (byTaints == null) {
+                return;
+            }
+            LinkedHashSet<Sandbox> bucket = byTaints.get(signature.mTaints);
+            if (bucket != null && bucket.remove(sb) && bucket.isEmpty()) {
+                byTaints.remove(signature.mTaints);
+                if (byTaints.isEmpty()) {
+                    mIndex.remove(signature.mPackage);
+                }
+            }
+        }
+
+        /**
+         * @return The idle sandboxes assigned to packageName, by their taints. Pass null to get
+         * the unassigned sandboxes.
+         */
+        public Map<TaintSet, ? extends Set<Sandbox>> assignedTo(String packageName) {
+            HashMap<TaintSet, LinkedHashSet<Sandbox>> byTaints = mIndex.get(keyFor(packageName));
+            return (byTaints != null) ? byTaints :
+                    Collections.<TaintSet, Set<Sandbox>>emptyMap();
+        }
+
+        /**
+         * @return The idle sandboxes assigned to packageName with exactly the given taints.
+         */
+        public Set<Sandbox> assignedTo(String packageName, TaintSet taints) {
+            Set<Sandbox> bucket = assignedTo(packageName).get(taints);
+            return (bucket != null) ? bucket : Collections.<Sandbox>emptySet();
+        }
+
+        public Set<Sandbox> keySet() {
+            return mLru.keySet();
+        }
+
+        public int size() {
+            return mLru.size();
+        }
+
+        public boolean isEmpty() {
+            return mLru.isEmpty();
+        }
+    }
+
     private static abstract class FutureCallback implements AsyncCallback {
         private volatile boolean mComplete = false;
         private Sandbox mSandbox = null;
@@ -110,7 +379,7 @@ public class SandboxManager {
 
     private void dumpSandboxes() {
         if (localLOGV) {
-            BitSet seenSandboxes = new BitSet(SANDBOX_COUNT);
+            BitSet seenSandboxes = new BitSet(CAPACITY);
             Log.v(TAG, ">>> Dumping current sandbox state:");
             Log.v(TAG, "Running: "+mRunningSandboxes.size()+" sandboxes");
             for (Sandbox sb : mRunningSandboxes) {
@@ -128,7 +397,8 @@ public class SandboxManager {
             for (Sandbox sb : mHotSpares) {
                 dumpSandbox(sb, seenSandboxes);
             }
-            seenSandboxes.flip(0, SANDBOX_COUNT); // true = unseen
+            seenSandboxes.flip(0, CAPACITY); // true = unseen
+            seenSandboxes.and(mInPool);
             if (!seenSandboxes.isEmpty()) {
                 Log.w(TAG, "WARNING: leaked "+seenSandboxes.cardinality()+" sandboxes");
                 int leaked = -1;
@@ -142,35 +412,136 @@ public class SandboxManager {
         }
     }
 
-    private synchronized Map<AsyncCallback, Sandbox> tryExecuteQueueLocked() {
-        Map<AsyncCallback, Sandbox> rv = null;
+    private boolean hasCapacityLocked() {
+        return !(mIdleSandboxes.isEmpty() && mHotSpares.isEmpty() && mStoppedSandboxes.isEmpty());
+    }
 
-        Iterator<AsyncCallback> callbackIter = mPendingCallbacks.iterator();
-        while (callbackIter.hasNext()) {
-            AsyncCallback callback = callbackIter.next();
+    private static String getAffinity(AsyncCallback callback) {
+        return (callback instanceof PackageAffinity) ?
+                ((PackageAffinity)callback).getPackageAffinity() : null;
+    }
 
-            Sandbox candidate = tryBeginExecution(callback.tryFindSandbox(this));
+    private static int getPriorityClass(AsyncCallback callback) {
+        return (callback instanceof Urgency) ?
+                ((Urgency)callback).getPriorityClass() : NORMAL_CLASS;
+    }
 
-            if (candidate != null) {
-                if (rv == null) {
-                    rv = new LinkedHashMap<>();
-                }
-                callbackIter.remove();
-                rv.put(callback, candidate);
+    private static long getDeadline(AsyncCallback callback) {
+        return (callback instanceof Urgency) ? ((Urgency)callback).getDeadline() : 0;
+    }
+
+    private void onStartedLocked(Sandbox sb, String packageName) {
+        if (packageName != null) {
+            mRunningPackages.put(sb, packageName);
+        }
+    }
+
+    private final FairQueue.Server<AsyncCallback> mQueueServer =
+            new FairQueue.Server<AsyncCallback>() {
+        @Override
+        public boolean tryServe(AsyncCallback callback) {
+            Sandbox candidate = tryBeginExecution(callback.tryFindSandbox(SandboxManager.this));
+            if (candidate == null) {
+                return false;
             }
+            onStartedLocked(candidate, getAffinity(callback));
+            mGranted = addResult(mGranted, callback, candidate);
+            return true;
         }
 
+        @Override
+        public boolean hasCapacity(int priorityClass) {
+            // Once there's nothing idle, spare, or stopped left to hand out, nobody further down
+            // the queue can succeed either. The same goes when only the last hot spare is left
+            // and it's kept for a more urgent class.
+            return hasCapacityLocked() && canTakeHotSpareLocked(priorityClass);
+        }
+    };
+
+    private static Map<AsyncCallback, Sandbox> addResult(Map<AsyncCallback, Sandbox> rv,
+                                                         AsyncCallback callback, Sandbox sb) {
+        if (rv == null) {
+            rv = new LinkedHashMap<>();
+        }
+        rv.put(callback, sb);
+        return rv;
+    }
+
+    /**
+     * Hands out sandboxes to waiting callbacks, after dropping the ones whose deadlines have
+     * passed.
+     * @return The callbacks to execute once the lock is dropped, or null if none. Overdue
+     * callbacks map to a null sandbox.
+     */
+    private synchronized Map<AsyncCallback, Sandbox> tryExecuteQueueLocked() {
+        mGranted = null;
+        expireOverdueLocked();
+        if (!mPending.isEmpty()) {
+            mPending.serve(mQueueServer);
+        }
+        scheduleSweepLocked();
+        Map<AsyncCallback, Sandbox> rv = mGranted;
+        mGranted = null;
         return rv;
     }
 
     private void tryExecuteQueueUnlocked(Map<AsyncCallback, Sandbox> toExecute) {
         if (toExecute != null) {
             for (Map.Entry<AsyncCallback, Sandbox> entry : toExecute.entrySet()) {
-                entry.getKey().execute(entry.getValue());
+                Sandbox sb = entry.getValue();
+                if (sb != null) {
+                    entry.getKey().execute(sb);
+                } else {
+                    ((Urgency)entry.getKey()).onDeadlineExceeded();
+                }
+            }
+        }
+    }
+
+    private void expireOverdueLocked() {
+        if (mPending.isEmpty()) {
+            // Anything left has already been served.
+            mDeadlines.clear();
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        AsyncCallback callback;
+        while ((callback = mDeadlines.peek()) != null && getDeadline(callback) <= now) {
+            mDeadlines.poll();
+            if (mPending.remove(getAffinity(callback), getPriorityClass(callback), callback)) {
+                mGranted = addResult(mGranted, callback, null);
             }
         }
     }
 
+    private final Runnable mDeadlineSweep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SandboxManager.this) {
+                mSweepAt = 0;
+            }
+            tryExecuteQueue();
+        }
+    };
+
+    // Makes sure the queue is run again when the soonest deadline comes up, even if nothing
+    // else happens by then.
+    private void scheduleSweepLocked() {
+        AsyncCallback next = mDeadlines.peek();
+        if (next == null) {
+            return;
+        }
+        long deadline = getDeadline(next);
+        if (mSweepAt != 0 && mSweepAt <= deadline) {
+            return;
+        }
+        Handler handler = FlowfenceApplication.getInstance().getUIHandler();
+        handler.removeCallbacks(mDeadlineSweep);
+        handler.postDelayed(mDeadlineSweep,
+                            Math.max(0, deadline - SystemClock.elapsedRealtime()));
+        mSweepAt = deadline;
+    }
+
     private void tryExecuteQueue() {
         Map<AsyncCallback, Sandbox> map;
         synchronized (this) {
@@ -179,53 +550,148 @@ public class SandboxManager {
         tryExecuteQueueUnlocked(map);
     }
 
+    /**
+     * Adds sandboxes to or takes them out of the pool. Unused ones are taken out first: stopped
+     * sandboxes, then idle ones, cheapest to lose first, then hot spares. Running sandboxes
+     * that are taken out are stopped when they're put back.
+     * @return true if sandboxes were added, so waiting callbacks should be run again.
+     */
+    private boolean resizeLocked(int newCount) {
+        int oldCount = mMaxCount;
+        if (newCount < oldCount) {
+            int toRemove = oldCount - newCount;
+            while (toRemove > 0 && !mStoppedSandboxes.isEmpty()) {
+                mInPool.clear(mStoppedSandboxes.pollLast().getID());
+                toRemove--;
+            }
+            while (toRemove > 0 && !mIdleSandboxes.isEmpty()) {
+                Sandbox sb = evictIdle();
+                sb.stop(this);
+                mInPool.clear(sb.getID());
+                toRemove--;
+            }
+            while (toRemove > 0 && !mHotSpares.isEmpty()) {
+                Sandbox sb = mHotSpares.pollLast();
+                sb.stop(this);
+                mInPool.clear(sb.getID());
+                toRemove--;
+            }
+            // Let the rest keep running; putSandbox() will stop them when the time comes.
+            for (Sandbox sb : mRunningSandboxes) {
+                if (toRemove == 0) {
+                    break;
+                }
+                if (mInPool.get(sb.getID())) {
+                    mInPool.clear(sb.getID());
+                    toRemove--;
+                }
+            }
+        } else if (newCount > oldCount) {
+            addToPoolLocked(newCount - oldCount);
+        }
+
+        mMaxCount = newCount;
+        refillHotSpares();
+        return newCount > oldCount;
+    }
+
+    private void addToPoolLocked(int toAdd) {
+        for (int id = mInPool.nextClearBit(0); toAdd > 0 && id < CAPACITY;
+             id = mInPool.nextClearBit(id + 1)) {
+            if (mOutOfService.get(id)) {
+                continue;
+            }
+            Sandbox sb = Sandbox.get(id);
+            mInPool.set(id);
+            // A running sandbox that was taken out and hasn't been put back yet just stays.
+            if (!mRunningSandboxes.contains(sb)) {
+                mStoppedSandboxes.add(sb);
+            }
+            toAdd--;
+        }
+    }
+
+    /**
+     * Takes a sandbox whose old process wouldn't die out of the pool for good, and puts in
+     * another one in its place if there's one left. A running one is stopped when it's put back.
+     */
+    private void onOutOfService(Sandbox sb) {
+        Map<AsyncCallback, Sandbox> callbacks;
+        synchronized (this) {
+            int id = sb.getID();
+            Log.e(TAG, "Sandbox " + id + " is out of service");
+            mOutOfService.set(id);
+            if (!mInPool.get(id)) {
+                return;
+            }
+            mInPool.clear(id);
+            if (mIdleSandboxes.remove(sb) || mHotSpares.remove(sb)) {
+                sb.stop(this);
+            } else {
+                mStoppedSandboxes.remove(sb);
+            }
+            addToPoolLocked(1);
+            refillHotSpares();
+            callbacks = tryExecuteQueueLocked();
+        }
+        tryExecuteQueueUnlocked(callbacks);
+    }
+
+    /**
+     * Files an idle sandbox under its new signature, so calls from other packages can find it
+     * once it's no longer assigned. Taking a sandbox out of the idle set is enough to make a
+     * waiting call worth another look.
+     */
+    private void refileIdle(Sandbox sb) {
+        Map<AsyncCallback, Sandbox> callbacks;
+        synchronized (this) {
+            if (!mIdleSandboxes.refile(sb) || mPending.isEmpty()) {
+                return;
+            }
+            callbacks = tryExecuteQueueLocked();
+        }
+        tryExecuteQueueUnlocked(callbacks);
+    }
+
+    /**
+     * Fixes the pool size, turning autoscaling off.
+     * @return The old pool size.
+     */
     public int setMaxSandboxCount(int count) {
+        int newCount = Math.max(0, Math.min(count, CAPACITY));
+        return setAutoscale(newCount, newCount, -1);
+    }
+
+    /**
+     * Lets the pool size float between minCount and maxCount. When callbacks are left waiting
+     * with nothing free to run them, the pool grows by one sandbox per waiting callback. Once
+     * sandboxes have sat idle for idleMillis, they're taken out again; pass a negative
+     * idleMillis to keep the current timeout.
+     * @return The old pool size.
+     */
+    public int setAutoscale(int minCount, int maxCount, long idleMillis) {
         Map<AsyncCallback, Sandbox> callbacks = null;
-        boolean shouldRunQueue = false;
+        boolean shouldRunQueue;
         int oldCount;
 
         synchronized (this) {
             oldCount = mMaxCount;
-            int newCount = Math.max(0, Math.min(count, SANDBOX_COUNT));
-            Log.i(TAG, String.format("Changing sandbox count from %d to %d", oldCount, newCount));
-            dumpSandboxes();
-
-            if (newCount < oldCount) {
-                // Taking sandboxes away.
-                for (int i = oldCount - 1; i >= newCount; i--) {
-                    Sandbox sb = Sandbox.get(i);
-                    if (mStoppedSandboxes.remove(sb)) {
-                        // Was previously stopped; do nothing.
-                    } else if (mIdleSandboxes.remove(sb) != null) {
-                        // Was previously idle; stop.
-                        sb.stop(this);
-                    } else if (mHotSpares.remove(sb)) {
-                        // Was previously hot spare; stop and replace hot spare.
-                        sb.stop(this);
-                    } else if (mRunningSandboxes.remove(sb)) {
-                        // Was previously running; let it keep running, putSandbox() will ignore
-                        // this sandbox when the time comes.
-                    }
-                }
-            } else if (newCount > oldCount) {
-                // Adding sandboxes.
-                for (int i = oldCount; i < newCount; i++) {
-                    Sandbox sb = Sandbox.get(i);
-                    if (!mRunningSandboxes.contains(sb)) {
-                        mStoppedSandboxes.add(sb);
-                    }
-                }
-                // Wake up people waiting for a new hot spare.
-                shouldRunQueue = true;
+            mScaleMax = Math.max(0, Math.min(maxCount, CAPACITY));
+            mScaleMin = Math.max(0, Math.min(minCount, mScaleMax));
+            if (idleMillis >= 0) {
+                mScaleIdleMillis = idleMillis;
             }
+            int newCount = Math.max(mScaleMin, Math.min(oldCount, mScaleMax));
+            Log.i(TAG, String.format("Changing sandbox count from %d to %d (autoscale %d-%d)",
+                                     oldCount, newCount, mScaleMin, mScaleMax));
+            dumpSandboxes();
 
-            mMaxCount = newCount;
-
-            refillHotSpares();
-
+            // Wake up people waiting for a new hot spare.
+            shouldRunQueue = resizeLocked(newCount) | growForQueueLocked();
             if (shouldRunQueue) {
                 callbacks = tryExecuteQueueLocked();
             }
+            scheduleShrinkLocked();
 
             dumpSandboxes();
         }
@@ -237,9 +703,69 @@ public class SandboxManager {
         return oldCount;
     }
 
+    // Nothing is left for a normal call; the last hot spare is kept for interactive ones.
+    private boolean isSaturatedLocked() {
+        return mStoppedSandboxes.isEmpty() && mIdleSandboxes.isEmpty() && mHotSpares.size() <= 1;
+    }
+
+    /**
+     * The growing half of autoscaling: adds a sandbox for each callback left waiting with
+     * nothing free to run it.
+     * @return true if the pool grew.
+     */
+    private boolean growForQueueLocked() {
+        if (mMaxCount >= mScaleMax || mPending.isEmpty() || !isSaturatedLocked()) {
+            return false;
+        }
+        int newCount = Math.min(mScaleMax, mMaxCount + mPending.size());
+        Log.i(TAG, String.format("Growing sandbox count from %d to %d for %d waiting",
+                                 mMaxCount, newCount, mPending.size()));
+        resizeLocked(newCount);
+        scheduleShrinkLocked();
+        return true;
+    }
+
+    /**
+     * The shrinking half of autoscaling: takes out sandboxes that have been idle too long,
+     * and stopped ones, which were only there for a burst that's since passed.
+     */
+    private void shrinkIdleLocked() {
+        if (mMaxCount <= mScaleMin || !mPending.isEmpty()) {
+            return;
+        }
+        long cutoff = SystemClock.elapsedRealtime() - mScaleIdleMillis;
+        int unused = mStoppedSandboxes.size() + mIdleSandboxes.countIdleSince(cutoff);
+        int newCount = Math.max(mScaleMin, mMaxCount - unused);
+        if (newCount < mMaxCount) {
+            Log.i(TAG, String.format("Shrinking sandbox count from %d to %d", mMaxCount, newCount));
+            resizeLocked(newCount);
+        }
+    }
+
+    private final Runnable mShrinkTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SandboxManager.this) {
+                mShrinkScheduled = false;
+                shrinkIdleLocked();
+                scheduleShrinkLocked();
+            }
+        }
+    };
+
+    // Keeps checking for idle sandboxes for as long as the pool is bigger than its minimum.
+    private void scheduleShrinkLocked() {
+        if (mShrinkScheduled || mMaxCount <= mScaleMin) {
+            return;
+        }
+        FlowfenceApplication.getInstance().getUIHandler().postDelayed(
+                mShrinkTick, Math.max(MIN_SHRINK_INTERVAL_MILLIS, mScaleIdleMillis / 4));
+        mShrinkScheduled = true;
+    }
+
     public synchronized int setMaxIdleSandboxCount(int count) {
         int oldCount = mMaxIdleCount;
-        int newCount = Math.max(0, Math.min(count, SANDBOX_COUNT));
+        int newCount = Math.max(0, Math.min(count, CAPACITY));
         Log.i(TAG, "Changing max idle count from "+oldCount+" to "+newCount);
         dumpSandboxes();
 
@@ -265,30 +791,145 @@ public class SandboxManager {
 
     public synchronized int setMaxHotSpare(int count) {
         int oldCount = mMaxHotSpares;
-        int newCount = Math.max(mMinHotSpares, Math.min(count, SANDBOX_COUNT));
+        int newCount = Math.max(mMinHotSpares, Math.min(count, CAPACITY));
         Log.i(TAG, "Changing max hot spares from " + oldCount + " to " + newCount);
         dumpSandboxes();
 
         mMaxHotSpares = newCount;
         while (mHotSpares.size() > mMaxHotSpares) {
-            mIdleSandboxes.put(mHotSpares.remove(), ObjectUtils.NULL);
+            mIdleSandboxes.put(mHotSpares.remove());
         }
         trimIdle();
 
         return oldCount;
     }
 
+    /**
+     * Sets how many turns a package gets, relative to other packages, when more than one is
+     * waiting for sandboxes.
+     * @return The old weight.
+     */
+    public int setPackageWeight(String packageName, int weight) {
+        Map<AsyncCallback, Sandbox> callbacks;
+        int oldWeight;
+        synchronized (this) {
+            oldWeight = mPending.setWeight(packageName, weight);
+            Log.i(TAG, String.format("Changing weight of %s from %d to %d", packageName,
+                                     oldWeight, mPending.getWeight(packageName)));
+            callbacks = tryExecuteQueueLocked();
+        }
+        tryExecuteQueueUnlocked(callbacks);
+        return oldWeight;
+    }
+
+    /**
+     * Sets how many sandboxes any one package can hold at once.
+     * @return The old limit.
+     */
+    public int setMaxRunningPerPackage(int count) {
+        Map<AsyncCallback, Sandbox> callbacks;
+        int oldCount;
+        synchronized (this) {
+            int newCount = Math.max(1, Math.min(count, CAPACITY));
+            oldCount = mPending.setMaxRunning(newCount);
+            Log.i(TAG, "Changing max running per package from "+oldCount+" to "+newCount);
+            // Raising the limit may let waiting callbacks through.
+            callbacks = tryExecuteQueueLocked();
+        }
+        tryExecuteQueueUnlocked(callbacks);
+        return oldCount;
+    }
+
+    public synchronized int setMaxPrewarmed(int count) {
+        int oldCount = mMaxPrewarmed;
+        int newCount = Math.max(0, Math.min(count, CAPACITY));
+        Log.i(TAG, "Changing max prewarmed packages from " + oldCount + " to " + newCount);
+
+        mMaxPrewarmed = newCount;
+        prewarmLocked();
+
+        return oldCount;
+    }
+
+    /*package*/ DemandModel getDemandModel() {
+        return mDemand;
+    }
+
     public synchronized void start() {
-        setMaxSandboxCount(SANDBOX_COUNT);
+        setAutoscale(FlowfenceConstants.NUM_SANDBOXES, CAPACITY, DEFAULT_SCALE_IDLE_MILLIS);
+        schedulePssSampleLocked();
     }
 
     public synchronized void stop() {
         setMaxSandboxCount(0);
+        FlowfenceApplication.getInstance().getUIHandler().removeCallbacks(mPssSampler);
+        mPssSampleScheduled = false;
     }
 
+    /**
+     * How much stopping an idle sandbox is worth: the memory it gives back, per unit of
+     * expected cost to rebuild what's in it. Rebuilding means loading its packages and resolving
+     * its QMs again, and how likely that is to be needed is the recent call rate of those
+     * packages. A sandbox that hasn't been measured yet is assumed to use {@code estimatedPss}.
+     */
+    private float getEvictionScore(Sandbox sb, float estimatedPss) {
+        Set<String> packages = sb.getLoadedPackages();
+        double rate = 0.0;
+        for (String packageName : packages) {
+            rate += mDemand.getPackageRate(packageName);
+        }
+        float reloadCost = COST_LOAD_CODE * packages.size() + COST_RESOLVE_QM * sb.getResolveCount();
+        int pss = sb.getLastPss();
+        return ((pss != 0) ? pss : estimatedPss) / (1.0f + (float)(reloadCost * rate));
+    }
+
+    /**
+     * The mean PSS of the live sandboxes that have been measured, or 0 if none have.
+     */
+    private float getMeanPssLocked() {
+        long total = 0;
+        int count = 0;
+        for (Sandbox sb : mRunningSandboxes) {
+            int pss = sb.getLastPss();
+            if (pss != 0) {
+                total += pss;
+                count++;
+            }
+        }
+        for (Sandbox sb : mHotSpares) {
+            int pss = sb.getLastPss();
+            if (pss != 0) {
+                total += pss;
+                count++;
+            }
+        }
+        for (Sandbox sb : mIdleSandboxes.keySet()) {
+            int pss = sb.getLastPss();
+            if (pss != 0) {
+                total += pss;
+                count++;
+            }
+        }
+        return (count != 0) ? (float)total / count : 0.0f;
+    }
+
+    /**
+     * Takes the idle sandbox with the best eviction score out of the idle set. Sandboxes that
+     * haven't been measured yet are scored as if they used the mean PSS of those that have;
+     * until any have been measured, every score is 0 and this is plain LRU. Ties go to the
+     * least recently used.
+     */
     private Sandbox evictIdle() {
-        Map.Entry<Sandbox, ?> eldest = mIdleSandboxes.eldest();
-        Sandbox victim = eldest.getKey();
+        float estimatedPss = getMeanPssLocked();
+        Sandbox victim = null;
+        float bestScore = -1.0f;
+        for (Sandbox sb : mIdleSandboxes.keySet()) {
+            float score = getEvictionScore(sb, estimatedPss);
+            if (score > bestScore) {
+                bestScore = score;
+                victim = sb;
+            }
+        }
         mIdleSandboxes.remove(victim);
         return victim;
     }
@@ -304,6 +945,132 @@ public class SandboxManager {
                 mStoppedSandboxes.add(victim);
             }
         }
+        trimToBudgetLocked();
+    }
+
+    /**
+     * Stops idle sandboxes until the last measured memory use of all live sandboxes fits in
+     * the budget, or there's nothing idle left.
+     */
+    private void trimToBudgetLocked() {
+        if (mMemoryBudget == 0 || mIdleSandboxes.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        for (Sandbox sb : mRunningSandboxes) {
+            total += sb.getLastPss();
+        }
+        for (Sandbox sb : mHotSpares) {
+            total += sb.getLastPss();
+        }
+        for (Sandbox sb : mIdleSandboxes.keySet()) {
+            total += sb.getLastPss();
+        }
+        while (total > mMemoryBudget && !mIdleSandboxes.isEmpty()) {
+            Sandbox victim = evictIdle();
+            total -= victim.getLastPss();
+            if (localLOGD) {
+                Log.d(TAG, String.format("Stopping %s (%d kB) to fit the memory budget",
+                                         victim, victim.getLastPss()));
+            }
+            victim.stop(this);
+            mStoppedSandboxes.add(victim);
+        }
+    }
+
+    /**
+     * Sets the total PSS, in kB, that live sandboxes may use before idle sandboxes are stopped.
+     * Pass 0 for no limit.
+     * @return The old budget.
+     */
+    public synchronized int setMemoryBudget(int kilobytes) {
+        int oldBudget = mMemoryBudget;
+        mMemoryBudget = Math.max(0, kilobytes);
+        Log.i(TAG, "Changing memory budget from " + oldBudget + " kB to " + mMemoryBudget + " kB");
+        trimToBudgetLocked();
+        return oldBudget;
+    }
+
+    /**
+     * Stops some or all idle sandboxes when the system is short on memory, cheapest to lose
+     * first. The more severe the level, the fewer are kept.
+     */
+    public synchronized void onTrimMemory(int level) {
+        float keepFraction;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            keepFraction = 0.0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            keepFraction = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            keepFraction = 0.75f;
+        } else {
+            return;
+        }
+
+        int keep = (int)(mIdleSandboxes.size() * keepFraction);
+        Log.i(TAG, String.format("Trim level %d: keeping %d of %d idle sandboxes",
+                                 level, keep, mIdleSandboxes.size()));
+        while (mIdleSandboxes.size() > keep) {
+            Sandbox victim = evictIdle();
+            victim.stop(this);
+            mStoppedSandboxes.add(victim);
+        }
+        if (keepFraction == 0.0f) {
+            while (mHotSpares.size() > mMinHotSpares) {
+                Sandbox sb = mHotSpares.pollLast();
+                sb.stop(this);
+                mStoppedSandboxes.add(sb);
+            }
+        }
+    }
+
+    private final Runnable mPssSampler = new Runnable() {
+        @Override
+        public void run() {
+            final List<Sandbox> live;
+            synchronized (SandboxManager.this) {
+                mPssSampleScheduled = false;
+                if (mIdleSandboxes.isEmpty()) {
+                    // Nothing that could be stopped, so no need to measure.
+                    schedulePssSampleLocked();
+                    return;
+                }
+                live = new ArrayList<>(mIdleSandboxes.keySet());
+                live.addAll(mRunningSandboxes);
+                live.addAll(mHotSpares);
+                // Don't start another round until this one is done.
+                mPssSampleScheduled = true;
+            }
+            FlowfenceApplication.getInstance().getBackgroundExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Sandbox sb : live) {
+                        try {
+                            sb.samplePss();
+                        } catch (RemoteException e) {
+                            Log.w(TAG, "Couldn't measure " + sb, e);
+                        }
+                    }
+                    synchronized (SandboxManager.this) {
+                        trimToBudgetLocked();
+                        mPssSampleScheduled = false;
+                        schedulePssSampleLocked();
+                    }
+                }
+            });
+        }
+    };
+
+    private void schedulePssSampleLocked() {
+        if (mPssSampleScheduled || mMaxCount == 0) {
+            return;
+        }
+        FlowfenceApplication.getInstance().getUIHandler().postDelayed(
+                mPssSampler, PSS_SAMPLE_INTERVAL_MILLIS);
+        mPssSampleScheduled = true;
     }
 
     private void refillHotSpares() {
@@ -340,6 +1107,16 @@ public class SandboxManager {
     }
 
 
+    /**
+     * The last hot spare is kept for interactive calls, unless there's something to replace it
+     * with. An interactive call that arrives when everything else is busy then starts right away
+     * instead of waiting behind calls that can.
+     */
+    private boolean canTakeHotSpareLocked(int priorityClass) {
+        return priorityClass == INTERACTIVE_CLASS || mHotSpares.size() > 1 ||
+                !mStoppedSandboxes.isEmpty() || !mIdleSandboxes.isEmpty();
+    }
+
     private synchronized Sandbox tryGetHotSpare() {
         Sandbox result;
         while ((result = mHotSpares.peek()) == null) {
@@ -356,6 +1133,88 @@ public class SandboxManager {
         return result;
     }
 
+    private boolean hasCleanIdleLocked(String packageName) {
+        return !mIdleSandboxes.assignedTo(packageName, TaintSet.EMPTY).isEmpty();
+    }
+
+    // Only capacity nobody else is using: stopped sandboxes, then spares beyond the minimum.
+    private Sandbox takePrewarmCandidateLocked() {
+        if (!mStoppedSandboxes.isEmpty()) {
+            Sandbox sb = mStoppedSandboxes.poll();
+            sb.start(this);
+            return sb;
+        } else if (mHotSpares.size() > mMinHotSpares) {
+            return mHotSpares.pollLast();
+        }
+        return null;
+    }
+
+    /**
+     * Makes sure each of the packages most likely to be called next has an untainted idle
+     * sandbox, assigned to it and with its hottest QMs already resolved. A call that can't reuse
+     * a tainted sandbox then skips loading code and resolving, even after a long idle period.
+     */
+    private void prewarmLocked() {
+        if (mMaxPrewarmed == 0 || !mPending.isEmpty()) {
+            // Real calls get first claim on sandboxes.
+            return;
+        }
+
+        for (String packageName : mDemand.getHotPackages(mMaxPrewarmed)) {
+            if (mPrewarmingPackages.contains(packageName) || hasCleanIdleLocked(packageName)) {
+                continue;
+            }
+            List<QMRef> qms = mDemand.getHotQMs(packageName, PREWARM_QM_COUNT);
+            if (qms.isEmpty()) {
+                continue;
+            }
+            Sandbox sb = takePrewarmCandidateLocked();
+            if (sb == null) {
+                return;
+            }
+
+            if (localLOGD) {
+                Log.d(TAG, String.format("Prewarming %s for %s (%d QMs)",
+                                         sb, packageName, qms.size()));
+            }
+            mPrewarmingPackages.add(packageName);
+            mRunningSandboxes.add(sb);
+            sb.start(mExecutionReferenceKey);
+            FlowfenceApplication.getInstance().getBackgroundExecutor().submit(
+                    new PrewarmTask(sb, packageName, qms));
+        }
+    }
+
+    private final class PrewarmTask implements Runnable {
+        private final Sandbox mSandbox;
+        private final String mPackageName;
+        private final List<QMRef> mQMs;
+
+        public PrewarmTask(Sandbox sandbox, String packageName, List<QMRef> qms) {
+            mSandbox = sandbox;
+            mPackageName = packageName;
+            mQMs = qms;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSandbox.waitForStartupComplete();
+                mSandbox.assignPackage(mPackageName);
+                for (QMRef qm : mQMs) {
+                    qm.resolveFor(mSandbox);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Couldn't prewarm " + mSandbox + " for " + mPackageName, e);
+            } finally {
+                synchronized (SandboxManager.this) {
+                    mPrewarmingPackages.remove(mPackageName);
+                }
+                putSandbox(mSandbox);
+            }
+        }
+    }
+
     private synchronized Sandbox tryBeginExecution(Sandbox sb) {
         if (sb == null) {
             return null;
@@ -363,7 +1222,7 @@ public class SandboxManager {
 
         if (mHotSpares.peek() == sb) {
             mHotSpares.remove();
-        } else if (mIdleSandboxes.remove(sb) == null) {
+        } else if (!mIdleSandboxes.remove(sb)) {
             Log.e(TAG, "Sandbox not idle when we're trying to execute in it");
         }
 
@@ -384,26 +1243,27 @@ public class SandboxManager {
         float cheapestCost = !mHotSpares.isEmpty() ? COST_LOAD_CODE + 0.01f : Float.POSITIVE_INFINITY;
 
         // Is there an idle sandbox that's cheaper than the hot spare?
-        for (Sandbox sb : mIdleSandboxes.keySet()) {
-            String assignedPackage = sb.getAssignedPackage();
-            if (assignedPackage != null && !assignedPackage.equals(packageName)) {
-                continue;
-            }
-
-            float cost = 0.0f;
-            if (!sb.hasLoadedPackage(packageName)) {
-                // Need to load this package into this sandbox.
-                cost += COST_LOAD_CODE;
-            }
+        // Only ones already assigned to this package, or to no package at all, are usable.
+        for (int pass = 0; pass < 2; pass++) {
+            for (Set<Sandbox> bucket :
+                    mIdleSandboxes.assignedTo((pass == 0) ? packageName : null).values()) {
+                for (Sandbox sb : bucket) {
+                    float cost = 0.0f;
+                    if (!sb.hasLoadedPackage(packageName)) {
+                        // Need to load this package into this sandbox.
+                        cost += COST_LOAD_CODE;
+                    }
 
-            if (localLOGD) {
-                Log.d(TAG, String.format("%s: cost %g", sb, cost));
-            }
+                    if (localLOGD) {
+                        Log.d(TAG, String.format("%s: cost %g", sb, cost));
+                    }
 
-            // We don't care about taints or anything like that.
-            if (cost < cheapestCost) {
-                cheapestCost = cost;
-                cheapestSandbox = sb;
+                    // We don't care about taints or anything like that.
+                    if (cost < cheapestCost) {
+                        cheapestCost = cost;
+                        cheapestSandbox = sb;
+                    }
+                }
             }
         }
 
@@ -415,6 +1275,58 @@ public class SandboxManager {
         return (cheapestSandbox != null) ? cheapestSandbox : tryGetHotSpare();
     }
 
+    private float getCallCost(Sandbox sb, CallRecord record, String packageName, TaintSet inboundTaint) {
+        String assignedPackage = sb.getAssignedPackage();
+        if (assignedPackage != null && !assignedPackage.equals(packageName)) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        TaintSet sandboxTaint = sb.getTaints();
+        boolean mustMarshalOut = false;
+        if (!sandboxTaint.isSubsetOf(inboundTaint)) {
+            // SB more tainted than inbound; skip this SB
+            return Float.POSITIVE_INFINITY;
+        } else if (!sb.canTakeTaint(inboundTaint)) {
+            // SB is writing to a stream that can't carry the inbound taint
+            return Float.POSITIVE_INFINITY;
+        } else if (!inboundTaint.isSubsetOf(sandboxTaint)) {
+            // Inbound more tainted than SB; must marshal things out of SB
+            mustMarshalOut = true;
+        }
+
+        float cost = 0.0f;
+        if (!sb.hasLoadedPackage(packageName)) {
+            // Need to load this package into this sandbox.
+            cost += COST_LOAD_CODE;
+        }
+
+        if (!record.getQM().isResolvedIn(sb)) {
+            // Need to resolve the QM in this sandbox.
+            cost += COST_RESOLVE_QM;
+        }
+
+        if (mustMarshalOut) {
+            cost += COST_MARSHAL_OUT * sb.countUnmarshalledObjects();
+        }
+
+        for (Handle h : record.getPredecessors()) {
+            if (!h.isLiveIn(sb)) {
+                cost += COST_MARSHAL_IN;
+                if (!h.isMarshalled()) {
+                    cost += COST_MARSHAL_OUT;
+                }
+            } else if (h.getRefCount() == 1) {
+                // We won't need to marshal this one out after all.
+                cost -= COST_MARSHAL_OUT;
+            }
+        }
+
+        if (localLOGD) {
+            Log.d(TAG, String.format("%s %s: cost %g", sb, sandboxTaint, cost));
+        }
+        return cost;
+    }
+
     public synchronized Sandbox tryGetSandboxForCall(CallRecord record) {
         Sandbox cheapestSandbox = null;
 
@@ -430,8 +1342,9 @@ public class SandboxManager {
             }
         }
 
-        // Start out with the hot spare.
-        float cheapestCost = !mHotSpares.isEmpty() ?
+        // Start out with the hot spare, if this call may have it.
+        final boolean canTakeHotSpare = canTakeHotSpareLocked(record.getPriorityClass());
+        float cheapestCost = (canTakeHotSpare && !mHotSpares.isEmpty()) ?
                 COST_LOAD_CODE + COST_RESOLVE_QM + 0.01f +
                         COST_MARSHAL_OUT * numUnmarshalledHandles + COST_MARSHAL_IN * numHandles :
                 Float.POSITIVE_INFINITY;
@@ -446,57 +1359,22 @@ public class SandboxManager {
             Log.d(TAG, String.format("Inbound taint: %s", inboundTaint));
         }
         final String packageName = record.getQM().getDescriptor().definingClass.getPackageName();
-        for (Sandbox sb : mIdleSandboxes.keySet()) {
-            String assignedPackage = sb.getAssignedPackage();
-            if (assignedPackage != null && !assignedPackage.equals(packageName)) {
-                continue;
-            }
-
-            TaintSet sandboxTaint = sb.getTaints();
-            boolean mustMarshalOut = false;
-            if (!sandboxTaint.isSubsetOf(inboundTaint)) {
-                // SB more tainted than inbound; skip this SB
-                continue;
-            } else if (!inboundTaint.isSubsetOf(sandboxTaint)) {
-                // Inbound more tainted than SB; must marshal things out of SB
-                mustMarshalOut = true;
-            }
-
-            float cost = 0.0f;
-            if (!sb.hasLoadedPackage(packageName)) {
-                // Need to load this package into this sandbox.
-                cost += COST_LOAD_CODE;
-            }
-
-            if (!record.getQM().isResolvedIn(sb)) {
-                // Need to resolve the QM in this sandbox.
-                cost += COST_RESOLVE_QM;
-            }
-
-            if (mustMarshalOut) {
-                cost += COST_MARSHAL_OUT * sb.countUnmarshalledObjects();
-            }
-
-            for (Handle h : record.getPredecessors()) {
-                if (!h.isLiveIn(sb)) {
-                    cost += COST_MARSHAL_IN;
-                    if (!h.isMarshalled()) {
-                        cost += COST_MARSHAL_OUT;
+        // Only sandboxes already assigned to this package, or to no package at all, and no more
+        // tainted than the call, are usable. Whole signatures that aren't are skipped.
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map.Entry<TaintSet, ? extends Set<Sandbox>> entry :
+                    mIdleSandboxes.assignedTo((pass == 0) ? packageName : null).entrySet()) {
+                if (!entry.getKey().isSubsetOf(inboundTaint)) {
+                    continue;
+                }
+                for (Sandbox sb : entry.getValue()) {
+                    float cost = getCallCost(sb, record, packageName, inboundTaint);
+                    if (cost < cheapestCost) {
+                        cheapestCost = cost;
+                        cheapestSandbox = sb;
                     }
-                } else if (h.getRefCount() == 1) {
-                    // We won't need to marshal this one out after all.
-                    cost -= COST_MARSHAL_OUT;
                 }
             }
-
-            if (localLOGD) {
-                Log.d(TAG, String.format("%s %s: cost %g", sb, sandboxTaint, cost));
-            }
-
-            if (cost < cheapestCost) {
-                cheapestCost = cost;
-                cheapestSandbox = sb;
-            }
         }
 
         if (localLOGD) {
@@ -505,7 +1383,10 @@ public class SandboxManager {
                     cheapestCost));
         }
 
-        return (cheapestSandbox != null) ? cheapestSandbox : tryGetHotSpare();
+        if (cheapestSandbox != null) {
+            return cheapestSandbox;
+        }
+        return canTakeHotSpare ? tryGetHotSpare() : null;
     }
 
     public synchronized Sandbox tryGetSandboxById(final int id, final CallRecord record) {
@@ -525,7 +1406,7 @@ public class SandboxManager {
             refillHotSpares();
         }
         // Put into mIdleSandboxes temporarily, beginExecution expects it.
-        mIdleSandboxes.put(sb, ObjectUtils.NULL);
+        mIdleSandboxes.put(sb);
 
         if (record != null) {
             String packageName = record.getQM().getDescriptor().definingClass.getPackageName();
@@ -542,21 +1423,57 @@ public class SandboxManager {
     }
 
     public void getSandboxAsync(AsyncCallback callback) {
-        Map<AsyncCallback, Sandbox> callbacks;
+        Objects.requireNonNull(callback);
+        long deadline = getDeadline(callback);
+        if (deadline != 0 && deadline <= SystemClock.elapsedRealtime()) {
+            // Already too late; don't take a sandbox someone else could use.
+            ((Urgency)callback).onDeadlineExceeded();
+            return;
+        }
+
+        Sandbox sb;
+        Map<AsyncCallback, Sandbox> callbacks = null;
         synchronized (this) {
-            Objects.requireNonNull(callback);
-            mPendingCallbacks.add(callback);
-            callbacks = tryExecuteQueueLocked();
+            // Anyone already waiting has been offered everything that's available, so only the
+            // new callback needs to look. If it comes up empty, or its package already has as
+            // many sandboxes as it's allowed, it waits its turn.
+            String packageName = getAffinity(callback);
+            sb = mPending.canStart(packageName) ?
+                    tryBeginExecution(callback.tryFindSandbox(this)) : null;
+            if (sb != null) {
+                mPending.onStarted(packageName);
+                onStartedLocked(sb, packageName);
+            } else {
+                mPending.add(packageName, getPriorityClass(callback), callback);
+                if (deadline != 0) {
+                    mDeadlines.add(callback);
+                    scheduleSweepLocked();
+                }
+                if (growForQueueLocked()) {
+                    callbacks = tryExecuteQueueLocked();
+                }
+            }
+        }
+        if (sb != null) {
+            callback.execute(sb);
         }
         tryExecuteQueueUnlocked(callbacks);
     }
 
+    private static abstract class ResolveCallback extends FutureCallback implements PackageAffinity {
+    }
+
     public Sandbox getSandboxForResolve(final String packageName) {
-        FutureCallback cb = new FutureCallback() {
+        FutureCallback cb = new ResolveCallback() {
             @Override
             public Sandbox tryFindSandbox(SandboxManager manager) {
                 return manager.tryGetSandboxForResolve(packageName);
             }
+
+            @Override
+            public String getPackageAffinity() {
+                return packageName;
+            }
         };
         getSandboxAsync(cb);
         return cb.await();
@@ -576,6 +1493,10 @@ public class SandboxManager {
     public void putSandbox(Sandbox sb) {
         Map<AsyncCallback, Sandbox> callbacks;
         synchronized (this) {
+            String runningPackage = mRunningPackages.remove(sb);
+            if (runningPackage != null) {
+                mPending.onFinished(runningPackage);
+            }
             if (!mRunningSandboxes.remove(sb)) {
                 Log.w(TAG, "Put non-running sandbox " + sb);
                 return;
@@ -588,25 +1509,28 @@ public class SandboxManager {
             }
 
             // This was a trimmed sandbox. Let it go out of circulation.
-            if (sb.getID() >= mMaxCount) {
+            if (!mInPool.get(sb.getID())) {
                 sb.stop(this);
                 return;
             }
 
-            mIdleSandboxes.put(sb, ObjectUtils.NULL);
+            mIdleSandboxes.put(sb);
 
             refillHotSpares();
             trimIdle();
 
             callbacks = tryExecuteQueueLocked();
+            prewarmLocked();
         }
 
         tryExecuteQueueUnlocked(callbacks);
     }
 
     public synchronized void onPackageRemoved(String packageName) {
-        for (Sandbox sb : mIdleSandboxes.keySet()) {
+        mDemand.forgetPackage(packageName);
+        for (Sandbox sb : new ArrayList<>(mIdleSandboxes.keySet())) {
             if (sb.hasLoadedPackage(packageName)) {
+                // It's refiled as unassigned once it reconnects.
                 sb.restart();
             }
         }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umich.flowfence.service;
+
+import android.content.ComponentName;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.umich.flowfence.common.StreamRecord;
+
+/**
+ * The shared buffer behind a streaming event channel: a fixed number of slots, each holding
+ * one record. Readers map the buffer read-only and read slots in place. Writers never see it:
+ * each gets a staging buffer of its own, and the service copies a record from there into a
+ * free slot when it's published, so a writer can't read other writers' records or touch any
+ * slot or header. A slot isn't handed out again until every subscriber call delivering its
+ * record has finished or been dropped.
+ *
+ * The buffers are unlinked files in the cache directory, so they go away with the last
+ * descriptor. Only the service maps them writable; it's the source of truth for which record
+ * is in which slot.
+ */
+/*package*/ final class StreamBuffer {
+    private static final String TAG = "FF.StreamBuffer";
+    private static final boolean localLOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_CLAIMED = 1;
+    private static final int SLOT_PUBLISHED = 2;
+
+    private final ComponentName mChannelName;
+    private final File mDir;
+    private final int mRecordSize;
+    private final int mSlotCount;
+    private final ParcelFileDescriptor mReadDescriptor;
+    private final MappedByteBuffer mBuffer;
+
+    private final int[] mStates;
+    private final int[] mRefCounts;
+    private final long[] mSequences;
+    private long mNextSequence = 1;
+    private long mDropped = 0;
+
+    /**
+     * One writer's staging buffer: a single record's worth, which only that writer and the
+     * service can see.
+     */
+    public static final class Staging implements AutoCloseable {
+        private final ParcelFileDescriptor mDescriptor;
+        private final MappedByteBuffer mBuffer;
+
+        private Staging(ParcelFileDescriptor descriptor, MappedByteBuffer buffer) {
+            mDescriptor = descriptor;
+            mBuffer = buffer;
+        }
+
+        public ParcelFileDescriptor dupDescriptor() throws IOException {
+            return mDescriptor.dup();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDescriptor.close();
+        }
+    }
+
+    public StreamBuffer(ComponentName channelName, File dir, int recordSize, int slotCount)
+            throws IOException {
+        mChannelName = channelName;
+        mDir = dir;
+        mRecordSize = recordSize;
+        mSlotCount = slotCount;
+        mStates = new int[slotCount];
+        mRefCounts = new int[slotCount];
+        mSequences = new long[slotCount];
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create "+dir);
+        }
+        long size = StreamRecord.getBufferSize(recordSize, slotCount);
+        File file = File.createTempFile("stream", null, dir);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            mBuffer.putInt(StreamRecord.OFFSET_MAGIC, StreamRecord.MAGIC);
+            mBuffer.putInt(StreamRecord.OFFSET_RECORD_SIZE, recordSize);
+            mBuffer.putInt(StreamRecord.OFFSET_SLOT_COUNT, slotCount);
+
+            mReadDescriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            Log.i(TAG, String.format("Allocated %d bytes for %s", size,
+                                     channelName.flattenToShortString()));
+        } finally {
+            if (!file.delete()) {
+                Log.w(TAG, "Couldn't unlink "+file);
+            }
+        }
+    }
+
+    public ParcelFileDescriptor dupReadDescriptor() throws IOException {
+        return mReadDescriptor.dup();
+    }
+
+    public Staging newStaging() throws IOException {
+        File file = File.createTempFile("staging", null, mDir);
+        try {
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(mRecordSize);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mRecordSize);
+            }
+            return new Staging(ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE),
+                               buffer);
+        } finally {
+            if (!file.delete()) {
+                Log.w(TAG, "Couldn't unlink "+file);
+            }
+        }
+    }
+
+    /**
+     * Copies the first length bytes of staging into the oldest free slot and makes them
+     * visible to readers. The caller holds one reference to the slot, which it must
+     * {@link #release} once it has handed out its own.
+     * @return The record, or null if every slot is still in use and it was dropped.
+     */
+    public StreamRecord publish(Staging staging, int length) {
+        if (length < 0 || length > mRecordSize) {
+            throw new IllegalArgumentException("Record length "+length+" out of range");
+        }
+        int slot = claim();
+        if (slot < 0) {
+            return null;
+        }
+
+        // Copied outside the lock; the slot is ours until it's published.
+        try {
+            ByteBuffer src = staging.mBuffer.duplicate();
+            src.limit(length).position(0);
+            ByteBuffer dest = mBuffer.duplicate();
+            dest.position((int)StreamRecord.getSlotOffset(slot, mRecordSize, mSlotCount));
+            dest.put(src);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mStates[slot] = SLOT_FREE;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            long sequence = mNextSequence++;
+            int offset = StreamRecord.getSlotHeaderOffset(slot);
+            mBuffer.putLong(offset, sequence);
+            mBuffer.putInt(offset + 8, length);
+
+            mStates[slot] = SLOT_PUBLISHED;
+            mSequences[slot] = sequence;
+            mRefCounts[slot] = 1;
+            return new StreamRecord(mChannelName, slot, sequence, length);
+        }
+    }
+
+    /**
+     * @return The oldest free slot, now claimed, or -1 if every slot is still in use.
+     */
+    private synchronized int claim() {
+        int oldest = -1;
+        for (int i = 0; i < mSlotCount; i++) {
+            if (mStates[i] == SLOT_FREE &&
+                    (oldest < 0 || mSequences[i] < mSequences[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest < 0) {
+            mDropped++;
+            if (localLOGV) {
+                Log.v(TAG, String.format("No free slot on %s (%d dropped)",
+                                         mChannelName.flattenToShortString(), mDropped));
+            }
+            return -1;
+        }
+        mStates[oldest] = SLOT_CLAIMED;
+        // Invalidate the slot's old record before it's overwritten.
+        mBuffer.putLong(StreamRecord.getSlotHeaderOffset(oldest), 0);
+        return oldest;
+    }
+
+    public synchronized void acquire(int slot) {
+        if (mStates[slot] != SLOT_PUBLISHED) {
+            throw new IllegalStateException("Slot "+slot+" not published");
+        }
+        mRefCounts[slot]++;
+    }
+
+    public synchronized void release(int slot) {
+        if (mStates[slot] == SLOT_PUBLISHED && --mRefCounts[slot] <= 0) {
+            mStates[slot] = SLOT_FREE;
+            mRefCounts[slot] = 0;
+        }
+    }
+}
@@ -22,12 +22,16 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.umich.flowfence.common.FlowfenceContext;
+import edu.umich.flowfence.common.IStreamChannelAPI;
+import edu.umich.flowfence.common.StreamRecord;
+import edu.umich.flowfence.common.TaintableSharedPreferencesEditor;
 
 
 public class HRQM implements Parcelable
@@ -235,6 +239,17 @@ public class HRQM implements Parcelable
         }
     }
 
+    public static void newFrameRecord(StreamRecord record)
+    {
+        //the frame stays in the channel's shared buffer; read it in place
+        IStreamChannelAPI streamApi = (IStreamChannelAPI) FlowfenceContext.getInstance().getTrustedAPI("stream");
+        ByteBuffer frame = streamApi.read(record);
+
+        //throughput
+        if(DEBUG_TPUT && frame.remaining() > 0)
+            tput();
+    }
+
     /*static void breakLat(ArrayList<Double> acc, String tag)
     {
         endL = System.nanoTime();
@@ -259,14 +274,9 @@ public class HRQM implements Parcelable
     static void tput()
     {
         SharedPreferences myprefs = FlowfenceContext.getInstance().getSharedPreferences(TPUTKV, 0);
-        int counter = myprefs.getInt("counter", 0);
-
-        SharedPreferences.Editor edit = myprefs.edit();
-        edit.putInt("counter", counter+1);
-        if (counter == 0) {
-            edit.putLong("ts", SystemClock.uptimeMillis());
-        }
-        edit.apply();
+        // One transaction, and no frames lost to a poll that lands in between.
+        // TputQM starts each measuring window.
+        ((TaintableSharedPreferencesEditor) myprefs.edit()).increment("counter", 1).apply();
     }
 
     private static int decodeYUV420SPtoRedSum(byte[] yuv420sp, int width, int height) {
@@ -32,14 +32,19 @@ import java.util.TimerTask;
 import edu.umich.flowfence.client.FlowfenceConnection;
 import edu.umich.flowfence.client.QuarentineModule;
 import edu.umich.flowfence.common.QMDescriptor;
+import edu.umich.flowfence.common.StreamRecord;
 
 public class HRService extends Service {
 
     private static final String TAG = "HRService";
     FlowfenceConnection oconn = null;
     QuarentineModule.S4<byte [], Integer, Integer, Long, Void> newFrameStatic = null;
+    QuarentineModule.S1<StreamRecord, Void> newFrameRecordStatic = null;
     QuarentineModule.S0<Void> pollStatic = null;
 
+    // Subscribe to camFrameStream rather than camFrameChannel; must match FrameInjectorMain.
+    private static final boolean USE_STREAM = true;
+
 
     Timer thrTimer;
     TputPoller tputPoller;
@@ -80,6 +85,7 @@ public class HRService extends Service {
         {
             try {
                 newFrameStatic = oconn.resolveStatic(void.class, HRQM.class, "newFrame", byte [].class, int.class, int.class, long.class);
+                newFrameRecordStatic = oconn.resolveStatic(void.class, HRQM.class, "newFrameRecord", StreamRecord.class);
                 pollStatic = oconn.resolveStatic(void.class, TputQM.class, "poll");
             } catch(Exception e)
             {
@@ -102,8 +108,8 @@ public class HRService extends Service {
 
     public void setupListener()
     {
-        QMDescriptor sd = newFrameStatic.getDescriptor();
-        ComponentName cn = new ComponentName("edu.umich.flowfence.study.frameinjector", "camFrameChannel");
+        QMDescriptor sd = USE_STREAM ? newFrameRecordStatic.getDescriptor() : newFrameStatic.getDescriptor();
+        ComponentName cn = new ComponentName("edu.umich.flowfence.study.frameinjector", USE_STREAM ? "camFrameStream" : "camFrameChannel");
 
         try {
             oconn.getRawInterface().subscribeEventChannel(cn, sd);
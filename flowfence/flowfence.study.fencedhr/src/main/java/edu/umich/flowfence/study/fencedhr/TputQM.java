@@ -16,11 +16,15 @@
 
 package edu.umich.flowfence.study.fencedhr;
 
-import android.content.SharedPreferences;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import edu.umich.flowfence.common.FlowfenceContext;
+import edu.umich.flowfence.common.TaintableSharedPreferences;
+import edu.umich.flowfence.common.TaintableSharedPreferencesEditor;
 
 public class TputQM
 {
@@ -35,30 +39,32 @@ public class TputQM
     //over the experimentLength (currently 120 seconds)
     public static void poll()
     {
-        SharedPreferences myprefs = FlowfenceContext.getInstance().getSharedPreferences(HRQM.TPUTKV, 0);
-        int counter = myprefs.getInt("counter", -1);
+        TaintableSharedPreferences myprefs = (TaintableSharedPreferences)
+                FlowfenceContext.getInstance().getSharedPreferences(HRQM.TPUTKV, 0);
+        Map<String, ?> values = myprefs.getMany(Arrays.asList("counter", "ts"));
+        Integer counter = (Integer) values.get("counter");
 
-        if(counter != -1)
+        if(counter != null)
         {
             long now = SystemClock.uptimeMillis();
-            long prev = myprefs.getLong("ts", -1);
+            Long prev = (Long) values.get("ts");
 
-            if(prev != -1)
+            if(prev != null)
             {
                 double duration = (((double) (now - prev)) / 1000.0); //seconds
                 double fps = ((double) (counter)) / duration;
 
                 Log.i(TAG, "fps: " + fps);
                 //Log.i(TAG, "duration: " + duration);
-
-                //reset counter
-                SharedPreferences.Editor edit = myprefs.edit();
-                edit.putInt("counter", 0);
-                edit.apply();
-
             }
             else
                 Log.e(TAG, "prev == -1");
+
+            //reset counter, keeping any frames counted since we read it
+            ((TaintableSharedPreferencesEditor) myprefs.edit())
+                    .increment("counter", -counter)
+                    .putLong("ts", now)
+                    .apply();
         }
         else
             Log.e(TAG, "counter == -1");
@@ -86,6 +86,8 @@ public class FrameInjectorMain extends Activity {
     long experimentLength = 120; //in seconds
 
     private static final boolean DEBUG_TPUT = true;
+    // Send frames through camFrameStream rather than camFrameChannel; must match HRService.
+    private static final boolean USE_STREAM = true;
 
     //FlowFence stuff
     FlowfenceConnection oconn = null;
@@ -143,7 +145,7 @@ public class FrameInjectorMain extends Activity {
         if(oconn != null)
         {
             try {
-                newFrameStatic = oconn.resolveStatic(void.class, FrameQM.class, "newFrame", byte [].class, int.class, int.class, long.class);
+                newFrameStatic = oconn.resolveStatic(void.class, FrameQM.class, USE_STREAM ? "streamFrame" : "newFrame", byte [].class, int.class, int.class, long.class);
             } catch(Exception e)
             {
                 Log.e(TAG, "error: " + e);
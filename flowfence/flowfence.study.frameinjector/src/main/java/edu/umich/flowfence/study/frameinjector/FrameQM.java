@@ -19,6 +19,7 @@ import android.content.ComponentName;
 
 import edu.umich.flowfence.common.IEventChannelAPI;
 import edu.umich.flowfence.common.FlowfenceContext;
+import edu.umich.flowfence.common.IStreamChannelAPI;
 import edu.umich.flowfence.common.TaintSet;
 
 /**
@@ -31,6 +32,7 @@ public class FrameQM
 
     private static final String TAINT_TAG = "edu.umich.flowfence.study.frameinjector/camFrameTaint";
     private static final String CHANNEL_NAME = "edu.umich.flowfence.study.frameinjector/camFrameChannel";
+    private static final String STREAM_NAME = "edu.umich.flowfence.study.frameinjector/camFrameStream";
 
     private FrameQM()
     {
@@ -38,6 +40,7 @@ public class FrameQM
 
     private static final TaintSet CAMERA_TAINT = new TaintSet.Builder().addTaint(TAINT_TAG).build();
     private static final ComponentName CAMERA_CHANNEL = ComponentName.unflattenFromString(CHANNEL_NAME);
+    private static final ComponentName CAMERA_STREAM = ComponentName.unflattenFromString(STREAM_NAME);
 
     public static void newFrame(byte [] data, int width, int height, long deliveryTime)
     {
@@ -54,4 +57,14 @@ public class FrameQM
             eventApi.fireEvent(CAMERA_TAINT, CAMERA_CHANNEL, data, width, height, deliveryTime);
         }
     }
+
+    public static void streamFrame(byte [] data, int width, int height, long deliveryTime)
+    {
+        if(data != null)
+        {
+            //copy into the shared stream; subscribers read it in place
+            IStreamChannelAPI streamApi = (IStreamChannelAPI) FlowfenceContext.getInstance().getTrustedAPI("stream");
+            streamApi.write(CAMERA_STREAM, data, 0, data.length);
+        }
+    }
 }
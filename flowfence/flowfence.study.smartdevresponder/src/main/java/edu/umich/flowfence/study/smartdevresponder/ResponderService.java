@@ -16,7 +16,6 @@
 package edu.umich.flowfence.study.smartdevresponder;
 
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
@@ -95,7 +94,7 @@ public class ResponderService extends Service {
         resolve();
 
         //fire up a timer that will execute pollPresence frequently
-        //This is stop-gap until we get pubsub on the KV store
+        //no longer needed now that the KV store has pubsub
         //initTTask();
         //schedule();
 
@@ -106,13 +105,13 @@ public class ResponderService extends Service {
     void setupListener()
     {
         QMDescriptor sd = pollPresence.getDescriptor();
-        ComponentName cn = new ComponentName("edu.umich.flowfence.study.presencebasedcontrol", "presenceUpdateChannel");
 
+        //called after every commit to the presence KV store, tainted like the keys that changed
         try {
-            oconn.getRawInterface().subscribeEventChannel(cn, sd);
+            oconn.getRawInterface().subscribeSharedPrefs("edu.umich.flowfence.study.presencebasedcontrol", "PresenceKVS", sd).throwChecked();
         } catch (Exception e)
         {
-            Log.e(TAG, "error subscribeEventChannel: " + e);
+            Log.e(TAG, "error subscribeSharedPrefs: " + e);
         }
     }
 
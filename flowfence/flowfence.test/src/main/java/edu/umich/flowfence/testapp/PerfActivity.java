@@ -24,7 +24,10 @@ import android.os.Bundle;
 import android.os.Debug;
 import android.os.Message;
 import android.os.OperationCanceledException;
+import android.os.Parcel;
 import android.os.PowerManager;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.GridLayout;
 import android.util.Log;
@@ -52,11 +55,15 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
+import edu.umich.flowfence.client.CallRunner;
 import edu.umich.flowfence.client.FlowfenceConnection;
 import edu.umich.flowfence.client.QuarentineModule;
 import edu.umich.flowfence.common.IFlowfenceService;
 import edu.umich.flowfence.common.FlowfenceConstants;
+import edu.umich.flowfence.common.ParceledPayload;
 
 public class PerfActivity extends Activity implements CompoundButton.OnCheckedChangeListener,
                                                       View.OnClickListener,
@@ -79,6 +86,7 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
     private CheckBox latencyUntainted;
     private EditText latencySparesLow;
     private EditText latencySparesHigh;
+    private EditText latencyBatchSize;
 
     private Switch marshalSwitch;
     private GridLayout marshalGrid;
@@ -91,16 +99,35 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
     private EditText memorySandboxesMin;
     private EditText memorySandboxesMax;
 
+    private Switch contentionSwitch;
+    private GridLayout contentionGrid;
+    private EditText contentionLoops;
+    private EditText contentionTrials;
+    private EditText contentionThreadsLow;
+    private EditText contentionThreadsHigh;
+
+    private Switch idleSwitch;
+    private GridLayout idleGrid;
+    private EditText idleSeconds;
+    private EditText idleTrials;
+
     private FlowfenceConnection conn;
     private ServiceConnection sc;
     private PerfTask task;
 
     private Resources res;
     private QuarentineModule.S2<Boolean, byte[], Void> execQM;
+    // How many sandboxes the service was built with; see IFlowfenceService.getSandboxCapacity.
+    private int sandboxCapacity = FlowfenceConstants.NUM_SANDBOXES;
 
-    public static int getClampedSandboxCount(EditText text) {
+    public int getClampedSandboxCount(EditText text) {
         int count = Integer.parseInt(text.getText().toString());
-        return Math.max(0, Math.min(count, FlowfenceConstants.NUM_SANDBOXES));
+        return Math.max(0, Math.min(count, sandboxCapacity));
+    }
+
+    // setSandboxCount turns autoscaling off, so put the pool back the way the service starts it.
+    private void restoreSandboxPool(IFlowfenceService svc) throws RemoteException {
+        svc.setSandboxAutoscale(FlowfenceConstants.NUM_SANDBOXES, sandboxCapacity, -1);
     }
 
     @Override
@@ -123,6 +150,7 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
         latencyUntainted = (CheckBox)findViewById(R.id.perf_latency_not_tainted);
         latencySparesLow = (EditText)findViewById(R.id.perf_latency_spares_low);
         latencySparesHigh = (EditText)findViewById(R.id.perf_latency_spares_high);
+        latencyBatchSize = (EditText)findViewById(R.id.perf_latency_batch_size);
 
         marshalSwitch = (Switch)findViewById(R.id.perf_do_marshal);
         marshalGrid = (GridLayout)findViewById(R.id.perf_params_marshal);
@@ -135,12 +163,28 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
         memorySandboxesMin = (EditText)findViewById(R.id.perf_memory_sandboxes_low);
         memorySandboxesMax = (EditText)findViewById(R.id.perf_memory_sandboxes_high);
 
+        contentionSwitch = (Switch)findViewById(R.id.perf_do_contention);
+        contentionGrid = (GridLayout)findViewById(R.id.perf_params_contention);
+        contentionLoops = (EditText)findViewById(R.id.perf_contention_loops_per_trial);
+        contentionTrials = (EditText)findViewById(R.id.perf_contention_trials_per_run);
+        contentionThreadsLow = (EditText)findViewById(R.id.perf_contention_threads_low);
+        contentionThreadsHigh = (EditText)findViewById(R.id.perf_contention_threads_high);
+
+        idleSwitch = (Switch)findViewById(R.id.perf_do_idle);
+        idleGrid = (GridLayout)findViewById(R.id.perf_params_idle);
+        idleSeconds = (EditText)findViewById(R.id.perf_idle_seconds);
+        idleTrials = (EditText)findViewById(R.id.perf_idle_trials_per_run);
+
         latencySwitch.setTag(R.id.perf_tests, latencyGrid);
         latencySwitch.setOnCheckedChangeListener(this);
         marshalSwitch.setTag(R.id.perf_tests, marshalGrid);
         marshalSwitch.setOnCheckedChangeListener(this);
         memorySwitch.setTag(R.id.perf_tests, memoryGrid);
         memorySwitch.setOnCheckedChangeListener(this);
+        contentionSwitch.setTag(R.id.perf_tests, contentionGrid);
+        contentionSwitch.setOnCheckedChangeListener(this);
+        idleSwitch.setTag(R.id.perf_tests, idleGrid);
+        idleSwitch.setOnCheckedChangeListener(this);
 
         executeButton.setOnClickListener(this);
         res = getResources();
@@ -199,12 +243,15 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
         this.conn = conn;
         if (this.task != null) {
             try {
+                sandboxCapacity = conn.getRawInterface().getSandboxCapacity();
                 execQM = conn.resolveStatic(void.class, PerfQM.class, "execQM",
                                               boolean.class, byte[].class);
                 task.execute(
                         memorySwitch.isChecked() ? new MemoryTest() : null,
                         latencySwitch.isChecked() ? new LatencyTest() : null,
-                        marshalSwitch.isChecked() ? new MarshalTest() : null);
+                        marshalSwitch.isChecked() ? new MarshalTest() : null,
+                        contentionSwitch.isChecked() ? new ContentionTest() : null,
+                        idleSwitch.isChecked() ? new IdleTest() : null);
             } catch (Exception e) {
                 showAlert(e);
                 onEndTask(R.string.task_failed);
@@ -218,7 +265,7 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
     }
 
     private final class LatencyTest extends PerfSubtest {
-        private final int loops, trials, sandboxesLow, sandboxesHigh;
+        private final int loops, trials, sandboxesLow, sandboxesHigh, batchSize;
         private final boolean tainted, untainted;
         private IFlowfenceService svc;
 
@@ -234,27 +281,45 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
             trials = Integer.parseInt(latencyTrials.getText().toString());
             sandboxesLow = getClampedSandboxCount(latencySparesLow);
             sandboxesHigh = getClampedSandboxCount(latencySparesHigh);
+
+            String batchSizeString = latencyBatchSize.getText().toString();
+            batchSize = batchSizeString.isEmpty() ? 1 :
+                    Math.max(1, Integer.parseInt(batchSizeString));
         }
 
+        private final long NANOS_PER_SEC = (1000L*1000L*1000L);
+
         private long executeTrial(PerfTask task, boolean shouldTaint, int numSpares) throws Exception {
             StopWatch stopWatch = new StopWatch();
 
             // Reset to a known state.
             svc.setMinHotSpare(numSpares);
             svc.setSandboxCount(0);
-            svc.setSandboxCount(FlowfenceConstants.NUM_SANDBOXES);
+            svc.setSandboxCount(sandboxCapacity);
 
             // Get all of the sandboxes into steady state.
-            for (int i = 0; i < FlowfenceConstants.NUM_SANDBOXES; i++) {
+            for (int i = 0; i < sandboxCapacity; i++) {
                 execQM.arg(shouldTaint).argNull().call();
             }
 
             svc.forceGarbageCollection();
 
             stopWatch.start();
-            for (int i = 0; i < loops; i++) {
-                execQM.arg(shouldTaint).argNull().call();
-                task.throwIfCancelled();
+            if (batchSize <= 1) {
+                for (int i = 0; i < loops; i++) {
+                    execQM.arg(shouldTaint).argNull().call();
+                    task.throwIfCancelled();
+                }
+            } else {
+                List<CallRunner<Void>> batch = new ArrayList<>(batchSize);
+                for (int i = 0; i < loops; ) {
+                    batch.clear();
+                    for (int j = 0; j < batchSize && i < loops; j++, i++) {
+                        batch.add(execQM.arg(shouldTaint).argNull());
+                    }
+                    execQM.callBatch(batch);
+                    task.throwIfCancelled();
+                }
             }
             stopWatch.stop();
 
@@ -275,8 +340,9 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
 
                     long totalTimeNanos = executeTrial(task, shouldTaint, numSpares);
                     long averageTimeNanos = totalTimeNanos / loops;
-                    writer.format("%b,%d,%d,%d,%d,%d", shouldTaint, numSpares, trial, loops,
-                                  totalTimeNanos, averageTimeNanos);
+                    long throughput = (loops * NANOS_PER_SEC) / Math.max(1, totalTimeNanos);
+                    writer.format("%b,%d,%d,%d,%d,%d,%d,%d", shouldTaint, numSpares, trial, loops,
+                                  batchSize, totalTimeNanos, averageTimeNanos, throughput);
                     writer.println();
                 }
             }
@@ -287,13 +353,13 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
             task.publishProgress(-1, -1, describe()+": Initializing...");
             svc = conn.getRawInterface();
 
-            final int oldSandboxCount = svc.setSandboxCount(/*0*/FlowfenceConstants.NUM_SANDBOXES);
+            svc.setSandboxCount(sandboxCapacity);
             final int oldMinSpare = svc.setMinHotSpare(0);
-            final int oldMaxSpare = svc.setMaxHotSpare(FlowfenceConstants.NUM_SANDBOXES);
-            final int oldMaxIdle = svc.setMaxIdleCount(FlowfenceConstants.NUM_SANDBOXES);
+            final int oldMaxSpare = svc.setMaxHotSpare(sandboxCapacity);
+            final int oldMaxIdle = svc.setMaxIdleCount(sandboxCapacity);
 
             try (PrintWriter out = new PrintWriter(openRunOutput("csv"), true)) {
-                out.println("Tainted,Number of Spares,Trial,Loops,Total Latency (ns),Average Latency (ns)");
+                out.println("Tainted,Number of Spares,Trial,Loops,Batch Size,Total Latency (ns),Average Latency (ns),Throughput (calls/s)");
 
                 if (untainted) {
                     doTrials(task, out, false);
@@ -304,7 +370,7 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
                 }
 
             } finally {
-                svc.setSandboxCount(oldSandboxCount);
+                restoreSandboxPool(svc);
                 svc.setMaxHotSpare(oldMaxSpare);
                 svc.setMinHotSpare(oldMinSpare);
                 svc.setMaxIdleCount(oldMaxIdle);
@@ -358,13 +424,32 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
 
         private final long NANOS_PER_SEC = (1000L*1000L*1000L);
 
+        private void localRoundTrip(byte[] buf) {
+            ParceledPayload payload = ParceledPayload.create(buf);
+            Parcel parcel = Parcel.obtain();
+            try {
+                payload.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                ParceledPayload received = ParceledPayload.fromParcel(parcel);
+                try {
+                    received.getValue(getClassLoader());
+                } finally {
+                    received.release();
+                }
+            } finally {
+                parcel.recycle();
+                payload.release();
+            }
+        }
+
         public void execute(PerfTask task) throws Exception {
             final StopWatch stopWatch = new StopWatch();
             final IFlowfenceService svc = conn.getRawInterface();
             final byte[] emptyByteArray = new byte[0];
             try (FileInputStream urandom = new FileInputStream("/dev/urandom");
                  PrintWriter out = new PrintWriter(openRunOutput("csv"), true)) {
-                out.println("Data Size,Trial,Loops,Total Latency (ns),Average Latency (ns),Average Bandwidth (bytes/s)");
+                out.println("Data Size,Trial,Loops,Total Latency (ns),Average Latency (ns),Average Bandwidth (bytes/s)," +
+                            "Average Local Round Trip (ns),Local Bandwidth (bytes/s)");
 
                 final int numSizes = sizes.size();
                 final int totalProgress = numSizes * trials;
@@ -399,14 +484,29 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
                         long totalTimeNanos = stopWatch.getNanoTime();
                         long averageTimeNanos = totalTimeNanos / loops;
                         long bandwidth = (size * loops * NANOS_PER_SEC) / totalTimeNanos;
+                        stopWatch.reset();
 
-                        out.format("%s,%d,%d,%d,%d,%d", humanSize, trial, loops, totalTimeNanos,
-                                   averageTimeNanos, bandwidth)
+                        // The same payload through one parcel hop in this process, without
+                        // the binder calls: create, parcel, unparcel, decode, release.
+                        stopWatch.start();
+                        for (int loop = 0; loop < loops; loop++) {
+                            localRoundTrip(buf);
+                        }
+                        stopWatch.stop();
+
+                        long localTimeNanos = stopWatch.getNanoTime();
+                        long averageLocalNanos = localTimeNanos / loops;
+                        long localBandwidth = (size * loops * NANOS_PER_SEC) / localTimeNanos;
+
+                        out.format("%s,%d,%d,%d,%d,%d,%d,%d", humanSize, trial, loops, totalTimeNanos,
+                                   averageTimeNanos, bandwidth, averageLocalNanos, localBandwidth)
                            .println();
 
                         stopWatch.reset();
                     }
                 }
+            } finally {
+                restoreSandboxPool(svc);
             }
         }
     }
@@ -423,12 +523,12 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
         public void execute(PerfTask task) throws Exception {
             task.publishProgress(-1, -1, describe()+": Initializing...");
             IFlowfenceService svc = conn.getRawInterface();
-            List<Debug.MemoryInfo> sandboxMemInfo = new ArrayList<>(FlowfenceConstants.NUM_SANDBOXES);
+            List<Debug.MemoryInfo> sandboxMemInfo = new ArrayList<>(sandboxCapacity);
             Debug.MemoryInfo serviceMemInfo;
-            final int oldSandboxCount = svc.setSandboxCount(0);
+            svc.setSandboxCount(0);
             final int oldMinSpare = svc.setMinHotSpare(0);
             final int oldMaxSpare = svc.setMaxHotSpare(0);
-            final int oldMaxIdle = svc.setMaxIdleCount(FlowfenceConstants.NUM_SANDBOXES);
+            final int oldMaxIdle = svc.setMaxIdleCount(sandboxCapacity);
 
             try (PrintWriter out = new PrintWriter(openRunOutput("csv"), true)) {
                 out.println("Number of Sandboxes,Trusted Service PSS,Sandboxes PSS,Total PSS");
@@ -475,7 +575,7 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
                        .println();
                 }
             } finally {
-                svc.setSandboxCount(oldSandboxCount);
+                restoreSandboxPool(svc);
                 svc.setMaxHotSpare(oldMaxSpare);
                 svc.setMinHotSpare(oldMinSpare);
                 svc.setMaxIdleCount(oldMaxIdle);
@@ -483,6 +583,167 @@ public class PerfActivity extends Activity implements CompoundButton.OnCheckedCh
         }
     }
 
+    private final class ContentionTest extends PerfSubtest {
+        private final int loops, trials, threadsLow, threadsHigh;
+
+        public ContentionTest() {
+            super("ContentionTest");
+            loops = Integer.parseInt(contentionLoops.getText().toString());
+            trials = Integer.parseInt(contentionTrials.getText().toString());
+            threadsLow = Math.max(1, Integer.parseInt(contentionThreadsLow.getText().toString()));
+            threadsHigh = Math.max(threadsLow,
+                                   Integer.parseInt(contentionThreadsHigh.getText().toString()));
+        }
+
+        private final long NANOS_PER_SEC = (1000L*1000L*1000L);
+
+        private long executeTrial(final PerfTask task, int numThreads) throws Exception {
+            final CountDownLatch startGate = new CountDownLatch(1);
+            final CountDownLatch endGate = new CountDownLatch(numThreads);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            for (int i = 0; i < numThreads; i++) {
+                Thread t = new Thread("ContentionTest-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            startGate.await();
+                            for (int loop = 0; loop < loops && !task.isTaskCancelled(); loop++) {
+                                execQM.arg(false).argNull().call();
+                            }
+                        } catch (Throwable th) {
+                            failure.compareAndSet(null, th);
+                        } finally {
+                            endGate.countDown();
+                        }
+                    }
+                };
+                t.start();
+            }
+
+            long startTime = System.nanoTime();
+            startGate.countDown();
+            endGate.await();
+            long totalTimeNanos = System.nanoTime() - startTime;
+
+            Throwable th = failure.get();
+            if (th instanceof Exception) {
+                throw (Exception)th;
+            } else if (th != null) {
+                throw new RuntimeException(th);
+            }
+            return totalTimeNanos;
+        }
+
+        @Override
+        public void execute(PerfTask task) throws Exception {
+            task.publishProgress(-1, -1, describe()+": Initializing...");
+            IFlowfenceService svc = conn.getRawInterface();
+
+            svc.setSandboxCount(sandboxCapacity);
+            final int oldMinSpare = svc.setMinHotSpare(0);
+            final int oldMaxSpare = svc.setMaxHotSpare(sandboxCapacity);
+            final int oldMaxIdle = svc.setMaxIdleCount(sandboxCapacity);
+
+            try (PrintWriter out = new PrintWriter(openRunOutput("csv"), true)) {
+                out.println("Threads,Trial,Loops per Thread,Total Calls,Total Time (ns),Throughput (calls/s)");
+
+                int progress = 0;
+                final int totalProgress = (threadsHigh - threadsLow + 1) * trials;
+                for (int numThreads = threadsLow; numThreads <= threadsHigh; numThreads++) {
+                    for (int trial = 1; trial <= trials; trial++) {
+                        task.throwIfCancelled();
+                        task.publishProgress(progress++, totalProgress,
+                                             String.format("%s: %d threads, trial %d/%d",
+                                                           describe(), numThreads, trial, trials));
+
+                        // Get all of the sandboxes into steady state.
+                        for (int i = 0; i < sandboxCapacity; i++) {
+                            execQM.arg(false).argNull().call();
+                        }
+                        svc.forceGarbageCollection();
+
+                        long totalTimeNanos = executeTrial(task, numThreads);
+                        task.throwIfCancelled();
+                        long totalCalls = (long)numThreads * loops;
+                        long throughput = (totalCalls * NANOS_PER_SEC) / Math.max(1, totalTimeNanos);
+
+                        out.format("%d,%d,%d,%d,%d,%d", numThreads, trial, loops, totalCalls,
+                                   totalTimeNanos, throughput)
+                           .println();
+                    }
+                }
+            } finally {
+                restoreSandboxPool(svc);
+                svc.setMaxHotSpare(oldMaxSpare);
+                svc.setMinHotSpare(oldMinSpare);
+                svc.setMaxIdleCount(oldMaxIdle);
+            }
+        }
+    }
+
+    private final class IdleTest extends PerfSubtest {
+        private final int seconds, trials;
+
+        public IdleTest() {
+            super("IdleTest");
+            seconds = Math.max(0, Integer.parseInt(idleSeconds.getText().toString()));
+            trials = Integer.parseInt(idleTrials.getText().toString());
+        }
+
+        // Tainted calls leave every sandbox they touch unusable for an untainted call, so the
+        // first untainted call after the idle period needs a clean sandbox.
+        private long executeTrial(PerfTask task) throws Exception {
+            for (int i = 0; i < sandboxCapacity; i++) {
+                execQM.arg(true).argNull().call();
+            }
+            task.throwIfCancelled();
+            SystemClock.sleep(seconds * 1000L);
+            task.throwIfCancelled();
+
+            long startTime = System.nanoTime();
+            execQM.arg(false).argNull().call();
+            return System.nanoTime() - startTime;
+        }
+
+        @Override
+        public void execute(PerfTask task) throws Exception {
+            task.publishProgress(-1, -1, describe()+": Initializing...");
+            IFlowfenceService svc = conn.getRawInterface();
+
+            svc.setSandboxCount(sandboxCapacity);
+            final int oldMinSpare = svc.setMinHotSpare(1);
+            final int oldMaxIdle = svc.setMaxIdleCount(sandboxCapacity);
+            final int oldPrewarmed = svc.setMaxPrewarmed(0);
+
+            try (PrintWriter out = new PrintWriter(openRunOutput("csv"), true)) {
+                out.println("Prewarming,Trial,Idle Time (s),First Call Latency (ns)");
+
+                int progress = 0;
+                final int totalProgress = 2 * trials;
+                for (int prewarm = 0; prewarm <= 1; prewarm++) {
+                    svc.setMaxPrewarmed((prewarm != 0) ? Math.max(1, oldPrewarmed) : 0);
+                    for (int trial = 1; trial <= trials; trial++) {
+                        task.throwIfCancelled();
+                        task.publishProgress(progress++, totalProgress,
+                                             String.format("%s: prewarming %s, trial %d/%d",
+                                                           describe(), (prewarm != 0) ? "on" : "off",
+                                                           trial, trials));
+
+                        long latencyNanos = executeTrial(task);
+                        out.format("%b,%d,%d,%d", prewarm != 0, trial, seconds, latencyNanos)
+                           .println();
+                    }
+                }
+            } finally {
+                restoreSandboxPool(svc);
+                svc.setMinHotSpare(oldMinSpare);
+                svc.setMaxIdleCount(oldMaxIdle);
+                svc.setMaxPrewarmed(oldPrewarmed);
+            }
+        }
+    }
+
     private abstract class PerfSubtest {
         private final String type;
         protected PerfSubtest(String type) {
@@ -359,6 +359,30 @@ public class TestActivity extends Activity {
         pushOtherQM = null;
         nop = null;
         setButtonsEnabled(conn != null);
+        if (conn != null) {
+            try {
+                setSandboxCountLimit(conn.getRawInterface().getSandboxCapacity());
+            } catch (RemoteException e) {
+                Log.w(TAG, "Couldn't get sandbox capacity", e);
+            }
+        }
+    }
+
+    // Offers sandbox counts from 0 to max, keeping the current pick if it's still in range.
+    private void setSandboxCountLimit(int max) {
+        int selected = (sandboxCount.getAdapter() != null)
+                ? sandboxCount.getSelectedItemPosition()
+                : FlowfenceConstants.NUM_SANDBOXES;
+        CharSequence[] countList = new CharSequence[max + 1];
+        for (int i = 0; i <= max; i++) {
+            countList[i] = getResources().getQuantityString(R.plurals.sandbox_plurals, i, i);
+        }
+        ArrayAdapter<CharSequence> adapter = new ArrayAdapter<>(this,
+                                                                android.R.layout.simple_spinner_item,
+                                                                countList);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        sandboxCount.setAdapter(adapter);
+        sandboxCount.setSelection(Math.min(selected, max));
     }
 
     private synchronized QuarentineModule.S1<Boolean, Void> getNop()
@@ -381,19 +405,10 @@ public class TestActivity extends Activity {
         perfPassCount = (EditText)findViewById(R.id.perf_pass_count);
         taintPerfBox = (CheckBox)findViewById(R.id.perf_taint);
 
-        // Set up adapter for sandbox count spinner
-        CharSequence[] countList = new CharSequence[FlowfenceConstants.NUM_SANDBOXES + 1];
-        for (int i = 0; i <= FlowfenceConstants.NUM_SANDBOXES; i++) {
-            countList[i] = getResources().getQuantityString(R.plurals.sandbox_plurals, i, i);
-        }
-        ArrayAdapter<CharSequence> adapter = new ArrayAdapter<>(this,
-                                                                android.R.layout.simple_spinner_item,
-                                                                countList);
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        sandboxCount.setAdapter(adapter);
-        sandboxCount.setSelection(FlowfenceConstants.NUM_SANDBOXES);
+        // Until we're connected, offer as many sandboxes as the pool starts with.
+        setSandboxCountLimit(FlowfenceConstants.NUM_SANDBOXES);
 
-        adapter = ArrayAdapter.createFromResource(this, R.array.sandbox_count_labels,
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this, R.array.sandbox_count_labels,
                                                   android.R.layout.simple_spinner_item);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         sandboxCountType.setAdapter(adapter);